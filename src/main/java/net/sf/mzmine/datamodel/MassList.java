@@ -19,6 +19,7 @@
 package net.sf.mzmine.datamodel;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
 /**
  * This class represent detected masses (ions) in one mass spectrum. Each ion is represented by a
@@ -35,4 +36,56 @@ public interface MassList {
   @Nonnull
   public DataPoint[] getDataPoints();
 
+  /**
+   * @return Number of detected masses in this mass list
+   */
+  public default int getNumberOfDataPoints() {
+    return getDataPoints().length;
+  }
+
+  /**
+   * Copies the m/z values of this mass list into the given array, see
+   * MassSpectrum.getMzValues(double[]). Only the first getNumberOfDataPoints() elements of the
+   * returned array are valid.
+   */
+  @Nonnull
+  public default double[] getMzValues(@Nullable double mzValues[]) {
+    final DataPoint dataPoints[] = getDataPoints();
+    if ((mzValues == null) || (mzValues.length < dataPoints.length))
+      mzValues = new double[dataPoints.length];
+    for (int i = 0; i < dataPoints.length; i++)
+      mzValues[i] = dataPoints[i].getMZ();
+    return mzValues;
+  }
+
+  /**
+   * Copies the intensity values of this mass list into the given array, see
+   * MassSpectrum.getIntensityValues(double[]). Only the first getNumberOfDataPoints() elements of
+   * the returned array are valid.
+   */
+  @Nonnull
+  public default double[] getIntensityValues(@Nullable double intensityValues[]) {
+    final DataPoint dataPoints[] = getDataPoints();
+    if ((intensityValues == null) || (intensityValues.length < dataPoints.length))
+      intensityValues = new double[dataPoints.length];
+    for (int i = 0; i < dataPoints.length; i++)
+      intensityValues[i] = dataPoints[i].getIntensity();
+    return intensityValues;
+  }
+
+  /**
+   * Copies both the m/z and the intensity values of this mass list into the given arrays, see
+   * MassSpectrum.getDataPoints(double[], double[]).
+   *
+   * @return Number of data points copied
+   */
+  public default int getDataPoints(@Nonnull double mzValues[], @Nonnull double intensityValues[]) {
+    final DataPoint dataPoints[] = getDataPoints();
+    for (int i = 0; i < dataPoints.length; i++) {
+      mzValues[i] = dataPoints[i].getMZ();
+      intensityValues[i] = dataPoints[i].getIntensity();
+    }
+    return dataPoints.length;
+  }
+
 }
@@ -95,4 +95,57 @@ public interface MassSpectrum {
   @Nonnull
   public DataPoint[] getDataPointsOverIntensity(double intensity);
 
+  /**
+   * Copies the m/z values of this spectrum, sorted in m/z order, into the given array. If the array
+   * is null or too small, a new array is allocated. Only the first getNumberOfDataPoints() elements
+   * of the returned array are valid. Modules that process many spectra should reuse the returned
+   * array in subsequent calls, so that no objects are allocated per data point.
+   *
+   * @param mzValues Array to store the values, may be null
+   * @return Array containing the m/z values
+   */
+  @Nonnull
+  public default double[] getMzValues(@Nullable double mzValues[]) {
+    final DataPoint dataPoints[] = getDataPoints();
+    if ((mzValues == null) || (mzValues.length < dataPoints.length))
+      mzValues = new double[dataPoints.length];
+    for (int i = 0; i < dataPoints.length; i++)
+      mzValues[i] = dataPoints[i].getMZ();
+    return mzValues;
+  }
+
+  /**
+   * Copies the intensity values of this spectrum, in the same order as getMzValues(), into the
+   * given array. If the array is null or too small, a new array is allocated. Only the first
+   * getNumberOfDataPoints() elements of the returned array are valid.
+   *
+   * @param intensityValues Array to store the values, may be null
+   * @return Array containing the intensity values
+   */
+  @Nonnull
+  public default double[] getIntensityValues(@Nullable double intensityValues[]) {
+    final DataPoint dataPoints[] = getDataPoints();
+    if ((intensityValues == null) || (intensityValues.length < dataPoints.length))
+      intensityValues = new double[dataPoints.length];
+    for (int i = 0; i < dataPoints.length; i++)
+      intensityValues[i] = dataPoints[i].getIntensity();
+    return intensityValues;
+  }
+
+  /**
+   * Copies both the m/z and the intensity values of this spectrum, sorted in m/z order, into the
+   * given arrays, reading the data points only once. The arrays must hold at least
+   * getNumberOfDataPoints() elements.
+   *
+   * @return Number of data points copied
+   */
+  public default int getDataPoints(@Nonnull double mzValues[], @Nonnull double intensityValues[]) {
+    final DataPoint dataPoints[] = getDataPoints();
+    for (int i = 0; i < dataPoints.length; i++) {
+      mzValues[i] = dataPoints[i].getMZ();
+      intensityValues[i] = dataPoints[i].getIntensity();
+    }
+    return dataPoints.length;
+  }
+
 }
@@ -24,9 +24,17 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Predicate;
+import java.util.function.ToDoubleFunction;
 import java.util.stream.Stream;
 import com.google.common.collect.Range;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntArrays;
 import net.sf.mzmine.datamodel.Feature;
 import net.sf.mzmine.datamodel.PeakList;
 import net.sf.mzmine.datamodel.PeakListRow;
@@ -37,6 +45,10 @@ import net.sf.mzmine.project.impl.MZmineProjectImpl;
 
 /**
  * Simple implementation of the PeakList interface.
+ *
+ * Range queries (getRowsInsideScanAndMZRange() and getPeaksInsideScanAndMZRange()) are answered
+ * using indexes sorted by m/z, which are built on first use and discarded whenever a row is added
+ * or removed, or a SimplePeakListRow of this list changes its peaks or average values.
  */
 public class SimplePeakList implements PeakList {
 
@@ -48,6 +60,17 @@ public class SimplePeakList implements PeakList {
   private String dateCreated;
   private Range<Double> mzRange, rtRange;
 
+  // m/z index of the rows by average m/z, and of the peaks of each data file by peak m/z. An index
+  // is only used if it was built at the current modification count, so an index built from rows
+  // which changed during the building is never used.
+  private final AtomicReference<MZIndex<PeakListRow>> rowIndex = new AtomicReference<>();
+  private final Map<RawDataFile, MZIndex<Feature>> peakIndexes = new ConcurrentHashMap<>();
+  private final AtomicLong modificationCount = new AtomicLong();
+
+  // True if this list contains rows which do not notify us about their changes, so the m/z indexes
+  // cannot be used
+  private volatile boolean hasUntrackedRows = false;
+
   public static DateFormat dateFormat = new SimpleDateFormat("yyyy/MM/dd HH:mm:ss");
 
   public SimplePeakList(String name, RawDataFile dataFile) {
@@ -166,14 +189,28 @@ public class SimplePeakList implements PeakList {
 
   @Override
   public PeakListRow[] getRowsInsideScanAndMZRange(Range<Double> rtRange, Range<Double> mzRange) {
-    Vector<PeakListRow> rowsInside = new Vector<PeakListRow>();
 
-    for (PeakListRow row : peakListRows) {
-      if (rtRange.contains(row.getAverageRT()) && mzRange.contains(row.getAverageMZ()))
-        rowsInside.add(row);
+    final Predicate<PeakListRow> inside =
+        row -> rtRange.contains(row.getAverageRT()) && mzRange.contains(row.getAverageMZ());
+
+    if (hasUntrackedRows) {
+      Vector<PeakListRow> rowsInside = new Vector<PeakListRow>();
+      for (PeakListRow row : peakListRows) {
+        if (inside.test(row))
+          rowsInside.add(row);
+      }
+      return rowsInside.toArray(new PeakListRow[0]);
+    }
+
+    final long version = modificationCount.get();
+    MZIndex<PeakListRow> index = rowIndex.get();
+    if ((index == null) || (index.version != version)) {
+      index = new MZIndex<PeakListRow>(peakListRows.toArray(new PeakListRow[0]),
+          PeakListRow::getAverageMZ, version);
+      rowIndex.accumulateAndGet(index, MZIndex::newer);
     }
 
-    return rowsInside.toArray(new PeakListRow[0]);
+    return index.getItemsInside(mzRange, inside).toArray(new PeakListRow[0]);
   }
 
   @Override
@@ -185,6 +222,12 @@ public class SimplePeakList implements PeakList {
     }
 
     peakListRows.add(row);
+    if (row instanceof SimplePeakListRow)
+      ((SimplePeakListRow) row).addPeakList(this);
+    else
+      hasUntrackedRows = true;
+    rowChanged();
+
     if (row.getDataPointMaxIntensity() > maxDataPointIntensity) {
       maxDataPointIntensity = row.getDataPointMaxIntensity();
     }
@@ -198,6 +241,15 @@ public class SimplePeakList implements PeakList {
     }
   }
 
+  /**
+   * Discards the m/z indexes, called when a row was added or removed or its values have changed
+   */
+  void rowChanged() {
+    modificationCount.incrementAndGet();
+    rowIndex.set(null);
+    peakIndexes.clear();
+  }
+
   /**
    * Returns all peaks overlapping with a retention time range
    * 
@@ -227,15 +279,28 @@ public class SimplePeakList implements PeakList {
   @Override
   public Feature[] getPeaksInsideScanAndMZRange(RawDataFile file, Range<Double> rtRange,
       Range<Double> mzRange) {
-    Vector<Feature> peaksInside = new Vector<Feature>();
 
-    Feature[] peaks = getPeaks(file);
-    for (Feature p : peaks) {
-      if (rtRange.contains(p.getRT()) && mzRange.contains(p.getMZ()))
-        peaksInside.add(p);
+    final Predicate<Feature> inside =
+        p -> rtRange.contains(p.getRT()) && mzRange.contains(p.getMZ());
+
+    if (hasUntrackedRows) {
+      Vector<Feature> peaksInside = new Vector<Feature>();
+      Feature[] peaks = getPeaks(file);
+      for (Feature p : peaks) {
+        if (inside.test(p))
+          peaksInside.add(p);
+      }
+      return peaksInside.toArray(new Feature[0]);
+    }
+
+    final long version = modificationCount.get();
+    MZIndex<Feature> index = peakIndexes.get(file);
+    if ((index == null) || (index.version != version)) {
+      index = new MZIndex<Feature>(getPeaks(file), Feature::getMZ, version);
+      peakIndexes.merge(file, index, MZIndex::newer);
     }
 
-    return peaksInside.toArray(new Feature[0]);
+    return index.getItemsInside(mzRange, inside).toArray(new Feature[0]);
   }
 
   /**
@@ -244,6 +309,9 @@ public class SimplePeakList implements PeakList {
   @Override
   public void removeRow(PeakListRow row) {
     peakListRows.remove(row);
+    if (row instanceof SimplePeakListRow)
+      ((SimplePeakListRow) row).removePeakList(this);
+    rowChanged();
 
     // We have to update the project tree model
     MZmineProjectImpl project =
@@ -370,4 +438,81 @@ public class SimplePeakList implements PeakList {
   public PeakListRow findRowByID(int id) {
     return stream().filter(r -> r.getID() == id).findFirst().orElse(null);
   }
+
+  /**
+   * Items (rows or peaks) sorted by their m/z value at the time the index was built. Range queries
+   * find the first candidate by binary search and return the matching items in their original
+   * order, so the results are the same as with a linear pass through the list.
+   */
+  private static class MZIndex<T> {
+
+    private final T items[];
+    private final double sortedMZValues[];
+    private final int sortedPositions[];
+
+    // Modification count of the feature list when the index was built
+    private final long version;
+
+    private MZIndex(T items[], ToDoubleFunction<T> mzFunction, long version) {
+      this.items = items;
+      this.version = version;
+      final double mzValues[] = new double[items.length];
+      for (int i = 0; i < items.length; i++)
+        mzValues[i] = mzFunction.applyAsDouble(items[i]);
+
+      sortedPositions = new int[items.length];
+      for (int i = 0; i < items.length; i++)
+        sortedPositions[i] = i;
+      IntArrays.quickSort(sortedPositions, 0, items.length,
+          (a, b) -> Double.compare(mzValues[a], mzValues[b]));
+
+      sortedMZValues = new double[items.length];
+      for (int i = 0; i < items.length; i++)
+        sortedMZValues[i] = mzValues[sortedPositions[i]];
+    }
+
+    /**
+     * @return the index built at the later modification count, so a concurrently built index of
+     *         older rows never replaces a newer one
+     */
+    private static <T> MZIndex<T> newer(MZIndex<T> a, MZIndex<T> b) {
+      if (a == null)
+        return b;
+      return (b.version > a.version) ? b : a;
+    }
+
+    private List<T> getItemsInside(Range<Double> mzRange, Predicate<T> inside) {
+
+      int first = 0;
+      if (mzRange.hasLowerBound()) {
+        final double lowerMZ = mzRange.lowerEndpoint();
+        int high = sortedMZValues.length;
+        while (first < high) {
+          final int mid = (first + high) >>> 1;
+          if (sortedMZValues[mid] < lowerMZ)
+            first = mid + 1;
+          else
+            high = mid;
+        }
+      }
+
+      IntArrayList matchingPositions = new IntArrayList();
+      for (int i = first; i < sortedMZValues.length; i++) {
+        if (mzRange.hasUpperBound() && (sortedMZValues[i] > mzRange.upperEndpoint()))
+          break;
+        final int position = sortedPositions[i];
+        if (inside.test(items[position]))
+          matchingPositions.add(position);
+      }
+
+      final int positions[] = matchingPositions.toIntArray();
+      Arrays.sort(positions);
+      List<T> result = new ArrayList<T>(positions.length);
+      for (int position : positions)
+        result.add(items[position]);
+      return result;
+    }
+
+  }
+
 }
@@ -18,13 +18,17 @@
 
 package net.sf.mzmine.datamodel.impl;
 
+import java.lang.ref.WeakReference;
 import java.text.Format;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.Vector;
+import java.util.WeakHashMap;
 import java.util.concurrent.ConcurrentHashMap;
 import javax.annotation.Nonnull;
 import net.sf.mzmine.datamodel.Feature;
@@ -61,6 +65,15 @@ public class SimplePeakListRow implements PeakListRow {
   private double averageRT, averageMZ, averageHeight, averageArea;
   private int rowCharge;
 
+  /**
+   * Feature lists containing this row. They index their rows by m/z and RT, so they have to be
+   * notified when the peaks or average values of this row change. Weak references are used so
+   * that discarded feature lists can be garbage collected. A row is usually contained in a single
+   * feature list, so the set of further lists is only created when needed. Guarded by this row.
+   */
+  private WeakReference<SimplePeakList> peakList;
+  private Set<SimplePeakList> otherPeakLists;
+
   public SimplePeakListRow(int myID) {
     this.myID = myID;
     peaks = new ConcurrentHashMap<RawDataFile, Feature>();
@@ -170,6 +183,44 @@ public class SimplePeakListRow implements PeakListRow {
     } else {
       rowCharge = 0;
     }
+    notifyPeakLists();
+  }
+
+  synchronized void addPeakList(SimplePeakList newPeakList) {
+    final SimplePeakList firstPeakList = (peakList == null) ? null : peakList.get();
+    if ((firstPeakList == newPeakList)
+        || ((otherPeakLists != null) && otherPeakLists.contains(newPeakList)))
+      return;
+    if (firstPeakList == null) {
+      peakList = new WeakReference<>(newPeakList);
+      return;
+    }
+    if (otherPeakLists == null)
+      otherPeakLists = Collections.newSetFromMap(new WeakHashMap<>());
+    otherPeakLists.add(newPeakList);
+  }
+
+  synchronized void removePeakList(SimplePeakList oldPeakList) {
+    if ((peakList != null) && (peakList.get() == oldPeakList))
+      peakList = null;
+    if (otherPeakLists != null)
+      otherPeakLists.remove(oldPeakList);
+  }
+
+  private void notifyPeakLists() {
+    final SimplePeakList firstPeakList;
+    final SimplePeakList currentPeakLists[];
+    synchronized (this) {
+      firstPeakList = (peakList == null) ? null : peakList.get();
+      currentPeakLists = ((otherPeakLists == null) || otherPeakLists.isEmpty()) ? null
+          : otherPeakLists.toArray(new SimplePeakList[0]);
+    }
+    if (firstPeakList != null)
+      firstPeakList.rowChanged();
+    if (currentPeakLists != null) {
+      for (SimplePeakList otherPeakList : currentPeakLists)
+        otherPeakList.rowChanged();
+    }
   }
 
   /**
@@ -218,6 +269,7 @@ public class SimplePeakListRow implements PeakListRow {
   @Override
   public void setAverageMZ(double mz) {
     this.averageMZ = mz;
+    notifyPeakLists();
   }
 
   /**
@@ -226,6 +278,7 @@ public class SimplePeakListRow implements PeakListRow {
   @Override
   public void setAverageRT(double rt) {
     this.averageRT = rt;
+    notifyPeakLists();
   }
 
   /**
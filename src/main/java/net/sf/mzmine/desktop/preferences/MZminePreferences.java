@@ -27,9 +27,11 @@ import net.sf.mzmine.parameters.ParameterSet;
 import net.sf.mzmine.parameters.impl.SimpleParameterSet;
 import net.sf.mzmine.parameters.parametertypes.BooleanParameter;
 import net.sf.mzmine.parameters.parametertypes.ComboParameter;
+import net.sf.mzmine.parameters.parametertypes.IntegerParameter;
 import net.sf.mzmine.parameters.parametertypes.WindowSettingsParameter;
 import net.sf.mzmine.parameters.parametertypes.filenames.FileNameParameter;
 import net.sf.mzmine.parameters.parametertypes.submodules.OptionalModuleParameter;
+import net.sf.mzmine.project.impl.DataPointsCache;
 import net.sf.mzmine.util.ColorPalettes;
 import net.sf.mzmine.util.ExitCode;
 
@@ -55,6 +57,16 @@ public class MZminePreferences extends SimpleParameterSet {
   public static final OptionalModuleParameter proxySettings = new OptionalModuleParameter(
       "Use proxy", "Use proxy for internet connection?", new ProxySettings());
 
+  public static final IntegerParameter dataPointsCacheSize = new IntegerParameter(
+      "Spectra cache size (MB)",
+      "Memory used to keep decoded scans and mass lists, shared by all processing steps and visualizers (0 disables the cache)",
+      DataPointsCache.DEFAULT_SIZE_MB, 0, null);
+
+  public static final OptionalModuleParameter scanDataCompression = new OptionalModuleParameter(
+      "Compress temporary scan data",
+      "Store the scan data in the temporary files in a compressed form, to save disk space and I/O bandwidth",
+      new ScanDataCompressionSettings(), false);
+
   public static final FileNameParameter rExecPath = new FileNameParameter("R executable path",
       "Full R executable file path (If left blank, MZmine will try to find out automatically). On Windows, this should point to your R.exe file.");
 
@@ -70,7 +82,8 @@ public class MZminePreferences extends SimpleParameterSet {
 
   public MZminePreferences() {
     super(new Parameter[] {colorPalettes, mzFormat, rtFormat, intensityFormat, numOfThreads,
-        proxySettings, rExecPath, sendStatistics, windowSetttings, sendErrorEMail});
+        dataPointsCacheSize, scanDataCompression, proxySettings, rExecPath, sendStatistics,
+        windowSetttings, sendErrorEMail});
   }
 
   @Override
@@ -83,6 +96,8 @@ public class MZminePreferences extends SimpleParameterSet {
       // Update proxy settings
       updateSystemProxySettings();
 
+      updateDataPointsCacheSize();
+
       // Repaint windows to update number formats
       MZmineCore.getDesktop().getMainWindow().repaint();
     }
@@ -94,6 +109,12 @@ public class MZminePreferences extends SimpleParameterSet {
   public void loadValuesFromXML(Element xmlElement) {
     super.loadValuesFromXML(xmlElement);
     updateSystemProxySettings();
+    updateDataPointsCacheSize();
+  }
+
+  private void updateDataPointsCacheSize() {
+    Integer cacheSize = getParameter(dataPointsCacheSize).getValue();
+    DataPointsCache.setSize(cacheSize == null ? DataPointsCache.DEFAULT_SIZE_MB : cacheSize);
   }
 
   private void updateSystemProxySettings() {
@@ -74,6 +74,16 @@ public class NumOfThreadsParameter implements UserParameter<Integer, NumOfThread
     return automatic;
   }
 
+  /**
+   * @return the number of threads to use, i.e. the number of available processors if the value is
+   *         automatic or not set
+   */
+  public int getNumberOfThreads() {
+    if (automatic || (value == null))
+      return Runtime.getRuntime().availableProcessors();
+    return value;
+  }
+
   @Override
   public void setValue(Integer value) {
     assert value != null;
@@ -0,0 +1,39 @@
+/*
+ * Copyright 2006-2018 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with MZmine 2; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+
+package net.sf.mzmine.desktop.preferences;
+
+import net.sf.mzmine.parameters.Parameter;
+import net.sf.mzmine.parameters.impl.SimpleParameterSet;
+import net.sf.mzmine.parameters.parametertypes.IntegerParameter;
+
+/**
+ * Compression settings of the temporary scan data files
+ */
+public class ScanDataCompressionSettings extends SimpleParameterSet {
+
+  public static final IntegerParameter intensityBits = new IntegerParameter(
+      "Intensity precision (bits)",
+      "Number of mantissa bits kept for intensity values. 23 keeps the full single precision, each bit less halves the precision (10 bits correspond to a relative error below 0.05%) and improves the compression.",
+      23, 1, 23);
+
+  public ScanDataCompressionSettings() {
+    super(new Parameter[] {intensityBits});
+  }
+
+}
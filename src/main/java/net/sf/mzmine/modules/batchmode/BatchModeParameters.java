@@ -23,6 +23,9 @@ import java.util.logging.Logger;
 import net.sf.mzmine.parameters.Parameter;
 import net.sf.mzmine.parameters.dialogs.ParameterSetupDialog;
 import net.sf.mzmine.parameters.impl.SimpleParameterSet;
+import net.sf.mzmine.parameters.parametertypes.BooleanParameter;
+import net.sf.mzmine.parameters.parametertypes.OptionalParameter;
+import net.sf.mzmine.parameters.parametertypes.filenames.FileNameParameter;
 import net.sf.mzmine.parameters.parametertypes.filenames.FileNameListSilentParameter;
 import net.sf.mzmine.util.ExitCode;
 
@@ -33,8 +36,17 @@ public class BatchModeParameters extends SimpleParameterSet {
   public static final FileNameListSilentParameter lastFiles = new FileNameListSilentParameter("Last used files");
   public static final BatchQueueParameter batchQueue = new BatchQueueParameter();
 
+  public static final BooleanParameter processSamplesIndependently = new BooleanParameter(
+      "Process samples independently",
+      "Consecutive steps which process each raw data file or feature list separately (e.g. mass detection, chromatogram building, deconvolution, deisotoping) are executed for each sample without waiting for the other samples. Steps which combine the samples, such as alignment and gap filling, wait for all samples.",
+      false);
+
+  public static final OptionalParameter<FileNameParameter> metricsFile =
+      new OptionalParameter<>(new FileNameParameter("Export metrics",
+          "At the end of the batch, the wall time, CPU time, queue wait time, scans read and feature list rows written per second, bytes read and written and the data points cache hit ratio of each task, each batch step and in total are written to this file, as CSV if its name ends with .csv and as JSON otherwise."));
+
   public BatchModeParameters() {
-    super(new Parameter[] {batchQueue, lastFiles});
+    super(new Parameter[] {batchQueue, processSamplesIndependently, metricsFile, lastFiles});
   }
 
   @Override
@@ -18,9 +18,15 @@
 
 package net.sf.mzmine.modules.batchmode;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Logger;
 
 import net.sf.mzmine.datamodel.MZmineProject;
@@ -30,39 +36,165 @@ import net.sf.mzmine.datamodel.RawDataFile;
 import net.sf.mzmine.main.MZmineCore;
 import net.sf.mzmine.modules.MZmineProcessingModule;
 import net.sf.mzmine.modules.MZmineProcessingStep;
+import net.sf.mzmine.modules.MZmineSampleProcessingModule;
 import net.sf.mzmine.parameters.Parameter;
 import net.sf.mzmine.parameters.ParameterSet;
 import net.sf.mzmine.parameters.parametertypes.selectors.PeakListsParameter;
 import net.sf.mzmine.parameters.parametertypes.selectors.PeakListsSelection;
+import net.sf.mzmine.parameters.parametertypes.selectors.PeakListsSelectionType;
 import net.sf.mzmine.parameters.parametertypes.selectors.RawDataFilesParameter;
 import net.sf.mzmine.parameters.parametertypes.selectors.RawDataFilesSelection;
+import net.sf.mzmine.parameters.parametertypes.selectors.RawDataFilesSelectionType;
 import net.sf.mzmine.taskcontrol.AbstractTask;
 import net.sf.mzmine.taskcontrol.Task;
 import net.sf.mzmine.taskcontrol.TaskPriority;
 import net.sf.mzmine.taskcontrol.TaskStatus;
+import net.sf.mzmine.taskcontrol.metrics.MetricsRegistry;
 import net.sf.mzmine.util.ExitCode;
 
 /**
- * Batch mode task
+ * Batch mode task. The steps are executed one after another, each step waits until all tasks of
+ * the previous step are finished. If processSamplesIndependently is set, consecutive steps of
+ * modules which process each sample separately (MZmineSampleProcessingModule) are executed for each
+ * sample independently: the next step of a sample starts as soon as the tasks of this sample are
+ * finished. The metrics of the tasks of all steps are exported at the end of the batch, if a
+ * metrics file is set.
  */
 public class BatchTask extends AbstractTask {
 
   private Logger logger = Logger.getLogger(this.getClass().getName());
 
   private int totalSteps, processedSteps;
+  private volatile double sampleStepsProgress = 0;
 
   private MZmineProject project;
   private final BatchQueue queue;
+  private final boolean processSamplesIndependently;
+  private final File metricsFile;
 
   private final List<RawDataFile> createdDataFiles, previousCreatedDataFiles;
   private final List<PeakList> createdPeakLists, previousCreatedPeakLists;
 
+  // Samples of the tasks being executed, by the executing thread. Raw data files and feature lists
+  // added to the project by these threads are assigned to the samples.
+  private final Map<Thread, Sample> runningSamples = new ConcurrentHashMap<>();
+
+  // Number of step tasks processed so far. The batch waits for this number to change instead of
+  // polling the status of the tasks.
+  private int processedStepTasks = 0;
+
+  /**
+   * Raw data files and feature lists of one sample, processed by consecutive per-sample steps
+   */
+  private static class Sample {
+
+    // Step of the tasks, or -1 when the sample is finished
+    private int stepNumber;
+    private final List<Task> tasks = new ArrayList<>();
+
+    private final List<RawDataFile> dataFiles = new ArrayList<>();
+    private final List<PeakList> peakLists = new ArrayList<>();
+    private final List<RawDataFile> createdDataFiles =
+        Collections.synchronizedList(new ArrayList<>());
+    private final List<PeakList> createdPeakLists =
+        Collections.synchronizedList(new ArrayList<>());
+
+    /**
+     * Replaces the raw data files and feature lists of this sample with those created by the
+     * finished step, if it created any
+     */
+    private void finishStep() {
+      synchronized (createdDataFiles) {
+        if (!createdDataFiles.isEmpty()) {
+          dataFiles.clear();
+          dataFiles.addAll(createdDataFiles);
+          createdDataFiles.clear();
+        }
+      }
+      synchronized (createdPeakLists) {
+        if (!createdPeakLists.isEmpty()) {
+          peakLists.clear();
+          peakLists.addAll(createdPeakLists);
+          createdPeakLists.clear();
+        }
+      }
+      tasks.clear();
+    }
+  }
+
+  /**
+   * Task of a sample, which assigns the raw data files and feature lists added to the project while
+   * it runs to the sample
+   */
+  private class SampleTask implements Task {
+
+    private final Task actualTask;
+    private final Sample sample;
+    private volatile boolean done = false;
+
+    private SampleTask(Task actualTask, Sample sample) {
+      this.actualTask = actualTask;
+      this.sample = sample;
+    }
+
+    @Override
+    public void run() {
+      runningSamples.put(Thread.currentThread(), sample);
+      try {
+        actualTask.run();
+      } finally {
+        runningSamples.remove(Thread.currentThread());
+        done = true;
+        // Wake up the batch task to start the next step of the sample
+        stepTaskProcessed();
+      }
+    }
+
+    @Override
+    public String getTaskDescription() {
+      return actualTask.getTaskDescription();
+    }
+
+    @Override
+    public double getFinishedPercentage() {
+      return actualTask.getFinishedPercentage();
+    }
+
+    @Override
+    public TaskStatus getStatus() {
+      return actualTask.getStatus();
+    }
+
+    @Override
+    public String getErrorMessage() {
+      return actualTask.getErrorMessage();
+    }
+
+    @Override
+    public TaskPriority getTaskPriority() {
+      return actualTask.getTaskPriority();
+    }
+
+    @Override
+    public void cancel() {
+      actualTask.cancel();
+    }
+  }
+
   BatchTask(MZmineProject project, ParameterSet parameters) {
     this.project = project;
     this.queue = parameters.getParameter(BatchModeParameters.batchQueue).getValue();
+    Boolean independently =
+        parameters.getParameter(BatchModeParameters.processSamplesIndependently).getValue();
+    this.processSamplesIndependently = (independently != null) && independently;
+    Boolean exportMetrics = parameters.getParameter(BatchModeParameters.metricsFile).getValue();
+    this.metricsFile = ((exportMetrics != null) && exportMetrics)
+        ? parameters.getParameter(BatchModeParameters.metricsFile).getEmbeddedParameter()
+            .getValue()
+        : null;
     totalSteps = queue.size();
-    createdDataFiles = new ArrayList<>();
-    createdPeakLists = new ArrayList<>();
+    createdDataFiles = Collections.synchronizedList(new ArrayList<>());
+    createdPeakLists = Collections.synchronizedList(new ArrayList<>());
     previousCreatedDataFiles = new ArrayList<>();
     previousCreatedPeakLists = new ArrayList<>();
   }
@@ -72,17 +204,26 @@ public class BatchTask extends AbstractTask {
 
     setStatus(TaskStatus.PROCESSING);
     logger.info("Starting a batch of " + totalSteps + " steps");
+    MetricsRegistry.reset();
 
     // Listen for new items in the project
     MZmineProjectListener listener = new MZmineProjectListener() {
       @Override
       public void peakListAdded(PeakList newPeakList) {
-        createdPeakLists.add(newPeakList);
+        Sample sample = runningSamples.get(Thread.currentThread());
+        if (sample != null)
+          sample.createdPeakLists.add(newPeakList);
+        else
+          createdPeakLists.add(newPeakList);
       }
 
       @Override
       public void dataFileAdded(RawDataFile newFile) {
-        createdDataFiles.add(newFile);
+        Sample sample = runningSamples.get(Thread.currentThread());
+        if (sample != null)
+          sample.createdDataFiles.add(newFile);
+        else
+          createdDataFiles.add(newFile);
       }
     };
     project.addProjectListener(listener);
@@ -90,8 +231,21 @@ public class BatchTask extends AbstractTask {
     // Process individual batch steps
     for (int i = 0; i < totalSteps; i++) {
 
-      processQueueStep(i);
-      processedSteps++;
+      // Find the consecutive steps which can be executed for each sample independently
+      int lastSampleStep = i;
+      if (processSamplesIndependently && isSampleStep(i, true)) {
+        while ((lastSampleStep + 1 < totalSteps) && isSampleStep(lastSampleStep + 1, false))
+          lastSampleStep++;
+      }
+
+      if (lastSampleStep > i) {
+        processSampleSteps(i, lastSampleStep);
+        processedSteps += lastSampleStep - i + 1;
+        i = lastSampleStep;
+      } else {
+        processQueueStep(i);
+        processedSteps++;
+      }
 
       // Update the project reference in case new project was loaded
       if (project != MZmineCore.getProjectManager().getCurrentProject()) {
@@ -102,6 +256,7 @@ public class BatchTask extends AbstractTask {
 
       // If we are canceled or ran into error, stop here
       if (isCanceled() || (getStatus() == TaskStatus.ERROR)) {
+        exportMetrics();
         return;
       }
 
@@ -110,10 +265,24 @@ public class BatchTask extends AbstractTask {
     project.removeProjectListener(listener);
 
     logger.info("Finished a batch of " + totalSteps + " steps");
+    exportMetrics();
     setStatus(TaskStatus.FINISHED);
 
   }
 
+  /**
+   * Writes the metrics of the processed tasks to the metrics file, if it is set
+   */
+  private void exportMetrics() {
+    if (metricsFile == null)
+      return;
+    try {
+      MetricsRegistry.exportMetrics(metricsFile);
+    } catch (IOException e) {
+      logger.warning("Could not export the batch metrics to " + metricsFile + ": " + e);
+    }
+  }
+
   private void processQueueStep(int stepNumber) {
 
     logger.info("Starting step # " + (stepNumber + 1));
@@ -123,55 +292,13 @@ public class BatchTask extends AbstractTask {
     MZmineProcessingModule method = (MZmineProcessingModule) currentStep.getModule();
     ParameterSet batchStepParameters = currentStep.getParameterSet();
 
-    // If the last step did not produce any data files or feature lists, use
-    // the ones from the previous step
-    if (createdDataFiles.isEmpty())
-      createdDataFiles.addAll(previousCreatedDataFiles);
-    if (createdPeakLists.isEmpty())
-      createdPeakLists.addAll(previousCreatedPeakLists);
-
-    // Update the RawDataFilesParameter parameters to reflect the current
-    // state of the batch
-    for (Parameter<?> p : batchStepParameters.getParameters()) {
-      if (p instanceof RawDataFilesParameter) {
-        RawDataFilesParameter rdp = (RawDataFilesParameter) p;
-        RawDataFile createdFiles[] = createdDataFiles.toArray(new RawDataFile[0]);
-        final RawDataFilesSelection selectedFiles = rdp.getValue();
-        if (selectedFiles == null) {
-          setStatus(TaskStatus.ERROR);
-          setErrorMessage("Invalid parameter settings for module " + method.getName() + ": "
-              + "Missing parameter value for " + p.getName());
-          return;
-        }
-        selectedFiles.setBatchLastFiles(createdFiles);
-      }
-    }
+    updateLastItems();
 
-    // Update the PeakListsParameter parameters to reflect the current
+    // Update the RawDataFilesParameter and PeakListsParameter parameters to reflect the current
     // state of the batch
-    for (Parameter<?> p : batchStepParameters.getParameters()) {
-      if (p instanceof PeakListsParameter) {
-        PeakListsParameter rdp = (PeakListsParameter) p;
-        PeakList createdPls[] = createdPeakLists.toArray(new PeakList[0]);
-        final PeakListsSelection selectedPeakLists = rdp.getValue();
-        if (selectedPeakLists == null) {
-          setStatus(TaskStatus.ERROR);
-          setErrorMessage("Invalid parameter settings for module " + method.getName() + ": "
-              + "Missing parameter value for " + p.getName());
-          return;
-        }
-        selectedPeakLists.setBatchLastPeakLists(createdPls);
-      }
-    }
-
-    // Clear the saved data files and feature lists. Save them to the
-    // "previous" lists, in case the next step does not produce any new data
-    previousCreatedDataFiles.clear();
-    previousCreatedDataFiles.addAll(createdDataFiles);
-    previousCreatedPeakLists.clear();
-    previousCreatedPeakLists.addAll(createdPeakLists);
-    createdDataFiles.clear();
-    createdPeakLists.clear();
+    if (!setBatchLastItems(method, batchStepParameters, previousCreatedDataFiles,
+        previousCreatedPeakLists))
+      return;
 
     // Check if the parameter settings are valid
     ArrayList<String> messages = new ArrayList<String>();
@@ -191,6 +318,9 @@ public class BatchTask extends AbstractTask {
       return;
     }
 
+    for (Task stepTask : currentStepTasks)
+      MetricsRegistry.setModuleName(stepTask, method.getName());
+
     // If current step didn't produce any tasks, continue with next step
     if (currentStepTasks.isEmpty())
       return;
@@ -199,9 +329,18 @@ public class BatchTask extends AbstractTask {
 
     // Submit the tasks to the task controller for processing
     MZmineCore.getTaskController().addTasks(currentStepTasks.toArray(new Task[0]));
+    List<CompletableFuture<TaskStatus>> completions = new ArrayList<>();
+    for (Task stepTask : currentStepTasks) {
+      CompletableFuture<TaskStatus> completion =
+          MZmineCore.getTaskController().getTaskCompletion(stepTask);
+      completion.thenRun(this::stepTaskProcessed);
+      completions.add(completion);
+    }
 
     while (!allTasksFinished) {
 
+      final int previouslyProcessedTasks = getProcessedStepTasks();
+
       // If we canceled the batch, cancel all running tasks
       if (isCanceled()) {
         for (Task stepTask : currentStepTasks)
@@ -212,12 +351,14 @@ public class BatchTask extends AbstractTask {
       // First set to true, then check all tasks
       allTasksFinished = true;
 
-      for (Task stepTask : currentStepTasks) {
+      for (int i = 0; i < currentStepTasks.size(); i++) {
 
+        Task stepTask = currentStepTasks.get(i);
         TaskStatus stepStatus = stepTask.getStatus();
 
-        // If any of them is not finished, keep checking
-        if (stepStatus != TaskStatus.FINISHED)
+        // If any of them is not finished, keep checking. The task may still add its results to the
+        // project after setting its status.
+        if ((stepStatus != TaskStatus.FINISHED) || (!completions.get(i).isDone()))
           allTasksFinished = false;
 
         // If there was an error, we have to stop the whole batch
@@ -238,19 +379,379 @@ public class BatchTask extends AbstractTask {
 
       }
 
-      // Wait 1s before checking the tasks again
-      if (!allTasksFinished) {
-        synchronized (this) {
-          try {
-            this.wait(1000);
-          } catch (InterruptedException e) {
-            // ignore
+      // Wait until one of the tasks is processed before checking the tasks again
+      if (!allTasksFinished)
+        waitForStepTasks(previouslyProcessedTasks);
+
+    }
+
+  }
+
+  @Override
+  public void cancel() {
+    super.cancel();
+    // Wake up the batch to cancel the tasks of the current step
+    synchronized (this) {
+      this.notifyAll();
+    }
+  }
+
+  private synchronized void stepTaskProcessed() {
+    processedStepTasks++;
+    this.notifyAll();
+  }
+
+  private synchronized int getProcessedStepTasks() {
+    return processedStepTasks;
+  }
+
+  /**
+   * Waits until another step task is processed or the batch is canceled. As the status of a task
+   * may change without the task being processed (e.g. a task canceled while waiting in the queue),
+   * the statuses are checked again after at most 1s.
+   */
+  private synchronized void waitForStepTasks(int previouslyProcessedTasks) {
+    if ((processedStepTasks != previouslyProcessedTasks) || isCanceled())
+      return;
+    try {
+      this.wait(1000);
+    } catch (InterruptedException e) {
+      // ignore
+    }
+  }
+
+  /**
+   * Moves the data files and feature lists created by the last step to the "previous" lists. If
+   * the last step did not produce any data files or feature lists, the ones from the previous step
+   * are kept.
+   */
+  private void updateLastItems() {
+    synchronized (createdDataFiles) {
+      if (!createdDataFiles.isEmpty()) {
+        previousCreatedDataFiles.clear();
+        previousCreatedDataFiles.addAll(createdDataFiles);
+        createdDataFiles.clear();
+      }
+    }
+    synchronized (createdPeakLists) {
+      if (!createdPeakLists.isEmpty()) {
+        previousCreatedPeakLists.clear();
+        previousCreatedPeakLists.addAll(createdPeakLists);
+        createdPeakLists.clear();
+      }
+    }
+  }
+
+  /**
+   * Sets the given data files and feature lists as those created by the previous batch step in the
+   * parameters of a batch step
+   *
+   * @return false if a parameter value is missing
+   */
+  private boolean setBatchLastItems(MZmineProcessingModule method, ParameterSet parameters,
+      List<RawDataFile> dataFiles, List<PeakList> peakLists) {
+
+    for (Parameter<?> p : parameters.getParameters()) {
+      if (p instanceof RawDataFilesParameter) {
+        RawDataFilesParameter rdp = (RawDataFilesParameter) p;
+        RawDataFile createdFiles[] = dataFiles.toArray(new RawDataFile[0]);
+        final RawDataFilesSelection selectedFiles = rdp.getValue();
+        if (selectedFiles == null) {
+          setStatus(TaskStatus.ERROR);
+          setErrorMessage("Invalid parameter settings for module " + method.getName() + ": "
+              + "Missing parameter value for " + p.getName());
+          return false;
+        }
+        selectedFiles.setBatchLastFiles(createdFiles);
+      }
+      if (p instanceof PeakListsParameter) {
+        PeakListsParameter rdp = (PeakListsParameter) p;
+        PeakList createdPls[] = peakLists.toArray(new PeakList[0]);
+        final PeakListsSelection selectedPeakLists = rdp.getValue();
+        if (selectedPeakLists == null) {
+          setStatus(TaskStatus.ERROR);
+          setErrorMessage("Invalid parameter settings for module " + method.getName() + ": "
+              + "Missing parameter value for " + p.getName());
+          return false;
+        }
+        selectedPeakLists.setBatchLastPeakLists(createdPls);
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @param first true if the step would be the first one of the steps executed for each sample
+   * @return true if the step can be executed for each sample independently. The first step may
+   *         select any raw data files or feature lists (one sample per selected item), or have no
+   *         such selection (e.g. raw data import, one sample per task). The following steps must
+   *         select the raw data files or feature lists created by the previous step.
+   */
+  private boolean isSampleStep(int stepNumber, boolean first) {
+
+    MZmineProcessingStep<?> step = queue.get(stepNumber);
+    if (!(step.getModule() instanceof MZmineSampleProcessingModule))
+      return false;
+
+    int numOfSelections = 0;
+    boolean batchLast = true;
+    for (Parameter<?> p : step.getParameterSet().getParameters()) {
+      if (p instanceof RawDataFilesParameter) {
+        numOfSelections++;
+        RawDataFilesSelection selection = ((RawDataFilesParameter) p).getValue();
+        if ((selection == null)
+            || (selection.getSelectionType() != RawDataFilesSelectionType.BATCH_LAST_FILES))
+          batchLast = false;
+      }
+      if (p instanceof PeakListsParameter) {
+        numOfSelections++;
+        PeakListsSelection selection = ((PeakListsParameter) p).getValue();
+        if ((selection == null)
+            || (selection.getSelectionType() != PeakListsSelectionType.BATCH_LAST_PEAKLISTS))
+          batchLast = false;
+      }
+    }
+
+    if (numOfSelections > 1)
+      return false;
+    if (first)
+      return true;
+    return (numOfSelections == 1) && batchLast;
+  }
+
+  /**
+   * Executes the given steps for each sample independently. If the first step selects raw data
+   * files or feature lists, each of the selected items is one sample. Otherwise the first step is
+   * executed once and each of its tasks starts one sample.
+   */
+  private void processSampleSteps(int firstStep, int lastStep) {
+
+    logger.info("Starting steps # " + (firstStep + 1) + " to # " + (lastStep + 1)
+        + " for each sample independently");
+
+    updateLastItems();
+
+    // Find the raw data files or feature lists selected by the first step
+    final MZmineProcessingModule firstMethod = queue.get(firstStep).getModule();
+    final ParameterSet firstParameters = queue.get(firstStep).getParameterSet().cloneParameterSet();
+    if (!setBatchLastItems(firstMethod, firstParameters, previousCreatedDataFiles,
+        previousCreatedPeakLists))
+      return;
+
+    final List<Sample> samples = new ArrayList<>();
+    boolean hasSelection = false;
+    for (Parameter<?> p : firstParameters.getParameters()) {
+      if (p instanceof RawDataFilesParameter) {
+        hasSelection = true;
+        for (RawDataFile dataFile : ((RawDataFilesParameter) p).getValue()
+            .getMatchingRawDataFiles()) {
+          Sample sample = new Sample();
+          sample.dataFiles.add(dataFile);
+          samples.add(sample);
+        }
+      }
+      if (p instanceof PeakListsParameter) {
+        hasSelection = true;
+        for (PeakList peakList : ((PeakListsParameter) p).getValue().getMatchingPeakLists()) {
+          Sample sample = new Sample();
+          sample.peakLists.add(peakList);
+          samples.add(sample);
+        }
+      }
+    }
+
+    if (hasSelection) {
+      for (Sample sample : samples) {
+        if (!startSampleStep(sample, firstStep))
+          return;
+      }
+    } else {
+      List<Task> firstStepTasks = createStepTasks(firstStep, previousCreatedDataFiles,
+          previousCreatedPeakLists);
+      if (firstStepTasks == null)
+        return;
+      for (Task task : firstStepTasks) {
+        Sample sample = new Sample();
+        sample.stepNumber = firstStep;
+        sample.tasks.add(task);
+        samples.add(sample);
+      }
+      submitSampleTasks(samples);
+    }
+
+    // Start the next step of each sample whose tasks are finished
+    boolean allSamplesFinished = false;
+    while (!allSamplesFinished) {
+
+      final int previouslyProcessedTasks = getProcessedStepTasks();
+
+      // If we canceled the batch, cancel all running tasks
+      if (isCanceled()) {
+        cancelSampleTasks(samples);
+        return;
+      }
+
+      allSamplesFinished = true;
+      boolean advanced = false;
+      int finishedSampleSteps = 0;
+
+      for (Sample sample : samples) {
+
+        if (sample.stepNumber < 0) {
+          finishedSampleSteps += lastStep - firstStep + 1;
+          continue;
+        }
+
+        boolean sampleTasksFinished = true;
+        for (Task stepTask : sample.tasks) {
+
+          TaskStatus stepStatus = stepTask.getStatus();
+
+          // The task may still add its results to the project after setting its status
+          if ((stepStatus != TaskStatus.FINISHED) || (!((SampleTask) stepTask).done))
+            sampleTasksFinished = false;
+
+          // If there was an error, we have to stop the whole batch
+          if (stepStatus == TaskStatus.ERROR) {
+            setStatus(TaskStatus.ERROR);
+            setErrorMessage(stepTask.getTaskDescription() + ": " + stepTask.getErrorMessage());
+            cancelSampleTasks(samples);
+            return;
+          }
+
+          // If user canceled any of the tasks, we have to cancel the whole batch
+          if (stepStatus == TaskStatus.CANCELED) {
+            setStatus(TaskStatus.CANCELED);
+            cancelSampleTasks(samples);
+            return;
+          }
+        }
+
+        if (sampleTasksFinished) {
+          sample.finishStep();
+          advanced = true;
+          if (sample.stepNumber == lastStep) {
+            sample.stepNumber = -1;
+            finishedSampleSteps += lastStep - firstStep + 1;
+            continue;
           }
+          if (!startSampleStep(sample, sample.stepNumber + 1))
+            return;
         }
+
+        allSamplesFinished = false;
+        finishedSampleSteps += sample.stepNumber - firstStep;
       }
 
+      if (!samples.isEmpty())
+        sampleStepsProgress = (double) finishedSampleSteps / samples.size();
+
+      // Wait until a task of a sample finishes
+      if ((!allSamplesFinished) && (!advanced))
+        waitForStepTasks(previouslyProcessedTasks);
+    }
+
+    sampleStepsProgress = 0;
+
+    // The next step continues with the data files and feature lists of all samples, including
+    // those which were not created by the tasks of a sample
+    synchronized (createdDataFiles) {
+      for (Sample sample : samples)
+        createdDataFiles.addAll(sample.dataFiles);
+    }
+    synchronized (createdPeakLists) {
+      for (Sample sample : samples)
+        createdPeakLists.addAll(sample.peakLists);
+    }
+    previousCreatedDataFiles.clear();
+    previousCreatedPeakLists.clear();
+
+    logger.info("Finished steps # " + (firstStep + 1) + " to # " + (lastStep + 1) + " for "
+        + samples.size() + " samples");
+  }
+
+  /**
+   * Creates and submits the tasks of one step of a sample
+   *
+   * @return false if the batch has to be stopped
+   */
+  private boolean startSampleStep(Sample sample, int stepNumber) {
+    List<Task> stepTasks = createStepTasks(stepNumber, sample.dataFiles, sample.peakLists);
+    if (stepTasks == null)
+      return false;
+    sample.stepNumber = stepNumber;
+    sample.tasks.addAll(stepTasks);
+    submitSampleTasks(Collections.singletonList(sample));
+    return true;
+  }
+
+  /**
+   * Runs the module of a step on the given data files and feature lists, with a copy of the step
+   * parameters which selects these data files and feature lists
+   *
+   * @return the created tasks, or null if the batch has to be stopped
+   */
+  private List<Task> createStepTasks(int stepNumber, List<RawDataFile> dataFiles,
+      List<PeakList> peakLists) {
+
+    MZmineProcessingStep<?> currentStep = queue.get(stepNumber);
+    MZmineProcessingModule method = (MZmineProcessingModule) currentStep.getModule();
+    ParameterSet stepParameters = currentStep.getParameterSet().cloneParameterSet();
+
+    // The step is applied to the raw data files or feature lists of the sample only
+    for (Parameter<?> p : stepParameters.getParameters()) {
+      if ((p instanceof RawDataFilesParameter) && (((RawDataFilesParameter) p).getValue() != null))
+        ((RawDataFilesParameter) p).getValue()
+            .setSelectionType(RawDataFilesSelectionType.BATCH_LAST_FILES);
+      if ((p instanceof PeakListsParameter) && (((PeakListsParameter) p).getValue() != null))
+        ((PeakListsParameter) p).getValue()
+            .setSelectionType(PeakListsSelectionType.BATCH_LAST_PEAKLISTS);
+    }
+
+    if (!setBatchLastItems(method, stepParameters, dataFiles, peakLists))
+      return null;
+
+    ArrayList<String> messages = new ArrayList<String>();
+    if (!stepParameters.checkParameterValues(messages)) {
+      setStatus(TaskStatus.ERROR);
+      setErrorMessage("Invalid parameter settings for module " + method.getName() + ": "
+          + Arrays.toString(messages.toArray()));
+      return null;
+    }
+
+    ArrayList<Task> stepTasks = new ArrayList<Task>();
+    ExitCode exitCode = method.runModule(project, stepParameters, stepTasks);
+    if (exitCode != ExitCode.OK) {
+      setStatus(TaskStatus.ERROR);
+      setErrorMessage("Could not start batch step " + method.getName());
+      return null;
+    }
+    for (Task stepTask : stepTasks)
+      MetricsRegistry.setModuleName(stepTask, method.getName());
+    return stepTasks;
+  }
+
+  private void submitSampleTasks(List<Sample> samples) {
+    List<Task> wrappedTasks = new ArrayList<>();
+    for (Sample sample : samples) {
+      for (int i = 0; i < sample.tasks.size(); i++) {
+        SampleTask wrappedTask = new SampleTask(sample.tasks.get(i), sample);
+        String moduleName = MetricsRegistry.getModuleName(sample.tasks.get(i));
+        if (moduleName != null)
+          MetricsRegistry.setModuleName(wrappedTask, moduleName);
+        sample.tasks.set(i, wrappedTask);
+        wrappedTasks.add(wrappedTask);
+      }
     }
+    if (!wrappedTasks.isEmpty())
+      MZmineCore.getTaskController().addTasks(wrappedTasks.toArray(new Task[0]));
+  }
 
+  private void cancelSampleTasks(List<Sample> samples) {
+    for (Sample sample : samples) {
+      for (Task task : sample.tasks)
+        task.cancel();
+    }
   }
 
   @Override
@@ -263,7 +764,7 @@ public class BatchTask extends AbstractTask {
   public double getFinishedPercentage() {
     if (totalSteps == 0)
       return 0;
-    return (double) processedSteps / totalSteps;
+    return (processedSteps + sampleStepsProgress) / totalSteps;
   }
 
   @Override
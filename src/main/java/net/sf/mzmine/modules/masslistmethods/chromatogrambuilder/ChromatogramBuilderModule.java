@@ -25,12 +25,12 @@ import javax.annotation.Nonnull;
 import net.sf.mzmine.datamodel.MZmineProject;
 import net.sf.mzmine.datamodel.RawDataFile;
 import net.sf.mzmine.modules.MZmineModuleCategory;
-import net.sf.mzmine.modules.MZmineProcessingModule;
+import net.sf.mzmine.modules.MZmineSampleProcessingModule;
 import net.sf.mzmine.parameters.ParameterSet;
 import net.sf.mzmine.taskcontrol.Task;
 import net.sf.mzmine.util.ExitCode;
 
-public class ChromatogramBuilderModule implements MZmineProcessingModule {
+public class ChromatogramBuilderModule implements MZmineSampleProcessingModule {
 
   private static final String MODULE_NAME = "Chromatogram builder (deprecated, see Help)";
   private static final String MODULE_DESCRIPTION =
@@ -21,7 +21,6 @@ package net.sf.mzmine.modules.masslistmethods.chromatogrambuilder;
 import java.util.Arrays;
 import java.util.logging.Logger;
 
-import net.sf.mzmine.datamodel.DataPoint;
 import net.sf.mzmine.datamodel.Feature;
 import net.sf.mzmine.datamodel.MZmineProject;
 import net.sf.mzmine.datamodel.MassList;
@@ -38,6 +37,7 @@ import net.sf.mzmine.taskcontrol.TaskStatus;
 import net.sf.mzmine.util.PeakSorter;
 import net.sf.mzmine.util.SortingDirection;
 import net.sf.mzmine.util.SortingProperty;
+import net.sf.mzmine.util.scans.SpectrumBuffer;
 
 public class ChromatogramBuilderTask extends AbstractTask {
 
@@ -139,6 +139,9 @@ public class ChromatogramBuilderTask extends AbstractTask {
     HighestDataPointConnector massConnector = new HighestDataPointConnector(dataFile,
         allScanNumbers, minimumTimeSpan, minimumHeight, mzTolerance);
 
+    // Mass lists are read into reusable arrays, to avoid creating a DataPoint for every mass
+    SpectrumBuffer massListBuffer = new SpectrumBuffer();
+
     for (Scan scan : scans) {
 
       if (isCanceled())
@@ -152,16 +155,10 @@ public class ChromatogramBuilderTask extends AbstractTask {
         return;
       }
 
-      DataPoint mzValues[] = massList.getDataPoints();
-
-      if (mzValues == null) {
-        setStatus(TaskStatus.ERROR);
-        setErrorMessage("Mass list " + massListName + " does not contain m/z values for scan #"
-            + scan.getScanNumber() + " of file " + dataFile);
-        return;
-      }
+      massListBuffer.load(massList);
 
-      massConnector.addScan(scan.getScanNumber(), mzValues);
+      massConnector.addScan(scan.getScanNumber(), massListBuffer.getMzValues(),
+          massListBuffer.getIntensityValues(), massListBuffer.getNumberOfDataPoints());
       processedScans++;
     }
 
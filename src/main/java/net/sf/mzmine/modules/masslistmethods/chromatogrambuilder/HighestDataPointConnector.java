@@ -22,15 +22,14 @@ import java.util.Arrays;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.Set;
+import java.util.TreeMap;
 
-import com.google.common.collect.Range;
-
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntArrays;
 import net.sf.mzmine.datamodel.DataPoint;
 import net.sf.mzmine.datamodel.RawDataFile;
+import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
 import net.sf.mzmine.parameters.parametertypes.tolerances.MZTolerance;
-import net.sf.mzmine.util.DataPointSorter;
-import net.sf.mzmine.util.SortingDirection;
-import net.sf.mzmine.util.SortingProperty;
 
 public class HighestDataPointConnector {
 
@@ -42,6 +41,19 @@ public class HighestDataPointConnector {
   // Mapping of last data point m/z --> chromatogram
   private Set<Chromatogram> buildingChromatograms;
 
+  // Reusable array of data point indices sorted by intensity
+  private int intensityOrder[] = new int[0];
+
+  // Building chromatograms of the current scan in the order of buildingChromatograms, their indices
+  // sorted by the m/z of the last data point, and the sorted m/z values. A chromatogram connected
+  // in the current scan gets a new last data point, so it is flagged and looked up in
+  // connectedByMz instead.
+  private Chromatogram building[] = new Chromatogram[0];
+  private int buildingMzOrder[] = new int[0];
+  private double buildingMz[] = new double[0];
+  private boolean buildingConnected[] = new boolean[0];
+  private final TreeMap<Double, IntArrayList> connectedByMz = new TreeMap<>();
+
   public HighestDataPointConnector(RawDataFile dataFile, int allScanNumbers[],
       double minimumTimeSpan, double minimumHeight, MZTolerance mzTolerance) {
 
@@ -58,33 +70,79 @@ public class HighestDataPointConnector {
 
   }
 
-  public void addScan(int scanNumber, DataPoint mzValues[]) {
-
-    // Sort m/z peaks by descending intensity
-    Arrays.sort(mzValues,
-        new DataPointSorter(SortingProperty.Intensity, SortingDirection.Descending));
+  /**
+   * Adds the m/z peaks of one scan. Only the first numOfDataPoints elements of the arrays are used.
+   * DataPoint instances are only created for the m/z peaks that are connected to a chromatogram.
+   */
+  public void addScan(int scanNumber, double mzValues[], double intensityValues[],
+      int numOfDataPoints) {
+
+    // Sort m/z peaks by descending intensity (and descending m/z for equal intensities, in the same
+    // way as DataPointSorter does)
+    if (intensityOrder.length < numOfDataPoints)
+      intensityOrder = new int[numOfDataPoints];
+    for (int i = 0; i < numOfDataPoints; i++)
+      intensityOrder[i] = i;
+    IntArrays.quickSort(intensityOrder, 0, numOfDataPoints, (a, b) -> {
+      int result = Double.compare(intensityValues[b], intensityValues[a]);
+      if (result == 0)
+        result = Double.compare(mzValues[b], mzValues[a]);
+      return result;
+    });
+
+    // Sort the building chromatograms by the m/z of their last data point
+    final int numOfBuilding = buildingChromatograms.size();
+    if (building.length < numOfBuilding) {
+      building = new Chromatogram[numOfBuilding];
+      buildingMzOrder = new int[numOfBuilding];
+      buildingMz = new double[numOfBuilding];
+      buildingConnected = new boolean[numOfBuilding];
+    }
+    buildingChromatograms.toArray(building);
+    for (int i = 0; i < numOfBuilding; i++)
+      buildingMzOrder[i] = i;
+    IntArrays.quickSort(buildingMzOrder, 0, numOfBuilding, (a, b) -> Double
+        .compare(building[a].getLastMzPeak().getMZ(), building[b].getLastMzPeak().getMZ()));
+    for (int i = 0; i < numOfBuilding; i++)
+      buildingMz[i] = building[buildingMzOrder[i]].getLastMzPeak().getMZ();
+    Arrays.fill(buildingConnected, 0, numOfBuilding, false);
+    connectedByMz.clear();
 
     // Set of already connected chromatograms in each iteration
     Set<Chromatogram> connectedChromatograms = new LinkedHashSet<Chromatogram>();
 
-    // TODO: these two nested cycles should be optimized for speed
-    for (DataPoint mzPeak : mzValues) {
-
-      // Search for best chromatogram, which has highest last data point
-      Chromatogram bestChromatogram = null;
-
-      for (Chromatogram testChrom : buildingChromatograms) {
-
-        DataPoint lastMzPeak = testChrom.getLastMzPeak();
-        Range<Double> toleranceRange = mzTolerance.getToleranceRange(lastMzPeak.getMZ());
-        if (toleranceRange.contains(mzPeak.getMZ())) {
-          if ((bestChromatogram == null) || (testChrom.getLastMzPeak()
-              .getIntensity() > bestChromatogram.getLastMzPeak().getIntensity())) {
-            bestChromatogram = testChrom;
-          }
-        }
-
+    for (int k = 0; k < numOfDataPoints; k++) {
+
+      final int index = intensityOrder[k];
+      final double mz = mzValues[index];
+
+      // Search for best chromatogram, which has highest last data point. Only the chromatograms
+      // with the last m/z inside twice the tolerance are tested, which includes all chromatograms
+      // whose tolerance range contains this m/z (for tolerances below 500000 ppm).
+      final double searchTolerance = 2 * mzTolerance.getMzToleranceForMass(mz);
+      final double searchMin = mz - searchTolerance, searchMax = mz + searchTolerance;
+      int bestChromatogramIndex = -1;
+
+      int from = Arrays.binarySearch(buildingMz, 0, numOfBuilding, searchMin);
+      if (from < 0)
+        from = -from - 1;
+      // binarySearch may find any of several equal values
+      while ((from > 0) && (buildingMz[from - 1] >= searchMin))
+        from--;
+      for (int i = from; (i < numOfBuilding) && (buildingMz[i] <= searchMax); i++) {
+        final int candidate = buildingMzOrder[i];
+        if (!buildingConnected[candidate])
+          bestChromatogramIndex = selectBetterChromatogram(bestChromatogramIndex, candidate, mz);
       }
+      for (IntArrayList candidates : connectedByMz.subMap(searchMin, true, searchMax, true)
+          .values()) {
+        for (int i = 0; i < candidates.size(); i++)
+          bestChromatogramIndex =
+              selectBetterChromatogram(bestChromatogramIndex, candidates.getInt(i), mz);
+      }
+
+      Chromatogram bestChromatogram =
+          bestChromatogramIndex >= 0 ? building[bestChromatogramIndex] : null;
 
       // If we found best chromatogram, check if it is already connected.
       // In such case, we may discard this mass and continue. If we
@@ -98,13 +156,20 @@ public class HighestDataPointConnector {
       }
 
       // Add this mzPeak to the chromatogram
-      bestChromatogram.addMzPeak(scanNumber, mzPeak);
+      bestChromatogram.addMzPeak(scanNumber, new SimpleDataPoint(mz, intensityValues[index]));
 
       // Move the chromatogram to the set of connected chromatograms
       connectedChromatograms.add(bestChromatogram);
+      if (bestChromatogramIndex >= 0) {
+        buildingConnected[bestChromatogramIndex] = true;
+        connectedByMz.computeIfAbsent(mz, key -> new IntArrayList()).add(bestChromatogramIndex);
+      }
 
     }
 
+    // Release the references to the chromatograms of this scan
+    Arrays.fill(building, 0, numOfBuilding, null);
+
     // Process those chromatograms which were not connected to any m/z peak
     for (Chromatogram testChrom : buildingChromatograms) {
 
@@ -139,6 +204,25 @@ public class HighestDataPointConnector {
 
   }
 
+  /**
+   * Returns the better of two building chromatograms (given by their index in building[]) for the
+   * m/z value: a chromatogram qualifies if the tolerance range of its last data point contains the
+   * m/z, and the one with the highest last data point wins. Ties go to the chromatogram that comes
+   * first in buildingChromatograms, like in a plain iteration over the set.
+   */
+  private int selectBetterChromatogram(int bestIndex, int candidateIndex, double mz) {
+    DataPoint lastMzPeak = building[candidateIndex].getLastMzPeak();
+    if (!mzTolerance.getToleranceRange(lastMzPeak.getMZ()).contains(mz))
+      return bestIndex;
+    if (bestIndex < 0)
+      return candidateIndex;
+    final double bestIntensity = building[bestIndex].getLastMzPeak().getIntensity();
+    if ((lastMzPeak.getIntensity() > bestIntensity)
+        || ((lastMzPeak.getIntensity() == bestIntensity) && (candidateIndex < bestIndex)))
+      return candidateIndex;
+    return bestIndex;
+  }
+
   public Chromatogram[] finishChromatograms() {
 
     // Iterate through current chromatograms and remove those which do not
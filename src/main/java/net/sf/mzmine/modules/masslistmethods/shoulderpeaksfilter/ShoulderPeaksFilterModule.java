@@ -25,12 +25,12 @@ import javax.annotation.Nonnull;
 import net.sf.mzmine.datamodel.MZmineProject;
 import net.sf.mzmine.datamodel.RawDataFile;
 import net.sf.mzmine.modules.MZmineModuleCategory;
-import net.sf.mzmine.modules.MZmineProcessingModule;
+import net.sf.mzmine.modules.MZmineSampleProcessingModule;
 import net.sf.mzmine.parameters.ParameterSet;
 import net.sf.mzmine.taskcontrol.Task;
 import net.sf.mzmine.util.ExitCode;
 
-public class ShoulderPeaksFilterModule implements MZmineProcessingModule {
+public class ShoulderPeaksFilterModule implements MZmineSampleProcessingModule {
 
   private static final String MODULE_NAME = "FTMS shoulder peaks filter";
   private static final String MODULE_DESCRIPTION =
@@ -62,9 +62,14 @@ public class JoinAlignerParameters extends SimpleParameterSet {
           "Compare MS1 or MS2 spectra similarity",
           new JoinAlignerSpectraSimilarityScoreParameters());
 
+  public static final BooleanParameter useParallel = new BooleanParameter("Parallel",
+      "Calculate the alignment scores of the rows in parallel, using the number of threads set in the preferences. The result is the same as on a single thread.",
+      false);
+
   public JoinAlignerParameters() {
     super(new Parameter[] {peakLists, peakListName, MZTolerance, MZWeight, RTTolerance, RTWeight,
-        SameChargeRequired, SameIDRequired, compareIsotopePattern, compareSpectraSimilarity});
+        SameChargeRequired, SameIDRequired, compareIsotopePattern, compareSpectraSimilarity,
+        useParallel});
   }
 
 }
@@ -20,6 +20,7 @@ package net.sf.mzmine.modules.peaklistmethods.alignment.join;
 
 import net.sf.mzmine.parameters.Parameter;
 import net.sf.mzmine.parameters.impl.SimpleParameterSet;
+import net.sf.mzmine.parameters.parametertypes.BooleanParameter;
 import net.sf.mzmine.parameters.parametertypes.IntegerParameter;
 import net.sf.mzmine.parameters.parametertypes.MassListParameter;
 import net.sf.mzmine.parameters.parametertypes.ModuleComboParameter;
@@ -49,8 +50,12 @@ public class JoinAlignerSpectraSimilarityScoreParameters extends SimpleParameter
           "Algorithm to calculate similarity and filter matches",
           SpectralSimilarityFunction.FUNCTIONS);
 
+  public static final BooleanParameter cacheMassLists = new BooleanParameter("Cache mass lists",
+      "Keep the data points of the compared mass lists in memory while the rows of one feature list are scored, so the mass lists of the aligned rows are read only once. This is faster, but needs memory for the mass lists of all compared rows.",
+      false);
+
   public JoinAlignerSpectraSimilarityScoreParameters() {
-    super(new Parameter[] {massList, mzTolerance, msLevel, similarityFunction});
+    super(new Parameter[] {massList, mzTolerance, msLevel, similarityFunction, cacheMassLists});
   }
 
 }
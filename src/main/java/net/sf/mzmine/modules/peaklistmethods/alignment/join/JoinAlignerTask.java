@@ -18,14 +18,26 @@
 
 package net.sf.mzmine.modules.peaklistmethods.alignment.join;
 
-import java.util.Hashtable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.TreeSet;
 import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.stream.IntStream;
 import com.google.common.collect.Range;
 import net.sf.mzmine.datamodel.DataPoint;
 import net.sf.mzmine.datamodel.IsotopePattern;
+import net.sf.mzmine.datamodel.MassList;
 import net.sf.mzmine.datamodel.MZmineProject;
 import net.sf.mzmine.datamodel.PeakList;
 import net.sf.mzmine.datamodel.PeakListRow;
@@ -33,6 +45,7 @@ import net.sf.mzmine.datamodel.RawDataFile;
 import net.sf.mzmine.datamodel.impl.SimplePeakList;
 import net.sf.mzmine.datamodel.impl.SimplePeakListAppliedMethod;
 import net.sf.mzmine.datamodel.impl.SimplePeakListRow;
+import net.sf.mzmine.main.MZmineCore;
 import net.sf.mzmine.modules.MZmineProcessingStep;
 import net.sf.mzmine.modules.peaklistmethods.isotopes.isotopepatternscore.IsotopePatternScoreCalculator;
 import net.sf.mzmine.parameters.ParameterSet;
@@ -53,14 +66,15 @@ public class JoinAlignerTask extends AbstractTask {
   private PeakList peakLists[], alignedPeakList;
 
   // Processed rows counter
-  private int processedRows, totalRows;
+  private final AtomicInteger processedRows = new AtomicInteger();
+  private int totalRows;
 
   private String peakListName;
   private MZTolerance mzTolerance;
   private RTTolerance rtTolerance;
   private double mzWeight, rtWeight;
   private boolean sameIDRequired, sameChargeRequired, compareIsotopePattern,
-      compareSpectraSimilarity;
+      compareSpectraSimilarity, useParallel, cacheMassLists;
   private ParameterSet parameters;
 
   // ID counter for the new peaklist
@@ -71,6 +85,11 @@ public class JoinAlignerTask extends AbstractTask {
   private int msLevel;
   private String massList;
 
+  // Data points of the mass lists compared while scoring one feature list, if cacheMassLists is
+  // set. Rows of the aligned feature list are candidates of many rows, so their mass lists are read
+  // only once.
+  private final Map<MassList, DataPoint[]> massListCache = new ConcurrentHashMap<>();
+
   public JoinAlignerTask(MZmineProject project, ParameterSet parameters) {
 
     this.project = project;
@@ -99,6 +118,8 @@ public class JoinAlignerTask extends AbstractTask {
     compareSpectraSimilarity =
         parameters.getParameter(JoinAlignerParameters.compareSpectraSimilarity).getValue();
 
+    useParallel = parameters.getParameter(JoinAlignerParameters.useParallel).getValue();
+
     if (compareSpectraSimilarity) {
       simFunction = parameters.getParameter(JoinAlignerParameters.compareSpectraSimilarity)
           .getEmbeddedParameters()
@@ -111,6 +132,10 @@ public class JoinAlignerTask extends AbstractTask {
       massList = parameters.getParameter(JoinAlignerParameters.compareSpectraSimilarity)
           .getEmbeddedParameters()
           .getParameter(JoinAlignerSpectraSimilarityScoreParameters.massList).getValue();
+
+      cacheMassLists = parameters.getParameter(JoinAlignerParameters.compareSpectraSimilarity)
+          .getEmbeddedParameters()
+          .getParameter(JoinAlignerSpectraSimilarityScoreParameters.cacheMassLists).getValue();
     }
   }
 
@@ -129,7 +154,7 @@ public class JoinAlignerTask extends AbstractTask {
   public double getFinishedPercentage() {
     if (totalRows == 0)
       return 0f;
-    return (double) processedRows / (double) totalRows;
+    return (double) processedRows.get() / (double) totalRows;
   }
 
   /**
@@ -174,6 +199,11 @@ public class JoinAlignerTask extends AbstractTask {
     // Create a new aligned feature list
     alignedPeakList = new SimplePeakList(peakListName, allDataFiles.toArray(new RawDataFile[0]));
 
+    // Rows of each feature list are scored on the pool shared by all tasks. The scores are merged
+    // afterwards in the order of the rows, so the result does not depend on the number of threads.
+    final ForkJoinPool scoringPool =
+        useParallel ? MZmineCore.getTaskController().getParallelPool() : null;
+
     // Iterate source feature lists
     for (PeakList peakList : peakLists) {
 
@@ -182,97 +212,39 @@ public class JoinAlignerTask extends AbstractTask {
 
       PeakListRow allRows[] = peakList.getRows();
 
-      // Calculate scores for all possible alignments of this row
-      for (PeakListRow row : allRows) {
-
-        if (isCanceled())
+      // Calculate scores for all possible alignments of each row
+      RowVsRowScore rowScores[][] = new RowVsRowScore[allRows.length][];
+      IntStream rowStream = IntStream.range(0, allRows.length);
+      if (scoringPool == null) {
+        rowStream.forEach(i -> rowScores[i] = calculateScores(allRows[i]));
+      } else {
+        try {
+          scoringPool
+              .submit(() -> rowStream.parallel()
+                  .forEach(i -> rowScores[i] = calculateScores(allRows[i])))
+              .get();
+        } catch (InterruptedException | ExecutionException e) {
+          logger.log(Level.SEVERE, "Error while calculating alignment scores", e);
+          setStatus(TaskStatus.ERROR);
+          setErrorMessage("Error while calculating alignment scores: " + e.getMessage());
           return;
+        }
+      }
+      massListCache.clear();
 
-        // Calculate limits for a row with which the row can be aligned
-        Range<Double> mzRange = mzTolerance.getToleranceRange(row.getAverageMZ());
-        Range<Double> rtRange = rtTolerance.getToleranceRange(row.getAverageRT());
-
-        // Get all rows of the aligned peaklist within parameter limits
-        PeakListRow candidateRows[] = alignedPeakList.getRowsInsideScanAndMZRange(rtRange, mzRange);
-
-        // Calculate scores and store them
-        for (PeakListRow candidate : candidateRows) {
-
-          if (sameChargeRequired) {
-            if (!PeakUtils.compareChargeState(row, candidate))
-              continue;
-          }
-
-          if (sameIDRequired) {
-            if (!PeakUtils.compareIdentities(row, candidate))
-              continue;
-          }
-
-          if (compareIsotopePattern) {
-            IsotopePattern ip1 = row.getBestIsotopePattern();
-            IsotopePattern ip2 = candidate.getBestIsotopePattern();
-
-            if ((ip1 != null) && (ip2 != null)) {
-              ParameterSet isotopeParams =
-                  parameters.getParameter(JoinAlignerParameters.compareIsotopePattern)
-                      .getEmbeddedParameters();
-
-              if (!IsotopePatternScoreCalculator.checkMatch(ip1, ip2, isotopeParams)) {
-                continue;
-              }
-            }
-          }
-
-          // compare the similarity of spectra mass lists on MS1 or MS2 level
-          if (compareSpectraSimilarity) {
-            DataPoint[] rowDPs = null;
-            DataPoint[] candidateDPs = null;
-            SpectralSimilarity sim = null;
-
-            // get data points of mass list of the representative scans
-            if (msLevel == 1) {
-              rowDPs =
-                  row.getBestPeak().getRepresentativeScan().getMassList(massList).getDataPoints();
-              candidateDPs = candidate.getBestPeak().getRepresentativeScan().getMassList(massList)
-                  .getDataPoints();
-            }
-
-            // get data points of mass list of the best fragmentation scans
-            if (msLevel == 2) {
-              if (row.getBestFragmentation() != null && candidate.getBestFragmentation() != null) {
-                rowDPs = row.getBestFragmentation().getMassList(massList).getDataPoints();
-                candidateDPs =
-                    candidate.getBestFragmentation().getMassList(massList).getDataPoints();
-              } else
-                continue;
-            }
-
-            // compare mass list data points of selected scans
-            if (rowDPs != null && candidateDPs != null) {
-
-              // calculate similarity using SimilarityFunction
-              sim = createSimilarity(rowDPs, candidateDPs);
-
-              // check if similarity is null. Similarity is not null if similarity score is >= the
-              // user set threshold
-              if (sim == null) {
-                continue;
-              }
-            }
-          }
-
-          RowVsRowScore score =
-              new RowVsRowScore(row, candidate, RangeUtils.rangeLength(mzRange) / 2.0, mzWeight,
-                  RangeUtils.rangeLength(rtRange) / 2.0, rtWeight);
+      if (isCanceled())
+        return;
 
+      // The set is filled in the order of the rows, exactly as if the scores were calculated on
+      // a single thread, because the order of equal scores depends on the order of insertion
+      for (RowVsRowScore scores[] : rowScores) {
+        for (RowVsRowScore score : scores)
           scoreSet.add(score);
-        }
-        processedRows++;
       }
 
       // Create a table of mappings for best scores
-      Hashtable<PeakListRow, PeakListRow> alignmentMapping =
-          new Hashtable<PeakListRow, PeakListRow>();
+      Map<PeakListRow, PeakListRow> alignmentMapping = new HashMap<PeakListRow, PeakListRow>();
+      Set<PeakListRow> mappedAlignedRows = new HashSet<PeakListRow>();
 
       // Iterate scores by descending order
       Iterator<RowVsRowScore> scoreIterator = scoreSet.iterator();
@@ -285,10 +257,11 @@ public class JoinAlignerTask extends AbstractTask {
           continue;
 
         // Check if the aligned row is already filled
-        if (alignmentMapping.containsValue(score.getAlignedRow()))
+        if (mappedAlignedRows.contains(score.getAlignedRow()))
           continue;
 
         alignmentMapping.put(score.getPeakListRow(), score.getAlignedRow());
+        mappedAlignedRows.add(score.getAlignedRow());
 
       }
 
@@ -313,7 +286,7 @@ public class JoinAlignerTask extends AbstractTask {
         // aligned row
         PeakUtils.copyPeakListRowProperties(row, targetRow);
 
-        processedRows++;
+        processedRows.incrementAndGet();
 
       }
 
@@ -332,6 +305,115 @@ public class JoinAlignerTask extends AbstractTask {
 
   }
 
+  /**
+   * Calculates the scores of all possible alignments of the given row with the rows of the aligned
+   * feature list. This method only reads the aligned feature list, so it may be called from
+   * multiple threads at the same time.
+   * 
+   * @return scores in the order of the candidate rows
+   */
+  private RowVsRowScore[] calculateScores(PeakListRow row) {
+
+    if (isCanceled())
+      return new RowVsRowScore[0];
+
+    // Calculate limits for a row with which the row can be aligned
+    Range<Double> mzRange = mzTolerance.getToleranceRange(row.getAverageMZ());
+    Range<Double> rtRange = rtTolerance.getToleranceRange(row.getAverageRT());
+
+    // Get all rows of the aligned peaklist within parameter limits
+    PeakListRow candidateRows[] = alignedPeakList.getRowsInsideScanAndMZRange(rtRange, mzRange);
+
+    List<RowVsRowScore> scores = new ArrayList<RowVsRowScore>();
+
+    // Calculate scores and store them
+    for (PeakListRow candidate : candidateRows) {
+
+      if (sameChargeRequired) {
+        if (!PeakUtils.compareChargeState(row, candidate))
+          continue;
+      }
+
+      if (sameIDRequired) {
+        if (!PeakUtils.compareIdentities(row, candidate))
+          continue;
+      }
+
+      if (compareIsotopePattern) {
+        IsotopePattern ip1 = row.getBestIsotopePattern();
+        IsotopePattern ip2 = candidate.getBestIsotopePattern();
+
+        if ((ip1 != null) && (ip2 != null)) {
+          ParameterSet isotopeParams = parameters
+              .getParameter(JoinAlignerParameters.compareIsotopePattern).getEmbeddedParameters();
+
+          if (!IsotopePatternScoreCalculator.checkMatch(ip1, ip2, isotopeParams)) {
+            continue;
+          }
+        }
+      }
+
+      // compare the similarity of spectra mass lists on MS1 or MS2 level
+      if (compareSpectraSimilarity) {
+        DataPoint[] rowDPs = null;
+        DataPoint[] candidateDPs = null;
+        SpectralSimilarity sim = null;
+
+        // get data points of mass list of the representative scans
+        if (msLevel == 1) {
+          rowDPs = getDataPoints(row.getBestPeak().getRepresentativeScan().getMassList(massList));
+          candidateDPs = getDataPoints(
+              candidate.getBestPeak().getRepresentativeScan().getMassList(massList));
+        }
+
+        // get data points of mass list of the best fragmentation scans
+        if (msLevel == 2) {
+          if (row.getBestFragmentation() != null && candidate.getBestFragmentation() != null) {
+            rowDPs = getDataPoints(row.getBestFragmentation().getMassList(massList));
+            candidateDPs = getDataPoints(candidate.getBestFragmentation().getMassList(massList));
+          } else
+            continue;
+        }
+
+        // compare mass list data points of selected scans
+        if (rowDPs != null && candidateDPs != null) {
+
+          // calculate similarity using SimilarityFunction
+          sim = createSimilarity(rowDPs, candidateDPs);
+
+          // check if similarity is null. Similarity is not null if similarity score is >= the
+          // user set threshold
+          if (sim == null) {
+            continue;
+          }
+        }
+      }
+
+      RowVsRowScore score = new RowVsRowScore(row, candidate, RangeUtils.rangeLength(mzRange) / 2.0,
+          mzWeight, RangeUtils.rangeLength(rtRange) / 2.0, rtWeight);
+
+      scores.add(score);
+    }
+    processedRows.incrementAndGet();
+
+    return scores.toArray(new RowVsRowScore[0]);
+  }
+
+  /**
+   * @return data points of the mass list, read only once while scoring a feature list if
+   *         cacheMassLists is set
+   */
+  private DataPoint[] getDataPoints(MassList list) {
+    if (!cacheMassLists)
+      return list.getDataPoints();
+    DataPoint[] dataPoints = massListCache.get(list);
+    if (dataPoints == null) {
+      dataPoints = list.getDataPoints();
+      massListCache.putIfAbsent(list, dataPoints);
+    }
+    return dataPoints;
+  }
+
   /**
    * Uses the similarity function and filter to create similarity.
    * 
@@ -25,7 +25,7 @@ import javax.annotation.Nonnull;
 import net.sf.mzmine.datamodel.MZmineProject;
 import net.sf.mzmine.datamodel.PeakList;
 import net.sf.mzmine.modules.MZmineModuleCategory;
-import net.sf.mzmine.modules.MZmineProcessingModule;
+import net.sf.mzmine.modules.MZmineSampleProcessingModule;
 import net.sf.mzmine.parameters.ParameterSet;
 import net.sf.mzmine.taskcontrol.Task;
 import net.sf.mzmine.util.ExitCode;
@@ -41,7 +41,7 @@ import net.sf.mzmine.util.ExitCode;
  * in each list, but it will work on aligned feature lists too.
  * 
  */
-public class DuplicateFilterModule implements MZmineProcessingModule {
+public class DuplicateFilterModule implements MZmineSampleProcessingModule {
 
   private static final String MODULE_NAME = "Duplicate peak filter";
   private static final String MODULE_DESCRIPTION =
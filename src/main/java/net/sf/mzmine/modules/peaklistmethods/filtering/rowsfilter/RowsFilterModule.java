@@ -25,7 +25,7 @@ import javax.annotation.Nonnull;
 import net.sf.mzmine.datamodel.MZmineProject;
 import net.sf.mzmine.datamodel.PeakList;
 import net.sf.mzmine.modules.MZmineModuleCategory;
-import net.sf.mzmine.modules.MZmineProcessingModule;
+import net.sf.mzmine.modules.MZmineSampleProcessingModule;
 import net.sf.mzmine.parameters.ParameterSet;
 import net.sf.mzmine.taskcontrol.Task;
 import net.sf.mzmine.util.ExitCode;
@@ -34,7 +34,7 @@ import net.sf.mzmine.util.ExitCode;
  * Implements a filter for alignment results. The filter removes rows that have fewer than a defined
  * number of peaks detected and other conditions.
  */
-public class RowsFilterModule implements MZmineProcessingModule {
+public class RowsFilterModule implements MZmineSampleProcessingModule {
 
   private static final String MODULE_NAME = "Feature list rows filter";
   private static final String MODULE_DESCRIPTION =
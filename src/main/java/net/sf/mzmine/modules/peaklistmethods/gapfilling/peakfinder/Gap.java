@@ -30,6 +30,7 @@ import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
 import net.sf.mzmine.datamodel.impl.SimpleFeature;
 import net.sf.mzmine.util.RangeUtils;
 import net.sf.mzmine.util.scans.ScanUtils;
+import net.sf.mzmine.util.scans.SpectrumBuffer;
 
 public class Gap {
 
@@ -86,6 +87,58 @@ public class Gap {
           new GapDataPoint(scan.getScanNumber(), RangeUtils.rangeCenter(mzRange), scanRT, 0);
     }
 
+    offerNextDataPoint(currentDataPoint);
+
+  }
+
+  /**
+   * Same as offerNextScan(Scan), but the base peak is searched in the already decoded data points
+   * of the scan, so that the scan does not have to be read again for each gap.
+   */
+  void offerNextScan(Scan scan, SpectrumBuffer decodedScan) {
+
+    double scanRT = scan.getRetentionTime();
+
+    // If not yet inside the RT range
+    if (scanRT < rtRange.lowerEndpoint())
+      return;
+
+    // If we have passed the RT range and finished processing last peak
+    if ((scanRT > rtRange.upperEndpoint()) && (currentPeakDataPoints == null))
+      return;
+
+    // Find top m/z peak in our range
+    final double mzValues[] = decodedScan.getMzValues();
+    final double intensityValues[] = decodedScan.getIntensityValues();
+    int basePeak = ScanUtils.findBasePeakIndex(mzValues, intensityValues,
+        decodedScan.getNumberOfDataPoints(), mzRange);
+
+    GapDataPoint currentDataPoint;
+    if (basePeak >= 0) {
+      currentDataPoint = new GapDataPoint(scan.getScanNumber(), mzValues[basePeak], scanRT,
+          intensityValues[basePeak]);
+    } else {
+      currentDataPoint =
+          new GapDataPoint(scan.getScanNumber(), RangeUtils.rangeCenter(mzRange), scanRT, 0);
+    }
+
+    offerNextDataPoint(currentDataPoint);
+
+  }
+
+  /**
+   * @return true if this gap will ignore all scans with retention time >= scanRT
+   */
+  boolean isFinished(double scanRT) {
+    return (scanRT > rtRange.upperEndpoint()) && (currentPeakDataPoints == null);
+  }
+
+  Range<Double> getRTRange() {
+    return rtRange;
+  }
+
+  private void offerNextDataPoint(GapDataPoint currentDataPoint) {
+
     // If we have not yet started, just create a new peak
     if (currentPeakDataPoints == null) {
       currentPeakDataPoints = new Vector<GapDataPoint>();
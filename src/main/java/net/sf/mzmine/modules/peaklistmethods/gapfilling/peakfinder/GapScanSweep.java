@@ -0,0 +1,90 @@
+/*
+ * Copyright 2006-2018 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with MZmine 2; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+
+package net.sf.mzmine.modules.peaklistmethods.gapfilling.peakfinder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import net.sf.mzmine.datamodel.Scan;
+import net.sf.mzmine.util.scans.SpectrumBuffer;
+
+/**
+ * Feeds the scans of one raw data file to all gaps of that file. The scans must be offered in the
+ * order of their retention times. Gaps are activated when the sweep reaches the start of their RT
+ * range and dropped as soon as they cannot accept any more scans, so each scan is only offered to
+ * the gaps that overlap it. Each scan is decoded once, and every active gap searches its m/z range
+ * in the decoded data points using binary search.
+ */
+public class GapScanSweep {
+
+  // All gaps in the original order, and sorted by the start of their RT range
+  private final List<Gap> gaps;
+  private final Gap sortedGaps[];
+  private int nextGap = 0;
+
+  private final List<Gap> activeGaps = new ArrayList<Gap>();
+
+  private final SpectrumBuffer decodedScan = new SpectrumBuffer();
+
+  public GapScanSweep(List<Gap> gaps) {
+    this.gaps = gaps;
+    this.sortedGaps = gaps.toArray(new Gap[0]);
+    Arrays.sort(sortedGaps, Comparator.comparing(gap -> gap.getRTRange().lowerEndpoint()));
+  }
+
+  public void offerNextScan(Scan scan) {
+
+    final double scanRT = scan.getRetentionTime();
+
+    // Activate the gaps whose RT range starts before this scan
+    while ((nextGap < sortedGaps.length)
+        && (sortedGaps[nextGap].getRTRange().lowerEndpoint() <= scanRT)) {
+      activeGaps.add(sortedGaps[nextGap]);
+      nextGap++;
+    }
+
+    if (activeGaps.isEmpty())
+      return;
+
+    decodedScan.load(scan);
+
+    // Feed this scan to all active gaps and drop the finished ones
+    int remaining = 0;
+    for (int i = 0; i < activeGaps.size(); i++) {
+      Gap gap = activeGaps.get(i);
+      gap.offerNextScan(scan, decodedScan);
+      if (!gap.isFinished(scanRT))
+        activeGaps.set(remaining++, gap);
+    }
+    activeGaps.subList(remaining, activeGaps.size()).clear();
+
+  }
+
+  /**
+   * Finalizes all gaps
+   */
+  public void noMoreOffers() {
+    for (Gap gap : gaps) {
+      gap.noMoreOffers();
+    }
+  }
+
+}
@@ -171,6 +171,9 @@ class PeakFinderTask extends AbstractTask {
         // Get all scans of this data file
         int scanNumbers[] = dataFile.getScanNumbers(1);
 
+        // Each scan is decoded once and offered only to the gaps overlapping it
+        GapScanSweep sweep = new GapScanSweep(gaps);
+
         // Process each scan
         for (int scanNumber : scanNumbers) {
           // Canceled?
@@ -182,18 +185,14 @@ class PeakFinderTask extends AbstractTask {
           // Get the scan
           Scan scan = dataFile.getScan(scanNumber);
 
-          // Feed this scan to all gaps
-          for (Gap gap : gaps) {
-            gap.offerNextScan(scan);
-          }
+          // Feed this scan to the gaps overlapping it
+          sweep.offerNextScan(scan);
 
           processedScans.incrementAndGet();
         }
 
         // Finalize gaps
-        for (Gap gap : gaps) {
-          gap.noMoreOffers();
-        }
+        sweep.noMoreOffers();
       });
     }
     // terminate - stream only skips all elements
@@ -307,6 +306,9 @@ class PeakFinderTask extends AbstractTask {
         // Get all scans of this data file
         int scanNumbers[] = datafile1.getScanNumbers(1);
 
+        // Each scan is decoded once and offered only to the gaps overlapping it
+        GapScanSweep sweep = new GapScanSweep(gaps);
+
         // Process each scan
         for (int scanNumber : scanNumbers) {
 
@@ -318,17 +320,13 @@ class PeakFinderTask extends AbstractTask {
           // Get the scan
           Scan scan = datafile1.getScan(scanNumber);
 
-          // Feed this scan to all gaps
-          for (Gap gap : gaps) {
-            gap.offerNextScan(scan);
-          }
+          // Feed this scan to the gaps overlapping it
+          sweep.offerNextScan(scan);
           processedScans.incrementAndGet();
         }
 
         // Finalize gaps
-        for (Gap gap : gaps) {
-          gap.noMoreOffers();
-        }
+        sweep.noMoreOffers();
       }
     }
   }
@@ -29,6 +29,7 @@ import net.sf.mzmine.datamodel.PeakListRow;
 import net.sf.mzmine.datamodel.RawDataFile;
 import net.sf.mzmine.datamodel.Scan;
 import net.sf.mzmine.modules.peaklistmethods.gapfilling.peakfinder.Gap;
+import net.sf.mzmine.modules.peaklistmethods.gapfilling.peakfinder.GapScanSweep;
 import net.sf.mzmine.parameters.ParameterSet;
 import net.sf.mzmine.parameters.parametertypes.tolerances.MZTolerance;
 import net.sf.mzmine.parameters.parametertypes.tolerances.RTTolerance;
@@ -129,6 +130,9 @@ class MultiThreadPeakFinderTask extends AbstractTask {
       // Get all scans of this data file
       int scanNumbers[] = dataFile.getScanNumbers(1);
 
+      // Each scan is decoded once and offered only to the gaps overlapping it
+      GapScanSweep sweep = new GapScanSweep(gaps);
+
       // Process each scan
       for (int scanNumber : scanNumbers) {
         // Canceled?
@@ -139,18 +143,14 @@ class MultiThreadPeakFinderTask extends AbstractTask {
         // Get the scan
         Scan scan = dataFile.getScan(scanNumber);
 
-        // Feed this scan to all gaps
-        for (Gap gap : gaps) {
-          gap.offerNextScan(scan);
-        }
+        // Feed this scan to the gaps overlapping it
+        sweep.offerNextScan(scan);
 
         processedScans++;
       }
 
       // Finalize gaps
-      for (Gap gap : gaps) {
-        gap.noMoreOffers();
-      }
+      sweep.noMoreOffers();
     }
 
     // first notify listener
@@ -61,7 +61,7 @@ class PrecursorDBSearchTask extends AbstractTask {
   private boolean useRT;
   private RTTolerance rtTol;
 
-  private List<AbstractTask> tasks;
+  private volatile List<AbstractTask> tasks;
   private int totalTasks;
   private AtomicInteger matches = new AtomicInteger(0);
 
@@ -84,7 +84,19 @@ class PrecursorDBSearchTask extends AbstractTask {
   public double getFinishedPercentage() {
     if (totalTasks == 0 || tasks == null)
       return 0;
-    return ((double) totalTasks - tasks.size()) / totalTasks;
+    return tasks.stream().filter(t -> t.isFinished() || t.isCanceled()).count()
+        / (double) totalTasks;
+  }
+
+  /**
+   * Cancels this task and all its sub tasks
+   */
+  @Override
+  public void cancel() {
+    super.cancel();
+    List<AbstractTask> subTasks = tasks;
+    if (subTasks != null)
+      subTasks.forEach(AbstractTask::cancel);
   }
 
   /**
@@ -107,25 +119,16 @@ class PrecursorDBSearchTask extends AbstractTask {
       tasks = parseFile(dataBaseFile);
       totalTasks = tasks.size();
       if (!tasks.isEmpty()) {
-        // wait for the tasks to finish
-        while (!isCanceled() && !tasks.isEmpty()) {
-          for (int i = 0; i < tasks.size(); i++) {
-            if (tasks.get(i).isFinished() || tasks.get(i).isCanceled()) {
-              tasks.remove(i);
-              i--;
-            }
-          }
-          // wait for all sub tasks to finish
-          try {
-            Thread.sleep(100);
-          } catch (Exception e) {
-            cancel();
-          }
-        }
-        // cancelled
+        // cancelled while the sub tasks were created
         if (isCanceled()) {
           tasks.stream().forEach(AbstractTask::cancel);
         }
+        // wait for all sub tasks to finish
+        try {
+          MZmineCore.getTaskController().waitForTasks(tasks);
+        } catch (InterruptedException e) {
+          cancel();
+        }
       } else {
         setStatus(TaskStatus.ERROR);
         setErrorMessage("DB file was empty - or error while parsing " + dataBaseFile);
@@ -34,9 +34,7 @@ import net.sf.mzmine.main.MZmineCore;
 import net.sf.mzmine.parameters.ParameterSet;
 import net.sf.mzmine.taskcontrol.AbstractTask;
 import net.sf.mzmine.taskcontrol.TaskStatus;
-import net.sf.mzmine.util.spectraldb.entry.SpectralDBEntry;
-import net.sf.mzmine.util.spectraldb.parser.AutoLibraryParser;
-import net.sf.mzmine.util.spectraldb.parser.LibraryEntryProcessor;
+import net.sf.mzmine.util.spectraldb.index.SpectralLibraryIndex;
 import net.sf.mzmine.util.spectraldb.parser.UnsupportedFormatException;
 
 class LocalSpectralDBSearchTask extends AbstractTask {
@@ -49,7 +47,9 @@ class LocalSpectralDBSearchTask extends AbstractTask {
 
   private ParameterSet parameters;
 
-  private List<RowsSpectralMatchTask> tasks;
+  private volatile List<RowsSpectralMatchTask> tasks;
+
+  private SpectralLibraryIndex index;
 
   private int totalTasks;
   private PeakListRow[] rows;
@@ -69,7 +69,19 @@ class LocalSpectralDBSearchTask extends AbstractTask {
   public double getFinishedPercentage() {
     if (totalTasks == 0 || tasks == null)
       return 0;
-    return ((double) totalTasks - tasks.size()) / totalTasks;
+    return tasks.stream().filter(t -> t.isFinished() || t.isCanceled()).count()
+        / (double) totalTasks;
+  }
+
+  /**
+   * Cancels this task and all its sub tasks
+   */
+  @Override
+  public void cancel() {
+    super.cancel();
+    List<RowsSpectralMatchTask> subTasks = tasks;
+    if (subTasks != null)
+      subTasks.forEach(AbstractTask::cancel);
   }
 
   /**
@@ -91,27 +103,19 @@ class LocalSpectralDBSearchTask extends AbstractTask {
       tasks = parseFile(dataBaseFile);
       totalTasks = tasks.size();
       if (!tasks.isEmpty()) {
-        // wait for the tasks to finish
-        while (!isCanceled() && !tasks.isEmpty()) {
-          for (int i = 0; i < tasks.size(); i++) {
-            if (tasks.get(i).isFinished() || tasks.get(i).isCanceled()) {
-              count += tasks.get(i).getCount();
-              tasks.remove(i);
-              i--;
-            }
-          }
-          // wait for all sub tasks to finish
-          try {
-            Thread.sleep(100);
-          } catch (Exception e) {
-            cancel();
-          }
-        }
-        // cancelled
+        // cancelled while the sub tasks were created
         if (isCanceled()) {
           tasks.stream().forEach(AbstractTask::cancel);
         }
-      } else {
+        // wait for all sub tasks to finish
+        try {
+          MZmineCore.getTaskController().waitForTasks(tasks);
+        } catch (InterruptedException e) {
+          cancel();
+        }
+        for (RowsSpectralMatchTask task : tasks)
+          count += task.getCount();
+      } else if (!isCanceled()) {
         setStatus(TaskStatus.ERROR);
         setErrorMessage("DB file was empty - or error while parsing " + dataBaseFile);
       }
@@ -119,6 +123,8 @@ class LocalSpectralDBSearchTask extends AbstractTask {
       logger.log(Level.SEVERE, "Could not read file " + dataBaseFile, e);
       setStatus(TaskStatus.ERROR);
       setErrorMessage(e.toString());
+    } finally {
+      closeIndex();
     }
     logger.info("Added " + count + " spectral library matches");
 
@@ -136,29 +142,33 @@ class LocalSpectralDBSearchTask extends AbstractTask {
   }
 
   /**
-   * Load all library entries from data base file
+   * Open the compiled library (building it on first use) and start the matching tasks
    * 
    * @param dataBaseFile
    * @return
    */
   private List<RowsSpectralMatchTask> parseFile(File dataBaseFile)
       throws UnsupportedFormatException, IOException {
-    //
-    List<RowsSpectralMatchTask> tasks = new ArrayList<>();
-    AutoLibraryParser parser = new AutoLibraryParser(100, new LibraryEntryProcessor() {
-      @Override
-      public void processNextEntries(List<SpectralDBEntry> list, int alreadyProcessed) {
-        // start last task
-        RowsSpectralMatchTask task =
-            new RowsSpectralMatchTask(peakList.getName(), rows, parameters, alreadyProcessed + 1, list);
-        MZmineCore.getTaskController().addTask(task);
-        tasks.add(task);
-      }
-    });
-
-    // return tasks
-    parser.parse(this, dataBaseFile);
+    index = SpectralLibraryIndex.open(this, dataBaseFile);
+    if (index == null)
+      return new ArrayList<>();
+    logger.info("Searching " + index.size() + " library entries of " + dataBaseFile);
+
+    List<RowsSpectralMatchTask> tasks = RowsSpectralMatchTask.createTasks(peakList.getName(),
+        rows, parameters, index, null);
+    for (RowsSpectralMatchTask task : tasks)
+      MZmineCore.getTaskController().addTask(task);
     return tasks;
   }
 
+  private void closeIndex() {
+    if (index == null)
+      return;
+    try {
+      index.close();
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Could not close " + index.getIndexFile(), e);
+    }
+  }
+
 }
@@ -19,13 +19,16 @@
 package net.sf.mzmine.modules.peaklistmethods.identification.spectraldbsearch;
 
 import java.io.File;
+import java.io.IOException;
 import java.text.MessageFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.annotation.Nonnull;
+import com.google.common.collect.Range;
 import net.sf.mzmine.datamodel.DataPoint;
 import net.sf.mzmine.datamodel.MassList;
 import net.sf.mzmine.datamodel.PeakListRow;
@@ -52,6 +55,7 @@ import net.sf.mzmine.util.scans.sorting.ScanSortMode;
 import net.sf.mzmine.util.spectraldb.entry.DBEntryField;
 import net.sf.mzmine.util.spectraldb.entry.SpectralDBEntry;
 import net.sf.mzmine.util.spectraldb.entry.SpectralDBPeakIdentity;
+import net.sf.mzmine.util.spectraldb.index.SpectralLibraryIndex;
 
 public class RowsSpectralMatchTask extends AbstractTask {
 
@@ -59,6 +63,9 @@ public class RowsSpectralMatchTask extends AbstractTask {
 
   private static final String METHOD = "Spectral DB search";
   private static final int MAX_ERROR = 3;
+  // batch sizes when searching a library index
+  private static final int ENTRIES_PER_TASK = 1000;
+  private static final int ROWS_PER_TASK = 100;
   private int errorCounter = 0;
   private String description;
   private PeakListRow[] rows;
@@ -78,6 +85,11 @@ public class RowsSpectralMatchTask extends AbstractTask {
   private final int minMatch;
   private List<SpectralDBEntry> list;
 
+  // compiled library and the range of entries [firstEntry, endEntry) searched by this task
+  private SpectralLibraryIndex index;
+  private int firstEntry;
+  private int endEntry;
+
   private int count = 0;
 
   // as this module is started in a series the start entry is saved to track progress
@@ -108,13 +120,32 @@ public class RowsSpectralMatchTask extends AbstractTask {
   public RowsSpectralMatchTask(String description, @Nonnull PeakListRow[] rows,
       ParameterSet parameters, int startEntry, List<SpectralDBEntry> list,
       Consumer<SpectralDBPeakIdentity> matchListener) {
+    this(description, rows, parameters, startEntry, list.size(), matchListener);
+    this.list = list;
+  }
+
+  /**
+   * Matches the rows against the entries [firstEntry, endEntry) of a library index. For MS level >
+   * 1, only the entries within the precursor m/z tolerance of each row are decoded.
+   */
+  public RowsSpectralMatchTask(String description, @Nonnull PeakListRow[] rows,
+      ParameterSet parameters, SpectralLibraryIndex index, int firstEntry, int endEntry,
+      Consumer<SpectralDBPeakIdentity> matchListener) {
+    this(description, rows, parameters, firstEntry + 1, endEntry - firstEntry, matchListener);
+    this.index = index;
+    this.firstEntry = firstEntry;
+    this.endEntry = endEntry;
+  }
+
+  private RowsSpectralMatchTask(String description, @Nonnull PeakListRow[] rows,
+      ParameterSet parameters, int startEntry, int listsize,
+      Consumer<SpectralDBPeakIdentity> matchListener) {
     this.description = description;
     this.rows = rows;
     this.parameters = parameters;
     this.startEntry = startEntry;
-    this.list = list;
+    this.listsize = listsize;
     this.matchListener = matchListener;
-    listsize = list.size();
     dataBaseFile = parameters.getParameter(LocalSpectralDBSearchParameters.dataBaseFile).getValue();
     massListName = parameters.getParameter(LocalSpectralDBSearchParameters.massList).getValue();
     mzToleranceSpectra =
@@ -151,6 +182,32 @@ public class RowsSpectralMatchTask extends AbstractTask {
     totalRows = rows.length;
   }
 
+  /**
+   * Creates the tasks to match the rows against all entries of a library index. For MS level 1,
+   * each task matches all rows against a batch of entries. Otherwise, each task matches a batch of
+   * rows against the entries within their precursor m/z tolerance.
+   */
+  public static List<RowsSpectralMatchTask> createTasks(String description,
+      @Nonnull PeakListRow[] rows, ParameterSet parameters, SpectralLibraryIndex index,
+      Consumer<SpectralDBPeakIdentity> matchListener) {
+    List<RowsSpectralMatchTask> tasks = new ArrayList<>();
+    final int msLevel = parameters.getParameter(LocalSpectralDBSearchParameters.msLevel).getValue();
+    if (msLevel == 1) {
+      for (int first = 0; first < index.size(); first += ENTRIES_PER_TASK) {
+        tasks.add(new RowsSpectralMatchTask(description, rows, parameters, index, first,
+            Math.min(index.size(), first + ENTRIES_PER_TASK), matchListener));
+      }
+    } else if (index.size() > 0) {
+      for (int first = 0; first < rows.length; first += ROWS_PER_TASK) {
+        PeakListRow[] batch =
+            Arrays.copyOfRange(rows, first, Math.min(rows.length, first + ROWS_PER_TASK));
+        tasks.add(new RowsSpectralMatchTask(description, batch, parameters, index, 0,
+            index.size(), matchListener));
+      }
+    }
+    return tasks;
+  }
+
   /**
    * @see net.sf.mzmine.taskcontrol.Task#getFinishedPercentage()
    */
@@ -199,7 +256,7 @@ public class RowsSpectralMatchTask extends AbstractTask {
         }
 
         // match against all library entries
-        for (SpectralDBEntry ident : list) {
+        for (SpectralDBEntry ident : getLibraryEntries(row)) {
           SpectralDBPeakIdentity best = null;
           // match all scans against this ident to find best match
           for (int i = 0; i < scans.size(); i++) {
@@ -222,6 +279,12 @@ public class RowsSpectralMatchTask extends AbstractTask {
       } catch (MissingMassListException e) {
         logger.log(Level.WARNING, "No mass list in spectrum for rowID=" + row.getID(), e);
         errorCounter++;
+      } catch (IOException e) {
+        logger.log(Level.SEVERE, "Cannot read spectral library index " + index.getIndexFile(), e);
+        setStatus(TaskStatus.ERROR);
+        setErrorMessage("Cannot read spectral library index " + index.getIndexFile());
+        list = null;
+        return;
       }
       // check for max error (missing masslist)
       if (errorCounter > MAX_ERROR) {
@@ -245,6 +308,26 @@ public class RowsSpectralMatchTask extends AbstractTask {
     setStatus(TaskStatus.FINISHED);
   }
 
+  /**
+   * Library entries to match against a row
+   */
+  private List<SpectralDBEntry> getLibraryEntries(PeakListRow row) throws IOException {
+    if (index == null)
+      return list;
+    if (msLevel == 1) {
+      // all entries of this task, decoded once
+      if (list == null)
+        list = index.getEntries(firstEntry, endEntry);
+      return list;
+    }
+    // checkPrecursorMZ() centres the tolerance on the library precursor m/z. Above the row m/z a
+    // ppm tolerance is wider there than at the row m/z, so the window is widened once more to keep
+    // all entries which pass the exact check.
+    Range<Double> mzRange = mzTolerancePrecursor.getToleranceRange(row.getAverageMZ());
+    int[] range = index.findPrecursorMZRange(mzTolerancePrecursor.getToleranceRange(mzRange));
+    return index.getEntries(Math.max(firstEntry, range[0]), Math.min(endEntry, range[1]));
+  }
+
   private void repaintWindow() {
     Desktop desktop = MZmineCore.getDesktop();
     if (!(desktop instanceof HeadLessDesktop))
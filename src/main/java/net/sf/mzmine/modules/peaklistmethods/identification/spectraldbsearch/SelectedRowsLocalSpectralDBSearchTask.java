@@ -34,9 +34,7 @@ import net.sf.mzmine.modules.visualization.spectra.spectralmatchresults.SpectraI
 import net.sf.mzmine.parameters.ParameterSet;
 import net.sf.mzmine.taskcontrol.AbstractTask;
 import net.sf.mzmine.taskcontrol.TaskStatus;
-import net.sf.mzmine.util.spectraldb.entry.SpectralDBEntry;
-import net.sf.mzmine.util.spectraldb.parser.AutoLibraryParser;
-import net.sf.mzmine.util.spectraldb.parser.LibraryEntryProcessor;
+import net.sf.mzmine.util.spectraldb.index.SpectralLibraryIndex;
 import net.sf.mzmine.util.spectraldb.parser.UnsupportedFormatException;
 
 public class SelectedRowsLocalSpectralDBSearchTask extends AbstractTask {
@@ -49,7 +47,9 @@ public class SelectedRowsLocalSpectralDBSearchTask extends AbstractTask {
 
   private ParameterSet parameters;
 
-  private List<RowsSpectralMatchTask> tasks;
+  private volatile List<RowsSpectralMatchTask> tasks;
+
+  private SpectralLibraryIndex index;
 
   private SpectraIdentificationResultsWindow resultWindow;
 
@@ -73,7 +73,19 @@ public class SelectedRowsLocalSpectralDBSearchTask extends AbstractTask {
   public double getFinishedPercentage() {
     if (totalTasks == 0 || tasks == null)
       return 0;
-    return ((double) totalTasks - tasks.size()) / totalTasks;
+    return tasks.stream().filter(t -> t.isFinished() || t.isCanceled()).count()
+        / (double) totalTasks;
+  }
+
+  /**
+   * Cancels this task and all its sub tasks
+   */
+  @Override
+  public void cancel() {
+    super.cancel();
+    List<RowsSpectralMatchTask> subTasks = tasks;
+    if (subTasks != null)
+      subTasks.forEach(AbstractTask::cancel);
   }
 
   /**
@@ -105,27 +117,19 @@ public class SelectedRowsLocalSpectralDBSearchTask extends AbstractTask {
       tasks = parseFile(dataBaseFile);
       totalTasks = tasks.size();
       if (!tasks.isEmpty()) {
-        // wait for the tasks to finish
-        while (!isCanceled() && !tasks.isEmpty()) {
-          for (int i = 0; i < tasks.size(); i++) {
-            if (tasks.get(i).isFinished() || tasks.get(i).isCanceled()) {
-              count += tasks.get(i).getCount();
-              tasks.remove(i);
-              i--;
-            }
-          }
-          // wait for all sub tasks to finish
-          try {
-            Thread.sleep(100);
-          } catch (Exception e) {
-            cancel();
-          }
-        }
-        // cancelled
+        // cancelled while the sub tasks were created
         if (isCanceled()) {
           tasks.stream().forEach(AbstractTask::cancel);
         }
-      } else {
+        // wait for all sub tasks to finish
+        try {
+          MZmineCore.getTaskController().waitForTasks(tasks);
+        } catch (InterruptedException e) {
+          cancel();
+        }
+        for (RowsSpectralMatchTask task : tasks)
+          count += task.getCount();
+      } else if (!isCanceled()) {
         setStatus(TaskStatus.ERROR);
         setErrorMessage("DB file was empty - or error while parsing " + dataBaseFile);
       }
@@ -133,6 +137,8 @@ public class SelectedRowsLocalSpectralDBSearchTask extends AbstractTask {
       logger.log(Level.SEVERE, "Could not read file " + dataBaseFile, e);
       setStatus(TaskStatus.ERROR);
       setErrorMessage(e.toString());
+    } finally {
+      closeIndex();
     }
     logger.info("Added " + count + " spectral library matches");
     if (resultWindow != null) {
@@ -154,37 +160,41 @@ public class SelectedRowsLocalSpectralDBSearchTask extends AbstractTask {
   }
 
   /**
-   * Load all library entries from data base file
+   * Open the compiled library (building it on first use) and start the matching tasks
    * 
    * @param dataBaseFile
    * @return
    */
   private List<RowsSpectralMatchTask> parseFile(File dataBaseFile)
       throws UnsupportedFormatException, IOException {
-    //
-    List<RowsSpectralMatchTask> tasks = new ArrayList<>();
-    AutoLibraryParser parser = new AutoLibraryParser(100, new LibraryEntryProcessor() {
-      @Override
-      public void processNextEntries(List<SpectralDBEntry> list, int alreadyProcessed) {
-        // start last task
-        RowsSpectralMatchTask task = new RowsSpectralMatchTask(peakListRows.length + " rows",
-            peakListRows, parameters, alreadyProcessed + 1, list, (match) -> {
-              // one selected row -> show in dialog
-              if (resultWindow != null) {
-                resultWindow.addMatches(match);
-                resultWindow.revalidate();
-                resultWindow.repaint();
-              }
-            });
-        MZmineCore.getTaskController().addTask(task);
-        tasks.add(task);
-      }
-    });
-
-    // return tasks
-    parser.parse(this, dataBaseFile);
+    index = SpectralLibraryIndex.open(this, dataBaseFile);
+    if (index == null)
+      return new ArrayList<>();
+    logger.info("Searching " + index.size() + " library entries of " + dataBaseFile);
+
+    List<RowsSpectralMatchTask> tasks = RowsSpectralMatchTask
+        .createTasks(peakListRows.length + " rows", peakListRows, parameters, index, (match) -> {
+          // one selected row -> show in dialog
+          if (resultWindow != null) {
+            resultWindow.addMatches(match);
+            resultWindow.revalidate();
+            resultWindow.repaint();
+          }
+        });
+    for (RowsSpectralMatchTask task : tasks)
+      MZmineCore.getTaskController().addTask(task);
     return tasks;
   }
 
+  private void closeIndex() {
+    if (index == null)
+      return;
+    try {
+      index.close();
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Could not close " + index.getIndexFile(), e);
+    }
+  }
+
 }
 
@@ -25,7 +25,7 @@ import javax.annotation.Nonnull;
 import net.sf.mzmine.datamodel.MZmineProject;
 import net.sf.mzmine.datamodel.PeakList;
 import net.sf.mzmine.modules.MZmineModuleCategory;
-import net.sf.mzmine.modules.MZmineProcessingModule;
+import net.sf.mzmine.modules.MZmineSampleProcessingModule;
 import net.sf.mzmine.parameters.ParameterSet;
 import net.sf.mzmine.taskcontrol.Task;
 import net.sf.mzmine.util.ExitCode;
@@ -35,7 +35,7 @@ import net.sf.mzmine.util.ExitCode;
  * peaks from expected locations.
  * 
  */
-public class IsotopeGrouperModule implements MZmineProcessingModule {
+public class IsotopeGrouperModule implements MZmineSampleProcessingModule {
 
   private static final String MODULE_NAME = "Isotopic peaks grouper";
   private static final String MODULE_DESCRIPTION =
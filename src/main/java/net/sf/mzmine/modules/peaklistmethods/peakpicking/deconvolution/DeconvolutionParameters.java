@@ -21,6 +21,7 @@ package net.sf.mzmine.modules.peaklistmethods.peakpicking.deconvolution;
 import net.sf.mzmine.modules.peaklistmethods.peakpicking.deconvolution.ADAPpeakpicking.ADAPDetector;
 import net.sf.mzmine.modules.peaklistmethods.peakpicking.deconvolution.baseline.BaselinePeakDetector;
 import net.sf.mzmine.modules.peaklistmethods.peakpicking.deconvolution.centwave.CentWaveDetector;
+import net.sf.mzmine.modules.peaklistmethods.peakpicking.deconvolution.javacentwave.JavaCentWaveDetector;
 import net.sf.mzmine.modules.peaklistmethods.peakpicking.deconvolution.minimumsearch.MinimumSearchPeakDetector;
 import net.sf.mzmine.modules.peaklistmethods.peakpicking.deconvolution.noiseamplitude.NoiseAmplitudePeakDetector;
 import net.sf.mzmine.modules.peaklistmethods.peakpicking.deconvolution.savitzkygolay.SavitzkyGolayPeakDetector;
@@ -39,7 +40,8 @@ public class DeconvolutionParameters extends SimpleParameterSet {
 
   private static final PeakResolver[] RESOLVERS = {new BaselinePeakDetector(),
       new NoiseAmplitudePeakDetector(), new SavitzkyGolayPeakDetector(),
-      new MinimumSearchPeakDetector(), new CentWaveDetector(), new ADAPDetector()};
+      new MinimumSearchPeakDetector(), new CentWaveDetector(), new JavaCentWaveDetector(),
+      new ADAPDetector()};
 
   public static final PeakListsParameter PEAK_LISTS = new PeakListsParameter();
 
@@ -72,8 +74,12 @@ public class DeconvolutionParameters extends SimpleParameterSet {
               + "considered belonging to the same feature. If not activated, the pairing of MS1 scan with the corresponding MS2 scan\n"
               + "will be done on the full retention time range of the chromatogram."));
 
+  public static final BooleanParameter USE_PARALLEL = new BooleanParameter("Parallel",
+      "Resolve the chromatograms in parallel, using the number of threads set in the preferences (not used for resolvers running in R)",
+      false);
+
   public DeconvolutionParameters() {
     super(new Parameter[] {PEAK_LISTS, SUFFIX, PEAK_RESOLVER, MZ_CENTER_FUNCTION, mzRangeMSMS,
-        RetentionTimeMSMS, AUTO_REMOVE});
+        RetentionTimeMSMS, AUTO_REMOVE, USE_PARALLEL});
   }
 }
@@ -22,9 +22,14 @@ import static net.sf.mzmine.modules.peaklistmethods.peakpicking.deconvolution.De
 import static net.sf.mzmine.modules.peaklistmethods.peakpicking.deconvolution.DeconvolutionParameters.PEAK_RESOLVER;
 import static net.sf.mzmine.modules.peaklistmethods.peakpicking.deconvolution.DeconvolutionParameters.RetentionTimeMSMS;
 import static net.sf.mzmine.modules.peaklistmethods.peakpicking.deconvolution.DeconvolutionParameters.SUFFIX;
+import static net.sf.mzmine.modules.peaklistmethods.peakpicking.deconvolution.DeconvolutionParameters.USE_PARALLEL;
 import static net.sf.mzmine.modules.peaklistmethods.peakpicking.deconvolution.DeconvolutionParameters.mzRangeMSMS;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.stream.IntStream;
 import net.sf.mzmine.datamodel.Feature;
 import net.sf.mzmine.datamodel.MZmineProject;
 import net.sf.mzmine.datamodel.PeakList;
@@ -34,6 +39,7 @@ import net.sf.mzmine.datamodel.RawDataFile;
 import net.sf.mzmine.datamodel.impl.SimplePeakList;
 import net.sf.mzmine.datamodel.impl.SimplePeakListAppliedMethod;
 import net.sf.mzmine.datamodel.impl.SimplePeakListRow;
+import net.sf.mzmine.main.MZmineCore;
 import net.sf.mzmine.modules.MZmineProcessingStep;
 import net.sf.mzmine.modules.peaklistmethods.qualityparameters.QualityParameters;
 import net.sf.mzmine.parameters.ParameterSet;
@@ -55,7 +61,7 @@ public class DeconvolutionTask extends AbstractTask {
   private PeakList newPeakList;
 
   // Counters.
-  private int processedRows;
+  private final AtomicInteger processedRows = new AtomicInteger();
   private int totalRows;
 
   // User parameters
@@ -83,7 +89,6 @@ public class DeconvolutionTask extends AbstractTask {
     parameters = parameterSet;
     originalPeakList = list;
     newPeakList = null;
-    processedRows = 0;
     totalRows = 0;
     this.mzCenterFunction = mzCenterFunction;
   }
@@ -97,7 +102,7 @@ public class DeconvolutionTask extends AbstractTask {
   @Override
   public double getFinishedPercentage() {
 
-    return totalRows == 0 ? 0.0 : (double) processedRows / (double) totalRows;
+    return totalRows == 0 ? 0.0 : (double) processedRows.get() / (double) totalRows;
   }
 
   @Override
@@ -206,9 +211,11 @@ public class DeconvolutionTask extends AbstractTask {
    * @param mzCenterFunction2
    * @return a new feature list holding the resolved peaks.
    * @throws RSessionWrapperException
+   * @throws ExecutionException if a resolver fails in parallel mode
+   * @throws InterruptedException if interrupted while waiting for the parallel resolvers
    */
   private PeakList resolvePeaks(final PeakList peakList, RSessionWrapper rSession)
-      throws RSessionWrapperException {
+      throws RSessionWrapperException, InterruptedException, ExecutionException {
 
     // Get data file information.
     final RawDataFile dataFile = peakList.getRawDataFile(0);
@@ -245,26 +252,55 @@ public class DeconvolutionTask extends AbstractTask {
         "Peak deconvolution by " + resolver, resolver.getParameterSet()));
 
     // Initialise counters.
-    processedRows = 0;
+    processedRows.set(0);
     totalRows = peakList.getNumberOfRows();
     int peakId = 1;
 
     // Process each chromatogram.
     final PeakListRow[] peakListRows = peakList.getRows();
     final int chromatogramCount = peakListRows.length;
+    final PeakResolver resolverModule = resolver.getModule();
+    final ParameterSet resolverParams = resolver.getParameterSet();
+
+    // Resolve peaks. The chromatograms are independent, so they can be resolved in parallel,
+    // unless the resolver uses the (single) R session.
+    final ResolvedPeak[][] resolvedRows = new ResolvedPeak[chromatogramCount][];
+    if (parameters.getParameter(USE_PARALLEL).getValue() && !resolverModule.getRequiresR()) {
+
+      // The pool is shared with other tasks and must not be shut down
+      final ForkJoinPool pool = MZmineCore.getTaskController().getParallelPool();
+      pool.submit(() -> IntStream.range(0, chromatogramCount).parallel().forEach(index -> {
+        if (isCanceled())
+          return;
+        final Feature chromatogram = peakListRows[index].getPeak(dataFile);
+        try {
+          resolvedRows[index] = resolverModule.resolvePeaks(chromatogram, resolverParams, null,
+              mzCenterFunction, msmsRange, RTRangeMSMS);
+        } catch (RSessionWrapperException e) {
+          // Cannot happen, R session is not used
+          throw new IllegalStateException(e);
+        }
+        processedRows.incrementAndGet();
+      })).get();
+
+    } else {
+
+      for (int index = 0; !isCanceled() && index < chromatogramCount; index++) {
+        final Feature chromatogram = peakListRows[index].getPeak(dataFile);
+        resolvedRows[index] = resolverModule.resolvePeaks(chromatogram, resolverParams, rSession,
+            mzCenterFunction, msmsRange, RTRangeMSMS);
+        processedRows.incrementAndGet();
+      }
+
+    }
+
+    // Add peaks to the new feature list, in the order of the chromatograms, so the row IDs do not
+    // depend on the order in which the chromatograms were resolved.
     for (int index = 0; !isCanceled() && index < chromatogramCount; index++) {
 
       final PeakListRow currentRow = peakListRows[index];
-      final Feature chromatogram = currentRow.getPeak(dataFile);
 
-      // Resolve peaks.
-      final PeakResolver resolverModule = resolver.getModule();
-      final ParameterSet resolverParams = resolver.getParameterSet();
-      final ResolvedPeak[] peaks = resolverModule.resolvePeaks(chromatogram, resolverParams, rSession,
-          mzCenterFunction, msmsRange, RTRangeMSMS);
-
-      // Add peaks to the new feature list.
-      for (final ResolvedPeak peak : peaks) {
+      for (final ResolvedPeak peak : resolvedRows[index]) {
 
         peak.setParentChromatogramRowID(currentRow.getID());
 
@@ -273,8 +309,6 @@ public class DeconvolutionTask extends AbstractTask {
         newRow.setPeakInformation(peak.getPeakInformation());
         resolvedPeaks.addRow(newRow);
       }
-
-      processedRows++;
     }
 
     return resolvedPeaks;
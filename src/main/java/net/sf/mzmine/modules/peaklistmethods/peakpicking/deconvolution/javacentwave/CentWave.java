@@ -0,0 +1,803 @@
+/*
+ * Copyright 2006-2018 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with MZmine 2; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+
+package net.sf.mzmine.modules.peaklistmethods.peakpicking.deconvolution.javacentwave;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.collect.Range;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import net.sf.mzmine.modules.peaklistmethods.peakpicking.deconvolution.centwave.CentWaveDetectorParameters.PeakIntegrationMethod;
+
+/**
+ * Java implementation of the centWave peak detection of XCMS (findPeaks.centWave) for a single
+ * chromatogram, following the R code of XCMS and MassSpecWavelet. The regions of interest are the
+ * continuous non-zero sections of the chromatogram, as in CentWaveDetector. Each region is
+ * transformed using the Mexican hat wavelet at all scales of the peak width range, ridges of local
+ * maxima across the scales are the peak candidates, and the peak boundaries are found by descending
+ * from the best scale (or from the raw data).
+ *
+ * Overlapping peaks are resolved by keeping the peak with the larger area, in the same way as the
+ * final rectUnique step of XCMS. The Gaussian-overlap merging of XCMS (joinOverlappingPeaks) is not
+ * implemented.
+ *
+ * All methods are stateless, so the detection can run on multiple threads.
+ */
+class CentWave {
+
+  // Minutes <-> seconds.
+  private static final double SECONDS_PER_MINUTE = 60.0;
+
+  // Mexican hat wavelet sampled at 1024 points in [-8, 8], as in MassSpecWavelet
+  private static final int PSI_LENGTH = 1024;
+  private static final double PSI_X_MAX = 16.0;
+  private static final double PSI_DX = PSI_X_MAX / (PSI_LENGTH - 1);
+  private static final double PSI[] = new double[PSI_LENGTH];
+
+  static {
+    final double norm = 2.0 / Math.sqrt(3.0) * Math.pow(Math.PI, -0.25);
+    for (int i = 0; i < PSI_LENGTH; i++) {
+      final double x = -8.0 + i * PSI_DX;
+      PSI[i] = norm * (1.0 - x * x) * Math.exp(-x * x / 2.0);
+    }
+  }
+
+  // Minimal window size for local maxima and ridges, and maximal gap of a ridge (MassSpecWavelet)
+  private static final int MIN_WIN_SIZE = 5;
+  private static final int GAP_THRESHOLD = 3;
+
+  // Trimming of the intensities used for noise estimation (XCMS)
+  private static final double NOISE_TRIM = 0.05;
+
+  /**
+   * Detected peak, given by the (inclusive) indices of its first and last data point
+   */
+  private static class CentWavePeak {
+    private final int left, right;
+    private final double area;
+
+    private CentWavePeak(int left, int right, double area) {
+      this.left = left;
+      this.right = right;
+      this.area = area;
+    }
+  }
+
+  /**
+   * Ridge of local maxima across the wavelet scales
+   */
+  private static class Ridge {
+    private final String name;
+    private final int positions[];
+
+    private Ridge(String name, int positions[]) {
+      this.name = name;
+      this.positions = positions;
+    }
+  }
+
+  /**
+   * Detects the peaks in a chromatogram.
+   *
+   * @param retentionTimes retention times (in minutes) of all data points
+   * @param intensities intensities of all data points (zero if missing)
+   * @param snThreshold signal to noise ratio threshold
+   * @param peakWidth range of peak widths (in minutes)
+   * @param integrationMethod method used to find the peak boundaries
+   * @return detected peaks as {first index, last index} pairs, sorted by the first index
+   */
+  static List<int[]> findPeaks(final double retentionTimes[], final double intensities[],
+      final double snThreshold, final Range<Double> peakWidth,
+      final PeakIntegrationMethod integrationMethod) {
+
+    final List<int[]> result = new ArrayList<>();
+    final int numOfScans = intensities.length;
+    if (numOfScans < 2)
+      return result;
+
+    final double scanTime[] = new double[numOfScans];
+    for (int i = 0; i < numOfScans; i++)
+      scanTime[i] = retentionTimes[i] * SECONDS_PER_MINUTE;
+
+    // Wavelet scales (in number of scans) corresponding to the peak width range
+    final double meanScanInterval = (scanTime[numOfScans - 1] - scanTime[0]) / (numOfScans - 1);
+    if (!(meanScanInterval > 0))
+      return result;
+    final int minScale =
+        (int) Math.rint(peakWidth.lowerEndpoint() * SECONDS_PER_MINUTE / meanScanInterval / 2);
+    final int maxScale =
+        (int) Math.rint(peakWidth.upperEndpoint() * SECONDS_PER_MINUTE / meanScanInterval / 2);
+    if (maxScale <= 0)
+      return result;
+    final int scales[];
+    if ((minScale <= 0) || (minScale == maxScale)) {
+      scales = new int[] {maxScale};
+    } else {
+      scales = new int[(maxScale - minScale) / 2 + 1];
+      for (int i = 0; i < scales.length; i++)
+        scales[i] = minScale + 2 * i;
+    }
+
+    final int minPeakWidth = scales[0];
+    final int noiseRangeMin = minPeakWidth * 3, noiseRangeMax = scales[scales.length - 1] * 3;
+    final int minPtsAboveBaseline = Math.max(4, minPeakWidth - 2);
+    final int maxDescOutlier = minPeakWidth / 2;
+
+    final List<CentWavePeak> peaks = new ArrayList<>();
+
+    // Regions of interest are the non-zero sections of the chromatogram
+    for (int roiStart = 0; roiStart < numOfScans; roiStart++) {
+
+      if (!(intensities[roiStart] > 0.0))
+        continue;
+      int roiEnd = roiStart;
+      while ((roiEnd + 1 < numOfScans) && (intensities[roiEnd + 1] > 0.0))
+        roiEnd++;
+
+      detectInRegion(scanTime, intensities, roiStart, roiEnd, scales, snThreshold,
+          integrationMethod, noiseRangeMin, noiseRangeMax, minPtsAboveBaseline, maxDescOutlier,
+          peaks);
+
+      roiStart = roiEnd;
+    }
+
+    // Remove overlapping peaks, keeping the ones with larger area (rectUnique in XCMS)
+    final CentWavePeak sortedPeaks[] = peaks.toArray(new CentWavePeak[0]);
+    Arrays.sort(sortedPeaks, Comparator.comparingDouble((CentWavePeak p) -> p.area).reversed());
+    final List<CentWavePeak> uniquePeaks = new ArrayList<>();
+    for (CentWavePeak peak : sortedPeaks) {
+      boolean overlaps = false;
+      for (CentWavePeak kept : uniquePeaks) {
+        if ((scanTime[peak.left] + 0.00001 <= scanTime[kept.right])
+            && (scanTime[peak.right] - 0.00001 >= scanTime[kept.left])) {
+          overlaps = true;
+          break;
+        }
+      }
+      if (!overlaps)
+        uniquePeaks.add(peak);
+    }
+
+    uniquePeaks.sort(Comparator.comparingInt((CentWavePeak p) -> p.left));
+    for (CentWavePeak peak : uniquePeaks)
+      result.add(new int[] {peak.left, peak.right});
+    return result;
+  }
+
+  /**
+   * Detects the peaks in one region of interest [roiStart, roiEnd] and adds them to the list.
+   */
+  private static void detectInRegion(final double scanTime[], final double intensities[],
+      final int roiStart, final int roiEnd, final int allScales[], final double snThreshold,
+      final PeakIntegrationMethod integrationMethod, final int noiseRangeMin,
+      final int noiseRangeMax, final int minPtsAboveBaseline, final int maxDescOutlier,
+      final List<CentWavePeak> peaks) {
+
+    final int numOfScans = intensities.length;
+    final int minPeakWidth = allScales[0];
+    final int maxScale = allScales[allScales.length - 1];
+
+    // Data used for noise estimation
+    final int dataStart = Math.max(0, roiStart - noiseRangeMax);
+    final int dataEnd = Math.min(numOfScans - 1, roiEnd + noiseRangeMax);
+    final double d[] = Arrays.copyOfRange(intensities, dataStart, dataEnd + 1);
+    final int n = d.length;
+
+    // Data range of the peak (region extended by the largest scale), relative to d
+    final int peakStart = Math.max(dataStart, roiStart - maxScale) - dataStart;
+    final int peakEnd = Math.min(dataEnd, roiEnd + maxScale) - dataStart;
+    final double fd[] = Arrays.copyOfRange(d, peakStart, peakEnd + 1);
+
+    // First baseline estimate
+    final double noise =
+        estimateChromNoise(n >= 10 * minPeakWidth ? intensities : d, 3 * minPeakWidth);
+    if (!continuousPtsAboveThreshold(fd, noise, minPtsAboveBaseline))
+      return;
+
+    // Second baseline estimate using the data outside of the peak range
+    final double localNoise[] = getLocalNoiseEstimate(d, peakStart, peakEnd, noiseRangeMin,
+        numOfScans, noise, minPtsAboveBaseline);
+    final double baseline = Math.max(1, Math.min(localNoise[0], noise));
+    final double sdNoise = Math.max(1, localNoise[1]);
+    final double sdThreshold = sdNoise * snThreshold;
+
+    boolean aboveThreshold = false;
+    for (double value : fd)
+      aboveThreshold |= (value - baseline >= sdThreshold);
+    if (!aboveThreshold)
+      return;
+
+    // Wavelet transformation. Scales larger than the (padded) data are skipped.
+    final int paddedLength = Integer.highestOneBit(n) == n ? n : Integer.highestOneBit(n) << 1;
+    int numOfScales = 0;
+    while ((numOfScales < allScales.length)
+        && (Math.floor(allScales[numOfScales] * PSI_X_MAX) + 1 <= paddedLength))
+      numOfScales++;
+    if (numOfScales == 0)
+      return;
+    final int scales[] = Arrays.copyOf(allScales, numOfScales);
+    final double wCoefs[][] = cwt(d, scales);
+
+    aboveThreshold = false;
+    for (double coefs[] : wCoefs)
+      for (double value : coefs)
+        aboveThreshold |= (value - baseline >= sdThreshold);
+    if (!aboveThreshold)
+      return;
+
+    // Workaround of XCMS for the local maxima at the end of the data
+    if ((dataEnd == numOfScans - 1) && (n > 1)) {
+      for (double coefs[] : wCoefs)
+        coefs[n - 1] = coefs[n - 2] * 0.99;
+    }
+
+    // Local maxima at each scale, connected to ridges
+    final boolean localMax[][] = new boolean[scales.length][];
+    for (int s = 0; s < scales.length; s++) {
+      localMax[s] = localMaximum(wCoefs[s], Math.max(MIN_WIN_SIZE, scales[s] * 2 + 1));
+      for (int i = 0; i < n; i++) {
+        if (wCoefs[s][i] < 0)
+          localMax[s][i] = false;
+      }
+    }
+    final List<Ridge> ridges = getRidges(localMax, scales);
+
+    final int intensityRange = (scales[0] + 1) / 2;
+    for (Ridge ridge : ridges) {
+
+      final int positions[] = ridge.positions;
+
+      // Check the ridge at the smallest scale (as XCMS does)
+      boolean ridgeAbove = false;
+      for (int position : positions)
+        ridgeAbove |= (wCoefs[0][position] - baseline >= sdThreshold);
+      if (!ridgeAbove)
+        continue;
+
+      // The ridge must reach the peak data range and the raw data must pass the S/N check
+      boolean inPeakRange = false, signalAbove = false;
+      for (int position : positions) {
+        if ((position >= peakStart) && (position <= peakEnd)) {
+          inPeakRange = true;
+          signalAbove |= (d[position] - baseline >= sdThreshold);
+        }
+      }
+      if (!inPeakRange || !signalAbove)
+        continue;
+
+      // Best scale is the one where the sum of the surrounding intensities is the highest
+      int bestScaleNr = 0;
+      double bestIntensity = Double.NEGATIVE_INFINITY;
+      for (int k = 0; k < positions.length; k++) {
+        final int from = Math.max(0, positions[k] - intensityRange);
+        final int to = Math.min(n - 1, positions[k] + intensityRange);
+        double sum = 0;
+        for (int i = from; i <= to; i++)
+          sum += d[i];
+        if (sum > bestIntensity) {
+          bestIntensity = sum;
+          bestScaleNr = k;
+        }
+      }
+      bestScaleNr = Math.min(bestScaleNr, scales.length - 1);
+      final int bestScale = scales[bestScaleNr];
+      final int bestScalePos = positions[bestScaleNr];
+      final int scaleLeft = Math.max(0, bestScalePos - bestScale);
+      final int scaleRight = Math.min(n - 1, bestScalePos + bestScale);
+
+      // Find the peak boundaries
+      int bounds[];
+      if (integrationMethod == PeakIntegrationMethod.UseSmoothedData) {
+        bounds = descendMin(wCoefs[bestScaleNr], bestScalePos);
+        boolean gap = true;
+        for (int i = bounds[0]; i <= bounds[1]; i++)
+          gap &= (d[i] == 0);
+        if ((bounds[0] == bounds[1]) || gap)
+          bounds = descendMinTol(d, scaleLeft, scaleRight, maxDescOutlier);
+      } else {
+        bounds = descendMinTol(d, scaleLeft, scaleRight, maxDescOutlier);
+      }
+
+      // Narrow down the boundaries by skipping zeros (keeping one on each side)
+      int left = bounds[0], right = bounds[1];
+      int firstSignal = left;
+      while ((firstSignal <= right) && !(d[firstSignal] >= 1))
+        firstSignal++;
+      int lastSignal = right;
+      while ((lastSignal >= left) && !(d[lastSignal] >= 1))
+        lastSignal--;
+      if (firstSignal > lastSignal)
+        continue;
+      left = Math.max(left, firstSignal - 1);
+      right = Math.min(right, lastSignal + 1);
+
+      double area = 0;
+      if (right > left) {
+        double sum = 0;
+        for (int i = left; i <= right; i++)
+          sum += d[i];
+        area = sum * (scanTime[dataStart + right] - scanTime[dataStart + left]) / (right - left);
+      }
+
+      peaks.add(new CentWavePeak(dataStart + left, dataStart + right, area));
+    }
+  }
+
+  /**
+   * Continuous wavelet transformation using the Mexican hat wavelet (MassSpecWavelet cwt).
+   *
+   * @return coefficients for each scale
+   */
+  private static double[][] cwt(final double data[], final int scales[]) {
+
+    final int oldLength = data.length;
+
+    // Extend the data to a power of 2 by reflection
+    int length = Integer.highestOneBit(oldLength);
+    if (length < oldLength)
+      length <<= 1;
+    final double extended[] = Arrays.copyOf(data, length);
+    for (int i = oldLength; i < length; i++)
+      extended[i] = data[2 * oldLength - 1 - i];
+
+    final double wCoefs[][] = new double[scales.length][oldLength];
+    for (int s = 0; s < scales.length; s++) {
+
+      final int scale = scales[s];
+
+      // Sample the wavelet for this scale
+      int waveLength = (int) Math.floor(scale * PSI_X_MAX) + 1;
+      int psiIndex[] = new int[waveLength];
+      for (int m = 0; m < waveLength; m++)
+        psiIndex[m] = (int) Math.floor(m / (scale * PSI_DX));
+      if (waveLength == 1) {
+        psiIndex = new int[] {psiIndex[0], psiIndex[0]};
+        waveLength = 2;
+      }
+      double mean = 0;
+      for (int m = 0; m < waveLength; m++)
+        mean += PSI[psiIndex[m]];
+      mean /= waveLength;
+      final double wavelet[] = new double[waveLength];
+      for (int m = 0; m < waveLength; m++)
+        wavelet[m] = PSI[psiIndex[waveLength - 1 - m]] - mean;
+
+      // Circular correlation, shifted by half of the wavelet width
+      final int shift = waveLength / 2;
+      final double factor = 1.0 / Math.sqrt(scale);
+      for (int t = 0; t < oldLength; t++) {
+        double sum = 0;
+        int index = Math.floorMod(t - shift, length);
+        for (int m = 0; m < waveLength; m++) {
+          sum += extended[index] * wavelet[m];
+          if (++index == length)
+            index = 0;
+        }
+        wCoefs[s][t] = factor * sum;
+      }
+    }
+
+    return wCoefs;
+  }
+
+  /**
+   * Finds local maxima using a sliding window (MassSpecWavelet localMaximum).
+   */
+  private static boolean[] localMaximum(final double x[], final int winSize) {
+
+    final int length = x.length;
+    final boolean localMax[] = new boolean[length];
+
+    // Windows starting at the first data point, and windows shifted by half of the window size
+    for (int shift : new int[] {0, winSize / 2}) {
+      final int numOfWindows = (length + shift + winSize - 1) / winSize;
+      for (int w = 0; w < numOfWindows; w++) {
+        int maxIndex = 0;
+        double max = Double.NEGATIVE_INFINITY, first = 0, last = 0;
+        for (int k = 0; k < winSize; k++) {
+          final int position = w * winSize + k - shift;
+          final double value = x[Math.min(length - 1, Math.max(0, position))];
+          if (k == 0)
+            first = value;
+          if (k == winSize - 1)
+            last = value;
+          if (value > max) {
+            max = value;
+            maxIndex = k;
+          }
+        }
+        final int position = w * winSize + maxIndex - shift;
+        if ((max > first) && (max > last) && (position >= 0) && (position < length))
+          localMax[position] = true;
+      }
+    }
+
+    // Of two maxima closer than the window size, keep the higher one
+    final IntArrayList maxIndices = new IntArrayList();
+    for (int i = 0; i < length; i++) {
+      if (localMax[i])
+        maxIndices.add(i);
+    }
+    for (int i = 0; i + 1 < maxIndices.size(); i++) {
+      final int index1 = maxIndices.getInt(i), index2 = maxIndices.getInt(i + 1);
+      if (index2 - index1 < winSize) {
+        if (x[index1] - x[index2] <= 0)
+          localMax[index1] = false;
+        else
+          localMax[index2] = false;
+      }
+    }
+
+    return localMax;
+  }
+
+  /**
+   * Connects the local maxima across the scales to ridges, from the largest scale to the smallest
+   * one (MassSpecWavelet getRidge).
+   *
+   * @return ridges as positions from the smallest scale to the largest one
+   */
+  private static List<Ridge> getRidges(final boolean localMax[][], final int scales[]) {
+
+    final int numOfScales = scales.length;
+    final int length = localMax[0].length;
+
+    // Ridges and their gap counters, identified by their current position
+    Map<Integer, IntArrayList> ridgeList = new LinkedHashMap<>();
+    Map<Integer, Integer> peakStatus = new LinkedHashMap<>();
+    final List<Ridge> orphanRidges = new ArrayList<>();
+
+    IntArrayList currentMaxima = findMaxima(localMax[numOfScales - 1]);
+    for (int i = 0; i < currentMaxima.size(); i++) {
+      final int position = currentMaxima.getInt(i);
+      ridgeList.put(position, IntArrayList.wrap(new int[] {position}));
+      peakStatus.put(position, 0);
+    }
+
+    final int levels[];
+    if (numOfScales > 1) {
+      levels = new int[numOfScales - 1];
+      for (int i = 0; i < levels.length; i++)
+        levels[i] = numOfScales - 2 - i;
+    } else {
+      levels = new int[] {0};
+    }
+
+    for (int level : levels) {
+
+      final int scale = scales[level];
+
+      if (currentMaxima.isEmpty()) {
+        currentMaxima = findMaxima(localMax[level]);
+        continue;
+      }
+
+      final int winSize = Math.max(MIN_WIN_SIZE, scale * 2 + 1);
+      final IntArrayList selectedPeaks = new IntArrayList();
+      final List<Integer> removed = new ArrayList<>();
+
+      for (int k = 0; k < currentMaxima.size(); k++) {
+        final int position = currentMaxima.getInt(k);
+        final int start = Math.max(0, position - winSize);
+        final int end = Math.min(length - 1, position + winSize);
+
+        // The closest local maximum at this scale
+        int next = -1;
+        for (int i = start; i <= end; i++) {
+          if (localMax[level][i]
+              && ((next < 0) || (Math.abs(i - position) < Math.abs(next - position))))
+            next = i;
+        }
+
+        if (next < 0) {
+          Integer status = peakStatus.get(position);
+          if (status == null)
+            status = GAP_THRESHOLD + 1;
+          if ((status > GAP_THRESHOLD) && (scale >= 2)) {
+            final IntArrayList ridge = ridgeList.get(position);
+            if (ridge != null) {
+              final int keep = Math.max(1, ridge.size() - status);
+              orphanRidges.add(new Ridge((level + status + 2) + "_" + position,
+                  ridge.subList(0, Math.min(keep, ridge.size())).toIntArray()));
+            }
+            removed.add(position);
+            continue;
+          }
+          next = position;
+          peakStatus.put(position, status + 1);
+        } else {
+          peakStatus.put(position, 0);
+        }
+
+        ridgeList.computeIfAbsent(position, key -> new IntArrayList()).add(next);
+        selectedPeaks.add(next);
+      }
+
+      // Remove the disconnected ridges
+      for (Integer position : removed) {
+        ridgeList.remove(position);
+        peakStatus.remove(position);
+      }
+
+      List<IntArrayList> ridges = new ArrayList<>(ridgeList.values());
+      List<Integer> statuses = new ArrayList<>(peakStatus.values());
+
+      // If several ridges end at the same peak, keep only the longest one
+      final boolean removeRidge[] = new boolean[ridges.size()];
+      final IntArrayList duplicates = new IntArrayList();
+      for (int i = 0; i < selectedPeaks.size(); i++) {
+        final int peak = selectedPeaks.getInt(i);
+        if ((selectedPeaks.indexOf(peak) < i) && !duplicates.contains(peak))
+          duplicates.add(peak);
+      }
+      for (int d = 0; d < duplicates.size(); d++) {
+        final int peak = duplicates.getInt(d);
+        int longest = -1, longestLength = -1, count = 0;
+        for (int i = 0; i < selectedPeaks.size(); i++) {
+          if (selectedPeaks.getInt(i) != peak)
+            continue;
+          count++;
+          if (ridges.get(i).size() > longestLength) {
+            longestLength = ridges.get(i).size();
+            longest = count;
+          }
+        }
+        count = 0;
+        for (int i = 0; i < selectedPeaks.size(); i++) {
+          if (selectedPeaks.getInt(i) != peak)
+            continue;
+          count++;
+          if (count != longest)
+            removeRidge[i] = true;
+        }
+        // MassSpecWavelet keeps the ridge at the position of the index among the duplicates
+        orphanRidges.add(new Ridge((level + 1) + "_" + selectedPeaks.getInt(longest - 1),
+            ridges.get(longest - 1).toIntArray()));
+      }
+
+      final Map<Integer, IntArrayList> newRidgeList = new LinkedHashMap<>();
+      final Map<Integer, Integer> newPeakStatus = new LinkedHashMap<>();
+      final IntArrayList newMaxima = new IntArrayList();
+      for (int i = 0; i < ridges.size(); i++) {
+        if (removeRidge[i])
+          continue;
+        final int peak = i < selectedPeaks.size() ? selectedPeaks.getInt(i) : -1;
+        newRidgeList.put(peak, ridges.get(i));
+        newPeakStatus.put(peak, i < statuses.size() ? statuses.get(i) : 0);
+        newMaxima.add(peak);
+      }
+
+      // Start new ridges at the unselected local maxima
+      if (scale >= 2) {
+        final IntArrayList maxima = findMaxima(localMax[level]);
+        for (int i = 0; i < maxima.size(); i++) {
+          final int peak = maxima.getInt(i);
+          if (newMaxima.contains(peak))
+            continue;
+          newRidgeList.put(peak, IntArrayList.wrap(new int[] {peak}));
+          newPeakStatus.put(peak, 0);
+          newMaxima.add(peak);
+        }
+      }
+
+      ridgeList = newRidgeList;
+      peakStatus = newPeakStatus;
+      currentMaxima = newMaxima;
+    }
+
+    // Combine the ridges (positions from the smallest scale) and drop duplicated names
+    final List<Ridge> result = new ArrayList<>();
+    final List<String> names = new ArrayList<>();
+    final List<Ridge> allRidges = new ArrayList<>();
+    for (Map.Entry<Integer, IntArrayList> entry : ridgeList.entrySet())
+      allRidges.add(new Ridge("1_" + entry.getKey(), entry.getValue().toIntArray()));
+    allRidges.addAll(orphanRidges);
+    for (Ridge ridge : allRidges) {
+      if (names.contains(ridge.name) || (ridge.positions.length == 0))
+        continue;
+      names.add(ridge.name);
+      final int reversed[] = new int[ridge.positions.length];
+      for (int i = 0; i < reversed.length; i++)
+        reversed[i] = ridge.positions[reversed.length - 1 - i];
+      result.add(new Ridge(ridge.name, reversed));
+    }
+    return result;
+  }
+
+  private static IntArrayList findMaxima(final boolean localMax[]) {
+    final IntArrayList maxima = new IntArrayList();
+    for (int i = 0; i < localMax.length; i++) {
+      if (localMax[i])
+        maxima.add(i);
+    }
+    return maxima;
+  }
+
+  /**
+   * Estimates the chromatographic noise as the trimmed mean of the non-zero intensities (XCMS
+   * estimateChromNoise).
+   */
+  private static double estimateChromNoise(final double x[], final int minPts) {
+    final double positive[] = Arrays.stream(x).filter(value -> value > 0).toArray();
+    if (positive.length < minPts)
+      return Arrays.stream(x).average().orElse(0);
+    Arrays.sort(positive);
+    final int trim = (int) Math.floor(positive.length * NOISE_TRIM);
+    double sum = 0;
+    for (int i = trim; i < positive.length - trim; i++)
+      sum += positive[i];
+    return sum / (positive.length - 2 * trim);
+  }
+
+  /**
+   * @return true if there are at least num continuous data points above the threshold
+   */
+  private static boolean continuousPtsAboveThreshold(final double x[], final double threshold,
+      final int num) {
+    int count = 0;
+    for (double value : x) {
+      if (value > threshold) {
+        if (++count >= num)
+          return true;
+      } else {
+        count = 0;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return data points which are not part of num or more continuous data points above the
+   *         threshold
+   */
+  private static double[] removeContinuousPtsAboveThreshold(final double x[],
+      final double threshold, final int num) {
+    final boolean remove[] = new boolean[x.length];
+    int count = 0;
+    for (int i = 0; i <= x.length; i++) {
+      if ((i < x.length) && (x[i] > threshold)) {
+        count++;
+      } else {
+        if (count >= num)
+          Arrays.fill(remove, i - count, i, true);
+        count = 0;
+      }
+    }
+    final double result[] = new double[x.length];
+    int size = 0;
+    for (int i = 0; i < x.length; i++) {
+      if (!remove[i])
+        result[size++] = x[i];
+    }
+    return Arrays.copyOf(result, size);
+  }
+
+  /**
+   * Estimates the local baseline and noise from the data around the peak range [peakStart,
+   * peakEnd] (XCMS getLocalNoiseEstimate).
+   *
+   * @return {baseline, standard deviation of the noise}
+   */
+  private static double[] getLocalNoiseEstimate(final double d[], final int peakStart,
+      final int peakEnd, final int noiseRange, final int numOfScans, final double threshold,
+      final int num) {
+
+    if (d.length < numOfScans) {
+
+      // Data outside of the peak range
+      final double outside[] = new double[d.length - (peakEnd - peakStart + 1)];
+      System.arraycopy(d, 0, outside, 0, peakStart);
+      System.arraycopy(d, peakEnd + 1, outside, peakStart, d.length - peakEnd - 1);
+      final double noise1[] = meanAndSd(removeContinuousPtsAboveThreshold(outside, threshold, num));
+
+      // Data close to the peak range
+      final int leftStart = Math.max(0, peakStart - noiseRange);
+      final int rightEnd = Math.min(d.length - 1, peakEnd + noiseRange);
+      final double close[] = new double[(peakStart - leftStart + 1) + (rightEnd - peakEnd + 1)];
+      System.arraycopy(d, leftStart, close, 0, peakStart - leftStart + 1);
+      System.arraycopy(d, peakEnd, close, peakStart - leftStart + 1, rightEnd - peakEnd + 1);
+      final double noise2[] = meanAndSd(removeContinuousPtsAboveThreshold(close, threshold, num));
+
+      return new double[] {Math.min(noise1[0], noise2[0]), Math.min(noise1[1], noise2[1])};
+    }
+
+    // Trimmed non-zero data
+    final double positive[] = Arrays.stream(d).filter(value -> value > 0).sorted().toArray();
+    final int from = (int) Math.rint(positive.length * NOISE_TRIM + 1) - 1;
+    final int to = (int) Math.rint(positive.length * (1 - NOISE_TRIM));
+    if (to <= from)
+      return new double[] {1, 1};
+    return meanAndSd(Arrays.copyOfRange(positive, from, to));
+  }
+
+  /**
+   * @return {mean, sample standard deviation}, or {1, 1} for less than two values
+   */
+  private static double[] meanAndSd(final double x[]) {
+    if (x.length < 2)
+      return new double[] {1, 1};
+    double mean = 0;
+    for (double value : x)
+      mean += value;
+    mean /= x.length;
+    double variance = 0;
+    for (double value : x)
+      variance += (value - mean) * (value - mean);
+    variance /= (x.length - 1);
+    return new double[] {mean, Math.sqrt(variance)};
+  }
+
+  /**
+   * Descends from the start position to the nearest local minima on both sides (XCMS descendMin).
+   */
+  private static int[] descendMin(final double y[], final int start) {
+    int lower = start;
+    while ((lower > 0) && !(y[lower - 1] >= y[lower]))
+      lower--;
+    int upper = start;
+    while ((upper < y.length - 1) && !(y[upper + 1] >= y[upper]))
+      upper++;
+    return new int[] {lower, upper};
+  }
+
+  /**
+   * Descends from the start positions in the raw data, tolerating up to maxDescOutlier increasing
+   * data points (XCMS descendMinTol).
+   */
+  private static int[] descendMinTol(final double d[], final int startLeft, final int startRight,
+      final int maxDescOutlier) {
+
+    int left = startLeft, outliers = 0, outlierPosition = 0;
+    while ((left > 0) && (d[left] > 0) && (outliers <= maxDescOutlier)) {
+      final int valuePosition = outliers > 0 ? outlierPosition : left;
+      if (d[left - 1] > d[valuePosition])
+        outliers++;
+      else
+        outliers = 0;
+      if (outliers == 1)
+        outlierPosition = left;
+      left--;
+    }
+    if (outliers > 0)
+      left += outliers;
+
+    int right = startRight;
+    outliers = 0;
+    while ((right < d.length - 1) && (d[right] > 0) && (outliers <= maxDescOutlier)) {
+      final int valuePosition = outliers > 0 ? outlierPosition : right;
+      if (d[right + 1] > d[valuePosition])
+        outliers++;
+      else
+        outliers = 0;
+      if (outliers == 1)
+        outlierPosition = right;
+      right++;
+    }
+    if (outliers > 0)
+      right -= outliers;
+
+    return new int[] {left, right};
+  }
+
+}
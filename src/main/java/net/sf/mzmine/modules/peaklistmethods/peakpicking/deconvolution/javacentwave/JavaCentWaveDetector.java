@@ -0,0 +1,143 @@
+/*
+ * Copyright 2006-2018 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with MZmine 2; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+
+package net.sf.mzmine.modules.peaklistmethods.peakpicking.deconvolution.javacentwave;
+
+import static net.sf.mzmine.modules.peaklistmethods.peakpicking.deconvolution.javacentwave.JavaCentWaveDetectorParameters.INTEGRATION_METHOD;
+import static net.sf.mzmine.modules.peaklistmethods.peakpicking.deconvolution.javacentwave.JavaCentWaveDetectorParameters.PEAK_DURATION;
+import static net.sf.mzmine.modules.peaklistmethods.peakpicking.deconvolution.javacentwave.JavaCentWaveDetectorParameters.PEAK_SCALES;
+import static net.sf.mzmine.modules.peaklistmethods.peakpicking.deconvolution.javacentwave.JavaCentWaveDetectorParameters.SN_THRESHOLD;
+import java.util.ArrayList;
+import java.util.List;
+import javax.annotation.Nonnull;
+import com.google.common.collect.Range;
+import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.Feature;
+import net.sf.mzmine.datamodel.RawDataFile;
+import net.sf.mzmine.modules.peaklistmethods.peakpicking.deconvolution.PeakResolver;
+import net.sf.mzmine.modules.peaklistmethods.peakpicking.deconvolution.ResolvedPeak;
+import net.sf.mzmine.parameters.ParameterSet;
+import net.sf.mzmine.util.R.REngineType;
+import net.sf.mzmine.util.R.RSessionWrapper;
+import net.sf.mzmine.util.maths.CenterFunction;
+
+/**
+ * Java implementation of the XCMS centWave peak detection, which does not require R. The
+ * chromatogram is processed in the same way as by CentWaveDetector, so the results are comparable.
+ */
+public class JavaCentWaveDetector implements PeakResolver {
+
+  // Name.
+  private static final String NAME = "Wavelets (CentWave, Java)";
+
+  @Nonnull
+  @Override
+  public String getName() {
+
+    return NAME;
+  }
+
+  @Nonnull
+  @Override
+  public Class<? extends ParameterSet> getParameterSetClass() {
+
+    return JavaCentWaveDetectorParameters.class;
+  }
+
+  @Override
+  public boolean getRequiresR() {
+    return false;
+  }
+
+  @Override
+  public String[] getRequiredRPackages() {
+    return null;
+  }
+
+  @Override
+  public String[] getRequiredRPackagesVersions() {
+    return null;
+  }
+
+  @Override
+  public REngineType getREngineType(final ParameterSet parameters) {
+    return null;
+  }
+
+  @Override
+  public ResolvedPeak[] resolvePeaks(final Feature chromatogram, final ParameterSet parameters,
+      RSessionWrapper rSession, CenterFunction mzCenterFunction, double msmsRange,
+      double rTRangeMSMS) {
+
+    int scanNumbers[] = chromatogram.getScanNumbers();
+    final int scanCount = scanNumbers.length;
+    double retentionTimes[] = new double[scanCount];
+    double intensities[] = new double[scanCount];
+    RawDataFile dataFile = chromatogram.getDataFile();
+    for (int i = 0; i < scanCount; i++) {
+      final int scanNum = scanNumbers[i];
+      retentionTimes[i] = dataFile.getScan(scanNum).getRetentionTime();
+      DataPoint dp = chromatogram.getDataPoint(scanNum);
+      if (dp != null)
+        intensities[i] = dp.getIntensity();
+      else
+        intensities[i] = 0.0;
+    }
+
+    final List<int[]> peaks = CentWave.findPeaks(retentionTimes, intensities,
+        parameters.getParameter(SN_THRESHOLD).getValue(),
+        parameters.getParameter(PEAK_SCALES).getValue(),
+        parameters.getParameter(INTEGRATION_METHOD).getValue());
+
+    final Range<Double> peakDuration = parameters.getParameter(PEAK_DURATION).getValue();
+    final List<ResolvedPeak> resolvedPeaks = new ArrayList<ResolvedPeak>(peaks.size());
+
+    for (final int[] peak : peaks) {
+
+      final int peakLeft = peak[0];
+      final int peakRight = peak[1];
+
+      // Partition into sections bounded by null data points, creating
+      // a peak for each.
+      for (int start = peakLeft; start < peakRight; start++) {
+
+        if (chromatogram.getDataPoint(scanNumbers[start]) != null) {
+
+          int end = start;
+
+          while (end < peakRight && chromatogram.getDataPoint(scanNumbers[end + 1]) != null) {
+
+            end++;
+          }
+
+          if ((end > start)
+              && (peakDuration.contains(retentionTimes[end] - retentionTimes[start]))) {
+
+            resolvedPeaks.add(new ResolvedPeak(chromatogram, start, end, mzCenterFunction,
+                msmsRange, rTRangeMSMS));
+          }
+
+          start = end;
+        }
+      }
+    }
+
+    return resolvedPeaks.toArray(new ResolvedPeak[resolvedPeaks.size()]);
+  }
+
+}
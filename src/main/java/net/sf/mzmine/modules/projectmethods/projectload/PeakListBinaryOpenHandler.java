@@ -0,0 +1,346 @@
+/*
+ * Copyright 2006-2018 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with MZmine 2; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+
+package net.sf.mzmine.modules.projectmethods.projectload;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import com.google.common.collect.Range;
+
+import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.Feature.FeatureStatus;
+import net.sf.mzmine.datamodel.IsotopePattern.IsotopePatternStatus;
+import net.sf.mzmine.datamodel.PeakList;
+import net.sf.mzmine.datamodel.RawDataFile;
+import net.sf.mzmine.datamodel.Scan;
+import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
+import net.sf.mzmine.datamodel.impl.SimpleFeature;
+import net.sf.mzmine.datamodel.impl.SimpleIsotopePattern;
+import net.sf.mzmine.datamodel.impl.SimplePeakIdentity;
+import net.sf.mzmine.datamodel.impl.SimplePeakInformation;
+import net.sf.mzmine.datamodel.impl.SimplePeakList;
+import net.sf.mzmine.datamodel.impl.SimplePeakListAppliedMethod;
+import net.sf.mzmine.datamodel.impl.SimplePeakListRow;
+import net.sf.mzmine.modules.projectmethods.projectsave.PeakListBinarySaveHandler;
+
+/**
+ * Loads a feature list saved in the columnar binary format (see PeakListBinarySaveHandler)
+ */
+public class PeakListBinaryOpenHandler implements PeakListOpenHandler {
+
+  private Logger logger = Logger.getLogger(this.getClass().getName());
+
+  private final Hashtable<String, RawDataFile> dataFilesIDMap;
+
+  private DataInputStream in;
+  private byte conversionBuffer[] = new byte[1 << 16];
+
+  private FeatureStatus featureStatuses[];
+  private IsotopePatternStatus isotopePatternStatuses[];
+
+  private int parsedRows, totalRows;
+
+  private boolean canceled = false;
+
+  public PeakListBinaryOpenHandler(Hashtable<String, RawDataFile> dataFilesIDMap) {
+    this.dataFilesIDMap = dataFilesIDMap;
+  }
+
+  @Override
+  public PeakList readPeakList(InputStream peakListStream) throws IOException {
+
+    totalRows = 0;
+    parsedRows = 0;
+
+    in = new DataInputStream(new BufferedInputStream(peakListStream, 1 << 16));
+
+    if (in.readInt() != PeakListBinarySaveHandler.MAGIC_NUMBER)
+      throw new IOException("Invalid feature list data");
+    final int version = in.readInt();
+    if (version > PeakListBinarySaveHandler.FORMAT_VERSION)
+      throw new IOException("Unsupported feature list format version " + version);
+
+    final String peakListName = readString();
+    logger.info("Loading feature list: " + peakListName);
+    final String dateCreated = readString();
+
+    final int numOfMethods = in.readInt();
+    final String methodNames[] = new String[numOfMethods];
+    final String methodParameters[] = new String[numOfMethods];
+    for (int i = 0; i < numOfMethods; i++) {
+      methodNames[i] = readString();
+      methodParameters[i] = readString();
+    }
+
+    final RawDataFile dataFiles[] = new RawDataFile[in.readInt()];
+    for (int i = 0; i < dataFiles.length; i++)
+      dataFiles[i] = getDataFile(readString());
+
+    featureStatuses = new FeatureStatus[in.readInt()];
+    for (int i = 0; i < featureStatuses.length; i++)
+      featureStatuses[i] = FeatureStatus.valueOf(readString());
+    isotopePatternStatuses = new IsotopePatternStatus[in.readInt()];
+    for (int i = 0; i < isotopePatternStatuses.length; i++)
+      isotopePatternStatuses[i] = IsotopePatternStatus.valueOf(readString());
+
+    totalRows = in.readInt();
+
+    SimplePeakList peakList = new SimplePeakList(peakListName, dataFiles);
+    for (int i = 0; i < numOfMethods; i++) {
+      peakList.addDescriptionOfAppliedTask(
+          new SimplePeakListAppliedMethod(methodNames[i], methodParameters[i]));
+    }
+    peakList.setDateCreated(dateCreated);
+
+    while (true) {
+      if (canceled)
+        throw new IOException("Loading canceled");
+      final int numOfRows = in.readInt();
+      if (numOfRows == 0)
+        break;
+      readBlock(peakList, numOfRows);
+    }
+
+    return peakList;
+  }
+
+  private void readBlock(SimplePeakList peakList, int numOfRows) throws IOException {
+
+    // Row columns
+    final int rowIDs[] = readInts(numOfRows);
+    final SimplePeakListRow rows[] = new SimplePeakListRow[numOfRows];
+    for (int i = 0; i < numOfRows; i++) {
+      rows[i] = new SimplePeakListRow(rowIDs[i]);
+      rows[i].setComment(readString());
+    }
+    for (int i = 0; i < numOfRows; i++) {
+      final int numOfIdentities = in.readInt();
+      for (int j = 0; j < numOfIdentities; j++) {
+        final boolean preferred = in.readBoolean();
+        Hashtable<String, String> properties = new Hashtable<>();
+        readProperties(properties);
+        rows[i].addPeakIdentity(new SimplePeakIdentity(properties), preferred);
+      }
+    }
+    for (int i = 0; i < numOfRows; i++) {
+      Map<String, String> properties = new HashMap<>();
+      if (readProperties(properties))
+        rows[i].setPeakInformation(new SimplePeakInformation(properties));
+    }
+
+    // Feature columns
+    final int numOfFeatures = in.readInt();
+    final int featureRows[] = readInts(numOfFeatures);
+    final int featureFiles[] = readInts(numOfFeatures);
+    final double mzs[] = readDoubles(numOfFeatures);
+    final double rts[] = readDoubles(numOfFeatures);
+    final double heights[] = readDoubles(numOfFeatures);
+    final double areas[] = readDoubles(numOfFeatures);
+    final byte statuses[] = readBytes(numOfFeatures);
+    final int charges[] = readInts(numOfFeatures);
+    final int representativeScans[] = readInts(numOfFeatures);
+    final int fragmentScans[] = readInts(numOfFeatures);
+    final byte flags[] = readBytes(numOfFeatures);
+    final int parentRowIDs[] = readInts(numOfFeatures);
+    final int numOfFragmentScans[] = readInts(numOfFeatures);
+
+    final int allFragmentScans[][] = new int[numOfFeatures][];
+    for (int i = 0; i < numOfFeatures; i++)
+      allFragmentScans[i] = readInts(numOfFragmentScans[i]);
+
+    final SimpleIsotopePattern isotopePatterns[] = new SimpleIsotopePattern[numOfFeatures];
+    for (int i = 0; i < numOfFeatures; i++) {
+      if ((flags[i] & PeakListBinarySaveHandler.HAS_ISOTOPE_PATTERN) == 0)
+        continue;
+      final IsotopePatternStatus status = isotopePatternStatuses[in.readByte()];
+      final String description = readString();
+      final int numOfIsotopes = in.readInt();
+      final double isotopeMZs[] = readDoubles(numOfIsotopes);
+      final double isotopeIntensities[] = readDoubles(numOfIsotopes);
+      DataPoint isotopes[] = new DataPoint[numOfIsotopes];
+      for (int j = 0; j < numOfIsotopes; j++)
+        isotopes[j] = new SimpleDataPoint(isotopeMZs[j], isotopeIntensities[j]);
+      isotopePatterns[i] = new SimpleIsotopePattern(isotopes, status, description);
+    }
+
+    final int numOfDataPoints[] = readInts(numOfFeatures);
+    final int scanNumbers[][] = new int[numOfFeatures][];
+    for (int i = 0; i < numOfFeatures; i++)
+      scanNumbers[i] = readInts(numOfDataPoints[i]);
+    final float dataPointMZs[][] = new float[numOfFeatures][];
+    for (int i = 0; i < numOfFeatures; i++)
+      dataPointMZs[i] = readFloats(numOfDataPoints[i]);
+
+    for (int i = 0; i < numOfFeatures; i++) {
+
+      final float dataPointIntensities[] = readFloats(numOfDataPoints[i]);
+      final RawDataFile dataFile = getDataFile(String.valueOf(featureFiles[i]));
+
+      // Same ranges as in the XML format
+      DataPoint[] mzPeaks = new DataPoint[numOfDataPoints[i]];
+      Range<Double> peakRTRange = null, peakMZRange = null, peakIntensityRange = null;
+      for (int j = 0; j < numOfDataPoints[i]; j++) {
+
+        Scan sc = dataFile.getScan(scanNumbers[i][j]);
+        double retentionTime = sc.getRetentionTime();
+
+        double mz = dataPointMZs[i][j];
+        double intensity = dataPointIntensities[j];
+
+        if (peakIntensityRange == null) {
+          peakIntensityRange = Range.singleton(intensity);
+        } else {
+          peakIntensityRange = peakIntensityRange.span(Range.singleton(intensity));
+        }
+        if (intensity > 0) {
+          if (peakRTRange == null) {
+            peakRTRange = Range.singleton(retentionTime);
+          } else {
+            peakRTRange = peakRTRange.span(Range.singleton(retentionTime));
+          }
+        }
+
+        if (mz > 0.0) {
+          mzPeaks[j] = new SimpleDataPoint(mz, intensity);
+          if (peakMZRange == null)
+            peakMZRange = Range.singleton(mz);
+          else
+            peakMZRange = peakMZRange.span(Range.singleton(mz));
+        }
+      }
+
+      SimpleFeature peak = new SimpleFeature(dataFile, mzs[i], rts[i], heights[i], areas[i],
+          scanNumbers[i], mzPeaks, featureStatuses[statuses[i]], representativeScans[i],
+          fragmentScans[i], allFragmentScans[i], peakRTRange, peakMZRange, peakIntensityRange);
+      peak.setCharge(charges[i]);
+      if (isotopePatterns[i] != null)
+        peak.setIsotopePattern(isotopePatterns[i]);
+      if ((flags[i] & PeakListBinarySaveHandler.HAS_PARENT_ROW_ID) != 0)
+        peak.setParentChromatogramRowID(parentRowIDs[i]);
+
+      rows[featureRows[i]].addPeak(dataFile, peak);
+    }
+
+    for (SimplePeakListRow row : rows) {
+      peakList.addRow(row);
+      parsedRows++;
+    }
+  }
+
+  private RawDataFile getDataFile(String rawDataFileID) throws IOException {
+    RawDataFile dataFile = dataFilesIDMap.get(rawDataFileID);
+    if (dataFile == null) {
+      throw new IOException(
+          "Cannot open feature list, because raw data file " + rawDataFileID + " is missing.");
+    }
+    return dataFile;
+  }
+
+  private String readString() throws IOException {
+    final int length = in.readInt();
+    if (length < 0)
+      return null;
+    ensureConversionBuffer(length);
+    in.readFully(conversionBuffer, 0, length);
+    return new String(conversionBuffer, 0, length, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Reads properties into the given map
+   * 
+   * @return false if the stored properties were null
+   */
+  private boolean readProperties(Map<String, String> properties) throws IOException {
+    final int numOfProperties = in.readInt();
+    if (numOfProperties < 0)
+      return false;
+    for (int i = 0; i < numOfProperties; i++) {
+      final String name = readString();
+      properties.put(name, readString());
+    }
+    return true;
+  }
+
+  private byte[] readBytes(int length) throws IOException {
+    byte values[] = new byte[length];
+    in.readFully(values);
+    return values;
+  }
+
+  private int[] readInts(int length) throws IOException {
+    int values[] = new int[length];
+    final int chunk = conversionBuffer.length / 4;
+    for (int start = 0; start < length; start += chunk) {
+      final int count = Math.min(chunk, length - start);
+      in.readFully(conversionBuffer, 0, count * 4);
+      ByteBuffer.wrap(conversionBuffer).asIntBuffer().get(values, start, count);
+    }
+    return values;
+  }
+
+  private float[] readFloats(int length) throws IOException {
+    float values[] = new float[length];
+    final int chunk = conversionBuffer.length / 4;
+    for (int start = 0; start < length; start += chunk) {
+      final int count = Math.min(chunk, length - start);
+      in.readFully(conversionBuffer, 0, count * 4);
+      ByteBuffer.wrap(conversionBuffer).asFloatBuffer().get(values, start, count);
+    }
+    return values;
+  }
+
+  private double[] readDoubles(int length) throws IOException {
+    double values[] = new double[length];
+    final int chunk = conversionBuffer.length / 8;
+    for (int start = 0; start < length; start += chunk) {
+      final int count = Math.min(chunk, length - start);
+      in.readFully(conversionBuffer, 0, count * 8);
+      ByteBuffer.wrap(conversionBuffer).asDoubleBuffer().get(values, start, count);
+    }
+    return values;
+  }
+
+  private void ensureConversionBuffer(int length) {
+    if (conversionBuffer.length < length)
+      conversionBuffer = new byte[length * 2];
+  }
+
+  /**
+   * @return the progress of loading the feature list
+   */
+  public double getProgress() {
+    if (totalRows == 0)
+      return 0;
+    return (double) parsedRows / totalRows;
+  }
+
+  @Override
+  public void cancel() {
+    canceled = true;
+  }
+
+}
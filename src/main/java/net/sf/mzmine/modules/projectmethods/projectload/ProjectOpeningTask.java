@@ -25,7 +25,9 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.util.Enumeration;
+import java.util.Collections;
 import java.util.Hashtable;
+import java.util.Map;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -67,6 +69,7 @@ public class ProjectOpeningTask extends AbstractTask {
 
   private RawDataFileOpenHandler rawDataFileOpenHandler;
   private PeakListOpenHandler peakListOpenHandler;
+  private PeakListBinaryOpenHandler peakListBinaryOpenHandler;
   private UserParameterOpenHandler userParameterOpenHandler;
   private StreamCopy copyMachine;
 
@@ -76,7 +79,10 @@ public class ProjectOpeningTask extends AbstractTask {
 
   // This hashtable maps stored IDs to raw data file objects
   private final Hashtable<String, RawDataFile> dataFilesIDMap = new Hashtable<>();
-  private final Hashtable<String, File> scanFilesIDMap = new Hashtable<>();
+  private final Hashtable<String, ScansFileLocation> scanFilesIDMap = new Hashtable<>();
+
+  // Positions of the uncompressed entries in the project file, which are used in place
+  private Map<String, Long> storedEntryOffsets = Collections.emptyMap();
 
   public ProjectOpeningTask(ParameterSet parameters) {
     this.openFile = parameters.getParameter(ProjectLoaderParameters.projectFile).getValue();
@@ -149,19 +155,35 @@ public class ProjectOpeningTask extends AbstractTask {
       // Replace the current project with the new one
       projectManager.setCurrentProject(newProject);
 
-      // Open the ZIP file
+      // Open the ZIP file, after undoing an interrupted save
+      ProjectSavingTask.recoverUnfinishedSave(openFile);
       ZipFile zipFile = new ZipFile(openFile);
 
       // Get total uncompressed size
+      boolean hasStoredEntries = false;
       Enumeration<? extends ZipEntry> entries = zipFile.entries();
       while (entries.hasMoreElements()) {
         ZipEntry entry = entries.nextElement();
         totalBytes += entry.getSize();
+        if (entry.getMethod() == ZipEntry.STORED)
+          hasStoredEntries = true;
+      }
+
+      // Find the uncompressed scan data, which does not need to be extracted
+      if (hasStoredEntries) {
+        try {
+          storedEntryOffsets = ZipEntryLocator.getStoredEntryOffsets(openFile);
+        } catch (IOException e) {
+          logger.warning("Could not locate the scan data in " + openFile
+              + ", the scan data will be extracted: " + e.toString());
+        }
       }
 
       final Pattern rawFilePattern = Pattern.compile("Raw data file #([\\d]+) (.*)\\.xml$");
       final Pattern scansFilePattern = Pattern.compile("Raw data file #([\\d]+) (.*)\\.scans$");
       final Pattern peakListPattern = Pattern.compile("Peak list #([\\d]+) (.*)\\.xml$");
+      final Pattern peakListBinaryPattern = Pattern.compile(
+          "Peak list #([\\d]+) (.*)" + Pattern.quote(ProjectSavingTask.FEATURES_EXTENSION) + "$");
 
       boolean versionInformationLoaded = false;
 
@@ -206,7 +228,7 @@ public class ProjectOpeningTask extends AbstractTask {
         if (scansFileMatcher.matches()) {
           final String fileID = scansFileMatcher.group(1);
           final String fileName = scansFileMatcher.group(2);
-          loadScansFile(cis, fileID, fileName);
+          loadScansFile(cis, entry, fileID, fileName);
         }
 
         // Load a feature list
@@ -216,6 +238,13 @@ public class ProjectOpeningTask extends AbstractTask {
           loadPeakList(cis, peakListName);
         }
 
+        // Load a feature list saved in the binary format
+        final Matcher peakListBinaryMatcher = peakListBinaryPattern.matcher(entryName);
+        if (peakListBinaryMatcher.matches()) {
+          final String peakListName = peakListBinaryMatcher.group(2);
+          loadPeakListBinary(cis, peakListName);
+        }
+
         // Close the ZIP entry
         cis.close();
 
@@ -275,6 +304,9 @@ public class ProjectOpeningTask extends AbstractTask {
     if (peakListOpenHandler != null)
       peakListOpenHandler.cancel();
 
+    if (peakListBinaryOpenHandler != null)
+      peakListBinaryOpenHandler.cancel();
+
     if (userParameterOpenHandler != null)
       userParameterOpenHandler.cancel();
 
@@ -382,7 +414,7 @@ public class ProjectOpeningTask extends AbstractTask {
 
     currentLoadedObjectName = fileName;
 
-    File scansFile = scanFilesIDMap.get(fileID);
+    ScansFileLocation scansFile = scanFilesIDMap.get(fileID);
     if (scansFile == null) {
       throw new IOException("Missing scans data for file ID " + fileID);
     }
@@ -391,14 +423,28 @@ public class ProjectOpeningTask extends AbstractTask {
     newProject.addFile(newFile);
     dataFilesIDMap.put(fileID, newFile);
 
+    // Unless the raw data file is modified, saving the project to the same file keeps its entries
+    if (newFile instanceof RawDataFileImpl) {
+      RawDataFileImpl newFileImpl = (RawDataFileImpl) newFile;
+      newFileImpl.setSavedState(openFile, fileID, newFileImpl.getModificationCount());
+    }
+
   }
 
-  private void loadScansFile(InputStream is, String fileID, String fileName) throws IOException {
+  private void loadScansFile(InputStream is, ZipEntry entry, String fileID, String fileName)
+      throws IOException {
 
     logger.info("Loading scans data #" + fileID + ": " + fileName);
 
     currentLoadedObjectName = fileName + " scan data";
 
+    // Uncompressed scan data are memory-mapped directly from the project file
+    final Long offset = storedEntryOffsets.get(entry.getName());
+    if ((offset != null) && (entry.getMethod() == ZipEntry.STORED)) {
+      scanFilesIDMap.put(fileID, new ScansFileLocation(openFile, offset, entry.getSize()));
+      return;
+    }
+
     final File tempFile = RawDataFileImpl.createNewDataPointsFile();
     final FileOutputStream os = new FileOutputStream(tempFile);
 
@@ -406,7 +452,7 @@ public class ProjectOpeningTask extends AbstractTask {
     copyMachine.copy(is, os);
     os.close();
 
-    scanFilesIDMap.put(fileID, tempFile);
+    scanFilesIDMap.put(fileID, new ScansFileLocation(tempFile));
 
   }
 
@@ -419,7 +465,22 @@ public class ProjectOpeningTask extends AbstractTask {
 
     PeakList newPeakList = peakListOpenHandler.readPeakList(is);
 
-    newProject.addPeakList(newPeakList);
+    newProject.addLoadedPeakList(newPeakList);
+
+    // Add quality parameters to peaks
+    QualityParameters.calculateQualityParameters(newPeakList);
+  }
+
+  private void loadPeakListBinary(InputStream is, String peakListName) throws IOException {
+
+    logger.info("Loading feature list " + peakListName);
+
+    currentLoadedObjectName = peakListName;
+
+    peakListBinaryOpenHandler = new PeakListBinaryOpenHandler(dataFilesIDMap);
+    PeakList newPeakList = peakListBinaryOpenHandler.readPeakList(is);
+
+    newProject.addLoadedPeakList(newPeakList);
 
     // Add quality parameters to peaks
     QualityParameters.calculateQualityParameters(newPeakList);
@@ -18,7 +18,6 @@
 
 package net.sf.mzmine.modules.projectmethods.projectload;
 
-import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 
@@ -30,7 +29,7 @@ import org.xml.sax.SAXException;
 
 public interface RawDataFileOpenHandler {
 
-  RawDataFile readRawDataFile(InputStream is, File scansFile)
+  RawDataFile readRawDataFile(InputStream is, ScansFileLocation scansFile)
       throws IOException, ParserConfigurationException, SAXException;
 
   void cancel();
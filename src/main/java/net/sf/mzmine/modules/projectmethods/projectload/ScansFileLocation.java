@@ -0,0 +1,73 @@
+/*
+ * Copyright 2006-2018 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with MZmine 2; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+
+package net.sf.mzmine.modules.projectmethods.projectload;
+
+import java.io.File;
+import java.io.IOException;
+
+import net.sf.mzmine.project.impl.RawDataFileImpl;
+
+/**
+ * Scan data of a raw data file in a project. The scan data are either extracted to a temporary
+ * file, or read in place from an uncompressed entry of the project archive.
+ */
+public class ScansFileLocation {
+
+  private final File file;
+  private final long offset, length;
+  private final boolean inArchive;
+
+  /**
+   * Scan data extracted to a temporary file
+   */
+  ScansFileLocation(File extractedFile) {
+    this.file = extractedFile;
+    this.offset = 0;
+    this.length = extractedFile.length();
+    this.inArchive = false;
+  }
+
+  /**
+   * Scan data stored uncompressed in the project archive
+   */
+  ScansFileLocation(File archiveFile, long offset, long length) {
+    this.file = archiveFile;
+    this.offset = offset;
+    this.length = length;
+    this.inArchive = true;
+  }
+
+  /**
+   * Opens the scan data as the data points file of the given raw data file
+   */
+  public void openDataPointsFile(RawDataFileImpl rawDataFile) throws IOException {
+    if (inArchive)
+      rawDataFile.openDataPointsFile(file, offset, length);
+    else
+      rawDataFile.openDataPointsFile(file);
+  }
+
+  @Override
+  public String toString() {
+    if (inArchive)
+      return file + " (offset " + offset + ", " + length + " bytes)";
+    return file.toString();
+  }
+
+}
@@ -0,0 +1,266 @@
+/*
+ * Copyright 2006-2018 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with MZmine 2; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+
+package net.sf.mzmine.modules.projectmethods.projectload;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+
+/**
+ * Finds the positions of the entries in a ZIP file, which java.util.zip does not provide. Reads the
+ * central directory (including the ZIP64 extensions used for archives larger than 4 GB) and the
+ * local header of each entry. The positions are used to map uncompressed entries in place and to
+ * keep unchanged entries when a project is saved incrementally.
+ */
+public class ZipEntryLocator {
+
+  /**
+   * Entry of the central directory
+   */
+  public static class Entry {
+
+    private final String name;
+    private final int method, flags;
+    private final boolean zip64;
+    private final long localHeaderOffset, dataOffset, compressedSize;
+    private final byte centralRecord[];
+
+    private Entry(String name, int method, int flags, boolean zip64, long localHeaderOffset,
+        long dataOffset, long compressedSize, byte centralRecord[]) {
+      this.name = name;
+      this.method = method;
+      this.flags = flags;
+      this.zip64 = zip64;
+      this.localHeaderOffset = localHeaderOffset;
+      this.dataOffset = dataOffset;
+      this.compressedSize = compressedSize;
+      this.centralRecord = centralRecord;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public int getMethod() {
+      return method;
+    }
+
+    /**
+     * @return position of the local header in the file
+     */
+    public long getLocalHeaderOffset() {
+      return localHeaderOffset;
+    }
+
+    /**
+     * @return position of the entry data in the file
+     */
+    public long getDataOffset() {
+      return dataOffset;
+    }
+
+    /**
+     * @return number of bytes used by the entry in the file, from the local header to the end of
+     *         the data descriptor
+     */
+    public long getStoredLength() {
+      // Data descriptor with signature, ZIP64 descriptors have 8 byte sizes
+      final long descriptorLength = ((flags & 8) == 0) ? 0 : (zip64 ? 24 : 16);
+      return dataOffset - localHeaderOffset + compressedSize + descriptorLength;
+    }
+
+    /**
+     * @return copy of the central directory record, which stays valid as long as the entry is not
+     *         moved in the file
+     */
+    public byte[] getCentralRecord() {
+      return centralRecord.clone();
+    }
+
+  }
+
+  private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+  private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+  private static final int END_SIGNATURE = 0x06054b50;
+  private static final int ZIP64_END_SIGNATURE = 0x06064b50;
+  private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+  private static final int ZIP64_EXTRA_ID = 0x0001;
+
+  private static final int LOCAL_HEADER_SIZE = 30;
+  private static final int END_SIZE = 22;
+  private static final long MAGIC_VALUE_32 = 0xFFFFFFFFL;
+  private static final int MAGIC_VALUE_16 = 0xFFFF;
+
+  /**
+   * @return map of entry names to the positions of the entry data in the file, for all stored
+   *         entries
+   */
+  static Map<String, Long> getStoredEntryOffsets(File zipFile) throws IOException {
+    final Map<String, Long> offsets = new HashMap<>();
+    for (Entry entry : getEntries(zipFile)) {
+      if (entry.getMethod() == ZipEntry.STORED)
+        offsets.put(entry.getName(), entry.getDataOffset());
+    }
+    return offsets;
+  }
+
+  /**
+   * @return entries of the central directory, in their order
+   */
+  public static List<Entry> getEntries(File zipFile) throws IOException {
+
+    final List<Entry> entries = new ArrayList<>();
+
+    try (RandomAccessFile raf = new RandomAccessFile(zipFile, "r")) {
+
+      final FileChannel channel = raf.getChannel();
+      final long fileLength = channel.size();
+
+      // Find the end of central directory record, which is followed by a comment of up to 64 kB
+      final int tailLength = (int) Math.min(fileLength, END_SIZE + MAGIC_VALUE_16);
+      final ByteBuffer tail = read(channel, fileLength - tailLength, tailLength);
+      int endPosition = -1;
+      for (int i = tailLength - END_SIZE; i >= 0; i--) {
+        if ((tail.getInt(i) == END_SIGNATURE)
+            && (i + END_SIZE + (tail.getShort(i + 20) & 0xffff) == tailLength)) {
+          endPosition = i;
+          break;
+        }
+      }
+      if (endPosition < 0)
+        throw new IOException("Cannot find the central directory of " + zipFile);
+
+      long numOfEntries = tail.getShort(endPosition + 10) & 0xffff;
+      long directorySize = tail.getInt(endPosition + 12) & MAGIC_VALUE_32;
+      long directoryOffset = tail.getInt(endPosition + 16) & MAGIC_VALUE_32;
+
+      // ZIP64 end of central directory
+      final long endOffset = fileLength - tailLength + endPosition;
+      if ((numOfEntries == MAGIC_VALUE_16) || (directorySize == MAGIC_VALUE_32)
+          || (directoryOffset == MAGIC_VALUE_32)) {
+        final ByteBuffer locator = read(channel, endOffset - 20, 20);
+        if (locator.getInt(0) != ZIP64_LOCATOR_SIGNATURE)
+          throw new IOException("Cannot find the ZIP64 central directory of " + zipFile);
+        final ByteBuffer zip64End = read(channel, locator.getLong(8), 56);
+        if (zip64End.getInt(0) != ZIP64_END_SIGNATURE)
+          throw new IOException("Cannot find the ZIP64 central directory of " + zipFile);
+        numOfEntries = zip64End.getLong(32);
+        directorySize = zip64End.getLong(40);
+        directoryOffset = zip64End.getLong(48);
+      }
+
+      if (directorySize > Integer.MAX_VALUE)
+        throw new IOException("Central directory of " + zipFile + " is too large");
+      final ByteBuffer directory = read(channel, directoryOffset, (int) directorySize);
+
+      int position = 0;
+      for (long entry = 0; entry < numOfEntries; entry++) {
+
+        if (directory.getInt(position) != CENTRAL_HEADER_SIGNATURE)
+          throw new IOException("Corrupt central directory of " + zipFile);
+
+        final int flags = directory.getShort(position + 8) & 0xffff;
+        final int method = directory.getShort(position + 10) & 0xffff;
+        final long compressedSize = directory.getInt(position + 20) & MAGIC_VALUE_32;
+        final long size = directory.getInt(position + 24) & MAGIC_VALUE_32;
+        final int nameLength = directory.getShort(position + 28) & 0xffff;
+        final int extraLength = directory.getShort(position + 30) & 0xffff;
+        final int commentLength = directory.getShort(position + 32) & 0xffff;
+        long compressedLength = compressedSize;
+        long localHeaderOffset = directory.getInt(position + 42) & MAGIC_VALUE_32;
+
+        final byte nameBytes[] = new byte[nameLength];
+        ByteBuffer nameBuffer = directory.duplicate();
+        ((Buffer) nameBuffer).position(position + 46);
+        nameBuffer.get(nameBytes);
+        // java.util.zip.ZipFile decodes the names as UTF-8, too
+        final String name = new String(nameBytes, StandardCharsets.UTF_8);
+
+        // The ZIP64 extra field contains only the values which are set to the magic value
+        if ((localHeaderOffset == MAGIC_VALUE_32) || (compressedSize == MAGIC_VALUE_32)) {
+          int extraPosition = position + 46 + nameLength;
+          final int extraEnd = extraPosition + extraLength;
+          while (extraPosition + 4 <= extraEnd) {
+            final int id = directory.getShort(extraPosition) & 0xffff;
+            final int length = directory.getShort(extraPosition + 2) & 0xffff;
+            if (id == ZIP64_EXTRA_ID) {
+              int valuePosition = extraPosition + 4;
+              if (size == MAGIC_VALUE_32)
+                valuePosition += 8;
+              if (compressedSize == MAGIC_VALUE_32) {
+                compressedLength = directory.getLong(valuePosition);
+                valuePosition += 8;
+              }
+              if (localHeaderOffset == MAGIC_VALUE_32)
+                localHeaderOffset = directory.getLong(valuePosition);
+              break;
+            }
+            extraPosition += 4 + length;
+          }
+        }
+
+        final ByteBuffer localHeader = read(channel, localHeaderOffset, LOCAL_HEADER_SIZE);
+        if (localHeader.getInt(0) != LOCAL_HEADER_SIGNATURE)
+          throw new IOException("Corrupt local header of " + name + " in " + zipFile);
+        final int localNameLength = localHeader.getShort(26) & 0xffff;
+        final int localExtraLength = localHeader.getShort(28) & 0xffff;
+        final long dataOffset =
+            localHeaderOffset + LOCAL_HEADER_SIZE + localNameLength + localExtraLength;
+
+        final int recordLength = 46 + nameLength + extraLength + commentLength;
+        final byte centralRecord[] = new byte[recordLength];
+        ByteBuffer recordBuffer = directory.duplicate();
+        ((Buffer) recordBuffer).position(position);
+        recordBuffer.get(centralRecord);
+
+        // The sizes of the entry are stored in the ZIP64 extra field, so the data descriptor has
+        // the ZIP64 format as well (java.util.zip uses the same rule)
+        final boolean zip64 = (compressedSize == MAGIC_VALUE_32) || (size == MAGIC_VALUE_32);
+
+        entries.add(new Entry(name, method, flags, zip64, localHeaderOffset, dataOffset,
+            compressedLength, centralRecord));
+
+        position += recordLength;
+      }
+    }
+
+    return entries;
+  }
+
+  private static ByteBuffer read(FileChannel channel, long position, int length)
+      throws IOException {
+    final ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, position + buffer.position()) < 0)
+        throw new IOException("Unexpected end of file");
+    }
+    return buffer;
+  }
+
+}
@@ -0,0 +1,402 @@
+/*
+ * Copyright 2006-2018 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with MZmine 2; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+
+package net.sf.mzmine.modules.projectmethods.projectsave;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.Feature;
+import net.sf.mzmine.datamodel.Feature.FeatureStatus;
+import net.sf.mzmine.datamodel.IsotopePattern;
+import net.sf.mzmine.datamodel.IsotopePattern.IsotopePatternStatus;
+import net.sf.mzmine.datamodel.PeakIdentity;
+import net.sf.mzmine.datamodel.PeakInformation;
+import net.sf.mzmine.datamodel.PeakList;
+import net.sf.mzmine.datamodel.PeakList.PeakListAppliedMethod;
+import net.sf.mzmine.datamodel.PeakListRow;
+import net.sf.mzmine.datamodel.RawDataFile;
+import net.sf.mzmine.datamodel.impl.SimplePeakList;
+
+/**
+ * Saves a feature list in the columnar binary format of the project file. Compared to the XML
+ * format (see PeakListSaveHandler), the values are stored as arrays of primitive values, so they
+ * can be written and read in bulk without any text conversion.
+ *
+ * All numbers are big-endian. Strings are stored as their UTF-8 length (int, -1 for null) followed
+ * by the UTF-8 bytes. The file starts with a header:
+ *
+ * <pre>
+ * int magic number, int format version
+ * String name, String creation date
+ * int number of applied methods, (String description, String parameters) per method
+ * int number of raw data files, String raw data file ID per file
+ * int number of feature status names, String name per status (the status column stores indices)
+ * int number of isotope pattern status names, String name per status
+ * int number of rows
+ * </pre>
+ *
+ * The rows follow in blocks of at most ROWS_PER_BLOCK rows and roughly FEATURES_PER_BLOCK features,
+ * so the columns of one block are kept in memory only. Each block contains:
+ *
+ * <pre>
+ * int number of rows R (0 ends the file)
+ * int[R] row IDs, String[R] comments
+ * per row: int number of identities, (boolean preferred, properties) per identity
+ * per row: information properties
+ * int number of features F
+ * int[F] row index in the block, int[F] raw data file ID
+ * double[F] m/z, double[F] RT (minutes), double[F] height, double[F] area
+ * byte[F] status index, int[F] charge, int[F] representative scan, int[F] fragment scan
+ * byte[F] flags (HAS_PARENT_ROW_ID, HAS_ISOTOPE_PATTERN), int[F] parent chromatogram row ID
+ * int[F] number of MS2 fragment scans, int[] all MS2 fragment scans of all features
+ * per feature with an isotope pattern: byte status index, String description, int N,
+ *   double[N] m/z, double[N] intensity
+ * int[F] number of chromatogram data points, int[] scan numbers, float[] m/z, float[] intensity
+ *   of all chromatogram data points (m/z and intensity are 0 if the feature has no data point in
+ *   the scan)
+ * </pre>
+ *
+ * Properties are stored as int number of properties (-1 for null) followed by (String name, String
+ * value) pairs.
+ */
+public class PeakListBinarySaveHandler {
+
+  public static final int MAGIC_NUMBER = 0x4D5A464C; // "MZFL"
+  public static final int FORMAT_VERSION = 1;
+
+  public static final int ROWS_PER_BLOCK = 4096;
+  public static final int FEATURES_PER_BLOCK = 1 << 16;
+
+  public static final byte HAS_PARENT_ROW_ID = 1;
+  public static final byte HAS_ISOTOPE_PATTERN = 2;
+
+  private final Hashtable<RawDataFile, String> dataFilesIDMap;
+
+  private int numberOfRows, finishedRows;
+  private boolean canceled = false;
+
+  private final OutputStream finalStream;
+  private DataOutputStream out;
+
+  // Buffer for the bulk conversion of primitive arrays
+  private final ByteBuffer conversionBuffer = ByteBuffer.allocate(1 << 16);
+
+  // Columns of the current block, grown on demand
+  private int rowIDs[] = new int[ROWS_PER_BLOCK];
+  private int featureRows[] = new int[1024], featureFiles[] = new int[1024];
+  private double mzs[] = new double[1024], rts[] = new double[1024], heights[] = new double[1024],
+      areas[] = new double[1024];
+  private byte statuses[] = new byte[1024], flags[] = new byte[1024];
+  private int charges[] = new int[1024], representativeScans[] = new int[1024],
+      fragmentScans[] = new int[1024], parentRowIDs[] = new int[1024],
+      numOfFragmentScans[] = new int[1024], numOfDataPoints[] = new int[1024];
+
+  public PeakListBinarySaveHandler(OutputStream finalStream,
+      Hashtable<RawDataFile, String> dataFilesIDMap) {
+    this.finalStream = finalStream;
+    this.dataFilesIDMap = dataFilesIDMap;
+  }
+
+  /**
+   * Saves the feature list into the given stream. The stream is flushed, but not closed.
+   */
+  public void savePeakList(PeakList peakList) throws IOException {
+
+    numberOfRows = peakList.getNumberOfRows();
+    finishedRows = 0;
+
+    out = new DataOutputStream(new BufferedOutputStream(finalStream, 1 << 16));
+
+    out.writeInt(MAGIC_NUMBER);
+    out.writeInt(FORMAT_VERSION);
+
+    writeString(peakList.getName());
+    String dateText = null;
+    if (peakList instanceof SimplePeakList)
+      dateText = ((SimplePeakList) peakList).getDateCreated();
+    if (dateText == null)
+      dateText = PeakListSaveHandler.dateFormat.format(new Date());
+    writeString(dateText);
+
+    PeakListAppliedMethod[] processes = peakList.getAppliedMethods();
+    out.writeInt(processes.length);
+    for (PeakListAppliedMethod proc : processes) {
+      writeString(proc.getDescription());
+      writeString(proc.getParameters());
+    }
+
+    RawDataFile[] dataFiles = peakList.getRawDataFiles();
+    out.writeInt(dataFiles.length);
+    for (RawDataFile dataFile : dataFiles)
+      writeString(dataFilesIDMap.get(dataFile));
+
+    out.writeInt(FeatureStatus.values().length);
+    for (FeatureStatus status : FeatureStatus.values())
+      writeString(status.name());
+    out.writeInt(IsotopePatternStatus.values().length);
+    for (IsotopePatternStatus status : IsotopePatternStatus.values())
+      writeString(status.name());
+
+    out.writeInt(numberOfRows);
+
+    int blockStart = 0;
+    while (blockStart < numberOfRows) {
+
+      if (canceled)
+        return;
+
+      // Find the end of the block
+      int blockEnd = blockStart, numOfFeatures = 0;
+      while ((blockEnd < numberOfRows) && (blockEnd - blockStart < ROWS_PER_BLOCK)
+          && (numOfFeatures < FEATURES_PER_BLOCK)) {
+        numOfFeatures += peakList.getRow(blockEnd).getNumberOfPeaks();
+        blockEnd++;
+      }
+
+      writeBlock(peakList, blockStart, blockEnd);
+      finishedRows = blockEnd;
+      blockStart = blockEnd;
+    }
+
+    out.writeInt(0);
+    out.flush();
+  }
+
+  private void writeBlock(PeakList peakList, int blockStart, int blockEnd) throws IOException {
+
+    final int numOfRows = blockEnd - blockStart;
+    out.writeInt(numOfRows);
+
+    // Row columns
+    for (int i = 0; i < numOfRows; i++)
+      rowIDs[i] = peakList.getRow(blockStart + i).getID();
+    writeInts(rowIDs, numOfRows);
+    for (int i = 0; i < numOfRows; i++)
+      writeString(peakList.getRow(blockStart + i).getComment());
+    for (int i = 0; i < numOfRows; i++) {
+      PeakListRow row = peakList.getRow(blockStart + i);
+      PeakIdentity preferredIdentity = row.getPreferredPeakIdentity();
+      PeakIdentity[] identities = row.getPeakIdentities();
+      out.writeInt(identities.length);
+      for (PeakIdentity identity : identities) {
+        out.writeBoolean(identity == preferredIdentity);
+        writeProperties(identity.getAllProperties());
+      }
+    }
+    for (int i = 0; i < numOfRows; i++) {
+      PeakInformation information = peakList.getRow(blockStart + i).getPeakInformation();
+      writeProperties(information == null ? null : information.getAllProperties());
+    }
+
+    // Feature columns
+    int numOfFeatures = 0;
+    for (int i = 0; i < numOfRows; i++) {
+      for (Feature feature : peakList.getRow(blockStart + i).getPeaks()) {
+        ensureFeatureCapacity(numOfFeatures + 1);
+        featureRows[numOfFeatures] = i;
+        featureFiles[numOfFeatures] = Integer.parseInt(dataFilesIDMap.get(feature.getDataFile()));
+        mzs[numOfFeatures] = feature.getMZ();
+        rts[numOfFeatures] = feature.getRT();
+        heights[numOfFeatures] = feature.getHeight();
+        areas[numOfFeatures] = feature.getArea();
+        statuses[numOfFeatures] = (byte) feature.getFeatureStatus().ordinal();
+        charges[numOfFeatures] = feature.getCharge();
+        representativeScans[numOfFeatures] = feature.getRepresentativeScanNumber();
+        fragmentScans[numOfFeatures] = feature.getMostIntenseFragmentScanNumber();
+        byte featureFlags = 0;
+        final Integer parentRowID = feature.getParentChromatogramRowID();
+        if (parentRowID != null)
+          featureFlags |= HAS_PARENT_ROW_ID;
+        parentRowIDs[numOfFeatures] = (parentRowID == null ? 0 : parentRowID);
+        if (feature.getIsotopePattern() != null)
+          featureFlags |= HAS_ISOTOPE_PATTERN;
+        flags[numOfFeatures] = featureFlags;
+        final int allFragmentScans[] = feature.getAllMS2FragmentScanNumbers();
+        numOfFragmentScans[numOfFeatures] =
+            (allFragmentScans == null ? 0 : allFragmentScans.length);
+        numOfDataPoints[numOfFeatures] = feature.getScanNumbers().length;
+        numOfFeatures++;
+      }
+    }
+
+    out.writeInt(numOfFeatures);
+    writeInts(featureRows, numOfFeatures);
+    writeInts(featureFiles, numOfFeatures);
+    writeDoubles(mzs, numOfFeatures);
+    writeDoubles(rts, numOfFeatures);
+    writeDoubles(heights, numOfFeatures);
+    writeDoubles(areas, numOfFeatures);
+    out.write(statuses, 0, numOfFeatures);
+    writeInts(charges, numOfFeatures);
+    writeInts(representativeScans, numOfFeatures);
+    writeInts(fragmentScans, numOfFeatures);
+    out.write(flags, 0, numOfFeatures);
+    writeInts(parentRowIDs, numOfFeatures);
+    writeInts(numOfFragmentScans, numOfFeatures);
+
+    // Variable-length columns, in the same order of features
+    for (int i = 0; i < numOfRows; i++) {
+      for (Feature feature : peakList.getRow(blockStart + i).getPeaks()) {
+        final int allFragmentScans[] = feature.getAllMS2FragmentScanNumbers();
+        if (allFragmentScans != null)
+          writeInts(allFragmentScans, allFragmentScans.length);
+      }
+    }
+
+    for (int i = 0; i < numOfRows; i++) {
+      for (Feature feature : peakList.getRow(blockStart + i).getPeaks()) {
+        IsotopePattern isotopePattern = feature.getIsotopePattern();
+        if (isotopePattern == null)
+          continue;
+        out.writeByte(isotopePattern.getStatus().ordinal());
+        writeString(isotopePattern.getDescription());
+        DataPoint isotopes[] = isotopePattern.getDataPoints();
+        double isotopeValues[] = new double[isotopes.length];
+        out.writeInt(isotopes.length);
+        for (int j = 0; j < isotopes.length; j++)
+          isotopeValues[j] = isotopes[j].getMZ();
+        writeDoubles(isotopeValues, isotopes.length);
+        for (int j = 0; j < isotopes.length; j++)
+          isotopeValues[j] = isotopes[j].getIntensity();
+        writeDoubles(isotopeValues, isotopes.length);
+      }
+    }
+
+    writeInts(numOfDataPoints, numOfFeatures);
+    for (int i = 0; i < numOfRows; i++) {
+      for (Feature feature : peakList.getRow(blockStart + i).getPeaks()) {
+        final int scanNumbers[] = feature.getScanNumbers();
+        writeInts(scanNumbers, scanNumbers.length);
+      }
+    }
+    float values[] = new float[1024];
+    for (int dimension = 0; dimension < 2; dimension++) {
+      for (int i = 0; i < numOfRows; i++) {
+        for (Feature feature : peakList.getRow(blockStart + i).getPeaks()) {
+          final int scanNumbers[] = feature.getScanNumbers();
+          if (values.length < scanNumbers.length)
+            values = new float[scanNumbers.length * 2];
+          for (int j = 0; j < scanNumbers.length; j++) {
+            DataPoint dataPoint = feature.getDataPoint(scanNumbers[j]);
+            if (dataPoint == null)
+              values[j] = 0f;
+            else if (dimension == 0)
+              values[j] = (float) dataPoint.getMZ();
+            else
+              values[j] = (float) dataPoint.getIntensity();
+          }
+          writeFloats(values, scanNumbers.length);
+        }
+      }
+    }
+  }
+
+  private void ensureFeatureCapacity(int capacity) {
+    if (featureRows.length >= capacity)
+      return;
+    final int newLength = Math.max(capacity, featureRows.length * 2);
+    featureRows = Arrays.copyOf(featureRows, newLength);
+    featureFiles = Arrays.copyOf(featureFiles, newLength);
+    mzs = Arrays.copyOf(mzs, newLength);
+    rts = Arrays.copyOf(rts, newLength);
+    heights = Arrays.copyOf(heights, newLength);
+    areas = Arrays.copyOf(areas, newLength);
+    statuses = Arrays.copyOf(statuses, newLength);
+    flags = Arrays.copyOf(flags, newLength);
+    charges = Arrays.copyOf(charges, newLength);
+    representativeScans = Arrays.copyOf(representativeScans, newLength);
+    fragmentScans = Arrays.copyOf(fragmentScans, newLength);
+    parentRowIDs = Arrays.copyOf(parentRowIDs, newLength);
+    numOfFragmentScans = Arrays.copyOf(numOfFragmentScans, newLength);
+    numOfDataPoints = Arrays.copyOf(numOfDataPoints, newLength);
+  }
+
+  private void writeString(String value) throws IOException {
+    if (value == null) {
+      out.writeInt(-1);
+      return;
+    }
+    byte bytes[] = value.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private void writeProperties(Map<String, String> properties) throws IOException {
+    if (properties == null) {
+      out.writeInt(-1);
+      return;
+    }
+    out.writeInt(properties.size());
+    for (Entry<String, String> property : properties.entrySet()) {
+      writeString(property.getKey());
+      writeString(property.getValue());
+    }
+  }
+
+  private void writeInts(int values[], int length) throws IOException {
+    final int chunk = conversionBuffer.capacity() / 4;
+    for (int start = 0; start < length; start += chunk) {
+      final int count = Math.min(chunk, length - start);
+      conversionBuffer.asIntBuffer().put(values, start, count);
+      out.write(conversionBuffer.array(), 0, count * 4);
+    }
+  }
+
+  private void writeFloats(float values[], int length) throws IOException {
+    final int chunk = conversionBuffer.capacity() / 4;
+    for (int start = 0; start < length; start += chunk) {
+      final int count = Math.min(chunk, length - start);
+      conversionBuffer.asFloatBuffer().put(values, start, count);
+      out.write(conversionBuffer.array(), 0, count * 4);
+    }
+  }
+
+  private void writeDoubles(double values[], int length) throws IOException {
+    final int chunk = conversionBuffer.capacity() / 8;
+    for (int start = 0; start < length; start += chunk) {
+      final int count = Math.min(chunk, length - start);
+      conversionBuffer.asDoubleBuffer().put(values, start, count);
+      out.write(conversionBuffer.array(), 0, count * 8);
+    }
+  }
+
+  /**
+   * @return the progress of saving the feature list
+   */
+  public double getProgress() {
+    if (numberOfRows == 0)
+      return 0;
+    return (double) finishedRows / numberOfRows;
+  }
+
+  public void cancel() {
+    canceled = true;
+  }
+
+}
@@ -0,0 +1,472 @@
+/*
+ * Copyright 2006-2018 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with MZmine 2; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+
+package net.sf.mzmine.modules.projectmethods.projectsave;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.LocalDateTime;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.ZipEntry;
+
+import com.google.common.io.CountingOutputStream;
+
+import net.sf.mzmine.modules.projectmethods.projectload.ZipEntryLocator;
+
+/**
+ * Writes the ZIP archive of a project file. Unlike ZipOutputStream, this writer can append entries
+ * to an existing archive while keeping its unchanged entries in place, and it writes entries which
+ * were compressed beforehand, so independent entries can be compressed in parallel. The archive is
+ * complete only after finish(), closing an unfinished writer restores the original file length.
+ *
+ * Appending never modifies the original bytes of the archive. Until the appended archive is
+ * finished, its original length is kept in a journal file next to it, so an archive which was left
+ * unfinished by a crash or a killed process can be truncated back to it by recover().
+ */
+class ProjectArchiveWriter implements Closeable {
+
+  /**
+   * Content of an entry, written to the given stream
+   */
+  interface EntryContent {
+    void write(OutputStream out) throws Exception;
+  }
+
+  /**
+   * Entry compressed into a temporary file before it is written to the archive
+   */
+  static class DeflatedEntry {
+
+    private final String name;
+    private final File dataFile;
+    private final long crc, size;
+
+    private DeflatedEntry(String name, File dataFile, long crc, long size) {
+      this.name = name;
+      this.dataFile = dataFile;
+      this.crc = crc;
+      this.size = size;
+    }
+
+    /**
+     * Writes and compresses the content of an entry. This method may be called by many threads at
+     * the same time.
+     */
+    static DeflatedEntry deflate(String name, EntryContent content) throws Exception {
+      final File dataFile = File.createTempFile("mzmineproject", ".tmp");
+      dataFile.deleteOnExit();
+      final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+      final CRC32 crc = new CRC32();
+      long size = 0;
+      try (FileOutputStream fileStream = new FileOutputStream(dataFile)) {
+        DeflaterOutputStream deflaterStream =
+            new DeflaterOutputStream(fileStream, deflater, 1 << 16);
+        CountingOutputStream countingStream =
+            new CountingOutputStream(new CheckedOutputStream(deflaterStream, crc));
+        content.write(countingStream);
+        countingStream.flush();
+        deflaterStream.finish();
+        size = countingStream.getCount();
+      } catch (Exception e) {
+        dataFile.delete();
+        throw e;
+      } finally {
+        deflater.end();
+      }
+      return new DeflatedEntry(name, dataFile, crc.getValue(), size);
+    }
+
+    /**
+     * Deletes the temporary file
+     */
+    void discard() {
+      dataFile.delete();
+    }
+
+  }
+
+  private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+  private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+  private static final int END_SIGNATURE = 0x06054b50;
+  private static final int ZIP64_END_SIGNATURE = 0x06064b50;
+  private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+  private static final int ZIP64_EXTRA_ID = 0x0001;
+
+  // Header ID of the extra field used for the alignment padding (same as the Android zipalign
+  // tool), followed by the data size
+  private static final int ALIGNMENT_EXTRA_ID = 0xD935;
+
+  private static final int VERSION = 20, VERSION_ZIP64 = 45;
+  // Names are encoded in UTF-8
+  private static final int FLAGS = 0x0800;
+  private static final int LOCAL_HEADER_SIZE = 30;
+  private static final long MAGIC_VALUE_32 = 0xFFFFFFFFL;
+  private static final int MAGIC_VALUE_16 = 0xFFFF;
+
+  private final RandomAccessFile file;
+  private final FileChannel channel;
+  private final long originalLength;
+  // Journal of an archive being appended to, or null
+  private final File journalFile;
+  private final int dosTime;
+
+  // Position in the file of the next byte, including the buffered bytes
+  private long position;
+  private final ByteBuffer buffer = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+
+  private final ByteArrayOutputStream centralDirectory = new ByteArrayOutputStream();
+  private long numOfEntries = 0;
+  private boolean finished = false;
+
+  private ProjectArchiveWriter(File archiveFile, boolean append) throws IOException {
+    this.file = new RandomAccessFile(archiveFile, "rw");
+    this.channel = file.getChannel();
+    if (!append)
+      channel.truncate(0);
+    this.originalLength = channel.size();
+    this.position = originalLength;
+    this.dosTime = toDosTime(LocalDateTime.now());
+    if (append) {
+      journalFile = getJournalFile(archiveFile);
+      try (FileOutputStream journalStream = new FileOutputStream(journalFile)) {
+        journalStream.write(String.valueOf(originalLength).getBytes(StandardCharsets.US_ASCII));
+        journalStream.getFD().sync();
+      } catch (IOException e) {
+        file.close();
+        throw e;
+      }
+    } else {
+      journalFile = null;
+    }
+  }
+
+  /**
+   * Creates a new archive, replacing the content of the given file
+   */
+  static ProjectArchiveWriter create(File archiveFile) throws IOException {
+    return new ProjectArchiveWriter(archiveFile, false);
+  }
+
+  /**
+   * Appends entries to an existing archive. Its entries are removed, unless they are kept by
+   * keepEntry().
+   */
+  static ProjectArchiveWriter append(File archiveFile) throws IOException {
+    return new ProjectArchiveWriter(archiveFile, true);
+  }
+
+  /**
+   * Truncates an archive back to its original length, if appending to it was interrupted before the
+   * archive was finished. Does nothing if there is no journal of an interrupted append.
+   *
+   * @return true if the archive was restored
+   */
+  static boolean recover(File archiveFile) throws IOException {
+    final File journalFile = getJournalFile(archiveFile);
+    if (!journalFile.isFile())
+      return false;
+
+    long originalLength = -1;
+    try {
+      originalLength = Long.parseLong(
+          new String(Files.readAllBytes(journalFile.toPath()), StandardCharsets.US_ASCII));
+    } catch (NumberFormatException e) {
+      // The journal was not completely written, so nothing was appended yet
+    }
+
+    boolean restored = false;
+    if ((originalLength >= 0) && archiveFile.isFile()) {
+      try (RandomAccessFile file = new RandomAccessFile(archiveFile, "rw")) {
+        if (file.length() > originalLength) {
+          file.setLength(originalLength);
+          file.getChannel().force(false);
+          restored = true;
+        }
+      }
+    }
+    Files.delete(journalFile.toPath());
+    return restored;
+  }
+
+  private static File getJournalFile(File archiveFile) {
+    return new File(archiveFile.getPath() + ".saving");
+  }
+
+  /**
+   * Keeps an entry of the archive being appended to, at its current position
+   */
+  void keepEntry(ZipEntryLocator.Entry entry) {
+    final byte record[] = entry.getCentralRecord();
+    centralDirectory.write(record, 0, record.length);
+    numOfEntries++;
+  }
+
+  /**
+   * Writes an entry compressed by DeflatedEntry.deflate() and deletes its temporary file
+   */
+  void writeEntry(DeflatedEntry entry) throws IOException {
+    final long compressedSize = entry.dataFile.length();
+    final long localHeaderOffset = position;
+    writeLocalHeader(entry.name, ZipEntry.DEFLATED, entry.crc, compressedSize, entry.size, -1);
+
+    flushBuffer();
+    try (RandomAccessFile dataFile = new RandomAccessFile(entry.dataFile, "r")) {
+      final FileChannel dataChannel = dataFile.getChannel();
+      long copied = 0;
+      while (copied < compressedSize) {
+        final long count =
+            channel.transferFrom(dataChannel, position, compressedSize - copied);
+        if (count <= 0)
+          throw new IOException("Could not copy " + entry.dataFile);
+        copied += count;
+        position += count;
+      }
+    }
+    entry.discard();
+
+    addCentralRecord(entry.name, ZipEntry.DEFLATED, entry.crc, compressedSize, entry.size,
+        localHeaderOffset);
+  }
+
+  /**
+   * Writes an uncompressed entry of the given size. The entry data start at a multiple of the given
+   * alignment in the file, so they can be memory-mapped.
+   */
+  void writeStoredEntry(String name, long size, int alignment, EntryContent content)
+      throws Exception {
+
+    final long localHeaderOffset = position;
+    long headerSize = LOCAL_HEADER_SIZE + name.getBytes(StandardCharsets.UTF_8).length + 4;
+    if (size >= MAGIC_VALUE_32)
+      headerSize += 20;
+    final int padding = (int) ((alignment - ((position + headerSize) % alignment)) % alignment);
+
+    // The CRC is written when the data are complete
+    writeLocalHeader(name, ZipEntry.STORED, 0, size, size, padding);
+
+    final CRC32 crc = new CRC32();
+    final OutputStream archiveStream = new OutputStream() {
+      @Override
+      public void write(int b) throws IOException {
+        writeBytes(new byte[] {(byte) b}, 0, 1);
+      }
+
+      @Override
+      public void write(byte data[], int offset, int length) throws IOException {
+        writeBytes(data, offset, length);
+      }
+    };
+    final CountingOutputStream dataStream =
+        new CountingOutputStream(new CheckedOutputStream(archiveStream, crc));
+    content.write(dataStream);
+    if (dataStream.getCount() != size)
+      throw new IOException("Size of " + name + " changed while saving");
+
+    flushBuffer();
+    final ByteBuffer crcBytes = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+    crcBytes.putInt(0, (int) crc.getValue());
+    channel.write(crcBytes, localHeaderOffset + 14);
+
+    addCentralRecord(name, ZipEntry.STORED, crc.getValue(), size, size, localHeaderOffset);
+  }
+
+  /**
+   * Writes the central directory and closes the file
+   */
+  void finish() throws IOException {
+
+    final long directoryOffset = position;
+    final byte directory[] = centralDirectory.toByteArray();
+    writeBytes(directory, 0, directory.length);
+    final long directorySize = directory.length;
+
+    final ByteBuffer end = ByteBuffer.allocate(56 + 20 + 22).order(ByteOrder.LITTLE_ENDIAN);
+    final boolean zip64 = (numOfEntries >= MAGIC_VALUE_16) || (directoryOffset >= MAGIC_VALUE_32)
+        || (directorySize >= MAGIC_VALUE_32);
+    if (zip64) {
+      final long zip64EndOffset = position;
+      end.putInt(ZIP64_END_SIGNATURE);
+      end.putLong(44);
+      end.putShort((short) VERSION_ZIP64);
+      end.putShort((short) VERSION_ZIP64);
+      end.putInt(0);
+      end.putInt(0);
+      end.putLong(numOfEntries);
+      end.putLong(numOfEntries);
+      end.putLong(directorySize);
+      end.putLong(directoryOffset);
+      end.putInt(ZIP64_LOCATOR_SIGNATURE);
+      end.putInt(0);
+      end.putLong(zip64EndOffset);
+      end.putInt(1);
+    }
+    end.putInt(END_SIGNATURE);
+    end.putShort((short) 0);
+    end.putShort((short) 0);
+    end.putShort((short) (zip64 ? MAGIC_VALUE_16 : numOfEntries));
+    end.putShort((short) (zip64 ? MAGIC_VALUE_16 : numOfEntries));
+    end.putInt((int) (zip64 ? MAGIC_VALUE_32 : directorySize));
+    end.putInt((int) (zip64 ? MAGIC_VALUE_32 : directoryOffset));
+    end.putShort((short) 0);
+    writeBytes(end.array(), 0, end.position());
+
+    flushBuffer();
+    channel.truncate(position);
+    channel.force(false);
+    finished = true;
+    file.close();
+    if (journalFile != null)
+      Files.delete(journalFile.toPath());
+  }
+
+  /**
+   * Closes the file. If the archive was not finished, the entries written so far are removed. The
+   * journal is kept if the file could not be truncated, so it is restored later by recover().
+   */
+  @Override
+  public void close() throws IOException {
+    if (!file.getChannel().isOpen())
+      return;
+    try {
+      if (!finished) {
+        channel.truncate(originalLength);
+        channel.force(false);
+      }
+    } finally {
+      file.close();
+    }
+    if (journalFile != null)
+      Files.deleteIfExists(journalFile.toPath());
+  }
+
+  /**
+   * @param padding length of the alignment extra field data, or -1 for no alignment extra field
+   */
+  private void writeLocalHeader(String name, int method, long crc, long compressedSize, long size,
+      int padding) throws IOException {
+    final byte nameBytes[] = name.getBytes(StandardCharsets.UTF_8);
+    final boolean zip64 = (size >= MAGIC_VALUE_32) || (compressedSize >= MAGIC_VALUE_32);
+    final int extraLength = (zip64 ? 20 : 0) + (padding >= 0 ? 4 + padding : 0);
+
+    final ByteBuffer header =
+        ByteBuffer.allocate(LOCAL_HEADER_SIZE + nameBytes.length + extraLength)
+            .order(ByteOrder.LITTLE_ENDIAN);
+    header.putInt(LOCAL_HEADER_SIGNATURE);
+    header.putShort((short) (zip64 ? VERSION_ZIP64 : VERSION));
+    header.putShort((short) FLAGS);
+    header.putShort((short) method);
+    header.putInt(dosTime);
+    header.putInt((int) crc);
+    header.putInt((int) (zip64 ? MAGIC_VALUE_32 : compressedSize));
+    header.putInt((int) (zip64 ? MAGIC_VALUE_32 : size));
+    header.putShort((short) nameBytes.length);
+    header.putShort((short) extraLength);
+    header.put(nameBytes);
+    if (zip64) {
+      header.putShort((short) ZIP64_EXTRA_ID);
+      header.putShort((short) 16);
+      header.putLong(size);
+      header.putLong(compressedSize);
+    }
+    if (padding >= 0) {
+      header.putShort((short) ALIGNMENT_EXTRA_ID);
+      header.putShort((short) padding);
+    }
+    writeBytes(header.array(), 0, header.capacity());
+  }
+
+  private void addCentralRecord(String name, int method, long crc, long compressedSize, long size,
+      long localHeaderOffset) {
+    final byte nameBytes[] = name.getBytes(StandardCharsets.UTF_8);
+    final boolean zip64 = (size >= MAGIC_VALUE_32) || (compressedSize >= MAGIC_VALUE_32)
+        || (localHeaderOffset >= MAGIC_VALUE_32);
+    final int extraLength = zip64 ? 28 : 0;
+
+    final ByteBuffer record =
+        ByteBuffer.allocate(46 + nameBytes.length + extraLength).order(ByteOrder.LITTLE_ENDIAN);
+    record.putInt(CENTRAL_HEADER_SIGNATURE);
+    record.putShort((short) (zip64 ? VERSION_ZIP64 : VERSION));
+    record.putShort((short) (zip64 ? VERSION_ZIP64 : VERSION));
+    record.putShort((short) FLAGS);
+    record.putShort((short) method);
+    record.putInt(dosTime);
+    record.putInt((int) crc);
+    record.putInt((int) (zip64 ? MAGIC_VALUE_32 : compressedSize));
+    record.putInt((int) (zip64 ? MAGIC_VALUE_32 : size));
+    record.putShort((short) nameBytes.length);
+    record.putShort((short) extraLength);
+    // Comment length, disk number, internal and external attributes
+    record.putShort((short) 0);
+    record.putShort((short) 0);
+    record.putShort((short) 0);
+    record.putInt(0);
+    record.putInt((int) (zip64 ? MAGIC_VALUE_32 : localHeaderOffset));
+    record.put(nameBytes);
+    if (zip64) {
+      record.putShort((short) ZIP64_EXTRA_ID);
+      record.putShort((short) 24);
+      record.putLong(size);
+      record.putLong(compressedSize);
+      record.putLong(localHeaderOffset);
+    }
+    centralDirectory.write(record.array(), 0, record.capacity());
+    numOfEntries++;
+  }
+
+  private void writeBytes(byte data[], int offset, int length) throws IOException {
+    while (length > 0) {
+      if (!buffer.hasRemaining())
+        flushBuffer();
+      final int count = Math.min(length, buffer.remaining());
+      buffer.put(data, offset, count);
+      offset += count;
+      length -= count;
+      position += count;
+    }
+  }
+
+  private void flushBuffer() throws IOException {
+    // JDK 9 breaks compatibility with JRE8: need to cast
+    ((Buffer) buffer).flip();
+    long filePosition = position - buffer.remaining();
+    while (buffer.hasRemaining())
+      filePosition += channel.write(buffer, filePosition);
+    ((Buffer) buffer).clear();
+  }
+
+  private static int toDosTime(LocalDateTime time) {
+    return ((time.getYear() - 1980) << 25) | (time.getMonthValue() << 21)
+        | (time.getDayOfMonth() << 16) | (time.getHour() << 11) | (time.getMinute() << 5)
+        | (time.getSecond() >> 1);
+  }
+
+}
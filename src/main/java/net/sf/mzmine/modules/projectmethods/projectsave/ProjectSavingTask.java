@@ -20,20 +20,31 @@ package net.sf.mzmine.modules.projectmethods.projectsave;
 
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
-import javax.xml.transform.TransformerConfigurationException;
-import org.xml.sax.SAXException;
 import net.sf.mzmine.datamodel.MZmineProject;
 import net.sf.mzmine.datamodel.PeakList;
 import net.sf.mzmine.datamodel.RawDataFile;
 import net.sf.mzmine.desktop.impl.MainWindow;
+import net.sf.mzmine.desktop.preferences.MZminePreferences;
 import net.sf.mzmine.main.MZmineCore;
 import net.sf.mzmine.modules.projectmethods.projectload.ProjectLoaderParameters;
+import net.sf.mzmine.modules.projectmethods.projectload.ZipEntryLocator;
+import net.sf.mzmine.modules.projectmethods.projectsave.ProjectArchiveWriter.DeflatedEntry;
 import net.sf.mzmine.parameters.ParameterSet;
 import net.sf.mzmine.project.impl.MZmineProjectImpl;
 import net.sf.mzmine.project.impl.RawDataFileImpl;
@@ -42,23 +53,45 @@ import net.sf.mzmine.taskcontrol.TaskStatus;
 import net.sf.mzmine.util.ExceptionUtils;
 import net.sf.mzmine.util.StreamCopy;
 
+/**
+ * Saves the project into a ZIP file. When the project is saved to the file it was loaded from or
+ * last saved to, the entries of the unmodified raw data files are kept in place and only the other
+ * entries are appended, unless the removed entries would take more than half of the file. The
+ * compressed entries (raw data descriptions, feature lists, user parameters) are prepared in
+ * parallel, while the scan data are written.
+ *
+ * The replaced entries and the previous central directory stay in the file as unused space after
+ * an incremental save, so the file grows with each such save until the kept entries take less than
+ * MIN_KEPT_FRACTION of it and the whole file is rewritten. An incremental save which was
+ * interrupted by a crash is undone when the file is opened or saved to again (see
+ * recoverUnfinishedSave()).
+ */
 public class ProjectSavingTask extends AbstractTask {
 
   public static final String VERSION_FILENAME = "MZMINE_VERSION";
   public static final String CONFIG_FILENAME = "configuration.xml";
   public static final String PARAMETERS_FILENAME = "User parameters.xml";
+  public static final String FEATURES_EXTENSION = ".features";
+
+  // The existing project file is updated in place if the kept entries take at least this fraction
+  // of the file
+  private static final double MIN_KEPT_FRACTION = 0.5;
 
   private Logger logger = Logger.getLogger(this.getClass().getName());
 
   private File saveFile;
   private MZmineProjectImpl savedProject;
 
-  private RawDataFileSaveHandler rawDataFileSaveHandler;
-  private PeakListSaveHandler peakListSaveHandler;
-  private UserParameterSaveHandler userParameterSaveHandler;
+  private volatile RawDataFileSaveHandler rawDataFileSaveHandler;
+  private final List<RawDataFileSaveHandler> rawDataFileSaveHandlers =
+      new CopyOnWriteArrayList<>();
+  private final List<PeakListBinarySaveHandler> peakListSaveHandlers =
+      new CopyOnWriteArrayList<>();
+  private volatile UserParameterSaveHandler userParameterSaveHandler;
+  private volatile ExecutorService executor;
 
   private final int totalSaveItems;
-  private int currentStage, finishedSaveItems = 0;
+  private final AtomicInteger finishedSaveItems = new AtomicInteger();
   private String currentSavedObjectName;
 
   // This hashtable maps raw data files to their ID within the saved project
@@ -91,26 +124,13 @@ public class ProjectSavingTask extends AbstractTask {
       return 0.0;
 
     double currentItemProgress = 0.0;
+    RawDataFileSaveHandler currentHandler = rawDataFileSaveHandler;
+    if (currentHandler != null)
+      currentItemProgress = currentHandler.getProgress();
 
-    switch (currentStage) {
-      case 2:
-        if (rawDataFileSaveHandler != null)
-          currentItemProgress = rawDataFileSaveHandler.getProgress();
-        break;
-      case 3:
-        if (peakListSaveHandler != null)
-          currentItemProgress = peakListSaveHandler.getProgress();
-        break;
-      case 4:
-      case 5:
-        return 1.0;
-      default:
-        return 0;
-    }
-
-    double progress = (finishedSaveItems + currentItemProgress) / totalSaveItems;
+    double progress = (finishedSaveItems.get() + currentItemProgress) / totalSaveItems;
 
-    return progress;
+    return Math.min(1.0, progress);
   }
 
   /**
@@ -123,15 +143,18 @@ public class ProjectSavingTask extends AbstractTask {
 
     setStatus(TaskStatus.CANCELED);
 
-    if (rawDataFileSaveHandler != null)
-      rawDataFileSaveHandler.cancel();
+    for (RawDataFileSaveHandler handler : rawDataFileSaveHandlers)
+      handler.cancel();
 
-    if (peakListSaveHandler != null)
-      peakListSaveHandler.cancel();
+    for (PeakListBinarySaveHandler handler : peakListSaveHandlers)
+      handler.cancel();
 
     if (userParameterSaveHandler != null)
       userParameterSaveHandler.cancel();
 
+    if (executor != null)
+      executor.shutdownNow();
+
   }
 
   /**
@@ -139,77 +162,160 @@ public class ProjectSavingTask extends AbstractTask {
    */
   @Override
   public void run() {
+
+    final List<Future<DeflatedEntry>> preparedEntries = new ArrayList<>();
+    File tempFile = null;
+
     try {
       logger.info("Saving project to " + saveFile);
       setStatus(TaskStatus.PROCESSING);
 
-      // Prepare a temporary ZIP file. We create this file in the same
-      // directory as the final saveFile to avoid moving between
-      // filesystems in the last stage (renameTo)
-      File tempFile = File.createTempFile(saveFile.getName(), ".tmp", saveFile.getParentFile());
-      tempFile.deleteOnExit();
-
-      // Create a ZIP stream writing to the temporary file
-      FileOutputStream tempStream = new FileOutputStream(tempFile);
-      ZipOutputStream zipStream = new ZipOutputStream(tempStream);
-
-      // Stage 1 - save version and configuration
-      currentStage++;
-      saveVersion(zipStream);
-      saveConfiguration(zipStream);
-      if (isCanceled()) {
-        zipStream.close();
-        tempFile.delete();
-        return;
+      recoverUnfinishedSave(saveFile);
+
+      final RawDataFile rawDataFiles[] = savedProject.getDataFiles();
+      final PeakList peakLists[] = savedProject.getPeakLists();
+
+      // Stage 1 - find the raw data files which are unchanged in the existing project file, and
+      // take a snapshot of the others
+      final Map<RawDataFile, ZipEntryLocator.Entry[]> keptEntries = findKeptEntries(rawDataFiles);
+      final boolean incremental = !keptEntries.isEmpty();
+      assignDataFileIDs(rawDataFiles, keptEntries);
+
+      final long modificationCounts[] = new long[rawDataFiles.length];
+      final RawDataFileSaveHandler handlers[] = new RawDataFileSaveHandler[rawDataFiles.length];
+      for (int i = 0; i < rawDataFiles.length; i++) {
+        RawDataFileImpl rawDataFile = (RawDataFileImpl) rawDataFiles[i];
+        modificationCounts[i] = rawDataFile.getModificationCount();
+        if (!keptEntries.containsKey(rawDataFile)) {
+          handlers[i] = new RawDataFileSaveHandler(rawDataFile);
+          rawDataFileSaveHandlers.add(handlers[i]);
+        }
       }
 
-      // Stage 2 - save RawDataFile objects
-      currentStage++;
-      saveRawDataFiles(zipStream);
-      if (isCanceled()) {
-        zipStream.close();
-        tempFile.delete();
-        return;
+      // Stage 2 - compress the independent entries in parallel
+      executor = Executors.newFixedThreadPool(getMaxThreads());
+      final Future<DeflatedEntry> versionEntry = prepareEntry(preparedEntries, VERSION_FILENAME,
+          os -> os.write(MZmineCore.getMZmineVersion().getBytes()));
+      final Future<DeflatedEntry> configurationEntry =
+          prepareEntry(preparedEntries, CONFIG_FILENAME, this::saveConfiguration);
+
+      final List<Future<DeflatedEntry>> descriptionEntries = new ArrayList<>();
+      for (int i = 0; i < rawDataFiles.length; i++) {
+        final RawDataFileSaveHandler handler = handlers[i];
+        if (handler == null) {
+          descriptionEntries.add(null);
+          continue;
+        }
+        descriptionEntries.add(prepareEntry(preparedEntries,
+            getRawDataSavedName(rawDataFiles[i]) + ".xml", handler::writeDescription));
       }
 
-      // Stage 3 - save PeakList objects
-      currentStage++;
-      savePeakLists(zipStream);
-      if (isCanceled()) {
-        zipStream.close();
-        tempFile.delete();
-        return;
+      final List<Future<DeflatedEntry>> peakListEntries = new ArrayList<>();
+      for (int i = 0; i < peakLists.length; i++) {
+        final PeakList peakList = peakLists[i];
+        // Feature lists are saved in the binary format, the XML format is still supported when
+        // loading older projects
+        final String peakListSavedName =
+            "Peak list #" + (i + 1) + " " + peakList.getName() + FEATURES_EXTENSION;
+        peakListEntries.add(prepareEntry(preparedEntries, peakListSavedName, os -> {
+          logger.info("Saving feature list: " + peakList.getName());
+          PeakListBinarySaveHandler handler = new PeakListBinarySaveHandler(os, dataFilesIDMap);
+          peakListSaveHandlers.add(handler);
+          handler.savePeakList(peakList);
+          finishedSaveItems.incrementAndGet();
+        }));
       }
 
-      // Stage 4 - save user parameters
-      currentStage++;
-      saveUserParameters(zipStream);
-      if (isCanceled()) {
-        zipStream.close();
-        tempFile.delete();
+      final Future<DeflatedEntry> parametersEntry =
+          prepareEntry(preparedEntries, PARAMETERS_FILENAME, this::saveUserParameters);
+
+      if (isCanceled())
         return;
-      }
 
-      // Stage 5 - finish and close the temporary ZIP file
-      currentStage++;
-      currentSavedObjectName = null;
-      zipStream.close();
+      // Stage 3 - write the entries. When the existing project file is updated, the new entries
+      // are appended to it. Otherwise we create a temporary file in the same directory as the
+      // final saveFile to avoid moving between filesystems in the last stage (renameTo)
+      if (!incremental) {
+        tempFile = File.createTempFile(saveFile.getName(), ".tmp", saveFile.getParentFile());
+        tempFile.deleteOnExit();
+      }
 
-      // Final check for cancel
-      if (isCanceled()) {
-        tempFile.delete();
-        return;
+      try (ProjectArchiveWriter writer = incremental ? ProjectArchiveWriter.append(saveFile)
+          : ProjectArchiveWriter.create(tempFile)) {
+
+        writer.writeEntry(getPreparedEntry(versionEntry));
+        currentSavedObjectName = "configuration";
+        writer.writeEntry(getPreparedEntry(configurationEntry));
+
+        for (int i = 0; i < rawDataFiles.length; i++) {
+
+          if (isCanceled())
+            return;
+
+          currentSavedObjectName = rawDataFiles[i].getName();
+          final ZipEntryLocator.Entry kept[] = keptEntries.get(rawDataFiles[i]);
+          if (kept != null) {
+            logger.info("Keeping unchanged raw data file: " + rawDataFiles[i].getName());
+            for (ZipEntryLocator.Entry entry : kept)
+              writer.keepEntry(entry);
+          } else {
+            rawDataFileSaveHandler = handlers[i];
+            writer.writeStoredEntry(getRawDataSavedName(rawDataFiles[i]) + ".scans",
+                handlers[i].getScansSize(), RawDataFileSaveHandler.SCANS_ALIGNMENT,
+                handlers[i]::writeScans);
+            if (isCanceled())
+              return;
+            writer.writeEntry(getPreparedEntry(descriptionEntries.get(i)));
+            rawDataFileSaveHandler = null;
+          }
+          finishedSaveItems.incrementAndGet();
+        }
+
+        for (int i = 0; i < peakLists.length; i++) {
+          if (isCanceled())
+            return;
+          currentSavedObjectName = peakLists[i].getName();
+          writer.writeEntry(getPreparedEntry(peakListEntries.get(i)));
+        }
+
+        currentSavedObjectName = "User parameters";
+        writer.writeEntry(getPreparedEntry(parametersEntry));
+
+        // Final check for cancel, closing the unfinished writer removes the written entries
+        if (isCanceled())
+          return;
+
+        currentSavedObjectName = null;
+        writer.finish();
       }
 
-      // Move the temporary ZIP file to the final location
-      if (saveFile.exists() && !saveFile.delete()) {
-        throw new IOException("Could not delete old file " + saveFile);
+      if (!incremental) {
+
+        // Move the temporary ZIP file to the final location
+        if (saveFile.exists() && !saveFile.delete()) {
+
+          // The old file may still be memory-mapped by raw data files loaded from it (on systems
+          // that do not allow deleting such files). Copy their scan data to temporary files and
+          // let the garbage collector release the mappings.
+          for (RawDataFile dataFile : rawDataFiles)
+            ((RawDataFileImpl) dataFile).releaseArchiveFile(saveFile);
+          System.gc();
+
+          if (!saveFile.delete())
+            throw new IOException("Could not delete old file " + saveFile);
+        }
+
+        boolean renameOK = tempFile.renameTo(saveFile);
+        if (!renameOK) {
+          throw new IOException("Could not move the temporary file " + tempFile
+              + " to the final location " + saveFile);
+        }
       }
 
-      boolean renameOK = tempFile.renameTo(saveFile);
-      if (!renameOK) {
-        throw new IOException(
-            "Could not move the temporary file " + tempFile + " to the final location " + saveFile);
+      // Raw data files which are not modified until the next save are kept in the project file
+      for (int i = 0; i < rawDataFiles.length; i++) {
+        ((RawDataFileImpl) rawDataFiles[i]).setSavedState(saveFile,
+            dataFilesIDMap.get(rawDataFiles[i]), modificationCounts[i]);
       }
 
       // Update the location of the project
@@ -229,6 +335,9 @@ public class ProjectSavingTask extends AbstractTask {
 
     } catch (Throwable e) {
 
+      if (isCanceled())
+        return;
+
       e.printStackTrace();
 
       setStatus(TaskStatus.ERROR);
@@ -240,129 +349,172 @@ public class ProjectSavingTask extends AbstractTask {
             + ": " + ExceptionUtils.exceptionToString(e));
       }
 
+    } finally {
+      if ((tempFile != null) && (getStatus() != TaskStatus.FINISHED))
+        tempFile.delete();
+      if (executor != null)
+        executor.shutdownNow();
+      // Remove the temporary files of the entries which were not written
+      for (Future<DeflatedEntry> future : preparedEntries) {
+        future.cancel(true);
+        try {
+          if (future.isDone() && !future.isCancelled())
+            future.get().discard();
+        } catch (InterruptedException | ExecutionException e) {
+          // Nothing to discard
+        }
+      }
     }
   }
 
   /**
-   * Save the version info
-   * 
-   * @throws java.io.IOException
+   * Restores the original content of a project file, if an incremental save to it was interrupted
+   * (e.g. MZmine was killed) before the file was complete. Must be called before the file is read.
    */
-  private void saveVersion(ZipOutputStream zipStream) throws IOException {
-
-    zipStream.putNextEntry(new ZipEntry(VERSION_FILENAME));
-
-    String MZmineVersion = MZmineCore.getMZmineVersion();
-
-    zipStream.write(MZmineVersion.getBytes());
-
+  public static void recoverUnfinishedSave(File projectFile) throws IOException {
+    if (ProjectArchiveWriter.recover(projectFile)) {
+      Logger.getLogger(ProjectSavingTask.class.getName())
+          .warning("Restored " + projectFile + " to its state before an interrupted save");
+    }
   }
 
   /**
-   * Save the configuration file.
-   * 
-   * @throws java.io.IOException
+   * Finds the entries of the raw data files which can be kept in the existing project file, if we
+   * save to the file the project was loaded from or last saved to
    */
-  private void saveConfiguration(ZipOutputStream zipStream) throws IOException {
-
-    logger.info("Saving configuration file");
+  private Map<RawDataFile, ZipEntryLocator.Entry[]> findKeptEntries(RawDataFile rawDataFiles[]) {
 
-    currentSavedObjectName = "configuration";
-
-    zipStream.putNextEntry(new ZipEntry(CONFIG_FILENAME));
+    final Map<RawDataFile, ZipEntryLocator.Entry[]> keptEntries = new HashMap<>();
+    if ((!saveFile.equals(savedProject.getProjectFile())) || (!saveFile.isFile()))
+      return keptEntries;
 
+    final Map<String, ZipEntryLocator.Entry> existingEntries = new HashMap<>();
     try {
-      File tempConfigFile = File.createTempFile("mzmineconfig", ".tmp");
-      MZmineCore.getConfiguration().saveConfiguration(tempConfigFile);
-      FileInputStream fileStream = new FileInputStream(tempConfigFile);
+      for (ZipEntryLocator.Entry entry : ZipEntryLocator.getEntries(saveFile))
+        existingEntries.put(entry.getName(), entry);
+    } catch (IOException e) {
+      logger.warning("Could not read the entries of " + saveFile + ", saving the whole project: "
+          + e.toString());
+      return keptEntries;
+    }
 
-      StreamCopy copyMachine = new StreamCopy();
-      copyMachine.copy(fileStream, zipStream);
+    long keptLength = 0;
+    for (RawDataFile rawDataFile : rawDataFiles) {
+      final String id = ((RawDataFileImpl) rawDataFile).getSavedProjectID(saveFile);
+      if (id == null)
+        continue;
+      final String rawDataSavedName = getRawDataSavedName(id, rawDataFile);
+      final ZipEntryLocator.Entry scansEntry = existingEntries.get(rawDataSavedName + ".scans");
+      final ZipEntryLocator.Entry descriptionEntry =
+          existingEntries.get(rawDataSavedName + ".xml");
+      if ((scansEntry == null) || (descriptionEntry == null))
+        continue;
+      keptEntries.put(rawDataFile, new ZipEntryLocator.Entry[] {scansEntry, descriptionEntry});
+      keptLength += scansEntry.getStoredLength() + descriptionEntry.getStoredLength();
+    }
 
-      fileStream.close();
-      tempConfigFile.delete();
-    } catch (Exception e) {
-      e.printStackTrace();
-      logger.warning("Could not save configuration" + ExceptionUtils.exceptionToString(e));
+    // Rewrite the whole file if the removed and replaced entries would waste too much space
+    if (keptLength < saveFile.length() * MIN_KEPT_FRACTION) {
+      logger.info("Rewriting the whole project file " + saveFile);
+      keptEntries.clear();
     }
 
+    return keptEntries;
   }
 
   /**
-   * Save the raw data files
-   * 
-   * @throws SAXException
-   * @throws TransformerConfigurationException
+   * The kept raw data files keep their IDs, the others get new IDs
    */
-  private void saveRawDataFiles(ZipOutputStream zipStream)
-      throws IOException, TransformerConfigurationException, SAXException {
+  private void assignDataFileIDs(RawDataFile rawDataFiles[],
+      Map<RawDataFile, ZipEntryLocator.Entry[]> keptEntries) {
+
+    final Set<String> usedIDs = new HashSet<>();
+    for (RawDataFile rawDataFile : keptEntries.keySet()) {
+      final String id = ((RawDataFileImpl) rawDataFile).getSavedProjectID(saveFile);
+      dataFilesIDMap.put(rawDataFile, id);
+      usedIDs.add(id);
+    }
 
-    rawDataFileSaveHandler = new RawDataFileSaveHandler(zipStream);
+    int nextID = 1;
+    for (RawDataFile rawDataFile : rawDataFiles) {
+      if (keptEntries.containsKey(rawDataFile))
+        continue;
+      while (usedIDs.contains(String.valueOf(nextID)))
+        nextID++;
+      dataFilesIDMap.put(rawDataFile, String.valueOf(nextID));
+      nextID++;
+    }
+  }
 
-    RawDataFile rawDataFiles[] = savedProject.getDataFiles();
+  private String getRawDataSavedName(RawDataFile rawDataFile) {
+    return getRawDataSavedName(dataFilesIDMap.get(rawDataFile), rawDataFile);
+  }
 
-    for (int i = 0; i < rawDataFiles.length; i++) {
+  private static String getRawDataSavedName(String id, RawDataFile rawDataFile) {
+    return "Raw data file #" + id + " " + rawDataFile.getName();
+  }
 
-      if (isCanceled())
-        return;
+  /**
+   * Compresses the content of an entry in the thread pool
+   */
+  private Future<DeflatedEntry> prepareEntry(List<Future<DeflatedEntry>> preparedEntries,
+      String name, ProjectArchiveWriter.EntryContent content) {
+    final Future<DeflatedEntry> future =
+        executor.submit(() -> DeflatedEntry.deflate(name, content));
+    preparedEntries.add(future);
+    return future;
+  }
 
-      currentSavedObjectName = rawDataFiles[i].getName();
-      rawDataFileSaveHandler.writeRawDataFile((RawDataFileImpl) rawDataFiles[i], i + 1);
-      dataFilesIDMap.put(rawDataFiles[i], String.valueOf(i + 1));
-      finishedSaveItems++;
+  private static DeflatedEntry getPreparedEntry(Future<DeflatedEntry> future) throws Exception {
+    try {
+      return future.get();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof Exception)
+        throw (Exception) e.getCause();
+      throw e;
     }
   }
 
   /**
-   * Save the feature lists
-   * 
-   * @throws SAXException
-   * @throws TransformerConfigurationException
+   * @return number of threads set in the preferences
    */
-  private void savePeakLists(ZipOutputStream zipStream)
-      throws IOException, TransformerConfigurationException, SAXException {
-
-    PeakList peakLists[] = savedProject.getPeakLists();
-
-    for (int i = 0; i < peakLists.length; i++) {
-
-      if (isCanceled())
-        return;
+  private int getMaxThreads() {
+    return MZmineCore.getConfiguration().getPreferences()
+        .getParameter(MZminePreferences.numOfThreads).getNumberOfThreads();
+  }
 
-      logger.info("Saving feature list: " + peakLists[i].getName());
+  /**
+   * Save the configuration file.
+   */
+  private void saveConfiguration(OutputStream os) {
 
-      String peakListSavedName = "Peak list #" + (i + 1) + " " + peakLists[i].getName();
+    logger.info("Saving configuration file");
 
-      zipStream.putNextEntry(new ZipEntry(peakListSavedName + ".xml"));
+    try {
+      File tempConfigFile = File.createTempFile("mzmineconfig", ".tmp");
+      MZmineCore.getConfiguration().saveConfiguration(tempConfigFile);
+      FileInputStream fileStream = new FileInputStream(tempConfigFile);
 
-      peakListSaveHandler = new PeakListSaveHandler(zipStream, dataFilesIDMap);
+      StreamCopy copyMachine = new StreamCopy();
+      copyMachine.copy(fileStream, os);
 
-      currentSavedObjectName = peakLists[i].getName();
-      peakListSaveHandler.savePeakList(peakLists[i]);
-      finishedSaveItems++;
+      fileStream.close();
+      tempConfigFile.delete();
+    } catch (Exception e) {
+      e.printStackTrace();
+      logger.warning("Could not save configuration" + ExceptionUtils.exceptionToString(e));
     }
+
   }
 
   /**
-   * Save the feature lists
-   * 
-   * @throws SAXException
-   * @throws TransformerConfigurationException
+   * Save the user parameters
    */
-  private void saveUserParameters(ZipOutputStream zipStream)
-      throws IOException, TransformerConfigurationException, SAXException {
-
-    if (isCanceled())
-      return;
+  private void saveUserParameters(OutputStream os) throws Exception {
 
     logger.info("Saving user parameters");
 
-    zipStream.putNextEntry(new ZipEntry(PARAMETERS_FILENAME));
-
-    userParameterSaveHandler =
-        new UserParameterSaveHandler(zipStream, savedProject, dataFilesIDMap);
-
-    currentSavedObjectName = "User parameters";
+    userParameterSaveHandler = new UserParameterSaveHandler(os, savedProject, dataFilesIDMap);
     userParameterSaveHandler.saveParameters();
 
   }
@@ -20,12 +20,10 @@ package net.sf.mzmine.modules.projectmethods.projectsave;
 
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.util.Map;
 import java.util.TreeMap;
 import java.util.logging.Logger;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
 
 import javax.xml.transform.OutputKeys;
 import javax.xml.transform.Transformer;
@@ -47,82 +45,89 @@ import com.google.common.collect.Range;
 
 class RawDataFileSaveHandler {
 
+  // The scan data are aligned to memory pages in the project file, so they can be mapped in place
+  static final int SCANS_ALIGNMENT = 4096;
+
   private Logger logger = Logger.getLogger(this.getClass().getName());
-  private int numOfScans, completedScans;
-  private ZipOutputStream zipOutputStream;
+  private final RawDataFileImpl rawDataFile;
+  private final int numOfScans;
   private boolean canceled = false;
-  private Map<Integer, Long> dataPointsOffsets;
-  private Map<Integer, Long> consolidatedDataPointsOffsets;
-  private Map<Integer, Integer> dataPointsLengths;
+  private final Map<Integer, Integer> dataPointsLengths;
+  private final Map<Integer, Long> consolidatedDataPointsOffsets;
+  private final long scansSize;
   private double progress = 0;
 
-  RawDataFileSaveHandler(ZipOutputStream zipOutputStream) {
-    this.zipOutputStream = zipOutputStream;
-  }
-
   /**
-   * Copy the data points file of the raw data file from the temporary folder to the zip file.
-   * Create an XML file which contains the description of the same raw data file an copy it into the
-   * same zip file.
-   * 
-   * @param rawDataFile raw data file to be copied
-   * @param rawDataSavedName name of the raw data inside the zip file
-   * @throws java.io.IOException
-   * @throws TransformerConfigurationException
-   * @throws SAXException
+   * Takes a snapshot of the structure of the data points file of the given raw data file. The scan
+   * data and the description of the raw data file may then be written independently, in any order.
    */
-  void writeRawDataFile(RawDataFileImpl rawDataFile, int number)
-      throws IOException, TransformerConfigurationException, SAXException {
+  RawDataFileSaveHandler(RawDataFileImpl rawDataFile) {
 
-    numOfScans = rawDataFile.getNumOfScans();
+    this.rawDataFile = rawDataFile;
+    this.numOfScans = rawDataFile.getNumOfScans();
 
-    // Get the structure of the data points file
-    dataPointsOffsets = rawDataFile.getDataPointsOffsets();
-    dataPointsLengths = rawDataFile.getDataPointsLengths();
+    // We save only those data points that still have a reference in the
+    // dataPointsOffset table. Some deleted mass lists may still be present
+    // in the data points file, we don't want to copy those.
+    // The data points are always saved uncompressed, even if they are compressed in the
+    // temporary file, so their consolidated offsets are known in advance.
+    dataPointsLengths = new TreeMap<Integer, Integer>(rawDataFile.getDataPointsLengths());
     consolidatedDataPointsOffsets = new TreeMap<Integer, Long>();
+    long newOffset = 0;
+    for (Map.Entry<Integer, Integer> entry : dataPointsLengths.entrySet()) {
+      consolidatedDataPointsOffsets.put(entry.getKey(), newOffset);
+      newOffset += entry.getValue() * 2L * 4L;
+    }
+    scansSize = newOffset;
+  }
 
-    // step 1 - save data file
-    logger.info("Saving data points of: " + rawDataFile.getName());
+  /**
+   * @return size of the scan data in bytes
+   */
+  long getScansSize() {
+    return scansSize;
+  }
 
-    String rawDataSavedName = "Raw data file #" + number + " " + rawDataFile.getName();
+  /**
+   * Copies the data points of the raw data file from the temporary file to the given stream. The
+   * ZIP entry of the scan data is not compressed, so it can be memory-mapped when the project is
+   * loaded (see ProjectOpeningTask).
+   */
+  void writeScans(OutputStream os) throws IOException {
 
-    zipOutputStream.putNextEntry(new ZipEntry(rawDataSavedName + ".scans"));
+    logger.info("Saving data points of: " + rawDataFile.getName());
 
-    // We save only those data points that still have a reference in the
-    // dataPointsOffset table. Some deleted mass lists may still be present
-    // in the data points file, we don't want to copy those.
-    long newOffset = 0;
+    final int numOfStoredDataPoints = dataPointsLengths.size();
     byte buffer[] = new byte[1 << 20];
-    RandomAccessFile dataPointsFile = rawDataFile.getDataPointsFile();
-    for (Integer storageID : dataPointsOffsets.keySet()) {
+    int savedDataPoints = 0;
+    for (Map.Entry<Integer, Integer> entry : dataPointsLengths.entrySet()) {
 
       if (canceled)
         return;
 
-      final long offset = dataPointsOffsets.get(storageID);
-      dataPointsFile.seek(offset);
-
-      final int bytes = dataPointsLengths.get(storageID) * 4 * 2;
-      consolidatedDataPointsOffsets.put(storageID, newOffset);
+      ByteBuffer storedBytes = rawDataFile.readStoredBytes(entry.getKey());
+      final int bytes = storedBytes.remaining();
+      if (bytes != entry.getValue() * 2 * 4)
+        throw new IOException("Data points of " + rawDataFile.getName() + " changed while saving");
       if (buffer.length < bytes) {
         buffer = new byte[bytes * 2];
       }
-      dataPointsFile.read(buffer, 0, bytes);
-      zipOutputStream.write(buffer, 0, bytes);
-      newOffset += bytes;
-      progress = 0.9 * ((double) offset / dataPointsFile.length());
+      storedBytes.get(buffer, 0, bytes);
+      os.write(buffer, 0, bytes);
+      savedDataPoints++;
+      progress = ((double) savedDataPoints / numOfStoredDataPoints);
     }
+  }
 
-    if (canceled)
-      return;
+  /**
+   * Writes the XML description of the raw data file to the given stream
+   */
+  void writeDescription(OutputStream os)
+      throws IOException, TransformerConfigurationException, SAXException {
 
-    // step 2 - save raw data description
     logger.info("Saving raw data description of: " + rawDataFile.getName());
 
-    zipOutputStream.putNextEntry(new ZipEntry(rawDataSavedName + ".xml"));
-    OutputStream finalStream = zipOutputStream;
-
-    StreamResult streamResult = new StreamResult(finalStream);
+    StreamResult streamResult = new StreamResult(os);
     SAXTransformerFactory tf = (SAXTransformerFactory) SAXTransformerFactory.newInstance();
 
     TransformerHandler hd = tf.newTransformerHandler();
@@ -158,10 +163,10 @@ class RawDataFileSaveHandler {
 
     // <STORED_DATAPOINTS>
     atts.addAttribute("", "", RawDataElementName.QUANTITY.getElementName(), "CDATA",
-        String.valueOf(dataPointsOffsets.size()));
+        String.valueOf(dataPointsLengths.size()));
     hd.startElement("", "", RawDataElementName.STORED_DATAPOINTS.getElementName(), atts);
     atts.clear();
-    for (Integer storageID : dataPointsOffsets.keySet()) {
+    for (Integer storageID : dataPointsLengths.keySet()) {
       if (canceled)
         return;
       int length = dataPointsLengths.get(storageID);
@@ -197,8 +202,6 @@ class RawDataFileSaveHandler {
       fillScanElement(scan, hd);
       hd.endElement("", "", RawDataElementName.SCAN.getElementName());
       atts.clear();
-      completedScans++;
-      progress = 0.9 + (0.1 * ((double) completedScans / numOfScans));
     }
 
     hd.endElement("", "", RawDataElementName.RAWDATA.getElementName());
@@ -311,7 +314,7 @@ class RawDataFileSaveHandler {
 
   /**
    * 
-   * @return the progress of these functions saving the raw data information to the zip file.
+   * @return the progress of writing the scan data
    */
   double getProgress() {
     return progress;
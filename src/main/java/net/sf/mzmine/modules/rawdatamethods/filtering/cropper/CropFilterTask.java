@@ -31,6 +31,7 @@ import net.sf.mzmine.datamodel.impl.SimpleScan;
 import net.sf.mzmine.main.MZmineCore;
 import net.sf.mzmine.parameters.ParameterSet;
 import net.sf.mzmine.parameters.parametertypes.selectors.ScanSelection;
+import net.sf.mzmine.project.impl.RawDataFileImpl;
 import net.sf.mzmine.taskcontrol.AbstractTask;
 import net.sf.mzmine.taskcontrol.TaskStatus;
 
@@ -84,18 +85,21 @@ public class CropFilterTask extends AbstractTask {
       RawDataFileWriter rawDataFileWriter =
           MZmineCore.createNewFile(dataFile.getName() + " " + suffix);
 
+      // Scans of the original file are referenced by the new file, not copied (see RawDataFileImpl)
       for (Scan scan : scans) {
 
-        SimpleScan scanCopy = new SimpleScan(scan);
-
         // Check if we have something to crop
-        if (!mzRange.encloses(scan.getDataPointMZRange())) {
+        if (mzRange.encloses(scan.getDataPointMZRange())) {
+          rawDataFileWriter.addScan(scan);
+        } else if (rawDataFileWriter instanceof RawDataFileImpl) {
+          ((RawDataFileImpl) rawDataFileWriter).addScan(scan, mzRange);
+        } else {
+          SimpleScan scanCopy = new SimpleScan(scan);
           DataPoint croppedDataPoints[] = scan.getDataPointsByMass(mzRange);
           scanCopy.setDataPoints(croppedDataPoints);
+          rawDataFileWriter.addScan(scanCopy);
         }
 
-        rawDataFileWriter.addScan(scanCopy);
-
         processedScans++;
       }
 
@@ -19,6 +19,7 @@
 package net.sf.mzmine.modules.rawdatamethods.filtering.scanfilters;
 
 import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
 import java.util.logging.Logger;
 import net.sf.mzmine.datamodel.MZmineProject;
 import net.sf.mzmine.datamodel.RawDataFile;
@@ -30,6 +31,7 @@ import net.sf.mzmine.parameters.ParameterSet;
 import net.sf.mzmine.parameters.parametertypes.selectors.ScanSelection;
 import net.sf.mzmine.taskcontrol.AbstractTask;
 import net.sf.mzmine.taskcontrol.TaskStatus;
+import net.sf.mzmine.util.scans.ScanProcessingPipeline;
 
 class ScanFilteringTask extends AbstractTask {
 
@@ -39,8 +41,9 @@ class ScanFilteringTask extends AbstractTask {
   private RawDataFile dataFile, filteredRawDataFile;
 
   // scan counter
-  private int processedScans = 0, totalScans;
+  private int totalScans;
   private int[] scanNumbers;
+  private volatile ScanProcessingPipeline pipeline;
 
   // User parameters
   private String suffix;
@@ -50,7 +53,7 @@ class ScanFilteringTask extends AbstractTask {
   private MZmineProcessingStep<ScanFilter> rawDataFilter;
 
   private ScanSelection select;
-
+  private boolean useParallel;
 
   /**
    * @param dataFile
@@ -65,6 +68,7 @@ class ScanFilteringTask extends AbstractTask {
 
     suffix = parameters.getParameter(ScanFiltersParameters.suffix).getValue();
     select = parameters.getParameter(ScanFiltersParameters.scanSelect).getValue();
+    useParallel = parameters.getParameter(ScanFiltersParameters.useParallel).getValue();
 
   }
 
@@ -81,10 +85,10 @@ class ScanFilteringTask extends AbstractTask {
    */
   @Override
   public double getFinishedPercentage() {
-    if (totalScans == 0) {
+    if ((totalScans == 0) || (pipeline == null)) {
       return 0;
     } else {
-      return (double) processedScans / totalScans;
+      return (double) pipeline.getProcessedScans() / totalScans;
     }
   }
 
@@ -105,6 +109,8 @@ class ScanFilteringTask extends AbstractTask {
     scanNumbers = dataFile.getScanNumbers();
     totalScans = scanNumbers.length;
 
+    ForkJoinPool pool = null;
+
     try {
 
       // Create new raw data file
@@ -112,25 +118,23 @@ class ScanFilteringTask extends AbstractTask {
       String newName = dataFile.getName() + " " + suffix;
       RawDataFileWriter rawDataFileWriter = MZmineCore.createNewFile(newName);
 
-      for (int i = 0; i < totalScans; i++) {
-
-        if (isCanceled()) {
-          return;
-        }
+      // Filter the selected scans, the other scans are copied
+      final ScanFilter filter = rawDataFilter.getModule();
+      final ParameterSet filterParameters = rawDataFilter.getParameterSet();
+      pipeline = new ScanProcessingPipeline(dataFile, scanNumbers);
+      if (useParallel)
+        pool = MZmineCore.getTaskController().getParallelPool();
 
-
-        Scan scan = dataFile.getScan(scanNumbers[i]);
-        Scan newScan = null;
+      boolean completed = pipeline.run((window, i) -> {
+        Scan scan = window.getScan(i);
         if (select.matches(scan))
-          newScan = rawDataFilter.getModule().filterScan(scan, rawDataFilter.getParameterSet());
+          return filter.filterScan(scan, filterParameters);
         else
-          newScan = scan;
-
-        if (newScan != null) {
-          rawDataFileWriter.addScan(newScan);
-        }
+          return scan;
+      }, pool, rawDataFileWriter, this);
 
-        processedScans++;
+      if (!completed) {
+        return;
       }
 
       // Finalize writing
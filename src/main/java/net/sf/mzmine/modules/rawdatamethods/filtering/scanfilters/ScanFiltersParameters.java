@@ -51,8 +51,12 @@ public class ScanFiltersParameters extends SimpleParameterSet {
       new BooleanParameter("Remove source file after filtering",
           "If checked, original file will be removed and only filtered version remains");
 
+  public static final BooleanParameter useParallel = new BooleanParameter("Parallel",
+      "Filter the scans in parallel, using the number of threads set in the preferences. The filtered file is the same as on a single thread.",
+      false);
+
   public ScanFiltersParameters() {
-    super(new Parameter[] {dataFiles, scanSelect, suffix, filter, autoRemove});
+    super(new Parameter[] {dataFiles, scanSelect, suffix, filter, autoRemove, useParallel});
   }
 
 }
@@ -25,13 +25,13 @@ import javax.annotation.Nonnull;
 import net.sf.mzmine.datamodel.MZmineProject;
 import net.sf.mzmine.datamodel.RawDataFile;
 import net.sf.mzmine.modules.MZmineModuleCategory;
-import net.sf.mzmine.modules.MZmineProcessingModule;
+import net.sf.mzmine.modules.MZmineSampleProcessingModule;
 import net.sf.mzmine.parameters.ParameterSet;
 import net.sf.mzmine.parameters.parametertypes.selectors.RawDataFilesParameter;
 import net.sf.mzmine.taskcontrol.Task;
 import net.sf.mzmine.util.ExitCode;
 
-public class ScanSmoothingModule implements MZmineProcessingModule {
+public class ScanSmoothingModule implements MZmineSampleProcessingModule {
 
   private static final String MODULE_NAME = "Scan smoothing (LC/MS or MS level 1)";
   private static final String MODULE_DESCRIPTION =
@@ -57,9 +57,13 @@ public class ScanSmoothingParameters extends SimpleParameterSet {
   public static final StringParameter suffix =
       new StringParameter("Suffix", "This string is added to filename as suffix", "smooth");
 
+  public static final BooleanParameter useParallel = new BooleanParameter("Parallel",
+      "Smooth the scans in parallel, using the number of threads set in the preferences. The smoothed file is the same as on a single thread.",
+      false);
+
   public ScanSmoothingParameters() {
     super(new Parameter[] {dataFiles, suffix, timeSpan, scanSpan, mzTolerance, mzPoints,
-        minimumHeight, removeOld});
+        minimumHeight, removeOld, useParallel});
   }
 
 }
@@ -19,6 +19,8 @@
 package net.sf.mzmine.modules.rawdatamethods.filtering.scansmoothing;
 
 import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
 import net.sf.mzmine.datamodel.DataPoint;
@@ -32,6 +34,8 @@ import net.sf.mzmine.main.MZmineCore;
 import net.sf.mzmine.parameters.ParameterSet;
 import net.sf.mzmine.taskcontrol.AbstractTask;
 import net.sf.mzmine.taskcontrol.TaskStatus;
+import net.sf.mzmine.util.scans.ScanProcessingPipeline;
+import net.sf.mzmine.util.scans.ScanProcessingPipeline.ScanWindow;
 
 public class ScanSmoothingTask extends AbstractTask {
 
@@ -41,8 +45,12 @@ public class ScanSmoothingTask extends AbstractTask {
   private final RawDataFile dataFile;
 
   // scan counter
-  private int processedScans = 0, totalScans;
+  private int totalScans;
   private int[] scanNumbers;
+  private volatile ScanProcessingPipeline pipeline;
+
+  // Number of scans smoothed in time and m/z space
+  private final AtomicInteger timepassed = new AtomicInteger(), mzpassed = new AtomicInteger();
 
   // User parameters
   private String suffix;
@@ -51,6 +59,7 @@ public class ScanSmoothingTask extends AbstractTask {
   private int mzPoints;
   private double mzTol;
   private boolean removeOriginal;
+  private boolean useParallel;
   RawDataFile newRDF = null;
 
   /**
@@ -69,6 +78,7 @@ public class ScanSmoothingTask extends AbstractTask {
     this.minimumHeight = parameters.getParameter(ScanSmoothingParameters.minimumHeight).getValue();
     this.suffix = parameters.getParameter(ScanSmoothingParameters.suffix).getValue();
     this.removeOriginal = parameters.getParameter(ScanSmoothingParameters.removeOld).getValue();
+    this.useParallel = parameters.getParameter(ScanSmoothingParameters.useParallel).getValue();
 
   }
 
@@ -83,10 +93,10 @@ public class ScanSmoothingTask extends AbstractTask {
    * @see net.sf.mzmine.taskcontrol.Task#getFinishedPercentage()
    */
   public double getFinishedPercentage() {
-    if (totalScans == 0)
+    if ((totalScans == 0) || (pipeline == null))
       return 0;
     else
-      return (double) processedScans / totalScans;
+      return (double) pipeline.getProcessedScans() / totalScans;
   }
 
   public RawDataFile getDataFile() {
@@ -106,139 +116,15 @@ public class ScanSmoothingTask extends AbstractTask {
     totalScans = scanNumbers.length;
 
     RawDataFileWriter newRDFW = null;
-    int timepassed = 0;
-    int mzpassed = 0;
+    ForkJoinPool pool = null;
     try {
       newRDFW = MZmineCore.createNewFile(dataFile.getName() + ' ' + suffix);
 
-      DataPoint mzValues[][] = null; // [relative scan][j value]
-      int i, j, si, sj, ii, k, ssi, ssj;
-      for (i = 0; i < totalScans; i++) {
-
-        if (isCanceled())
-          return;
-
-        // Smoothing in TIME space
-        Scan scan = dataFile.getScan(scanNumbers[i]);
-        if (scan != null) {
-          double rt = scan.getRetentionTime();
-          final SimpleScan newScan = new SimpleScan(scan);
-          DataPoint[] newDP = null;
-          sj = si = i;
-          ssi = ssj = i;
-          if (timeSpan > 0 || scanSpan > 0) {
-            double timeMZtol = Math.max(mzTol, 1e-5);
-            for (si = i; si > 1; si--) {
-              Scan scanS = dataFile.getScan(scanNumbers[si - 1]);
-              if (scanS == null || scanS.getRetentionTime() < rt - timeSpan / 2) {
-                break;
-              }
-            }
-            for (sj = i; sj < totalScans - 1; sj++) {
-              Scan scanS = dataFile.getScan(scanNumbers[sj + 1]);
-              if (scanS == null || scanS.getRetentionTime() >= rt + timeSpan / 2) {
-                break;
-              }
-            }
-            ssi = i - (scanSpan - 1) / 2;
-            ssj = i + (scanSpan - 1) / 2;
-            if (ssi < 0) {
-              ssj += -ssi;
-              ssi = 0;
-            }
-            if (ssj >= totalScans) {
-              ssi -= (ssj - totalScans + 1);
-              ssj = totalScans - 1;
-            }
-            if (sj - si + 1 < scanSpan) {
-              si = ssi;
-              sj = ssj;
-              // si = Math.min(si, ssi);
-              // sj = Math.max(sj, ssj);
-            }
-            if (sj > si) {
-              timepassed++;
-              // Allocate
-              if (mzValues == null || mzValues.length < sj - si + 1)
-                mzValues = new DataPoint[sj - si + 1][];
-              // Load Data Points
-              for (j = si; j <= sj; j++) {
-                Scan xscan = dataFile.getScan(scanNumbers[j]);
-                mzValues[j - si] = xscan.getDataPoints();
-              }
-              // Estimate Averages
-              ii = i - si;
-              newDP = new DataPoint[mzValues[ii].length];
-              for (k = 0; k < mzValues[ii].length; k++) {
-                DataPoint dp = mzValues[ii][k];
-                double mz = dp.getMZ();
-                double intensidad = 0;
-                if (dp.getIntensity() > 0) { // only process
-                  // those > 0
-                  double a = 0;
-                  short c = 0;
-                  int f = 0;
-                  for (j = 0; j < mzValues.length; j++) {
-                    // System.out.println(j);
-                    if (mzValues[j].length > k
-                        && Math.abs(mzValues[j][k].getMZ() - mz) < timeMZtol) {
-                      f = k;
-                    } else {
-                      f = findFirstMass(mz, mzValues[j]);
-                      if (Math.abs(mzValues[j][f].getMZ() - mz) > timeMZtol) {
-                        f = -f;
-                      }
-                    }
-                    if (f >= 0 && mzValues[j][f].getIntensity() >= minimumHeight) {
-                      a += mzValues[j][f].getIntensity();
-                      c++;
-                    } else {
-                      c = (short) (c + 0);
-                    }
-                  }
-                  intensidad = c > 0 ? a / c : 0;
-                }
-                newDP[k] = new SimpleDataPoint(mz, intensidad);
-              }
-            }
-          } else if (scan != null) {
-            newDP = scan.getDataPoints();
-          }
-
-          // Smoothing in MZ space
-
-          if ((mzTol > 0 || mzPoints > 0)) {
-            mzpassed++;
-            DataPoint[] updatedDP = new DataPoint[newDP.length];
-            for (k = 0; k < newDP.length; k++) {
-              double mz = newDP[k].getMZ();
-              double intensidad = 0;
-              if (newDP[k].getIntensity() > 0) {
-                for (si = k; si > 0
-                    && (newDP[si].getMZ() + mzTol >= mz || k - si <= mzPoints); si--);
-                for (sj = k; sj < newDP.length - 1
-                    && (newDP[sj].getMZ() - mzTol <= mz || sj - k <= mzPoints); sj++);
-                double sum = 0;
-                for (j = si; j <= sj; j++) {
-                  sum += newDP[j].getIntensity();
-                }
-                intensidad = sum / (sj - si + 1);
-              }
-              updatedDP[k] = new SimpleDataPoint(mz, intensidad);
-            }
-            newDP = updatedDP;
-          }
-
-          // Register new smoothing data
-          if (scan != null && newDP != null) {
-            newScan.setDataPoints(newDP);
-            newRDFW.addScan(newScan);
-          }
-        }
-        processedScans++;
-      }
+      pipeline = new ScanProcessingPipeline(dataFile, scanNumbers);
+      if (useParallel)
+        pool = MZmineCore.getTaskController().getParallelPool();
 
-      if (!isCanceled()) {
+      if (pipeline.run(this::smoothScan, pool, newRDFW, this)) {
 
         // Finalize writing
         newRDF = newRDFW.finishWriting();
@@ -253,7 +139,7 @@ public class ScanSmoothingTask extends AbstractTask {
 
         setStatus(TaskStatus.FINISHED);
 
-        if (mzpassed + timepassed < totalScans / 2) {
+        if (mzpassed.get() + timepassed.get() < totalScans / 2) {
           logger.warning("It seems that parameters were not properly set. Scans processed : time="
               + timepassed + ", mz=" + mzpassed);
         }
@@ -268,6 +154,129 @@ public class ScanSmoothingTask extends AbstractTask {
 
   }
 
+  /**
+   * Smooths one scan, using the data points of the neighbouring scans
+   *
+   * @return smoothed scan, or null if the scan was not smoothed
+   */
+  private Scan smoothScan(ScanWindow window, int i) {
+
+    DataPoint mzValues[][] = null; // [relative scan][j value]
+    int j, si, sj, ii, k, ssi, ssj;
+
+    // Smoothing in TIME space
+    Scan scan = window.getScan(i);
+    if (scan == null)
+      return null;
+
+    double rt = scan.getRetentionTime();
+    final SimpleScan newScan = new SimpleScan(scan);
+    DataPoint[] newDP = null;
+    sj = si = i;
+    ssi = ssj = i;
+    if (timeSpan > 0 || scanSpan > 0) {
+      double timeMZtol = Math.max(mzTol, 1e-5);
+      for (si = i; si > 1; si--) {
+        Scan scanS = window.getScan(si - 1);
+        if (scanS == null || scanS.getRetentionTime() < rt - timeSpan / 2) {
+          break;
+        }
+      }
+      for (sj = i; sj < totalScans - 1; sj++) {
+        Scan scanS = window.getScan(sj + 1);
+        if (scanS == null || scanS.getRetentionTime() >= rt + timeSpan / 2) {
+          break;
+        }
+      }
+      ssi = i - (scanSpan - 1) / 2;
+      ssj = i + (scanSpan - 1) / 2;
+      if (ssi < 0) {
+        ssj += -ssi;
+        ssi = 0;
+      }
+      if (ssj >= totalScans) {
+        ssi -= (ssj - totalScans + 1);
+        ssj = totalScans - 1;
+      }
+      if (sj - si + 1 < scanSpan) {
+        si = ssi;
+        sj = ssj;
+        // si = Math.min(si, ssi);
+        // sj = Math.max(sj, ssj);
+      }
+      if (sj > si) {
+        timepassed.incrementAndGet();
+        // Load Data Points, decoded once for all scans in the window
+        mzValues = new DataPoint[sj - si + 1][];
+        for (j = si; j <= sj; j++) {
+          mzValues[j - si] = window.getDataPoints(j);
+        }
+        // Estimate Averages
+        ii = i - si;
+        newDP = new DataPoint[mzValues[ii].length];
+        for (k = 0; k < mzValues[ii].length; k++) {
+          DataPoint dp = mzValues[ii][k];
+          double mz = dp.getMZ();
+          double intensidad = 0;
+          if (dp.getIntensity() > 0) { // only process
+            // those > 0
+            double a = 0;
+            short c = 0;
+            int f = 0;
+            for (j = 0; j < mzValues.length; j++) {
+              if (mzValues[j].length > k && Math.abs(mzValues[j][k].getMZ() - mz) < timeMZtol) {
+                f = k;
+              } else {
+                f = findFirstMass(mz, mzValues[j]);
+                if (Math.abs(mzValues[j][f].getMZ() - mz) > timeMZtol) {
+                  f = -f;
+                }
+              }
+              if (f >= 0 && mzValues[j][f].getIntensity() >= minimumHeight) {
+                a += mzValues[j][f].getIntensity();
+                c++;
+              }
+            }
+            intensidad = c > 0 ? a / c : 0;
+          }
+          newDP[k] = new SimpleDataPoint(mz, intensidad);
+        }
+      }
+    } else {
+      newDP = scan.getDataPoints();
+    }
+
+    // Smoothing in MZ space
+
+    if ((mzTol > 0 || mzPoints > 0)) {
+      mzpassed.incrementAndGet();
+      DataPoint[] updatedDP = new DataPoint[newDP.length];
+      for (k = 0; k < newDP.length; k++) {
+        double mz = newDP[k].getMZ();
+        double intensidad = 0;
+        if (newDP[k].getIntensity() > 0) {
+          for (si = k; si > 0
+              && (newDP[si].getMZ() + mzTol >= mz || k - si <= mzPoints); si--);
+          for (sj = k; sj < newDP.length - 1
+              && (newDP[sj].getMZ() - mzTol <= mz || sj - k <= mzPoints); sj++);
+          double sum = 0;
+          for (j = si; j <= sj; j++) {
+            sum += newDP[j].getIntensity();
+          }
+          intensidad = sum / (sj - si + 1);
+        }
+        updatedDP[k] = new SimpleDataPoint(mz, intensidad);
+      }
+      newDP = updatedDP;
+    }
+
+    // Register new smoothing data
+    if (newDP == null)
+      return null;
+    newScan.setDataPoints(newDP);
+    return newScan;
+  }
+
   static int findFirstMass(double mass, DataPoint mzValues[]) {
     int l = 0;
     int r = mzValues.length - 1;
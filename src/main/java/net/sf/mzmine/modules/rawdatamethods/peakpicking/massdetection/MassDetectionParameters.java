@@ -32,6 +32,7 @@ import net.sf.mzmine.modules.rawdatamethods.peakpicking.massdetection.recursive.
 import net.sf.mzmine.modules.rawdatamethods.peakpicking.massdetection.wavelet.WaveletMassDetector;
 import net.sf.mzmine.parameters.Parameter;
 import net.sf.mzmine.parameters.impl.SimpleParameterSet;
+import net.sf.mzmine.parameters.parametertypes.BooleanParameter;
 import net.sf.mzmine.parameters.parametertypes.ModuleComboParameter;
 import net.sf.mzmine.parameters.parametertypes.OptionalParameter;
 import net.sf.mzmine.parameters.parametertypes.StringParameter;
@@ -71,8 +72,13 @@ public class MassDetectionParameters extends SimpleParameterSet {
   public static final OptionalParameter<FileNameParameter> outFilenameOption =
       new OptionalParameter<>(outFilename);
 
+  public static final BooleanParameter useParallel = new BooleanParameter("Parallel",
+      "Detect the masses of the scans in parallel, using the number of threads set in the preferences. The mass lists and the netCDF file are the same as on a single thread.",
+      false);
+
   public MassDetectionParameters() {
-    super(new Parameter[] {dataFiles, scanSelection, massDetector, name, outFilenameOption});
+    super(new Parameter[] {dataFiles, scanSelection, massDetector, name, outFilenameOption,
+        useParallel});
   }
 
   @Override
@@ -19,9 +19,13 @@
 package net.sf.mzmine.modules.rawdatamethods.peakpicking.massdetection;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
+import java.util.stream.IntStream;
 
 import net.sf.mzmine.datamodel.DataPoint;
 import net.sf.mzmine.datamodel.RawDataFile;
@@ -33,8 +37,12 @@ import net.sf.mzmine.modules.MZmineProcessingStep;
 import net.sf.mzmine.parameters.ParameterSet;
 import net.sf.mzmine.parameters.parametertypes.selectors.ScanSelection;
 import net.sf.mzmine.project.impl.MZmineProjectImpl;
+import net.sf.mzmine.project.impl.RawDataFileImpl;
+import net.sf.mzmine.project.impl.StorableMassList;
 import net.sf.mzmine.taskcontrol.AbstractTask;
 import net.sf.mzmine.taskcontrol.TaskStatus;
+import net.sf.mzmine.taskcontrol.metrics.MetricsRegistry;
+import net.sf.mzmine.taskcontrol.metrics.TaskMetrics;
 import ucar.ma2.ArrayDouble;
 import ucar.ma2.DataType;
 import ucar.nc2.Attribute;
@@ -49,6 +57,9 @@ public class MassDetectionTask extends AbstractTask {
   private final Logger logger = Logger.getLogger(this.getClass().getName());
   private final RawDataFile dataFile;
 
+  // Number of scans whose masses are detected and stored together in parallel mode
+  private static final int PARALLEL_BATCH_SIZE = 256;
+
   // scan counter
   private int processedScans = 0, totalScans = 0;
   private final ScanSelection scanSelection;
@@ -63,6 +74,8 @@ public class MassDetectionTask extends AbstractTask {
   private File outFilename;
   private boolean saveToCDF;
 
+  private boolean useParallel;
+
   /**
    * @param dataFile
    * @param parameters
@@ -81,6 +94,8 @@ public class MassDetectionTask extends AbstractTask {
 
     this.outFilename = MassDetectionParameters.outFilenameOption.getEmbeddedParameter().getValue();
 
+    this.useParallel = parameters.getParameter(MassDetectionParameters.useParallel).getValue();
+
   }
 
   /**
@@ -126,6 +141,9 @@ public class MassDetectionTask extends AbstractTask {
 
     startIndex.add(0);
 
+    ForkJoinPool pool = null;
+    Future<DataPoint[][]> nextBatch = null;
+
     try {
 
 
@@ -135,39 +153,60 @@ public class MassDetectionTask extends AbstractTask {
 
       final Scan scans[] = scanSelection.getMatchingScans(dataFile);
       totalScans = scans.length;
-      // Process scans one by one
-      for (Scan scan : scans) {
+
+      // Process scans one by one, or in batches of scans in parallel. The masses of the next batch
+      // are detected while the mass lists of the current one are stored.
+      final int batchSize = useParallel ? PARALLEL_BATCH_SIZE : 1;
+      if (useParallel) {
+        pool = MZmineCore.getTaskController().getParallelPool();
+        nextBatch = detectMasses(pool, scans, 0, Math.min(batchSize, scans.length));
+      }
+
+      for (int batchStart = 0; batchStart < scans.length; batchStart += batchSize) {
+
+        final int batchEnd = Math.min(batchStart + batchSize, scans.length);
+        final DataPoint batchMassValues[][];
+        if (useParallel) {
+          batchMassValues = nextBatch.get();
+          if (batchEnd < scans.length)
+            nextBatch = detectMasses(pool, scans, batchEnd,
+                Math.min(batchEnd + batchSize, scans.length));
+        } else {
+          MassDetector detector = massDetector.getModule();
+          batchMassValues = new DataPoint[][] {
+              detector.getMassValues(scans[batchStart], massDetector.getParameterSet())};
+        }
 
         if (isCanceled())
           return;
 
-        MassDetector detector = massDetector.getModule();
-        DataPoint mzPeaks[] = detector.getMassValues(scan, massDetector.getParameterSet());
+        // Add new mass lists to the scans
+        addMassLists(scans, batchStart, batchMassValues);
 
-        SimpleMassList newMassList = new SimpleMassList(name, scan, mzPeaks);
+        for (int i = batchStart; i < batchEnd; i++) {
+          final Scan scan = scans[i];
+          final DataPoint mzPeaks[] = batchMassValues[i - batchStart];
 
-        // Add new mass list to the scan
-        scan.addMassList(newMassList);
+          if (this.saveToCDF) {
 
-        if (this.saveToCDF) {
+            curTotalIntensity = 0;
+            for (int a = 0; a < mzPeaks.length; a++) {
+              DataPoint curMzPeak = mzPeaks[a];
+              allMZ.add(curMzPeak.getMZ());
+              allIntensities.add(curMzPeak.getIntensity());
+              curTotalIntensity += curMzPeak.getIntensity();
+            }
 
-          curTotalIntensity = 0;
-          for (int a = 0; a < mzPeaks.length; a++) {
-            DataPoint curMzPeak = mzPeaks[a];
-            allMZ.add(curMzPeak.getMZ());
-            allIntensities.add(curMzPeak.getIntensity());
-            curTotalIntensity += curMzPeak.getIntensity();
-          }
+            scanAcquisitionTime.add(scan.getRetentionTime());
+            pointsInScans.add(0);
+            startIndex.add(mzPeaks.length + lastPointCount);
+            totalIntensity.add(curTotalIntensity);
 
-          scanAcquisitionTime.add(scan.getRetentionTime());
-          pointsInScans.add(0);
-          startIndex.add(mzPeaks.length + lastPointCount);
-          totalIntensity.add(curTotalIntensity);
+            lastPointCount = mzPeaks.length + lastPointCount;
+          }
 
-          lastPointCount = mzPeaks.length + lastPointCount;
+          processedScans++;
         }
-
-        processedScans++;
       }
 
       // Update the GUI with all new mass lists
@@ -282,6 +321,10 @@ public class MassDetectionTask extends AbstractTask {
       e.printStackTrace();
       setErrorMessage(e.getMessage());
       setStatus(TaskStatus.ERROR);
+    } finally {
+      // The pool is shared with other tasks, so only the pending batch is stopped
+      if (nextBatch != null)
+        nextBatch.cancel(true);
     }
 
     setStatus(TaskStatus.FINISHED);
@@ -290,4 +333,45 @@ public class MassDetectionTask extends AbstractTask {
 
 
   }
+
+  /**
+   * Detects the masses of the given range of scans in parallel
+   */
+  private Future<DataPoint[][]> detectMasses(ForkJoinPool pool, Scan scans[], int firstScan,
+      int lastScan) {
+    final MassDetector detector = massDetector.getModule();
+    final ParameterSet detectorParameters = massDetector.getParameterSet();
+    final TaskMetrics metrics = MetricsRegistry.getCurrentTask();
+    return pool.submit(() -> {
+      final DataPoint massValues[][] = new DataPoint[lastScan - firstScan][];
+      IntStream.range(firstScan, lastScan).parallel().forEach(i -> {
+        if (!isCanceled())
+          MetricsRegistry.runAs(metrics, () -> massValues[i - firstScan] =
+              detector.getMassValues(scans[i], detectorParameters));
+      });
+      return massValues;
+    });
+  }
+
+  /**
+   * Adds the detected masses to the scans as new mass lists. If there are several scans of a raw
+   * data file, their mass lists are stored with a single write to the temporary file.
+   */
+  private void addMassLists(Scan scans[], int firstScan, DataPoint massValues[][])
+      throws IOException {
+    if ((massValues.length > 1) && (dataFile instanceof RawDataFileImpl)) {
+      final RawDataFileImpl rawDataFile = (RawDataFileImpl) dataFile;
+      final int storageIDs[] = rawDataFile.storeDataPoints(massValues);
+      for (int i = 0; i < massValues.length; i++) {
+        final Scan scan = scans[firstScan + i];
+        scan.addMassList(new StorableMassList(rawDataFile, storageIDs[i], name, scan));
+      }
+    } else {
+      for (int i = 0; i < massValues.length; i++) {
+        final Scan scan = scans[firstScan + i];
+        scan.addMassList(new SimpleMassList(name, scan, massValues[i]));
+      }
+    }
+  }
+
 }
@@ -20,11 +20,12 @@ package net.sf.mzmine.modules.rawdatamethods.peakpicking.massdetection.centroid;
 
 import net.sf.mzmine.datamodel.DataPoint;
 import net.sf.mzmine.datamodel.Scan;
+import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
 import net.sf.mzmine.modules.rawdatamethods.peakpicking.massdetection.MassDetector;
 import net.sf.mzmine.parameters.ParameterSet;
+import net.sf.mzmine.util.scans.SpectrumBuffer;
 
 import javax.annotation.Nonnull;
-import java.util.ArrayList;
 
 /**
  * Remove peaks below the given noise level.
@@ -33,27 +34,55 @@ import java.util.ArrayList;
  */
 public class CentroidMassDetector implements MassDetector {
 
+  // Reusable arrays, one set per processing thread
+  private static final ThreadLocal<SpectrumBuffer> scanBuffer =
+      ThreadLocal.withInitial(SpectrumBuffer::new);
+  private static final ThreadLocal<double[][]> dataPointsBuffer =
+      ThreadLocal.withInitial(() -> new double[2][0]);
+
   public DataPoint[] getMassValues(Scan scan, ParameterSet parameters) {
-    return getMassValues(scan.getDataPoints(), parameters);
+    // Read the scan into primitive arrays, so that DataPoint instances are only created for the
+    // detected masses
+    final SpectrumBuffer buffer = scanBuffer.get().load(scan);
+    return getMassValues(buffer.getMzValues(), buffer.getIntensityValues(),
+        buffer.getNumberOfDataPoints(), parameters);
   }
-  
+
   public DataPoint[] getMassValues(DataPoint dataPoints[], ParameterSet parameters) {
+    final int length = dataPoints.length;
+    double buffers[][] = dataPointsBuffer.get();
+    if (buffers[0].length < length) {
+      buffers = new double[][] {new double[length], new double[length]};
+      dataPointsBuffer.set(buffers);
+    }
+    final double mzValues[] = buffers[0];
+    final double intensityValues[] = buffers[1];
+    for (int i = 0; i < length; i++) {
+      mzValues[i] = dataPoints[i].getMZ();
+      intensityValues[i] = dataPoints[i].getIntensity();
+    }
+    return getMassValues(mzValues, intensityValues, length, parameters);
+  }
+
+  private DataPoint[] getMassValues(double mzValues[], double intensityValues[],
+      int numOfDataPoints, ParameterSet parameters) {
 
     double noiseLevel =
         parameters.getParameter(CentroidMassDetectorParameters.noiseLevel).getValue();
 
-    ArrayList<DataPoint> mzPeaks = new ArrayList<DataPoint>();
-
-    // Find possible mzPeaks
-    for (int j = 0; j < dataPoints.length; j++) {
+    int numOfPeaks = 0;
+    for (int j = 0; j < numOfDataPoints; j++) {
+      if (intensityValues[j] >= noiseLevel)
+        numOfPeaks++;
+    }
 
-      // Is intensity above the noise level?
-      if (dataPoints[j].getIntensity() >= noiseLevel) {
-        // Yes, then mark this index as mzPeak
-        mzPeaks.add(dataPoints[j]);
-      }
+    DataPoint mzPeaks[] = new DataPoint[numOfPeaks];
+    int peakIndex = 0;
+    for (int j = 0; j < numOfDataPoints; j++) {
+      if (intensityValues[j] >= noiseLevel)
+        mzPeaks[peakIndex++] = new SimpleDataPoint(mzValues[j], intensityValues[j]);
     }
-    return mzPeaks.toArray(new DataPoint[0]);
+    return mzPeaks;
   }
 
   public @Nonnull String getName() {
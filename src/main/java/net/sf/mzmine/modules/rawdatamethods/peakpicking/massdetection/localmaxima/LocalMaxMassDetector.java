@@ -24,19 +24,48 @@ import javax.annotation.Nonnull;
 
 import net.sf.mzmine.datamodel.DataPoint;
 import net.sf.mzmine.datamodel.Scan;
+import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
 import net.sf.mzmine.modules.rawdatamethods.peakpicking.massdetection.MassDetector;
 import net.sf.mzmine.parameters.ParameterSet;
+import net.sf.mzmine.util.scans.SpectrumBuffer;
 
 /**
  * This class detects all local maxima in a given scan.
  */
 public class LocalMaxMassDetector implements MassDetector {
-  
+
+  // Reusable arrays, one set per processing thread
+  private static final ThreadLocal<SpectrumBuffer> scanBuffer =
+      ThreadLocal.withInitial(SpectrumBuffer::new);
+  private static final ThreadLocal<double[][]> dataPointsBuffer =
+      ThreadLocal.withInitial(() -> new double[2][0]);
+
   public DataPoint[] getMassValues(Scan scan, ParameterSet parameters) {
-    return getMassValues(scan.getDataPoints(), parameters);
+    // Read the scan into primitive arrays, so that DataPoint instances are only created for the
+    // detected masses
+    final SpectrumBuffer buffer = scanBuffer.get().load(scan);
+    return getMassValues(buffer.getMzValues(), buffer.getIntensityValues(),
+        buffer.getNumberOfDataPoints(), parameters);
   }
 
   public DataPoint[] getMassValues(DataPoint dataPoints[], ParameterSet parameters) {
+    final int length = dataPoints.length;
+    double buffers[][] = dataPointsBuffer.get();
+    if (buffers[0].length < length) {
+      buffers = new double[][] {new double[length], new double[length]};
+      dataPointsBuffer.set(buffers);
+    }
+    final double mzValues[] = buffers[0];
+    final double intensityValues[] = buffers[1];
+    for (int i = 0; i < length; i++) {
+      mzValues[i] = dataPoints[i].getMZ();
+      intensityValues[i] = dataPoints[i].getIntensity();
+    }
+    return getMassValues(mzValues, intensityValues, length, parameters);
+  }
+
+  private DataPoint[] getMassValues(double mzValues[], double intensityValues[],
+      int numOfDataPoints, ParameterSet parameters) {
 
     double noiseLevel =
         parameters.getParameter(LocalMaxMassDetectorParameters.noiseLevel).getValue();
@@ -44,20 +73,18 @@ public class LocalMaxMassDetector implements MassDetector {
     // List of found mz peaks
     ArrayList<DataPoint> mzPeaks = new ArrayList<DataPoint>();
 
-    // All data points of current m/z peak
-
-    // Top data point of current m/z peak
-    DataPoint currentMzPeakTop = null;
+    // Index of the top data point of current m/z peak
+    int currentMzPeakTop = -1;
 
     // True if we haven't reached the current local maximum yet
     boolean ascending = true;
 
     // Iterate through all data points
-    for (int i = 0; i < dataPoints.length - 1; i++) {
+    for (int i = 0; i < numOfDataPoints - 1; i++) {
 
-      boolean nextIsBigger = dataPoints[i + 1].getIntensity() > dataPoints[i].getIntensity();
-      boolean nextIsZero = dataPoints[i + 1].getIntensity() == 0;
-      boolean currentIsZero = dataPoints[i].getIntensity() == 0;
+      boolean nextIsBigger = intensityValues[i + 1] > intensityValues[i];
+      boolean nextIsZero = intensityValues[i + 1] == 0;
+      boolean currentIsZero = intensityValues[i] == 0;
 
       // Ignore zero intensity regions
       if (currentIsZero)
@@ -65,19 +92,20 @@ public class LocalMaxMassDetector implements MassDetector {
 
       // Check for local maximum
       if (ascending && (!nextIsBigger)) {
-        currentMzPeakTop = dataPoints[i];
+        currentMzPeakTop = i;
         ascending = false;
         continue;
       }
 
-      assert currentMzPeakTop != null;
+      assert currentMzPeakTop >= 0;
 
       // Check for the end of the peak
       if ((!ascending) && (nextIsBigger || nextIsZero)) {
 
         // Add the m/z peak if it is above the noise level
-        if (currentMzPeakTop.getIntensity() > noiseLevel) {
-          mzPeaks.add(currentMzPeakTop);
+        if (intensityValues[currentMzPeakTop] > noiseLevel) {
+          mzPeaks.add(new SimpleDataPoint(mzValues[currentMzPeakTop],
+              intensityValues[currentMzPeakTop]));
         }
 
         // Reset and start with new peak
@@ -18,8 +18,8 @@
 
 package net.sf.mzmine.modules.rawdatamethods.peakpicking.massdetection.wavelet;
 
+import java.util.ArrayList;
 import java.util.TreeSet;
-import java.util.Vector;
 
 import javax.annotation.Nonnull;
 
@@ -31,17 +31,18 @@ import net.sf.mzmine.parameters.ParameterSet;
 import net.sf.mzmine.util.DataPointSorter;
 import net.sf.mzmine.util.SortingDirection;
 import net.sf.mzmine.util.SortingProperty;
+import net.sf.mzmine.util.scans.SpectrumBuffer;
 
 /**
  * This class implements the Continuous Wavelet Transform (CWT), Mexican Hat, over raw datapoints of
  * a certain spectrum. After get the spectrum in the wavelet's time domain, we use the local maxima
  * to detect possible peaks in the original raw datapoints.
+ * 
+ * The wavelet is only translated in the selected scale, so the convolution kernel depends only on
+ * the scale level and the window size. The kernel is computed once and cached, and the transform
+ * works on reusable primitive arrays, one set per processing thread.
  */
 public class WaveletMassDetector implements MassDetector {
-  
-  public DataPoint[] getMassValues(Scan scan, ParameterSet parameters) {
-    return getMassValues(scan.getDataPoints(), parameters);
-  }
 
   /**
    * Parameters of the wavelet, NPOINTS is the number of wavelet values to use The WAVELET_ESL &
@@ -51,43 +52,129 @@ public class WaveletMassDetector implements MassDetector {
   private static final int WAVELET_ESL = -5;
   private static final int WAVELET_ESR = 5;
 
-  public DataPoint[] getMassValues(DataPoint originalDataPoints[] , ParameterSet parameters) {
+  private static final DataPointSorter mzSorter =
+      new DataPointSorter(SortingProperty.MZ, SortingDirection.Ascending);
+
+  // Reusable arrays, one set per processing thread
+  private static final ThreadLocal<SpectrumBuffer> scanBuffer =
+      ThreadLocal.withInitial(SpectrumBuffer::new);
+  private static final ThreadLocal<double[][]> dataPointsBuffer =
+      ThreadLocal.withInitial(() -> new double[2][0]);
+  private static final ThreadLocal<double[]> cwtBuffer =
+      ThreadLocal.withInitial(() -> new double[0]);
+
+  // Last used wavelet kernel of each processing thread
+  private static final ThreadLocal<WaveletKernel> lastKernel = new ThreadLocal<>();
+
+  /**
+   * Mexican hat wavelet values for all translations in one scale
+   */
+  private static final class WaveletKernel {
+
+    private final int scaleLevel;
+    private final double waveletWindow;
+    private final double values[];
+
+    private WaveletKernel(int scaleLevel, double waveletWindow) {
+      this.scaleLevel = scaleLevel;
+      this.waveletWindow = waveletWindow;
+
+      double wstep = ((WAVELET_ESR - WAVELET_ESL) / NPOINTS);
+      double[] W = new double[(int) NPOINTS];
+
+      double waveletIndex = WAVELET_ESL;
+      for (int j = 0; j < NPOINTS; j++) {
+        // Pre calculate the values of the wavelet
+        W[j] = cwtMEXHATreal(waveletIndex, waveletWindow, 0.0);
+        waveletIndex += wstep;
+      }
+
+      // Wavelet values for the offsets a_esl to a_esr of a data point from the translation
+      int d = (int) NPOINTS / (WAVELET_ESR - WAVELET_ESL);
+      int a_esl = scaleLevel * WAVELET_ESL;
+      int a_esr = scaleLevel * WAVELET_ESR;
+      values = new double[a_esr - a_esl + 1];
+      for (int offset = a_esl; offset <= a_esr; offset++) {
+        int ind = (int) (NPOINTS / 2) - (((int) d * offset / scaleLevel) * (-1));
+        if (ind < 0)
+          ind = 0;
+        if (ind >= NPOINTS)
+          ind = (int) NPOINTS - 1;
+        values[offset - a_esl] = W[ind];
+      }
+    }
+  }
+
+  public DataPoint[] getMassValues(Scan scan, ParameterSet parameters) {
+    final SpectrumBuffer buffer = scanBuffer.get().load(scan);
+    return getMassValues(buffer.getMzValues(), buffer.getIntensityValues(),
+        buffer.getNumberOfDataPoints(), parameters);
+  }
+
+  public DataPoint[] getMassValues(DataPoint originalDataPoints[], ParameterSet parameters) {
+    final int length = originalDataPoints.length;
+    double buffers[][] = dataPointsBuffer.get();
+    if (buffers[0].length < length) {
+      buffers = new double[][] {new double[length], new double[length]};
+      dataPointsBuffer.set(buffers);
+    }
+    final double mzValues[] = buffers[0];
+    final double intensityValues[] = buffers[1];
+    for (int i = 0; i < length; i++) {
+      mzValues[i] = originalDataPoints[i].getMZ();
+      intensityValues[i] = originalDataPoints[i].getIntensity();
+    }
+    return getMassValues(mzValues, intensityValues, length, parameters);
+  }
+
+  private DataPoint[] getMassValues(double mzValues[], double intensityValues[], int length,
+      ParameterSet parameters) {
     double noiseLevel =
         parameters.getParameter(WaveletMassDetectorParameters.noiseLevel).getValue();
     int scaleLevel = parameters.getParameter(WaveletMassDetectorParameters.scaleLevel).getValue();
     double waveletWindow =
         parameters.getParameter(WaveletMassDetectorParameters.waveletWindow).getValue();
 
-    DataPoint waveletDataPoints[] = performCWT(originalDataPoints, waveletWindow, scaleLevel);
+    double cwtValues[] = cwtBuffer.get();
+    if (cwtValues.length < length) {
+      cwtValues = new double[length];
+      cwtBuffer.set(cwtValues);
+    }
 
-    DataPoint mzPeaks[] = getMzPeaks(noiseLevel, originalDataPoints, waveletDataPoints);
+    performCWT(intensityValues, length, waveletWindow, scaleLevel, cwtValues);
+
+    DataPoint mzPeaks[] = getMzPeaks(noiseLevel, mzValues, intensityValues, length, cwtValues);
 
     return mzPeaks;
   }
 
+  /**
+   * @return kernel for the given scale level and window size, cached for the current thread
+   */
+  private static WaveletKernel getKernel(int scaleLevel, double waveletWindow) {
+    WaveletKernel kernel = lastKernel.get();
+    if ((kernel == null) || (kernel.scaleLevel != scaleLevel)
+        || (Double.compare(kernel.waveletWindow, waveletWindow) != 0)) {
+      kernel = new WaveletKernel(scaleLevel, waveletWindow);
+      lastKernel.set(kernel);
+    }
+    return kernel;
+  }
+
   /**
    * Perform the CWT over raw data points in the selected scale level
    * 
-   * @param dataPoints
+   * @param intensityValues intensities of the raw data points
+   * @param cwtValues array for the transformed intensities
    */
-  private SimpleDataPoint[] performCWT(DataPoint[] dataPoints, double waveletWindow,
-      int scaleLevel) {
-    int length = dataPoints.length;
-    SimpleDataPoint[] cwtDataPoints = new SimpleDataPoint[length];
-    double wstep = ((WAVELET_ESR - WAVELET_ESL) / NPOINTS);
-    double[] W = new double[(int) NPOINTS];
-
-    double waveletIndex = WAVELET_ESL;
-    for (int j = 0; j < NPOINTS; j++) {
-      // Pre calculate the values of the wavelet
-      W[j] = cwtMEXHATreal(waveletIndex, waveletWindow, 0.0);
-      waveletIndex += wstep;
-    }
+  private void performCWT(double intensityValues[], int length, double waveletWindow,
+      int scaleLevel, double cwtValues[]) {
+
+    final double kernel[] = getKernel(scaleLevel, waveletWindow).values;
 
     /*
      * We only perform Translation of the wavelet in the selected scale
      */
-    int d = (int) NPOINTS / (WAVELET_ESR - WAVELET_ESL);
     int a_esl = scaleLevel * WAVELET_ESL;
     int a_esr = scaleLevel * WAVELET_ESR;
     double sqrtScaleLevel = Math.sqrt(scaleLevel);
@@ -103,22 +190,16 @@ public class WaveletMassDetector implements MassDetector {
 
       /* Perform convolution */
       double intensity = 0.0;
+      final int kernelOffset = -dx - a_esl;
       for (int i = t1; i <= t2; i++) {
-        int ind = (int) (NPOINTS / 2) - (((int) d * (i - dx) / scaleLevel) * (-1));
-        if (ind < 0)
-          ind = 0;
-        if (ind >= NPOINTS)
-          ind = (int) NPOINTS - 1;
-        intensity += dataPoints[i].getIntensity() * W[ind];
+        intensity += intensityValues[i] * kernel[i + kernelOffset];
       }
       intensity /= sqrtScaleLevel;
       // Eliminate the negative part of the wavelet map
       if (intensity < 0)
         intensity = 0;
-      cwtDataPoints[dx] = new SimpleDataPoint(dataPoints[dx].getMZ(), (double) intensity);
+      cwtValues[dx] = intensity;
     }
-
-    return cwtDataPoints;
   }
 
   /**
@@ -128,7 +209,7 @@ public class WaveletMassDetector implements MassDetector {
    * @param double a Window Width of the wavelet
    * @param double b Offset from the center of the peak
    */
-  private double cwtMEXHATreal(double x, double a, double b) {
+  private static double cwtMEXHATreal(double x, double a, double b) {
     /* c = 2 / ( sqrt(3) * pi^(1/4) ) */
     double c = 0.8673250705840776;
     double TINY = 1E-200;
@@ -142,21 +223,20 @@ public class WaveletMassDetector implements MassDetector {
   }
 
   /**
-   * This function searches for maximums from wavelet data points
+   * This function searches for maximums from wavelet data points. The intensity of each peak is the
+   * highest raw intensity within the peak, including the first data point after it.
    */
-  private DataPoint[] getMzPeaks(double noiseLevel, DataPoint[] originalDataPoints,
-      DataPoint[] waveletDataPoints) {
+  private DataPoint[] getMzPeaks(double noiseLevel, double mzValues[], double intensityValues[],
+      int length, double cwtValues[]) {
 
-    TreeSet<DataPoint> mzPeaks =
-        new TreeSet<DataPoint>(new DataPointSorter(SortingProperty.MZ, SortingDirection.Ascending));
+    ArrayList<DataPoint> mzPeaks = new ArrayList<DataPoint>();
 
-    Vector<DataPoint> rawDataPoints = new Vector<DataPoint>();
     int peakMaxInd = 0;
-    int stopInd = waveletDataPoints.length - 1;
+    int stopInd = length - 1;
 
     for (int ind = 0; ind <= stopInd; ind++) {
 
-      while ((ind <= stopInd) && (waveletDataPoints[ind].getIntensity() == 0)) {
+      while ((ind <= stopInd) && (cwtValues[ind] == 0)) {
         ind++;
       }
       peakMaxInd = ind;
@@ -165,12 +245,14 @@ public class WaveletMassDetector implements MassDetector {
       }
 
       // While peak is on
-      while ((ind <= stopInd) && (waveletDataPoints[ind].getIntensity() > 0)) {
+      double aproxIntensity = 0;
+      while ((ind <= stopInd) && (cwtValues[ind] > 0)) {
         // Check if this is the maximum point of the peak
-        if (waveletDataPoints[ind].getIntensity() > waveletDataPoints[peakMaxInd].getIntensity()) {
+        if (cwtValues[ind] > cwtValues[peakMaxInd]) {
           peakMaxInd = ind;
         }
-        rawDataPoints.add(originalDataPoints[ind]);
+        if (intensityValues[ind] > aproxIntensity)
+          aproxIntensity = intensityValues[ind];
         ind++;
       }
 
@@ -178,33 +260,28 @@ public class WaveletMassDetector implements MassDetector {
         break;
       }
 
-      rawDataPoints.add(originalDataPoints[ind]);
-
-      if (originalDataPoints[peakMaxInd].getIntensity() > noiseLevel) {
-        SimpleDataPoint peakDataPoint = new SimpleDataPoint(originalDataPoints[peakMaxInd].getMZ(),
-            calcAproxIntensity(rawDataPoints));
+      if (intensityValues[ind] > aproxIntensity)
+        aproxIntensity = intensityValues[ind];
 
-        mzPeaks.add(peakDataPoint);
+      if (intensityValues[peakMaxInd] > noiseLevel) {
+        mzPeaks.add(new SimpleDataPoint(mzValues[peakMaxInd], aproxIntensity));
+      }
+    }
 
+    // The peaks are found in the order of the raw data points, which is normally sorted by m/z.
+    // Otherwise, sort them and remove duplicates.
+    for (int i = 1; i < mzPeaks.size(); i++) {
+      if (mzSorter.compare(mzPeaks.get(i - 1), mzPeaks.get(i)) >= 0) {
+        TreeSet<DataPoint> sortedPeaks = new TreeSet<DataPoint>(mzSorter);
+        sortedPeaks.addAll(mzPeaks);
+        return sortedPeaks.toArray(new DataPoint[0]);
       }
-      rawDataPoints.clear();
     }
 
     return mzPeaks.toArray(new DataPoint[0]);
 
   }
 
-  private double calcAproxIntensity(Vector<DataPoint> rawDataPoints) {
-
-    double aproxIntensity = 0;
-
-    for (DataPoint d : rawDataPoints) {
-      if (d.getIntensity() > aproxIntensity)
-        aproxIntensity = d.getIntensity();
-    }
-    return aproxIntensity;
-  }
-
   @Override
   public @Nonnull String getName() {
     return "Wavelet transform";
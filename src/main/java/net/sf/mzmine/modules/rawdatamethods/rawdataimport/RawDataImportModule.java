@@ -38,7 +38,7 @@ import net.sf.mzmine.datamodel.MZmineProject;
 import net.sf.mzmine.datamodel.RawDataFileWriter;
 import net.sf.mzmine.main.MZmineCore;
 import net.sf.mzmine.modules.MZmineModuleCategory;
-import net.sf.mzmine.modules.MZmineProcessingModule;
+import net.sf.mzmine.modules.MZmineSampleProcessingModule;
 import net.sf.mzmine.modules.rawdatamethods.rawdataimport.fileformats.AgilentCsvReadTask;
 import net.sf.mzmine.modules.rawdatamethods.rawdataimport.fileformats.CsvReadTask;
 import net.sf.mzmine.modules.rawdatamethods.rawdataimport.fileformats.MzDataReadTask;
@@ -54,7 +54,7 @@ import net.sf.mzmine.util.ExitCode;
 /**
  * Raw data import module
  */
-public class RawDataImportModule implements MZmineProcessingModule {
+public class RawDataImportModule implements MZmineSampleProcessingModule {
 
   private Logger logger = Logger.getLogger(this.getClass().getName());
 
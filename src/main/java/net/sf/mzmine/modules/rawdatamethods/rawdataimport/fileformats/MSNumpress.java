@@ -0,0 +1,191 @@
+/*
+ * Copyright 2006-2018 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with MZmine 2; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+
+package net.sf.mzmine.modules.rawdatamethods.rawdataimport.fileformats;
+
+import java.util.Arrays;
+
+/**
+ * Decoders of the MS-Numpress compression of mzML binary data arrays (linear prediction, positive
+ * integer and short logged float), following the reference implementation of MS-Numpress
+ * (https://github.com/ms-numpress/ms-numpress).
+ */
+class MSNumpress {
+
+  // mzML accessions of the compression types
+  static final String ACC_NUMPRESS_LINEAR = "MS:1002312";
+  static final String ACC_NUMPRESS_PIC = "MS:1002313";
+  static final String ACC_NUMPRESS_SLOF = "MS:1002314";
+  static final String ACC_NUMPRESS_LINEAR_ZLIB = "MS:1002746";
+  static final String ACC_NUMPRESS_PIC_ZLIB = "MS:1002747";
+  static final String ACC_NUMPRESS_SLOF_ZLIB = "MS:1002748";
+
+  /**
+   * Decodes data compressed by the given numpress method.
+   *
+   * @param accession accession of the numpress compression (with or without zlib)
+   */
+  static double[] decode(String accession, byte data[], int dataSize) {
+    switch (accession) {
+      case ACC_NUMPRESS_LINEAR:
+      case ACC_NUMPRESS_LINEAR_ZLIB:
+        return decodeLinear(data, dataSize);
+      case ACC_NUMPRESS_PIC:
+      case ACC_NUMPRESS_PIC_ZLIB:
+        return decodePic(data, dataSize);
+      case ACC_NUMPRESS_SLOF:
+      case ACC_NUMPRESS_SLOF_ZLIB:
+        return decodeSlof(data, dataSize);
+      default:
+        throw new IllegalArgumentException("Unknown numpress compression " + accession);
+    }
+  }
+
+  static boolean isNumpress(String accession) {
+    switch (accession) {
+      case ACC_NUMPRESS_LINEAR:
+      case ACC_NUMPRESS_PIC:
+      case ACC_NUMPRESS_SLOF:
+      case ACC_NUMPRESS_LINEAR_ZLIB:
+      case ACC_NUMPRESS_PIC_ZLIB:
+      case ACC_NUMPRESS_SLOF_ZLIB:
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  static boolean isZlibCompressed(String accession) {
+    return ACC_NUMPRESS_LINEAR_ZLIB.equals(accession) || ACC_NUMPRESS_PIC_ZLIB.equals(accession)
+        || ACC_NUMPRESS_SLOF_ZLIB.equals(accession);
+  }
+
+  private static double decodeFixedPoint(byte data[]) {
+    long fixedPoint = 0;
+    for (int i = 0; i < 8; i++)
+      fixedPoint |= (0xFFL & data[7 - i]) << (i * 8);
+    return Double.longBitsToDouble(fixedPoint);
+  }
+
+  private static double[] decodeLinear(byte data[], int dataSize) {
+    if (dataSize < 12)
+      throw new IllegalArgumentException("Corrupt numpress linear data");
+
+    final double fixedPoint = decodeFixedPoint(data);
+    final double result[] = new double[(dataSize - 8) * 2];
+    final long ints[] = new long[3];
+
+    for (int i = 0; i < 4; i++)
+      ints[1] |= (0xFFL & data[8 + i]) << (i * 8);
+    result[0] = ints[1] / fixedPoint;
+    if (dataSize == 12)
+      return Arrays.copyOf(result, 1);
+    if (dataSize < 16)
+      throw new IllegalArgumentException("Corrupt numpress linear data");
+
+    for (int i = 0; i < 4; i++)
+      ints[2] |= (0xFFL & data[12 + i]) << (i * 8);
+    result[1] = ints[2] / fixedPoint;
+
+    int ri = 2;
+    final IntDecoder decoder = new IntDecoder(data, 16);
+    while (decoder.pos < dataSize) {
+      if (decoder.pos == dataSize - 1 && decoder.half && (data[decoder.pos] & 0xf) != 0x8)
+        break;
+      ints[0] = ints[1];
+      ints[1] = ints[2];
+      ints[2] = decoder.next();
+
+      final long extrapolation = ints[1] + (ints[1] - ints[0]);
+      final long y = extrapolation + ints[2];
+      result[ri++] = y / fixedPoint;
+      ints[2] = y;
+    }
+    return Arrays.copyOf(result, ri);
+  }
+
+  private static double[] decodePic(byte data[], int dataSize) {
+    final double result[] = new double[dataSize * 2];
+    int ri = 0;
+    final IntDecoder decoder = new IntDecoder(data, 0);
+    while (decoder.pos < dataSize) {
+      if (decoder.pos == dataSize - 1 && decoder.half && (data[decoder.pos] & 0xf) != 0x8)
+        break;
+      result[ri++] = decoder.next();
+    }
+    return Arrays.copyOf(result, ri);
+  }
+
+  private static double[] decodeSlof(byte data[], int dataSize) {
+    if (dataSize < 8 || dataSize % 2 != 0)
+      throw new IllegalArgumentException("Corrupt numpress slof data");
+    final double fixedPoint = decodeFixedPoint(data);
+    final double result[] = new double[(dataSize - 8) / 2];
+    for (int i = 8, ri = 0; i < dataSize; i += 2, ri++) {
+      final int x = (0xff & data[i]) | ((0xff & data[i + 1]) << 8);
+      result[ri] = Math.exp((0xffff & x) / fixedPoint) - 1;
+    }
+    return result;
+  }
+
+  /**
+   * Reads integers encoded as a count of leading zero (or one) half-bytes followed by the remaining
+   * half-bytes.
+   */
+  private static class IntDecoder {
+    private final byte bytes[];
+    private int pos;
+    private boolean half = false;
+
+    private IntDecoder(byte bytes[], int pos) {
+      this.bytes = bytes;
+      this.pos = pos;
+    }
+
+    private int nextHalfByte() {
+      final int halfByte;
+      if (!half)
+        halfByte = (0xff & bytes[pos]) >> 4;
+      else
+        halfByte = 0xf & bytes[pos++];
+      half = !half;
+      return halfByte;
+    }
+
+    private long next() {
+      final int head = nextHalfByte();
+      long result = 0;
+      final int n;
+      if (head <= 8) {
+        n = head;
+      } else {
+        // leading ones
+        n = head - 8;
+        final long mask = 0xf0000000;
+        for (int i = 0; i < n; i++)
+          result |= mask >> (4 * i);
+      }
+      if (n == 8)
+        return 0;
+      for (int i = n; i < 8; i++)
+        result |= nextHalfByte() << ((i - n) * 4);
+      return result;
+    }
+  }
+
+}
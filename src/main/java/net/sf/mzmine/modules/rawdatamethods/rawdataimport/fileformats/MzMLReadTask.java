@@ -1,16 +1,16 @@
 /*
  * Copyright 2006-2018 The MZmine 2 Development Team
- * 
+ *
  * This file is part of MZmine 2.
- * 
+ *
  * MZmine 2 is free software; you can redistribute it and/or modify it under the terms of the GNU
  * General Public License as published by the Free Software Foundation; either version 2 of the
  * License, or (at your option) any later version.
- * 
+ *
  * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
  * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
  * General Public License for more details.
- * 
+ *
  * You should have received a copy of the GNU General Public License along with MZmine 2; if not,
  * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
  * USA
@@ -18,11 +18,26 @@
 
 package net.sf.mzmine.modules.rawdatamethods.rawdataimport.fileformats;
 
+import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 
 import net.sf.mzmine.datamodel.DataPoint;
 import net.sf.mzmine.datamodel.MZmineProject;
@@ -36,22 +51,16 @@ import net.sf.mzmine.taskcontrol.AbstractTask;
 import net.sf.mzmine.taskcontrol.TaskStatus;
 import net.sf.mzmine.util.ExceptionUtils;
 import net.sf.mzmine.util.scans.ScanUtils;
-import uk.ac.ebi.jmzml.model.mzml.BinaryDataArray;
-import uk.ac.ebi.jmzml.model.mzml.BinaryDataArrayList;
-import uk.ac.ebi.jmzml.model.mzml.CVParam;
-import uk.ac.ebi.jmzml.model.mzml.ParamGroup;
-import uk.ac.ebi.jmzml.model.mzml.Precursor;
-import uk.ac.ebi.jmzml.model.mzml.PrecursorList;
-import uk.ac.ebi.jmzml.model.mzml.Scan;
-import uk.ac.ebi.jmzml.model.mzml.ScanList;
-import uk.ac.ebi.jmzml.model.mzml.SelectedIonList;
-import uk.ac.ebi.jmzml.model.mzml.Spectrum;
-import uk.ac.ebi.jmzml.xml.io.MzMLObjectIterator;
-import uk.ac.ebi.jmzml.xml.io.MzMLUnmarshaller;
 
 /**
- * This class reads mzML 1.0 and 1.1.0 files (http://www.psidev.info/index.php?q=node/257) using the
- * jmzml library (http://code.google.com/p/jmzml/).
+ * This class reads mzML 1.0 and 1.1.0 files (http://www.psidev.info/index.php?q=node/257) using a
+ * StAX parser. The spectra are read in a single pass: the parser thread reads the metadata of each
+ * spectrum and resolves its scan number and precursor reference, while the base64, zlib and
+ * MS-Numpress decoding of the binary data arrays runs on a bounded pool of decoder threads. The
+ * decoded scans are written to the raw data file in the original order.
+ *
+ * Scan numbers are determined from the IDs of all spectra before reading them. The IDs are taken
+ * from the index of indexed mzML files, otherwise from a quick scan of the spectrum elements.
  */
 public class MzMLReadTask extends AbstractTask {
 
@@ -59,6 +68,12 @@ public class MzMLReadTask extends AbstractTask {
 
   private static final Pattern SCAN_PATTERN = Pattern.compile("scan=([0-9]+)");
 
+  private static final Pattern INDEX_OFFSET_PATTERN =
+      Pattern.compile("<indexListOffset>\\s*([0-9]+)\\s*</indexListOffset>");
+
+  // Number of bytes at the end of the file searched for the index offset
+  private static final int INDEX_OFFSET_SEARCH_LENGTH = 4096;
+
   private File file;
   private MZmineProject project;
   private RawDataFileWriter newMZmineFile;
@@ -79,6 +94,55 @@ public class MzMLReadTask extends AbstractTask {
   private static final int PARENT_STACK_SIZE = 20;
   private LinkedList<SimpleScan> parentStack = new LinkedList<SimpleScan>();
 
+  /**
+   * Controlled vocabulary parameter
+   */
+  private static class CvParam {
+    private final String accession, value, unitAccession;
+
+    private CvParam(String accession, String value, String unitAccession) {
+      this.accession = accession;
+      this.value = value;
+      this.unitAccession = unitAccession;
+    }
+  }
+
+  /**
+   * Encoded binary data array of a spectrum
+   */
+  private static class BinaryArray {
+    private final List<CvParam> cvParams = new ArrayList<>();
+    private String base64Data;
+  }
+
+  /**
+   * Metadata and encoded data of a spectrum, as read by the parser thread
+   */
+  private static class MzMLSpectrum {
+    private String id;
+    private int defaultArrayLength;
+    private final List<CvParam> cvParams = new ArrayList<>();
+    private final List<CvParam> scanCvParams = new ArrayList<>();
+    private int numOfPrecursors = 0;
+    private String precursorSpectrumRef;
+    private boolean hasSelectedIons = false;
+    private final List<CvParam> selectedIonCvParams = new ArrayList<>();
+    private final List<BinaryArray> binaryArrays = new ArrayList<>();
+  }
+
+  /**
+   * Scan created by a decoder thread, with the scan number of its parent scan (or -1)
+   */
+  private static class DecodedScan {
+    private final SimpleScan scan;
+    private final int parentScan;
+
+    private DecodedScan(SimpleScan scan, int parentScan) {
+      this.scan = scan;
+      this.parentScan = parentScan;
+    }
+  }
+
   public MzMLReadTask(MZmineProject project, File fileToOpen, RawDataFileWriter newMZmineFile) {
     this.project = project;
     this.file = fileToOpen;
@@ -100,72 +164,23 @@ public class MzMLReadTask extends AbstractTask {
     setStatus(TaskStatus.PROCESSING);
     logger.info("Started parsing file " + file);
 
-    MzMLUnmarshaller unmarshaller = new MzMLUnmarshaller(file);
-
-    totalScans = unmarshaller.getObjectCountForXpath("/run/spectrumList/spectrum");
-
-    fillScanIdTable(
-            unmarshaller.unmarshalCollectionFromXpath("/run/spectrumList/spectrum", Spectrum.class),
-            totalScans);
-
-    MzMLObjectIterator<Spectrum> spectrumIterator =
-        unmarshaller.unmarshalCollectionFromXpath("/run/spectrumList/spectrum", Spectrum.class);
+    ScanDecodingQueue<DecodedScan> decodingQueue = null;
     try {
 
-      while (spectrumIterator.hasNext()) {
+      List<String> spectrumIds = readIndexedSpectrumIds();
+      if (spectrumIds == null)
+        spectrumIds = readSpectrumIds();
+      if (isCanceled())
+        return;
 
-        if (isCanceled())
-          return;
+      totalScans = spectrumIds.size();
+      fillScanIdTable(spectrumIds);
 
-        Spectrum spectrum = spectrumIterator.next();
-
-        // Ignore scans that are not MS, e.g. UV
-        if (!isMsSpectrum(spectrum)) {
-          parsedScans++;
-          continue;
-        }
-
-        String scanId = spectrum.getId();
-        Integer scanNumber = scanIdTable.get(scanId);
-        if (scanNumber == null)
-          throw new IllegalStateException("Cannot determine scan number: " + scanId);
-
-        // Extract scan data
-        int msLevel = extractMSLevel(spectrum);
-        double retentionTime = extractRetentionTime(spectrum);
-        PolarityType polarity = extractPolarity(spectrum);
-        int parentScan = extractParentScanNumber(spectrum);
-        double precursorMz = extractPrecursorMz(spectrum);
-        int precursorCharge = extractPrecursorCharge(spectrum);
-        String scanDefinition = extractScanDefinition(spectrum);
-        DataPoint dataPoints[] = extractDataPoints(spectrum);
-
-        // Auto-detect whether this scan is centroided
-        MassSpectrumType spectrumType = ScanUtils.detectSpectrumType(dataPoints);
-
-        SimpleScan scan = new SimpleScan(null, scanNumber, msLevel, retentionTime, precursorMz,
-            precursorCharge, null, dataPoints, spectrumType, polarity, scanDefinition, null);
-
-        for (SimpleScan s : parentStack) {
-          if (s.getScanNumber() == parentScan) {
-            s.addFragmentScan(scanNumber);
-          }
-        }
-
-        /*
-         * Verify the size of parentStack. The actual size of the window to cover possible
-         * candidates is defined by limitSize.
-         */
-        if (parentStack.size() > PARENT_STACK_SIZE) {
-          SimpleScan firstScan = parentStack.removeLast();
-          newMZmineFile.addScan(firstScan);
-        }
-
-        parentStack.addFirst(scan);
-
-        parsedScans++;
-
-      }
+      decodingQueue = new ScanDecodingQueue<>(this::addDecodedScan);
+      readSpectra(decodingQueue);
+      if (isCanceled())
+        return;
+      decodingQueue.finish();
 
       while (!parentStack.isEmpty()) {
         SimpleScan scan = parentStack.removeLast();
@@ -180,8 +195,10 @@ public class MzMLReadTask extends AbstractTask {
       e.printStackTrace();
       setStatus(TaskStatus.ERROR);
       setErrorMessage("Error parsing mzML: " + ExceptionUtils.exceptionToString(e));
-      e.printStackTrace();
       return;
+    } finally {
+      if (decodingQueue != null)
+        decodingQueue.shutdown();
     }
 
     if (parsedScans == 0) {
@@ -195,25 +212,313 @@ public class MzMLReadTask extends AbstractTask {
 
   }
 
+  private XMLStreamReader createReader(InputStream in) throws XMLStreamException {
+    XMLInputFactory factory = XMLInputFactory.newInstance();
+    factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+    factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, false);
+    return factory.createXMLStreamReader(in);
+  }
+
+  /**
+   * Reads the spectrum IDs from the index at the end of an indexed mzML file.
+   *
+   * @return the IDs or null if the file has no (valid) index
+   */
+  private List<String> readIndexedSpectrumIds() {
+    try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+      final long length = raf.length();
+      final int tailLength = (int) Math.min(length, INDEX_OFFSET_SEARCH_LENGTH);
+      byte tail[] = new byte[tailLength];
+      raf.seek(length - tailLength);
+      raf.readFully(tail);
+      Matcher matcher =
+          INDEX_OFFSET_PATTERN.matcher(new String(tail, StandardCharsets.ISO_8859_1));
+      if (!matcher.find())
+        return null;
+      final long indexOffset = Long.parseLong(matcher.group(1));
+      if (indexOffset <= 0 || indexOffset >= length)
+        return null;
+
+      raf.seek(indexOffset);
+      InputStream in = new BufferedInputStream(new FileInputStream(raf.getFD()));
+      XMLStreamReader reader = createReader(in);
+      try {
+        List<String> ids = new ArrayList<>();
+        boolean inSpectrumIndex = false;
+        while (reader.hasNext()) {
+          final int event = reader.next();
+          if (event == XMLStreamConstants.START_ELEMENT) {
+            final String name = reader.getLocalName();
+            if (name.equals("index"))
+              inSpectrumIndex = "spectrum".equals(reader.getAttributeValue(null, "name"));
+            else if (inSpectrumIndex && name.equals("offset"))
+              ids.add(reader.getAttributeValue(null, "idRef"));
+          } else if (event == XMLStreamConstants.END_ELEMENT) {
+            if (reader.getLocalName().equals("indexList"))
+              break;
+          }
+        }
+        if (ids.isEmpty() || ids.contains(null))
+          return null;
+        return ids;
+      } finally {
+        reader.close();
+      }
+    } catch (Exception e) {
+      // Broken index, fall back to reading the IDs from the spectra
+      logger.fine("Cannot read the index of " + file + ": " + e);
+      return null;
+    }
+  }
+
+  /**
+   * Reads the spectrum IDs from the spectrum elements, skipping their content
+   */
+  private List<String> readSpectrumIds() throws IOException, XMLStreamException {
+    List<String> ids = new ArrayList<>();
+    try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+      XMLStreamReader reader = createReader(in);
+      try {
+        while (reader.hasNext() && !isCanceled()) {
+          final int event = reader.next();
+          if (event == XMLStreamConstants.START_ELEMENT) {
+            if (reader.getLocalName().equals("spectrum"))
+              ids.add(reader.getAttributeValue(null, "id"));
+          } else if (event == XMLStreamConstants.END_ELEMENT) {
+            if (reader.getLocalName().equals("spectrumList"))
+              break;
+          }
+        }
+      } finally {
+        reader.close();
+      }
+    }
+    return ids;
+  }
+
+  /**
+   * Reads all spectra and submits them for decoding
+   */
+  private void readSpectra(ScanDecodingQueue<DecodedScan> decodingQueue) throws Exception {
+
+    final Map<String, List<CvParam>> paramGroups = new HashMap<>();
+    List<CvParam> currentGroup = null;
+    MzMLSpectrum spectrum = null;
+    BinaryArray binaryArray = null;
+    boolean inFirstPrecursor = false;
+
+    // Names of the open elements, to find the parent of each parameter
+    final ArrayDeque<String> elements = new ArrayDeque<>();
+
+    try (InputStream in = new BufferedInputStream(new FileInputStream(file), 1 << 16)) {
+      XMLStreamReader reader = createReader(in);
+      try {
+        while (reader.hasNext()) {
+
+          if (isCanceled())
+            return;
+
+          final int event = reader.next();
+
+          if (event == XMLStreamConstants.START_ELEMENT) {
+            final String name = reader.getLocalName();
+            final String parent = elements.peek();
+
+            switch (name) {
+              case "referenceableParamGroup":
+                currentGroup = new ArrayList<>();
+                paramGroups.put(reader.getAttributeValue(null, "id"), currentGroup);
+                break;
+              case "spectrum":
+                spectrum = new MzMLSpectrum();
+                spectrum.id = reader.getAttributeValue(null, "id");
+                String arrayLength = reader.getAttributeValue(null, "defaultArrayLength");
+                if (arrayLength != null)
+                  spectrum.defaultArrayLength = Integer.parseInt(arrayLength.trim());
+                break;
+              case "precursor":
+                if (spectrum != null) {
+                  inFirstPrecursor = (spectrum.numOfPrecursors++ == 0);
+                  if (inFirstPrecursor)
+                    spectrum.precursorSpectrumRef = reader.getAttributeValue(null, "spectrumRef");
+                }
+                break;
+              case "selectedIon":
+                if (spectrum != null && inFirstPrecursor)
+                  spectrum.hasSelectedIons = true;
+                break;
+              case "binaryDataArray":
+                if (spectrum != null)
+                  binaryArray = new BinaryArray();
+                break;
+              case "binary":
+                if (binaryArray != null) {
+                  // Reads the text and the end element
+                  binaryArray.base64Data = reader.getElementText();
+                  continue;
+                }
+                break;
+              case "cvParam":
+              case "referenceableParamGroupRef":
+                List<CvParam> target = getParamTarget(parent, currentGroup, spectrum,
+                    binaryArray, inFirstPrecursor);
+                if (target != null) {
+                  if (name.equals("cvParam")) {
+                    target.add(new CvParam(reader.getAttributeValue(null, "accession"),
+                        reader.getAttributeValue(null, "value"),
+                        reader.getAttributeValue(null, "unitAccession")));
+                  } else {
+                    List<CvParam> group = paramGroups.get(reader.getAttributeValue(null, "ref"));
+                    if (group != null)
+                      target.addAll(group);
+                  }
+                }
+                break;
+            }
+            elements.push(name);
+
+          } else if (event == XMLStreamConstants.END_ELEMENT) {
+            final String name = elements.pop();
+
+            switch (name) {
+              case "referenceableParamGroup":
+                currentGroup = null;
+                break;
+              case "precursor":
+                inFirstPrecursor = false;
+                break;
+              case "binaryDataArray":
+                if (spectrum != null && binaryArray != null)
+                  spectrum.binaryArrays.add(binaryArray);
+                binaryArray = null;
+                break;
+              case "spectrum":
+                processSpectrum(spectrum, decodingQueue);
+                spectrum = null;
+                break;
+            }
+
+            // Chromatograms are not imported
+            if (name.equals("spectrumList"))
+              break;
+          }
+        }
+      } finally {
+        reader.close();
+      }
+    }
+  }
+
+  /**
+   * @return list to which a parameter with the given parent element belongs, or null
+   */
+  private List<CvParam> getParamTarget(String parent, List<CvParam> currentGroup,
+      MzMLSpectrum spectrum, BinaryArray binaryArray, boolean inFirstPrecursor) {
+    if (parent == null)
+      return null;
+    if (currentGroup != null && parent.equals("referenceableParamGroup"))
+      return currentGroup;
+    if (spectrum == null)
+      return null;
+    switch (parent) {
+      case "spectrum":
+        return spectrum.cvParams;
+      case "scan":
+        return spectrum.scanCvParams;
+      case "selectedIon":
+        return inFirstPrecursor ? spectrum.selectedIonCvParams : null;
+      case "binaryDataArray":
+        return binaryArray != null ? binaryArray.cvParams : null;
+      default:
+        return null;
+    }
+  }
+
+  /**
+   * Extracts the metadata of a spectrum and submits its data arrays for decoding
+   */
+  private void processSpectrum(MzMLSpectrum spectrum,
+      ScanDecodingQueue<DecodedScan> decodingQueue) throws Exception {
+
+    // Ignore scans that are not MS, e.g. UV
+    if (!isMsSpectrum(spectrum)) {
+      parsedScans++;
+      return;
+    }
+
+    String scanId = spectrum.id;
+    Integer scanNumber = scanIdTable.get(scanId);
+    if (scanNumber == null)
+      throw new IllegalStateException("Cannot determine scan number: " + scanId);
+
+    // Extract scan data
+    int msLevel = extractMSLevel(spectrum);
+    double retentionTime = extractRetentionTime(spectrum);
+    PolarityType polarity = extractPolarity(spectrum);
+    int parentScan = extractParentScanNumber(spectrum);
+    double precursorMz = extractPrecursorMz(spectrum);
+    int precursorCharge = extractPrecursorCharge(spectrum);
+    String scanDefinition = extractScanDefinition(spectrum);
+
+    decodingQueue.submit(() -> {
+      DataPoint dataPoints[] = extractDataPoints(spectrum);
+
+      // Auto-detect whether this scan is centroided
+      MassSpectrumType spectrumType = ScanUtils.detectSpectrumType(dataPoints);
+
+      SimpleScan scan = new SimpleScan(null, scanNumber, msLevel, retentionTime, precursorMz,
+          precursorCharge, null, dataPoints, spectrumType, polarity, scanDefinition, null);
+      return new DecodedScan(scan, parentScan);
+    });
+  }
+
+  /**
+   * Receives the decoded scans in the original order
+   */
+  private void addDecodedScan(DecodedScan decodedScan) throws IOException {
+
+    final SimpleScan scan = decodedScan.scan;
+    final int parentScan = decodedScan.parentScan;
+    for (SimpleScan s : parentStack) {
+      if (s.getScanNumber() == parentScan) {
+        s.addFragmentScan(scan.getScanNumber());
+      }
+    }
+
+    /*
+     * Verify the size of parentStack. The actual size of the window to cover possible candidates is
+     * defined by limitSize.
+     */
+    if (parentStack.size() > PARENT_STACK_SIZE) {
+      SimpleScan firstScan = parentStack.removeLast();
+      newMZmineFile.addScan(firstScan);
+    }
+
+    parentStack.addFirst(scan);
+
+    parsedScans++;
+  }
+
   /**
    * Retrieves scan numbers from scan IDs and stores them in scanIdTable.
    *
    * If retrieved scan numbers are not unique, we replace them with new scan numbers.
    *
-   * @param iterator iterator from MzMLUnmarshaller
+   * @param spectrumIds IDs of all spectra in the file
    */
-  private void fillScanIdTable(MzMLObjectIterator<Spectrum> iterator, int totalScans) {
+  private void fillScanIdTable(List<String> spectrumIds) {
 
     Map<String, Integer> alternativeScanIdTable = new HashMap<>();
-    for (int i = 1; iterator.hasNext(); ++i) {
-      String id = iterator.next().getId();
+    for (int i = 1; i <= spectrumIds.size(); ++i) {
+      String id = spectrumIds.get(i - 1);
       saveScanNumberToTable(id);
       alternativeScanIdTable.put(id, i);
     }
 
     Set<Integer> scanNumberSet = new HashSet<>(scanIdTable.values());
 
-    if (scanNumberSet.size() != totalScans)
+    if (scanNumberSet.size() != spectrumIds.size())
       // Scan Numbers are not unique! We replace them with numbers 1, 2, 3, ...
       scanIdTable = alternativeScanIdTable;
   }
@@ -240,14 +545,11 @@ public class MzMLReadTask extends AbstractTask {
     scanIdTable.put(scanId, scanNumber);
   }
 
-  private int extractMSLevel(Spectrum spectrum) {
+  private int extractMSLevel(MzMLSpectrum spectrum) {
     // Browse the spectrum parameters
-    List<CVParam> cvParams = spectrum.getCvParam();
-    if (cvParams == null)
-      return 1;
-    for (CVParam param : cvParams) {
-      String accession = param.getAccession();
-      String value = param.getValue();
+    for (CvParam param : spectrum.cvParams) {
+      String accession = param.accession;
+      String value = param.value;
       if ((accession == null) || (value == null))
         continue;
 
@@ -260,164 +562,208 @@ public class MzMLReadTask extends AbstractTask {
     return 1;
   }
 
-  private double extractRetentionTime(Spectrum spectrum) {
-
-    ScanList scanListElement = spectrum.getScanList();
-    if (scanListElement == null)
-      return 0;
-    List<Scan> scanElements = scanListElement.getScan();
-    if (scanElements == null)
-      return 0;
+  private double extractRetentionTime(MzMLSpectrum spectrum) {
 
-    for (Scan scan : scanElements) {
-      List<CVParam> cvParams = scan.getCvParam();
-      if (cvParams == null)
+    for (CvParam param : spectrum.scanCvParams) {
+      String accession = param.accession;
+      String unitAccession = param.unitAccession;
+      String value = param.value;
+      if ((accession == null) || (value == null))
         continue;
 
-      for (CVParam param : cvParams) {
-        String accession = param.getAccession();
-        String unitAccession = param.getUnitAccession();
-        String value = param.getValue();
-        if ((accession == null) || (value == null))
-          continue;
-
-        // Retention time (actually "Scan start time") MS:1000016
-        if (accession.equals("MS:1000016")) {
-          // MS:1000038 is used in mzML 1.0, while UO:0000031
-          // is used in mzML 1.1.0 :-/
-          double retentionTime;
-          if ((unitAccession == null) || (unitAccession.equals("MS:1000038"))
-              || unitAccession.equals("UO:0000031")) {
-            retentionTime = Double.parseDouble(value);
-          } else {
-            retentionTime = Double.parseDouble(value) / 60d;
-          }
-          return retentionTime;
-
+      // Retention time (actually "Scan start time") MS:1000016
+      if (accession.equals("MS:1000016")) {
+        // MS:1000038 is used in mzML 1.0, while UO:0000031
+        // is used in mzML 1.1.0 :-/
+        double retentionTime;
+        if ((unitAccession == null) || (unitAccession.equals("MS:1000038"))
+            || unitAccession.equals("UO:0000031")) {
+          retentionTime = Double.parseDouble(value);
+        } else {
+          retentionTime = Double.parseDouble(value) / 60d;
         }
+        return retentionTime;
+
       }
     }
 
     return 0;
   }
 
-  private DataPoint[] extractDataPoints(Spectrum spectrum) {
-    BinaryDataArrayList dataList = spectrum.getBinaryDataArrayList();
+  /**
+   * Decodes the m/z and intensity arrays. Called by the decoder threads.
+   */
+  private static DataPoint[] extractDataPoints(MzMLSpectrum spectrum)
+      throws DataFormatException {
+    List<BinaryArray> dataList = spectrum.binaryArrays;
 
-    if ((dataList == null) || (dataList.getCount().equals(0)))
+    if (dataList.size() < 2)
       return new DataPoint[0];
 
-    BinaryDataArray mzArray = dataList.getBinaryDataArray().get(0);
-    BinaryDataArray intensityArray = dataList.getBinaryDataArray().get(1);
-    Number mzValues[] = mzArray.getBinaryDataAsNumberArray();
-    Number intensityValues[] = intensityArray.getBinaryDataAsNumberArray();
-    DataPoint dataPoints[] = new DataPoint[mzValues.length];
+    // m/z array MS:1000514, intensity array MS:1000515
+    BinaryArray mzArray = dataList.get(0);
+    BinaryArray intensityArray = dataList.get(1);
+    for (BinaryArray array : dataList) {
+      if (hasParam(array.cvParams, "MS:1000514"))
+        mzArray = array;
+      else if (hasParam(array.cvParams, "MS:1000515"))
+        intensityArray = array;
+    }
+
+    double mzValues[] = decodeBinaryArray(mzArray, spectrum.defaultArrayLength);
+    double intensityValues[] = decodeBinaryArray(intensityArray, spectrum.defaultArrayLength);
+    DataPoint dataPoints[] = new DataPoint[Math.min(mzValues.length, intensityValues.length)];
     for (int i = 0; i < dataPoints.length; i++) {
-      double mz = mzValues[i].doubleValue();
-      double intensity = intensityValues[i].doubleValue();
-      dataPoints[i] = new SimpleDataPoint(mz, intensity);
+      dataPoints[i] = new SimpleDataPoint(mzValues[i], intensityValues[i]);
     }
     return dataPoints;
 
   }
 
-  private int extractParentScanNumber(Spectrum spectrum) {
-    PrecursorList precursorListElement = spectrum.getPrecursorList();
-    if ((precursorListElement == null) || (precursorListElement.getCount().equals(0)))
-      return -1;
+  private static double[] decodeBinaryArray(BinaryArray array, int arrayLength)
+      throws DataFormatException {
+
+    if (array.base64Data == null)
+      return new double[0];
 
-    List<Precursor> precursorList = precursorListElement.getPrecursor();
-    for (Precursor parent : precursorList) {
-      // Get the precursor scan number
-      String precursorScanId = parent.getSpectrumRef();
-      if (precursorScanId == null) {
-        return -1;
+    byte data[] = Base64.getMimeDecoder().decode(array.base64Data.trim());
+    int dataLength = data.length;
+
+    // Compression MS:1000574 (zlib) or MS-Numpress
+    String numpress = null;
+    boolean zlib = false;
+    // Precision MS:1000521 (32-bit float), MS:1000523 (64-bit float), MS:1000519 (32-bit integer),
+    // MS:1000522 (64-bit integer)
+    int bytesPerValue = 8;
+    boolean integer = false;
+    for (CvParam param : array.cvParams) {
+      if (param.accession == null)
+        continue;
+      switch (param.accession) {
+        case "MS:1000574":
+          zlib = true;
+          break;
+        case "MS:1000521":
+          bytesPerValue = 4;
+          integer = false;
+          break;
+        case "MS:1000523":
+          bytesPerValue = 8;
+          integer = false;
+          break;
+        case "MS:1000519":
+          bytesPerValue = 4;
+          integer = true;
+          break;
+        case "MS:1000522":
+          bytesPerValue = 8;
+          integer = true;
+          break;
+        default:
+          if (MSNumpress.isNumpress(param.accession)) {
+            numpress = param.accession;
+            zlib |= MSNumpress.isZlibCompressed(param.accession);
+          }
       }
-      Integer parentScan = scanIdTable.get(precursorScanId);
-      if (parentScan == null)
-        return -1;
+    }
 
-      return parentScan;
+    if (zlib) {
+      Inflater inflater = new Inflater();
+      inflater.setInput(data, 0, dataLength);
+      byte inflated[] = new byte[Math.max(64, arrayLength * bytesPerValue)];
+      dataLength = 0;
+      while (!inflater.finished()) {
+        if (dataLength == inflated.length)
+          inflated = Arrays.copyOf(inflated, inflated.length * 2);
+        final int count = inflater.inflate(inflated, dataLength, inflated.length - dataLength);
+        if (count == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+          break;
+        dataLength += count;
+      }
+      inflater.end();
+      data = inflated;
     }
-    return -1;
+
+    if (numpress != null)
+      return MSNumpress.decode(numpress, data, dataLength);
+
+    ByteBuffer buffer = ByteBuffer.wrap(data, 0, dataLength).order(ByteOrder.LITTLE_ENDIAN);
+    final double values[] = new double[dataLength / bytesPerValue];
+    for (int i = 0; i < values.length; i++) {
+      if (bytesPerValue == 4)
+        values[i] = integer ? buffer.getInt() : buffer.getFloat();
+      else
+        values[i] = integer ? buffer.getLong() : buffer.getDouble();
+    }
+    return values;
   }
 
-  private double extractPrecursorMz(Spectrum spectrum) {
+  private static boolean hasParam(List<CvParam> cvParams, String accession) {
+    for (CvParam param : cvParams) {
+      if (accession.equals(param.accession))
+        return true;
+    }
+    return false;
+  }
 
-    PrecursorList precursorListElement = spectrum.getPrecursorList();
-    if ((precursorListElement == null) || (precursorListElement.getCount().equals(0)))
-      return 0;
+  private int extractParentScanNumber(MzMLSpectrum spectrum) {
+    if (spectrum.numOfPrecursors == 0)
+      return -1;
 
-    List<Precursor> precursorList = precursorListElement.getPrecursor();
-    for (Precursor parent : precursorList) {
+    // Get the precursor scan number
+    String precursorScanId = spectrum.precursorSpectrumRef;
+    if (precursorScanId == null) {
+      return -1;
+    }
+    Integer parentScan = scanIdTable.get(precursorScanId);
+    if (parentScan == null)
+      return -1;
 
-      SelectedIonList selectedIonListElement = parent.getSelectedIonList();
-      if ((selectedIonListElement == null) || (selectedIonListElement.getCount().equals(0)))
-        return 0;
-      List<ParamGroup> selectedIonParams = selectedIonListElement.getSelectedIon();
-      if (selectedIonParams == null)
-        continue;
+    return parentScan;
+  }
 
-      for (ParamGroup pg : selectedIonParams) {
-        List<CVParam> pgCvParams = pg.getCvParam();
-        for (CVParam param : pgCvParams) {
-          String accession = param.getAccession();
-          String value = param.getValue();
-          if ((accession == null) || (value == null))
-            continue;
-          // MS:1000040 is used in mzML 1.0,
-          // MS:1000744 is used in mzML 1.1.0
-          if (accession.equals("MS:1000040") || accession.equals("MS:1000744")) {
-            double precursorMz = Double.parseDouble(value);
-            return precursorMz;
-          }
-        }
+  private double extractPrecursorMz(MzMLSpectrum spectrum) {
+
+    if (spectrum.numOfPrecursors == 0 || !spectrum.hasSelectedIons)
+      return 0;
 
+    for (CvParam param : spectrum.selectedIonCvParams) {
+      String accession = param.accession;
+      String value = param.value;
+      if ((accession == null) || (value == null))
+        continue;
+      // MS:1000040 is used in mzML 1.0,
+      // MS:1000744 is used in mzML 1.1.0
+      if (accession.equals("MS:1000040") || accession.equals("MS:1000744")) {
+        double precursorMz = Double.parseDouble(value);
+        return precursorMz;
       }
     }
     return 0;
   }
 
-  private int extractPrecursorCharge(Spectrum spectrum) {
-    PrecursorList precursorListElement = spectrum.getPrecursorList();
-    if ((precursorListElement == null) || (precursorListElement.getCount().equals(0)))
-      return 0;
+  private int extractPrecursorCharge(MzMLSpectrum spectrum) {
 
-    List<Precursor> precursorList = precursorListElement.getPrecursor();
-    for (Precursor parent : precursorList) {
+    if (spectrum.numOfPrecursors == 0 || !spectrum.hasSelectedIons)
+      return 0;
 
-      SelectedIonList selectedIonListElement = parent.getSelectedIonList();
-      if ((selectedIonListElement == null) || (selectedIonListElement.getCount().equals(0)))
-        return 0;
-      List<ParamGroup> selectedIonParams = selectedIonListElement.getSelectedIon();
-      if (selectedIonParams == null)
+    for (CvParam param : spectrum.selectedIonCvParams) {
+      String accession = param.accession;
+      String value = param.value;
+      if ((accession == null) || (value == null))
         continue;
-
-      for (ParamGroup pg : selectedIonParams) {
-        List<CVParam> pgCvParams = pg.getCvParam();
-        for (CVParam param : pgCvParams) {
-          String accession = param.getAccession();
-          String value = param.getValue();
-          if ((accession == null) || (value == null))
-            continue;
-          if (accession.equals("MS:1000041")) {
-            int precursorCharge = Integer.parseInt(value);
-            return precursorCharge;
-          }
-
-        }
-
+      if (accession.equals("MS:1000041")) {
+        int precursorCharge = Integer.parseInt(value);
+        return precursorCharge;
       }
     }
     return 0;
   }
 
-  private PolarityType extractPolarity(Spectrum spectrum) {
-    List<CVParam> cvParams = spectrum.getCvParam();
-    if (cvParams != null) {
-      for (CVParam param : cvParams) {
-        String accession = param.getAccession();
-
+  private PolarityType extractPolarity(MzMLSpectrum spectrum) {
+    for (List<CvParam> cvParams : Arrays.asList(spectrum.cvParams, spectrum.scanCvParams)) {
+      for (CvParam param : cvParams) {
+        String accession = param.accession;
         if (accession == null)
           continue;
         if (accession.equals("MS:1000130"))
@@ -426,85 +772,31 @@ public class MzMLReadTask extends AbstractTask {
           return PolarityType.NEGATIVE;
       }
     }
-    ScanList scanListElement = spectrum.getScanList();
-    if (scanListElement != null) {
-      List<Scan> scanElements = scanListElement.getScan();
-      if (scanElements != null) {
-        for (Scan scan : scanElements) {
-          cvParams = scan.getCvParam();
-          if (cvParams == null)
-            continue;
-          for (CVParam param : cvParams) {
-            String accession = param.getAccession();
-            if (accession == null)
-              continue;
-            if (accession.equals("MS:1000130"))
-              return PolarityType.POSITIVE;
-            if (accession.equals("MS:1000129"))
-              return PolarityType.NEGATIVE;
-          }
-
-        }
-      }
-    }
     return PolarityType.UNKNOWN;
 
   }
 
-  private String extractScanDefinition(Spectrum spectrum) {
-    List<CVParam> cvParams = spectrum.getCvParam();
-    if (cvParams != null) {
-      for (CVParam param : cvParams) {
-        String accession = param.getAccession();
-
+  private String extractScanDefinition(MzMLSpectrum spectrum) {
+    for (List<CvParam> cvParams : Arrays.asList(spectrum.cvParams, spectrum.scanCvParams)) {
+      for (CvParam param : cvParams) {
+        String accession = param.accession;
         if (accession == null)
           continue;
         if (accession.equals("MS:1000512"))
-          return param.getValue();
+          return param.value;
       }
     }
-    ScanList scanListElement = spectrum.getScanList();
-    if (scanListElement != null) {
-      List<Scan> scanElements = scanListElement.getScan();
-      if (scanElements != null) {
-        for (Scan scan : scanElements) {
-          cvParams = scan.getCvParam();
-          if (cvParams == null)
-            continue;
-          for (CVParam param : cvParams) {
-            String accession = param.getAccession();
-            if (accession == null)
-              continue;
-            if (accession.equals("MS:1000512"))
-              return param.getValue();
-          }
-
-        }
-      }
-    }
-    return spectrum.getId();
+    return spectrum.id;
   }
 
   public String getTaskDescription() {
     return "Opening file " + file;
   }
 
-  boolean isMsSpectrum(Spectrum spectrum) {
-
-    List<CVParam> cvParams = spectrum.getCvParam();
-    if (cvParams != null) {
-      for (CVParam param : cvParams) {
-        String accession = param.getAccession();
-        if (accession == null)
-          continue;
-
-        if (accession.equals("MS:1000804"))
-          return false;
-      }
-    }
+  private boolean isMsSpectrum(MzMLSpectrum spectrum) {
 
     // By default, let's assume unidentified spectra are MS spectra
-    return true;
+    return !hasParam(spectrum.cvParams, "MS:1000804");
   }
 
 }
@@ -18,13 +18,15 @@
 
 package net.sf.mzmine.modules.rawdatamethods.rawdataimport.fileformats;
 
-import java.io.ByteArrayInputStream;
-import java.io.DataInputStream;
 import java.io.File;
-import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
 import java.util.Base64;
 import java.util.Date;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.logging.Logger;
 import java.util.zip.DataFormatException;
 
@@ -54,7 +56,10 @@ import net.sf.mzmine.util.ExceptionUtils;
 import net.sf.mzmine.util.scans.ScanUtils;
 
 /**
- * 
+ * This class reads mzXML files. The SAX parser thread reads the scan attributes and collects the
+ * encoded peaks, while the base64 decoding, decompression and conversion of the peaks run on a pool
+ * of decoder threads. Each scan is decoded together with its fragment scans and the decoded scans
+ * are written to the raw data file in the original order.
  */
 public class MzXMLReadTask extends AbstractTask {
 
@@ -71,6 +76,8 @@ public class MzXMLReadTask extends AbstractTask {
   private DefaultHandler handler = new MzXMLHandler();
   private String precision;
 
+  private ScanDecodingQueue<List<EncodedScan>> decodingQueue;
+
   // Retention time parser
   private DatatypeFactory dataTypeFactory;
 
@@ -85,18 +92,34 @@ public class MzXMLReadTask extends AbstractTask {
    * This stack stores the current scan and all his fragments until all the information is recover.
    * The logic is FIFO at the moment of write into the RawDataFile
    */
-  private LinkedList<SimpleScan> parentStack;
+  private LinkedList<EncodedScan> parentStack;
 
   /*
    * This variable hold the present scan or fragment, it is send to the stack when another
    * scan/fragment appears as a parser.startElement
    */
-  private SimpleScan buildingScan;
+  private EncodedScan buildingScan;
+
+  /**
+   * Scan with its peaks as read from the file, until the peaks are decoded
+   */
+  private static class EncodedScan {
+    private final SimpleScan scan;
+    private final int peaksCount;
+    private String peaks;
+    private boolean compressed;
+    private String precision;
+
+    private EncodedScan(SimpleScan scan, int peaksCount) {
+      this.scan = scan;
+      this.peaksCount = peaksCount;
+    }
+  }
 
   public MzXMLReadTask(MZmineProject project, File fileToOpen, RawDataFileWriter newMZmineFile) {
     // 256 kilo-chars buffer
     charBuffer = new StringBuilder(1 << 18);
-    parentStack = new LinkedList<SimpleScan>();
+    parentStack = new LinkedList<EncodedScan>();
     this.project = project;
     this.file = fileToOpen;
     this.newMZmineFile = newMZmineFile;
@@ -123,14 +146,20 @@ public class MzXMLReadTask extends AbstractTask {
     try {
 
       dataTypeFactory = DatatypeFactory.newInstance();
+      decodingQueue = new ScanDecodingQueue<>(this::addDecodedScans);
 
       SAXParser saxParser = factory.newSAXParser();
       saxParser.parse(file, handler);
+      decodingQueue.finish();
 
       // Close file
       finalRawDataFile = newMZmineFile.finishWriting();
       project.addFile(finalRawDataFile);
 
+    } catch (DataFormatException e) {
+      setStatus(TaskStatus.ERROR);
+      setErrorMessage(e.getMessage());
+      return;
     } catch (Throwable e) {
       e.printStackTrace();
       /* we may already have set the status to CANCELED */
@@ -139,6 +168,9 @@ public class MzXMLReadTask extends AbstractTask {
         setErrorMessage(ExceptionUtils.exceptionToString(e));
       }
       return;
+    } finally {
+      if (decodingQueue != null)
+        decodingQueue.shutdown();
     }
 
     if (isCanceled())
@@ -159,6 +191,72 @@ public class MzXMLReadTask extends AbstractTask {
     return "Opening file " + file;
   }
 
+  /**
+   * Decodes the peaks of a scan and its fragment scans. Called by the decoder threads.
+   */
+  private static List<EncodedScan> decodeScans(List<EncodedScan> scans)
+      throws DataFormatException {
+    for (EncodedScan encodedScan : scans) {
+      if (encodedScan.peaks == null)
+        continue;
+
+      byte[] peakBytes = Base64.getDecoder().decode(encodedScan.peaks);
+      encodedScan.peaks = null;
+
+      if (encodedScan.compressed) {
+        try {
+          peakBytes = CompressionUtils.decompress(peakBytes);
+        } catch (DataFormatException e) {
+          throw new DataFormatException("Corrupt compressed peak: " + e.toString());
+        }
+      }
+
+      // Always respect this order pairOrder="m/z-int"
+      final boolean doublePrecision = "64".equals(encodedScan.precision);
+      final int numOfValues = encodedScan.peaksCount * 2;
+      final double values[] = new double[numOfValues];
+      final ByteBuffer peakBuffer = ByteBuffer.wrap(peakBytes);
+      if (doublePrecision) {
+        DoubleBuffer doubleBuffer = peakBuffer.asDoubleBuffer();
+        if (doubleBuffer.remaining() < numOfValues)
+          throw new DataFormatException("Corrupt mzXML file");
+        doubleBuffer.get(values);
+      } else {
+        FloatBuffer floatBuffer = peakBuffer.asFloatBuffer();
+        if (floatBuffer.remaining() < numOfValues)
+          throw new DataFormatException("Corrupt mzXML file");
+        for (int i = 0; i < numOfValues; i++)
+          values[i] = floatBuffer.get();
+      }
+
+      // Copy m/z and intensity data
+      DataPoint dataPoints[] = new DataPoint[encodedScan.peaksCount];
+      for (int i = 0; i < dataPoints.length; i++)
+        dataPoints[i] = new SimpleDataPoint(values[2 * i], values[2 * i + 1]);
+
+      // Auto-detect whether this scan is centroided
+      MassSpectrumType spectrumType = ScanUtils.detectSpectrumType(dataPoints);
+
+      // Set the centroided tag
+      encodedScan.scan.setSpectrumType(spectrumType);
+
+      // Set the final data points to the scan
+      encodedScan.scan.setDataPoints(dataPoints);
+    }
+    return scans;
+  }
+
+  /**
+   * Writes a decoded scan and its fragment scans to the RawDataFile, in the order in which they
+   * were read
+   */
+  private void addDecodedScans(List<EncodedScan> scans) throws Exception {
+    for (EncodedScan encodedScan : scans) {
+      newMZmineFile.addScan(encodedScan.scan);
+      parsedScans++;
+    }
+  }
+
   private class MzXMLHandler extends DefaultHandler {
     public void startElement(String namespaceURI, String lName, // local
         // name
@@ -231,9 +329,9 @@ public class MzXMLReadTask extends AbstractTask {
 
         if (msLevel > 1) {
           parentScan = parentTreeValue[msLevel - 1];
-          for (SimpleScan p : parentStack) {
-            if (p.getScanNumber() == parentScan) {
-              p.addFragmentScan(scanNumber);
+          for (EncodedScan p : parentStack) {
+            if (p.scan.getScanNumber() == parentScan) {
+              p.scan.addFragmentScan(scanNumber);
             }
           }
         }
@@ -242,8 +340,8 @@ public class MzXMLReadTask extends AbstractTask {
         msLevelTree++;
         parentTreeValue[msLevel] = scanNumber;
 
-        buildingScan = new SimpleScan(null, scanNumber, msLevel, retentionTime, 0, 0, null,
-            new DataPoint[0], null, polarity, scanId, null);
+        buildingScan = new EncodedScan(new SimpleScan(null, scanNumber, msLevel, retentionTime, 0,
+            0, null, new DataPoint[0], null, polarity, scanId, null), peaksCount);
 
       }
 
@@ -258,6 +356,8 @@ public class MzXMLReadTask extends AbstractTask {
         else
           compressFlag = true;
         precision = attrs.getValue("precision");
+        buildingScan.compressed = compressFlag;
+        buildingScan.precision = precision;
 
       }
 
@@ -267,7 +367,7 @@ public class MzXMLReadTask extends AbstractTask {
         charBuffer.setLength(0);
         String precursorCharge = attrs.getValue("precursorCharge");
         if (precursorCharge != null)
-          buildingScan.setPrecursorCharge(Integer.parseInt(precursorCharge));
+          buildingScan.scan.setPrecursorCharge(Integer.parseInt(precursorCharge));
       }
 
     }
@@ -293,17 +393,21 @@ public class MzXMLReadTask extends AbstractTask {
         if (msLevelTree == 0) {
           parentStack.addFirst(buildingScan);
           buildingScan = null;
+          List<EncodedScan> scans = new ArrayList<>(parentStack.size());
           while (!parentStack.isEmpty()) {
-            SimpleScan currentScan = parentStack.removeLast();
-            try {
-              newMZmineFile.addScan(currentScan);
-            } catch (IOException e) {
-              e.printStackTrace();
-              setStatus(TaskStatus.ERROR);
-              setErrorMessage("IO error: " + e);
-              throw new SAXException("Parsing error: " + e);
-            }
-            parsedScans++;
+            scans.add(parentStack.removeLast());
+          }
+          try {
+            decodingQueue.submit(() -> decodeScans(scans));
+          } catch (DataFormatException e) {
+            setStatus(TaskStatus.ERROR);
+            setErrorMessage(e.getMessage());
+            throw new SAXException("Parsing Cancelled");
+          } catch (Exception e) {
+            e.printStackTrace();
+            setStatus(TaskStatus.ERROR);
+            setErrorMessage("IO error: " + e);
+            throw new SAXException("Parsing error: " + e);
           }
 
           /*
@@ -323,63 +427,14 @@ public class MzXMLReadTask extends AbstractTask {
         double precursorMz = 0d;
         if (!textContent.isEmpty())
           precursorMz = Double.parseDouble(textContent);
-        buildingScan.setPrecursorMZ(precursorMz);
+        buildingScan.scan.setPrecursorMZ(precursorMz);
         return;
       }
 
       // <peaks>
       if (qName.equalsIgnoreCase("peaks")) {
-
-        byte[] peakBytes = Base64.getDecoder().decode(charBuffer.toString());
-
-        if (compressFlag) {
-          try {
-            peakBytes = CompressionUtils.decompress(peakBytes);
-          } catch (DataFormatException e) {
-            setStatus(TaskStatus.ERROR);
-            setErrorMessage("Corrupt compressed peak: " + e.toString());
-            throw new SAXException("Parsing Cancelled");
-          }
-        }
-
-        // make a data input stream
-        DataInputStream peakStream = new DataInputStream(new ByteArrayInputStream(peakBytes));
-
-        DataPoint dataPoints[] = new DataPoint[peaksCount];
-
-        try {
-          for (int i = 0; i < dataPoints.length; i++) {
-
-            // Always respect this order pairOrder="m/z-int"
-            double massOverCharge;
-            double intensity;
-            if ("64".equals(precision)) {
-              massOverCharge = peakStream.readDouble();
-              intensity = peakStream.readDouble();
-            } else {
-              massOverCharge = (double) peakStream.readFloat();
-              intensity = (double) peakStream.readFloat();
-            }
-
-            // Copy m/z and intensity data
-            dataPoints[i] = new SimpleDataPoint(massOverCharge, intensity);
-
-          }
-        } catch (IOException eof) {
-          setStatus(TaskStatus.ERROR);
-          setErrorMessage("Corrupt mzXML file");
-          throw new SAXException("Parsing Cancelled");
-        }
-
-        // Auto-detect whether this scan is centroided
-        MassSpectrumType spectrumType = ScanUtils.detectSpectrumType(dataPoints);
-
-        // Set the centroided tag
-        buildingScan.setSpectrumType(spectrumType);
-
-        // Set the final data points to the scan
-        buildingScan.setDataPoints(dataPoints);
-
+        // The peaks are decoded by the decoder threads when the scan is complete
+        buildingScan.peaks = charBuffer.toString();
         return;
       }
     }
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2006-2018 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with MZmine 2; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+
+package net.sf.mzmine.modules.rawdatamethods.rawdataimport.fileformats;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.FutureTask;
+
+import net.sf.mzmine.main.MZmineCore;
+import net.sf.mzmine.taskcontrol.metrics.MetricsRegistry;
+import net.sf.mzmine.taskcontrol.metrics.TaskMetrics;
+
+/**
+ * Bounded pipeline between the parser thread of a raw data import task and the shared parallel
+ * pool of the task controller. The parser submits one decoding job per scan and continues parsing
+ * while the pool threads convert the encoded peak data. The decoded scans are passed to the
+ * consumer on the parser thread, in the order in which they were submitted. At most a few scans per
+ * pool thread are pending at the same time, so the memory use does not depend on the size of the
+ * file. The decoding work is attributed to the metrics of the import task.
+ */
+class ScanDecodingQueue<T> {
+
+  /**
+   * Receives the decoded scans in order
+   */
+  interface ScanConsumer<T> {
+    void accept(T scan) throws Exception;
+  }
+
+  // Pending scans per pool thread
+  private static final int PENDING_PER_THREAD = 4;
+
+  private final ForkJoinPool pool;
+  private final TaskMetrics metrics;
+  private final int maxPending;
+  private final ScanConsumer<T> consumer;
+  private final ArrayDeque<FutureTask<T>> pending = new ArrayDeque<>();
+
+  /**
+   * Must be created on the parser thread of the import task
+   */
+  ScanDecodingQueue(ScanConsumer<T> consumer) {
+    this.pool = MZmineCore.getTaskController().getParallelPool();
+    this.metrics = MetricsRegistry.getCurrentTask();
+    this.maxPending = pool.getParallelism() * PENDING_PER_THREAD;
+    this.consumer = consumer;
+  }
+
+  /**
+   * Starts decoding of the next scan. Blocks while the oldest pending scan is decoded and consumed,
+   * if there are too many pending scans.
+   */
+  void submit(Callable<T> decodingJob) throws Exception {
+    final FutureTask<T> job = new FutureTask<>(decodingJob);
+    pending.add(job);
+    pool.execute(() -> MetricsRegistry.runAs(metrics, job));
+    while (pending.size() > maxPending)
+      consumeNext();
+  }
+
+  /**
+   * Waits for all pending scans and consumes them
+   */
+  void finish() throws Exception {
+    while (!pending.isEmpty())
+      consumeNext();
+  }
+
+  /**
+   * Cancels the pending decoding jobs. Must be called when the import finishes, fails or is
+   * canceled. The pool is shared by all tasks and stays running.
+   */
+  void shutdown() {
+    for (FutureTask<T> job : pending)
+      job.cancel(false);
+    pending.clear();
+  }
+
+  private void consumeNext() throws Exception {
+    final T scan;
+    try {
+      scan = pending.poll().get();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof Exception)
+        throw (Exception) e.getCause();
+      throw e;
+    }
+    consumer.accept(scan);
+  }
+
+}
@@ -54,7 +54,7 @@ class SpectraIdentificationSpectralDatabaseTask extends AbstractTask {
   private Scan currentScan;
   private SpectraPlot spectraPlot;
 
-  private List<SpectralMatchTask> tasks;
+  private volatile List<SpectralMatchTask> tasks;
 
   private SpectraIdentificationResultsWindow resultWindow;
 
@@ -78,7 +78,19 @@ class SpectraIdentificationSpectralDatabaseTask extends AbstractTask {
   public double getFinishedPercentage() {
     if (totalTasks == 0 || tasks == null)
       return 0;
-    return ((double) totalTasks - tasks.size()) / totalTasks;
+    return tasks.stream().filter(t -> t.isFinished() || t.isCanceled()).count()
+        / (double) totalTasks;
+  }
+
+  /**
+   * Cancels this task and all its sub tasks
+   */
+  @Override
+  public void cancel() {
+    super.cancel();
+    List<SpectralMatchTask> subTasks = tasks;
+    if (subTasks != null)
+      subTasks.forEach(AbstractTask::cancel);
   }
 
   /**
@@ -106,26 +118,18 @@ class SpectraIdentificationSpectralDatabaseTask extends AbstractTask {
       tasks = parseFile(dataBaseFile);
       totalTasks = tasks.size();
       if (!tasks.isEmpty()) {
-        // wait for the tasks to finish
-        while (!isCanceled() && !tasks.isEmpty()) {
-          for (int i = 0; i < tasks.size(); i++) {
-            if (tasks.get(i).isFinished() || tasks.get(i).isCanceled()) {
-              count += tasks.get(i).getCount();
-              tasks.remove(i);
-              i--;
-            }
-          }
-          // wait for all sub tasks to finish
-          try {
-            Thread.sleep(100);
-          } catch (Exception e) {
-            cancel();
-          }
-        }
-        // cancelled
+        // cancelled while the sub tasks were created
         if (isCanceled()) {
           tasks.stream().forEach(AbstractTask::cancel);
         }
+        // wait for all sub tasks to finish
+        try {
+          MZmineCore.getTaskController().waitForTasks(tasks);
+        } catch (InterruptedException e) {
+          cancel();
+        }
+        for (SpectralMatchTask task : tasks)
+          count += task.getCount();
       } else {
         setStatus(TaskStatus.ERROR);
         setErrorMessage("DB file was empty - or error while parsing " + dataBaseFile);
@@ -18,7 +18,6 @@
 
 package net.sf.mzmine.modules.visualization.twod;
 
-import java.lang.ref.SoftReference;
 import java.util.ArrayList;
 import java.util.Arrays;
 import org.jfree.data.xy.AbstractXYDataset;
@@ -28,6 +27,7 @@ import net.sf.mzmine.datamodel.RawDataFile;
 import net.sf.mzmine.datamodel.Scan;
 import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
 import net.sf.mzmine.main.MZmineCore;
+import net.sf.mzmine.project.impl.DataPointsCache;
 import net.sf.mzmine.taskcontrol.Task;
 import net.sf.mzmine.taskcontrol.TaskPriority;
 import net.sf.mzmine.taskcontrol.TaskStatus;
@@ -43,7 +43,6 @@ class TwoDDataSet extends AbstractXYDataset implements Task {
 
   private double retentionTimes[];
   private double basePeaks[];
-  private SoftReference<DataPoint[]> dataPointMatrix[];
 
   private final Range<Double> totalRTRange, totalMZRange;
   private int totalScans, processedScans;
@@ -55,7 +54,6 @@ class TwoDDataSet extends AbstractXYDataset implements Task {
   private ArrayList<Double> rtValuesInUserRange;
 
 
-  @SuppressWarnings("unchecked")
   TwoDDataSet(RawDataFile rawDataFile, Scan scans[], Range<Double> rtRange, Range<Double> mzRange,
       TwoDVisualizerWindow visualizer) {
 
@@ -68,7 +66,6 @@ class TwoDDataSet extends AbstractXYDataset implements Task {
 
     totalScans = scans.length;
 
-    dataPointMatrix = new SoftReference[totalScans];
     retentionTimes = new double[totalScans];
     basePeaks = new double[totalScans];
 
@@ -92,8 +89,8 @@ class TwoDDataSet extends AbstractXYDataset implements Task {
       DataPoint scanBasePeak = scan.getHighestDataPoint();
       retentionTimes[index] = scan.getRetentionTime();
       basePeaks[index] = (scanBasePeak == null ? 0 : scanBasePeak.getIntensity());
-      DataPoint scanDataPoints[] = scan.getDataPoints();
-      dataPointMatrix[index] = new SoftReference<DataPoint[]>(scanDataPoints);
+      // Load the data points into the shared cache
+      DataPointsCache.getSharedDataPoints(scan);
       processedScans++;
     }
 
@@ -238,12 +235,12 @@ class TwoDDataSet extends AbstractXYDataset implements Task {
 
 
 
-    // With this we can grab the data points from the scans we want using dataPointMatrix
+    // With this we can grab the data points from the scans we want using the DataPointsCache
 
     for (int scanIndex = startScanIndex; ((scanIndex < searchRetentionTimes.length)
         && (searchRetentionTimes[scanIndex] <= rtRange.upperEndpoint())); scanIndex++) {
       // get the list of data points
-      DataPoint dataPoints[] = dataPointMatrix[scanIndex].get();
+      DataPoint dataPoints[] = DataPointsCache.getSharedDataPoints(scans[scanIndex]);
       // Binary search for the mz values in the range you want
 
       DataPoint searchMZ = new SimpleDataPoint(mzRange.lowerEndpoint(), 0);
@@ -283,14 +280,9 @@ class TwoDDataSet extends AbstractXYDataset implements Task {
     return dataPointsInRanges;
   }
 
-  private double upperEndpointIntensity(int dataPointMatrixIndex, Range<Double> mzRange,
+  private double upperEndpointIntensity(int scanIndex, Range<Double> mzRange,
       PlotMode plotMode) {
-    DataPoint dataPoints[] = dataPointMatrix[dataPointMatrixIndex].get();
-    if (dataPoints == null) {
-      Scan scan = scans[dataPointMatrixIndex];
-      dataPoints = scan.getDataPoints();
-      dataPointMatrix[dataPointMatrixIndex] = new SoftReference<DataPoint[]>(dataPoints);
-    }
+    DataPoint dataPoints[] = DataPointsCache.getSharedDataPoints(scans[scanIndex]);
     return upperEndpointIntensity(dataPoints, mzRange, plotMode);
   }
 
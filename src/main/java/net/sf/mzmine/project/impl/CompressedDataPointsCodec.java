@@ -0,0 +1,256 @@
+/*
+ * Copyright 2006-2018 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with MZmine 2; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+
+package net.sf.mzmine.project.impl;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.desktop.preferences.MZminePreferences;
+import net.sf.mzmine.desktop.preferences.ScanDataCompressionSettings;
+import net.sf.mzmine.main.MZmineCore;
+import net.sf.mzmine.parameters.ParameterSet;
+
+/**
+ * Compressed encoding of data points in the temporary data points file. Each set of data points is
+ * stored as one self-contained block, so it can be decoded without reading any other block.
+ *
+ * The m/z values are stored as differences of the bit patterns of consecutive float values, in a
+ * variable-length encoding. The bit patterns of positive floats are ordered like their values, so
+ * the differences of sorted m/z values are small numbers and the encoding is lossless. The
+ * intensity values are rounded to the configured number of mantissa bits and stored as four
+ * separate byte planes (all highest bytes first, then all second bytes etc.), so the zeroed low
+ * bytes form long runs. The whole payload is then compressed using the fastest deflate level.
+ *
+ * Block header: format version (byte), intensity mantissa bits (byte), reserved (short), number of
+ * data points (int), uncompressed payload length (int), compressed payload length (int).
+ */
+class CompressedDataPointsCodec {
+
+  static final int HEADER_SIZE = 16;
+
+  private static final byte FORMAT_VERSION = 1;
+
+  // Float mantissa length
+  private static final int MANTISSA_BITS = 23;
+
+  private final int intensityBits;
+
+  // Buffers of the encoder, used under the lock of RawDataFileImpl.storeDataPoints()
+  private final Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+  private byte payload[] = new byte[1 << 16];
+  private ByteBuffer block = ByteBuffer.allocate(1 << 16);
+
+  // Buffers of the decoder, one per reading thread
+  private static final ThreadLocal<Inflater> inflater =
+      ThreadLocal.withInitial(() -> new Inflater(true));
+  private static final ThreadLocal<byte[]> decodedPayload =
+      ThreadLocal.withInitial(() -> new byte[1 << 16]);
+
+  CompressedDataPointsCodec(int intensityBits) {
+    this.intensityBits = Math.max(1, Math.min(MANTISSA_BITS, intensityBits));
+  }
+
+  /**
+   * @return codec configured in the MZmine preferences, or null if the compression is disabled
+   */
+  static CompressedDataPointsCodec fromPreferences() {
+    if (MZmineCore.getConfiguration() == null)
+      return null;
+    MZminePreferences preferences = MZmineCore.getConfiguration().getPreferences();
+    Boolean enabled = preferences.getParameter(MZminePreferences.scanDataCompression).getValue();
+    if ((enabled == null) || (!enabled))
+      return null;
+    ParameterSet settings =
+        preferences.getParameter(MZminePreferences.scanDataCompression).getEmbeddedParameters();
+    Integer bits = settings.getParameter(ScanDataCompressionSettings.intensityBits).getValue();
+    return new CompressedDataPointsCodec(bits == null ? MANTISSA_BITS : bits);
+  }
+
+  /**
+   * Encodes the data points into a block. The returned buffer is reused by the next call.
+   */
+  ByteBuffer encode(DataPoint dataPoints[]) {
+
+    final int numOfDataPoints = dataPoints.length;
+
+    // At most 5 bytes per m/z value and 4 bytes per intensity value
+    final int maxPayloadLength = numOfDataPoints * 9;
+    if (payload.length < maxPayloadLength)
+      payload = new byte[maxPayloadLength * 2];
+
+    int position = 0;
+    int previousMzBits = 0;
+    for (DataPoint dp : dataPoints) {
+      final int mzBits = Float.floatToIntBits((float) dp.getMZ());
+      final int delta = mzBits - previousMzBits;
+      previousMzBits = mzBits;
+      // Zig-zag encoding maps small negative differences to small positive numbers
+      int value = (delta << 1) ^ (delta >> 31);
+      while ((value & ~0x7f) != 0) {
+        payload[position++] = (byte) ((value & 0x7f) | 0x80);
+        value >>>= 7;
+      }
+      payload[position++] = (byte) value;
+    }
+
+    final int planeStart = position;
+    for (int i = 0; i < numOfDataPoints; i++) {
+      final int bits = roundIntensity((float) dataPoints[i].getIntensity());
+      payload[planeStart + i] = (byte) (bits >>> 24);
+      payload[planeStart + numOfDataPoints + i] = (byte) (bits >>> 16);
+      payload[planeStart + 2 * numOfDataPoints + i] = (byte) (bits >>> 8);
+      payload[planeStart + 3 * numOfDataPoints + i] = (byte) bits;
+    }
+    final int payloadLength = planeStart + 4 * numOfDataPoints;
+
+    // Deflate may slightly expand incompressible data
+    final int maxBlockLength = HEADER_SIZE + payloadLength + (payloadLength >> 4) + 64;
+    if (block.capacity() < maxBlockLength)
+      block = ByteBuffer.allocate(maxBlockLength * 2);
+
+    deflater.reset();
+    deflater.setInput(payload, 0, payloadLength);
+    deflater.finish();
+    int compressedLength = 0;
+    byte blockArray[] = block.array();
+    while (!deflater.finished()) {
+      if (HEADER_SIZE + compressedLength == blockArray.length) {
+        blockArray = Arrays.copyOf(blockArray, blockArray.length * 2);
+        block = ByteBuffer.wrap(blockArray);
+      }
+      compressedLength += deflater.deflate(blockArray, HEADER_SIZE + compressedLength,
+          blockArray.length - HEADER_SIZE - compressedLength);
+    }
+
+    // JDK 9 breaks compatibility with JRE8: need to cast
+    ((Buffer) block).clear();
+    block.put(FORMAT_VERSION);
+    block.put((byte) intensityBits);
+    block.putShort((short) 0);
+    block.putInt(numOfDataPoints);
+    block.putInt(payloadLength);
+    block.putInt(compressedLength);
+    ((Buffer) block).position(0);
+    ((Buffer) block).limit(HEADER_SIZE + compressedLength);
+    return block;
+  }
+
+  /**
+   * @return bit pattern of the intensity rounded to the configured number of mantissa bits
+   */
+  private int roundIntensity(float intensity) {
+    final int bits = Float.floatToIntBits(intensity);
+    if (intensityBits >= MANTISSA_BITS || !Float.isFinite(intensity))
+      return bits;
+    final int droppedBits = MANTISSA_BITS - intensityBits;
+    final int rounded = bits + (1 << (droppedBits - 1));
+    return rounded & ~((1 << droppedBits) - 1);
+  }
+
+  /**
+   * Decodes a block into m/z and intensity float pairs, which are written to the given buffer as
+   * big-endian floats (the format of uncompressed data points). This method may be called by many
+   * threads at the same time.
+   *
+   * @param block buffer containing the complete block, starting at its current position
+   * @param output buffer with space for all decoded data points
+   */
+  static void decode(ByteBuffer block, ByteBuffer output) throws IOException {
+
+    final int start = block.position();
+    if (block.get(start) != FORMAT_VERSION)
+      throw new IOException("Unknown data points encoding " + block.get(start));
+    final int numOfDataPoints = block.getInt(start + 4);
+    final int payloadLength = block.getInt(start + 8);
+    final int compressedLength = block.getInt(start + 12);
+
+    final byte decoded[] = ensurePayloadBuffer(payloadLength + compressedLength);
+    final byte compressed[];
+    final int compressedOffset;
+    if (block.hasArray()) {
+      compressed = block.array();
+      compressedOffset = block.arrayOffset() + start + HEADER_SIZE;
+    } else {
+      // Mapped buffer - copy the compressed bytes behind the space for the decompressed payload
+      compressed = decoded;
+      compressedOffset = payloadLength;
+      ByteBuffer source = block.duplicate();
+      ((Buffer) source).position(start + HEADER_SIZE);
+      source.get(compressed, compressedOffset, compressedLength);
+    }
+
+    final Inflater currentInflater = inflater.get();
+    currentInflater.reset();
+    currentInflater.setInput(compressed, compressedOffset, compressedLength);
+    try {
+      int decodedLength = 0;
+      while (decodedLength < payloadLength) {
+        final int count =
+            currentInflater.inflate(decoded, decodedLength, payloadLength - decodedLength);
+        if (count == 0 && (currentInflater.finished() || currentInflater.needsInput()))
+          break;
+        decodedLength += count;
+      }
+      if (decodedLength != payloadLength)
+        throw new IOException("Corrupt compressed data points");
+    } catch (DataFormatException e) {
+      throw new IOException("Corrupt compressed data points", e);
+    }
+
+    final int outputStart = output.position();
+    int position = 0;
+    int mzBits = 0;
+    for (int i = 0; i < numOfDataPoints; i++) {
+      int value = 0, shift = 0;
+      byte b;
+      do {
+        b = decoded[position++];
+        value |= (b & 0x7f) << shift;
+        shift += 7;
+      } while (b < 0);
+      mzBits += (value >>> 1) ^ -(value & 1);
+      output.putInt(outputStart + i * 8, mzBits);
+    }
+
+    final int planeStart = position;
+    for (int i = 0; i < numOfDataPoints; i++) {
+      final int bits = ((decoded[planeStart + i] & 0xff) << 24)
+          | ((decoded[planeStart + numOfDataPoints + i] & 0xff) << 16)
+          | ((decoded[planeStart + 2 * numOfDataPoints + i] & 0xff) << 8)
+          | (decoded[planeStart + 3 * numOfDataPoints + i] & 0xff);
+      output.putInt(outputStart + i * 8 + 4, bits);
+    }
+  }
+
+  private static byte[] ensurePayloadBuffer(int length) {
+    byte buffer[] = decodedPayload.get();
+    if (buffer.length < length) {
+      buffer = new byte[length * 2];
+      decodedPayload.set(buffer);
+    }
+    return buffer;
+  }
+
+}
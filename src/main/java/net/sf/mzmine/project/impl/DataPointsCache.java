@@ -0,0 +1,193 @@
+/*
+ * Copyright 2006-2018 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with MZmine 2; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+
+package net.sf.mzmine.project.impl;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.logging.Logger;
+
+import javax.annotation.Nonnull;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.Scan;
+import net.sf.mzmine.taskcontrol.metrics.MetricsRegistry;
+
+/**
+ * Project-wide cache of decoded data points of scans and mass lists, keyed by raw data file and
+ * storage ID. The cache has a memory budget (set in the MZmine preferences) and evicts the least
+ * recently used entries, weighted by their approximate size. Consecutive processing steps over the
+ * same scans and the visualizers therefore share the decoded data points instead of reading the
+ * temporary file again.
+ */
+public class DataPointsCache {
+
+  private static final Logger logger = Logger.getLogger(DataPointsCache.class.getName());
+
+  /**
+   * Default memory budget in MB
+   */
+  public static final int DEFAULT_SIZE_MB = 256;
+
+  // Approximate memory of one SimpleDataPoint including its array slot
+  private static final int BYTES_PER_DATA_POINT = 40;
+
+  private static volatile Cache<Key, DataPoint[]> cache = createCache(DEFAULT_SIZE_MB);
+
+  private static final class Key {
+    private final RawDataFileImpl dataFile;
+    private final int storageID;
+
+    private Key(RawDataFileImpl dataFile, int storageID) {
+      this.dataFile = dataFile;
+      this.storageID = storageID;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key))
+        return false;
+      Key other = (Key) o;
+      return (dataFile == other.dataFile) && (storageID == other.storageID);
+    }
+
+    @Override
+    public int hashCode() {
+      return System.identityHashCode(dataFile) * 31 + storageID;
+    }
+  }
+
+  private static Cache<Key, DataPoint[]> createCache(int sizeMB) {
+    if (sizeMB <= 0)
+      return null;
+    return CacheBuilder.newBuilder().maximumWeight(sizeMB * 1024L * 1024L)
+        .weigher((Key key, DataPoint[] dataPoints) -> (int) Math.min(Integer.MAX_VALUE,
+            16L + (long) dataPoints.length * BYTES_PER_DATA_POINT))
+        .recordStats().build();
+  }
+
+  /**
+   * Sets the memory budget. The cached data points and statistics are discarded.
+   *
+   * @param sizeMB budget in MB, 0 disables the cache
+   */
+  public static synchronized void setSize(int sizeMB) {
+    Cache<Key, DataPoint[]> oldCache = cache;
+    cache = createCache(sizeMB);
+    if (oldCache != null)
+      oldCache.invalidateAll();
+    logger.finest("Data points cache size set to " + sizeMB + " MB");
+  }
+
+  /**
+   * @return hit, miss and eviction counts since the cache was created, or empty statistics if the
+   *         cache is disabled
+   */
+  public static @Nonnull CacheStats getStats() {
+    Cache<Key, DataPoint[]> currentCache = cache;
+    if (currentCache == null)
+      return new CacheStats(0, 0, 0, 0, 0, 0);
+    return currentCache.stats();
+  }
+
+  public static long getHitCount() {
+    return getStats().hitCount();
+  }
+
+  public static long getMissCount() {
+    return getStats().missCount();
+  }
+
+  /**
+   * Returns the data points of a scan without copying them, if the scan is stored in a raw data
+   * file. The returned array is shared and must not be modified.
+   */
+  public static @Nonnull DataPoint[] getSharedDataPoints(@Nonnull Scan scan) {
+    if (!(scan instanceof StorableScan))
+      return scan.getDataPoints();
+    MetricsRegistry.addScansRead(1);
+    StorableScan storableScan = (StorableScan) scan;
+    RawDataFileImpl dataFile = (RawDataFileImpl) storableScan.getDataFile();
+    try {
+      return get(dataFile, storableScan.getStorageID());
+    } catch (IOException e) {
+      logger.severe("Could not read data from temporary file " + e.toString());
+      return new DataPoint[0];
+    }
+  }
+
+  /**
+   * Returns the cached data points, decoding them first if they are not cached. The returned array
+   * is shared and must not be modified. The access is counted in the MetricsRegistry.
+   */
+  static DataPoint[] get(RawDataFileImpl dataFile, int storageID) throws IOException {
+    MetricsRegistry.addCacheAccess();
+    Cache<Key, DataPoint[]> currentCache = cache;
+    if (currentCache == null) {
+      MetricsRegistry.addCacheMiss();
+      return dataFile.decodeDataPoints(storageID);
+    }
+    try {
+      return currentCache.get(new Key(dataFile, storageID), () -> {
+        MetricsRegistry.addCacheMiss();
+        return dataFile.decodeDataPoints(storageID);
+      });
+    } catch (ExecutionException | UncheckedExecutionException e) {
+      if (e.getCause() instanceof IOException)
+        throw (IOException) e.getCause();
+      if (e.getCause() instanceof RuntimeException)
+        throw (RuntimeException) e.getCause();
+      throw new IOException(e.getCause());
+    }
+  }
+
+  /**
+   * @return the cached data points or null, without decoding them and without counting a hit or
+   *         miss. The returned array is shared and must not be modified.
+   */
+  static DataPoint[] getIfPresent(RawDataFileImpl dataFile, int storageID) {
+    Cache<Key, DataPoint[]> currentCache = cache;
+    if (currentCache == null)
+      return null;
+    return currentCache.asMap().get(new Key(dataFile, storageID));
+  }
+
+  /**
+   * Removes the data points of one storage ID, which is going to be deleted
+   */
+  static void invalidate(RawDataFileImpl dataFile, int storageID) {
+    Cache<Key, DataPoint[]> currentCache = cache;
+    if (currentCache != null)
+      currentCache.invalidate(new Key(dataFile, storageID));
+  }
+
+  /**
+   * Removes all data points of a raw data file
+   */
+  static void invalidateAll(RawDataFileImpl dataFile) {
+    Cache<Key, DataPoint[]> currentCache = cache;
+    if (currentCache != null)
+      currentCache.asMap().keySet().removeIf(key -> key.dataFile == dataFile);
+  }
+
+}
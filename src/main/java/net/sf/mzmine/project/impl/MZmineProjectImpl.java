@@ -37,6 +37,7 @@ import net.sf.mzmine.desktop.impl.projecttree.ProjectTree;
 import net.sf.mzmine.desktop.impl.projecttree.RawDataTreeModel;
 import net.sf.mzmine.main.MZmineCore;
 import net.sf.mzmine.parameters.UserParameter;
+import net.sf.mzmine.taskcontrol.metrics.MetricsRegistry;
 
 /**
  * This class represents a MZmine project. That includes raw data files, feature lists and parameters.
@@ -189,10 +190,24 @@ public class MZmineProjectImpl implements MZmineProject {
     return peakListTreeModel.getPeakLists();
   }
 
+  /**
+   * Adds a feature list produced by the current task and counts its rows as written by the task
+   */
   public void addPeakList(final PeakList peakList) {
 
     assert peakList != null;
 
+    MetricsRegistry.addRowsWritten(peakList.getNumberOfRows());
+    addLoadedPeakList(peakList);
+  }
+
+  /**
+   * Adds a feature list read from a saved project, without counting its rows as written
+   */
+  public void addLoadedPeakList(final PeakList peakList) {
+
+    assert peakList != null;
+
     Runnable swingCode = new Runnable() {
       public void run() {
         peakListTreeModel.addObject(peakList);
@@ -0,0 +1,288 @@
+/*
+ * Copyright 2006-2018 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with MZmine 2; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+
+package net.sf.mzmine.project.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Append-only storage of binary data in a temporary file, which can be read by many threads at the
+ * same time without locking. The file is divided into segments of fixed size. Once a segment has
+ * been completely written, it never changes again, so it is memory-mapped (read-only) on first
+ * access and all further reads are served directly from the mapping. Data in the last, incomplete
+ * segment (or data crossing a segment boundary) is read using positional reads on the FileChannel,
+ * which do not modify the channel position and are therefore safe to call concurrently.
+ *
+ * Writes are serialized by the append() method. The caller must publish the returned offset to the
+ * readers (e.g. through a concurrent map) only after append() returns.
+ *
+ * The storage may start with a read-only region of another file (the uncompressed scan data entry
+ * of a project archive). The region occupies the offsets from 0 to its length and is memory-mapped
+ * in place, so a loaded project does not need to be extracted. Appended data follows the region.
+ */
+class MappedDataPointsStorage {
+
+  /**
+   * Size of one memory-mapped segment (64 MB)
+   */
+  static final int SEGMENT_SIZE = 1 << 26;
+
+  private final Logger logger = Logger.getLogger(this.getClass().getName());
+
+  private final File file;
+  private final RandomAccessFile randomAccessFile;
+  private final FileChannel channel;
+
+  // Current end of the written data. The file itself is never longer than this.
+  private volatile long writePosition;
+
+  // Mapped segments, grown on demand. The array reference is replaced (never modified in place
+  // after publishing) so that readers can access it without locking.
+  private volatile MappedByteBuffer segments[] = new MappedByteBuffer[0];
+
+  // Read-only region of a project archive preceding the appended data, or null
+  private final File archiveFile;
+  private final RandomAccessFile archiveRandomAccessFile;
+  private final FileChannel archiveChannel;
+  private final long archiveOffset, archiveLength;
+  private volatile MappedByteBuffer archiveSegments[] = new MappedByteBuffer[0];
+
+  // Buffer for reading data that cannot be served from a mapped segment
+  private final ThreadLocal<ByteBuffer> readBuffer =
+      ThreadLocal.withInitial(() -> ByteBuffer.allocate(20000));
+
+  MappedDataPointsStorage(File file) throws IOException {
+    this(file, null, 0, 0);
+  }
+
+  /**
+   * @param file file for the appended data
+   * @param archiveFile file containing the read-only region, or null
+   * @param archiveOffset position of the read-only region in the archiveFile
+   * @param archiveLength length of the read-only region
+   */
+  MappedDataPointsStorage(File file, File archiveFile, long archiveOffset, long archiveLength)
+      throws IOException {
+    this.file = file;
+    this.archiveFile = archiveFile;
+    this.archiveOffset = archiveOffset;
+    if (archiveFile != null) {
+      this.archiveRandomAccessFile = new RandomAccessFile(archiveFile, "r");
+      this.archiveChannel = archiveRandomAccessFile.getChannel();
+      if (archiveOffset + archiveLength > archiveChannel.size()) {
+        archiveRandomAccessFile.close();
+        throw new IOException("Scan data exceed the end of file " + archiveFile);
+      }
+      this.archiveLength = archiveLength;
+    } else {
+      this.archiveRandomAccessFile = null;
+      this.archiveChannel = null;
+      this.archiveLength = 0;
+    }
+    this.randomAccessFile = new RandomAccessFile(file, "rw");
+    this.channel = randomAccessFile.getChannel();
+    this.writePosition = channel.size();
+
+    // Locks the temporary file so it is not removed when another instance
+    // of MZmine is starting. Lock will be automatically released when this
+    // instance of MZmine exits. Locking may fail on network-mounted filesystems.
+    try {
+      channel.lock();
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Failed to lock the file " + file, e);
+    }
+  }
+
+  File getFile() {
+    return file;
+  }
+
+  RandomAccessFile getRandomAccessFile() {
+    return randomAccessFile;
+  }
+
+  /**
+   * @return File containing the read-only region, or null
+   */
+  File getArchiveFile() {
+    return archiveFile;
+  }
+
+  /**
+   * @return Number of bytes in the read-only region and written so far
+   */
+  long length() {
+    return archiveLength + writePosition;
+  }
+
+  /**
+   * Appends the remaining bytes of the given buffer to the end of the file.
+   *
+   * @return Offset at which the data was written
+   */
+  synchronized long append(ByteBuffer data) throws IOException {
+    final long offset = writePosition;
+    long position = offset;
+    while (data.hasRemaining()) {
+      position += channel.write(data, position);
+    }
+    writePosition = position;
+    return archiveLength + offset;
+  }
+
+  /**
+   * Returns a read-only buffer containing numOfBytes bytes starting at the given offset. The
+   * returned buffer is either a view of a mapped segment or a thread-local buffer, so it must be
+   * consumed before the calling thread invokes read() again.
+   */
+  ByteBuffer read(long offset, int numOfBytes) throws IOException {
+
+    if (offset < archiveLength)
+      return readArchive(offset, numOfBytes);
+    offset -= archiveLength;
+
+    if (offset + numOfBytes > writePosition)
+      throw new IOException("Cannot read beyond the end of file " + file);
+
+    final int segmentIndex = (int) (offset / SEGMENT_SIZE);
+    final long segmentStart = (long) segmentIndex * SEGMENT_SIZE;
+    final long segmentEnd = segmentStart + SEGMENT_SIZE;
+
+    // Fast path - the data lies in a segment that has been completely written
+    if ((offset + numOfBytes <= segmentEnd) && (segmentEnd <= writePosition)) {
+      MappedByteBuffer segment = getSegment(segmentIndex);
+      ByteBuffer view = segment.duplicate();
+      final int start = (int) (offset - segmentStart);
+      // JDK 9 breaks compatibility with JRE8: need to cast
+      ((Buffer) view).limit(start + numOfBytes);
+      ((Buffer) view).position(start);
+      return view.slice();
+    }
+
+    // Slow path - positional read of the tail of the file
+    return readPositional(channel, file, offset, numOfBytes);
+  }
+
+  /**
+   * Reads from the read-only region. The region is complete, so it is mapped in segments of the
+   * same size as the appended data, starting at the beginning of the region. The operating system
+   * pages the data in on first access.
+   */
+  private ByteBuffer readArchive(long offset, int numOfBytes) throws IOException {
+
+    if (offset + numOfBytes > archiveLength)
+      throw new IOException("Cannot read beyond the end of scan data in " + archiveFile);
+
+    final int segmentIndex = (int) (offset / SEGMENT_SIZE);
+    final long segmentStart = (long) segmentIndex * SEGMENT_SIZE;
+
+    if (offset + numOfBytes <= segmentStart + SEGMENT_SIZE) {
+      MappedByteBuffer segment = getArchiveSegment(segmentIndex);
+      ByteBuffer view = segment.duplicate();
+      final int start = (int) (offset - segmentStart);
+      ((Buffer) view).limit(start + numOfBytes);
+      ((Buffer) view).position(start);
+      return view.slice();
+    }
+
+    // Data crossing a segment boundary
+    return readPositional(archiveChannel, archiveFile, archiveOffset + offset, numOfBytes);
+  }
+
+  private ByteBuffer readPositional(FileChannel sourceChannel, File sourceFile, long offset,
+      int numOfBytes) throws IOException {
+    ByteBuffer buffer = readBuffer.get();
+    if (buffer.capacity() < numOfBytes) {
+      buffer = ByteBuffer.allocate(numOfBytes * 2);
+      readBuffer.set(buffer);
+    }
+    ((Buffer) buffer).clear();
+    ((Buffer) buffer).limit(numOfBytes);
+    long position = offset;
+    while (buffer.hasRemaining()) {
+      final int read = sourceChannel.read(buffer, position);
+      if (read < 0)
+        throw new IOException("Unexpected end of file " + sourceFile);
+      position += read;
+    }
+    ((Buffer) buffer).flip();
+    return buffer;
+  }
+
+  private MappedByteBuffer getSegment(int segmentIndex) throws IOException {
+    MappedByteBuffer currentSegments[] = segments;
+    if ((segmentIndex < currentSegments.length) && (currentSegments[segmentIndex] != null))
+      return currentSegments[segmentIndex];
+
+    synchronized (this) {
+      currentSegments = segments;
+      if ((segmentIndex < currentSegments.length) && (currentSegments[segmentIndex] != null))
+        return currentSegments[segmentIndex];
+
+      MappedByteBuffer newSegments[] = new MappedByteBuffer[Math.max(segmentIndex + 1,
+          currentSegments.length)];
+      System.arraycopy(currentSegments, 0, newSegments, 0, currentSegments.length);
+      newSegments[segmentIndex] = channel.map(FileChannel.MapMode.READ_ONLY,
+          (long) segmentIndex * SEGMENT_SIZE, SEGMENT_SIZE);
+      segments = newSegments;
+      return newSegments[segmentIndex];
+    }
+  }
+
+  private MappedByteBuffer getArchiveSegment(int segmentIndex) throws IOException {
+    MappedByteBuffer currentSegments[] = archiveSegments;
+    if ((segmentIndex < currentSegments.length) && (currentSegments[segmentIndex] != null))
+      return currentSegments[segmentIndex];
+
+    synchronized (this) {
+      currentSegments = archiveSegments;
+      if ((segmentIndex < currentSegments.length) && (currentSegments[segmentIndex] != null))
+        return currentSegments[segmentIndex];
+
+      MappedByteBuffer newSegments[] = new MappedByteBuffer[Math.max(segmentIndex + 1,
+          currentSegments.length)];
+      System.arraycopy(currentSegments, 0, newSegments, 0, currentSegments.length);
+      final long segmentStart = (long) segmentIndex * SEGMENT_SIZE;
+      newSegments[segmentIndex] = archiveChannel.map(FileChannel.MapMode.READ_ONLY,
+          archiveOffset + segmentStart, Math.min(SEGMENT_SIZE, archiveLength - segmentStart));
+      archiveSegments = newSegments;
+      return newSegments[segmentIndex];
+    }
+  }
+
+  synchronized void close() throws IOException {
+    // The mapped segments are released when they are garbage collected
+    segments = new MappedByteBuffer[0];
+    archiveSegments = new MappedByteBuffer[0];
+    channel.close();
+    randomAccessFile.close();
+    if (archiveRandomAccessFile != null) {
+      archiveChannel.close();
+      archiveRandomAccessFile.close();
+    }
+  }
+
+}
@@ -24,19 +24,25 @@ import java.io.RandomAccessFile;
 import java.nio.Buffer;
 import java.nio.ByteBuffer;
 import java.nio.FloatBuffer;
-import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Enumeration;
-import java.util.HashSet;
 import java.util.Hashtable;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
-import java.util.logging.Level;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.StampedLock;
 import java.util.logging.Logger;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import com.google.common.collect.BoundType;
 import com.google.common.collect.Range;
 import com.google.common.primitives.Ints;
 import net.sf.mzmine.datamodel.DataPoint;
@@ -45,16 +51,42 @@ import net.sf.mzmine.datamodel.RawDataFile;
 import net.sf.mzmine.datamodel.RawDataFileWriter;
 import net.sf.mzmine.datamodel.Scan;
 import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
+import net.sf.mzmine.datamodel.impl.SimpleScan;
+import net.sf.mzmine.taskcontrol.metrics.MetricsRegistry;
 
 /**
  * RawDataFile implementation. It provides storage of data points for scans and mass lists using the
  * storeDataPoints() and readDataPoints() methods. The data points are stored in a temporary file
- * (dataPointsFile) and the structure of the file is stored in two TreeMaps. The dataPointsOffsets
- * maps storage ID to the offset in the dataPointsFile. The dataPointsLength maps the storage ID to
- * the number of data points stored under this ID. When stored data points are deleted using
- * removeStoredDataPoints(), the dataPointsFile is not modified, the storage ID is just deleted from
- * the two TreeMaps. When the project is saved, the contents of the dataPointsFile are consolidated
- * - only data points referenced by the TreeMaps are saved (see the RawDataFileSaveHandler class).
+ * (dataPointsFile) and the structure of the file is stored in two concurrent maps. The
+ * dataPointsOffsets maps storage ID to the offset in the dataPointsFile. The dataPointsLength maps
+ * the storage ID to the number of data points stored under this ID. When stored data points are
+ * deleted using removeStoredDataPoints(), the dataPointsFile is not modified, the storage ID is
+ * just deleted from the two maps. When the project is saved, the contents of the dataPointsFile are
+ * consolidated - only data points referenced by the maps are saved (see the
+ * RawDataFileSaveHandler class). When the deleted data points take more than half of the
+ * dataPointsFile, the remaining data points are copied to a new file in a background thread and the
+ * new file replaces the old one (see compactDataPointsFile()).
+ *
+ * The dataPointsFile is append-only and memory-mapped (see MappedDataPointsStorage), so
+ * readDataPoints() does not lock and can be called by many threads in parallel. Only
+ * storeDataPoints() is synchronized. The readers validate an optimistic stamp of storageLock, which
+ * only changes when a compacted file replaces the dataPointsFile.
+ *
+ * Data points are normally stored as big-endian float pairs (m/z, intensity), the same format as in
+ * the project file. If the compression of temporary scan data is enabled in the preferences, new
+ * data points are stored as compressed blocks instead (see CompressedDataPointsCodec) and the
+ * dataPointsEncodedLengths map records the length of each block. Both formats may be present in
+ * one file, e.g. after mass lists are added to a loaded project.
+ *
+ * When a project is loaded, the uncompressed scan data entry of the project archive may be used in
+ * place as the beginning of the dataPointsFile, instead of being extracted to a temporary file (see
+ * openDataPointsFile(File, long, long)). New data points are then appended to a temporary file.
+ *
+ * Scans of another raw data file (e.g. the unchanged scans of a filtered file, or the scans of a
+ * cropped file) are added without copying their data points. Their storage IDs refer to the data
+ * points stored in the other file (see referencedDataPoints), optionally limited to an m/z range.
+ * The referenced file keeps its dataPointsFile until all files referencing it are closed. When the
+ * project is saved, the referenced data points are saved like the data points of this file.
  */
 public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
 
@@ -68,12 +100,56 @@ public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
   private final Hashtable<Integer, int[]> scanNumbersCache;
 
   private ByteBuffer buffer = ByteBuffer.allocate(20000);
-  private final TreeMap<Integer, Long> dataPointsOffsets;
-  private final TreeMap<Integer, Integer> dataPointsLengths;
+  private final ConcurrentSkipListMap<Integer, Long> dataPointsOffsets;
+  private final ConcurrentSkipListMap<Integer, Integer> dataPointsLengths;
+  private final ConcurrentSkipListMap<Integer, Integer> dataPointsEncodedLengths;
+
+  // Storage IDs of data points stored in other raw data files
+  private final ConcurrentSkipListMap<Integer, DataPointsReference> referencedDataPoints;
+
+  // Raw data files whose data points are referenced by this file, guarded by this
+  private final Set<RawDataFileImpl> referencedFiles =
+      Collections.newSetFromMap(new IdentityHashMap<>());
+
+  // Number of raw data files referencing data points of this file, and whether this file was closed
+  // while they still existed, guarded by this
+  private int numOfReferencingFiles = 0;
+  private boolean closeRequested = false;
+
+  // Encoder of new data points, or null if they are stored uncompressed
+  private final CompressedDataPointsCodec codec;
+
+  // Buffer for decoding compressed data points, one per reading thread
+  private final ThreadLocal<ByteBuffer> decodeBuffer =
+      ThreadLocal.withInitial(() -> ByteBuffer.allocate(20000));
 
   // Temporary file for scan data storage
   private File dataPointsFileName;
-  private RandomAccessFile dataPointsFile;
+  private volatile MappedDataPointsStorage dataPointsFile;
+
+  // Write-locked while a compacted file replaces the dataPointsFile
+  private final StampedLock storageLock = new StampedLock();
+
+  // Compaction starts when the deleted data points take more than this fraction of the file and at
+  // least one mapped segment
+  private static final double COMPACTION_DEAD_FRACTION = 0.5;
+  private static final long COMPACTION_MIN_DEAD_BYTES = MappedDataPointsStorage.SEGMENT_SIZE;
+
+  // Bytes of deleted data points in the dataPointsFile, guarded by this
+  private long deadBytes = 0;
+  private boolean compacting = false, closed = false;
+
+  // Incremented by every change of the name, scans or stored data points
+  private final AtomicLong modificationCount = new AtomicLong();
+
+  // Next storage ID, see reserveStorageIDs()
+  private int nextStorageID = 1;
+
+  // Project file this raw data file was last loaded from or saved to, with its ID in that file and
+  // the modification count at that time
+  private File savedProjectFile;
+  private String savedProjectID;
+  private long savedModificationCount;
 
   // To store mass lists that have been added but not yet reflected in the GUI by the
   // notifyUpdatedMassLists() method
@@ -84,6 +160,101 @@ public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
    */
   private final Hashtable<Integer, StorableScan> scans;
 
+  /**
+   * Retention time index of the scans of each MS level, built in finishWriting() (or on first use)
+   * and discarded whenever a scan is added
+   */
+  private volatile Hashtable<Integer, RetentionTimeIndex> rtIndex;
+
+  /**
+   * Data points stored under a storage ID of another raw data file. Only the data points from
+   * fromIndex to toIndex - 1 belong to the referencing storage ID.
+   */
+  private static class DataPointsReference {
+
+    private final RawDataFileImpl dataFile;
+    private final int storageID, fromIndex, toIndex;
+
+    private DataPointsReference(RawDataFileImpl dataFile, int storageID, int fromIndex,
+        int toIndex) {
+      this.dataFile = dataFile;
+      this.storageID = storageID;
+      this.fromIndex = fromIndex;
+      this.toIndex = toIndex;
+    }
+
+    private DataPoint[] getDataPoints() throws IOException {
+      final DataPoint dataPoints[] = DataPointsCache.get(dataFile, storageID);
+      if ((fromIndex == 0) && (toIndex == dataPoints.length))
+        return dataPoints;
+      return Arrays.copyOfRange(dataPoints, fromIndex, toIndex);
+    }
+
+    private ByteBuffer readStoredBytes() throws IOException {
+      final ByteBuffer stored = dataFile.readStoredBytes(storageID).duplicate();
+      final int start = stored.position();
+      ((Buffer) stored).limit(start + toIndex * 2 * 4);
+      ((Buffer) stored).position(start + fromIndex * 2 * 4);
+      return stored.slice();
+    }
+
+  }
+
+  /**
+   * Scan numbers of one MS level sorted by retention time, in primitive arrays. Scans with equal
+   * retention time are sorted by scan number.
+   */
+  private static class RetentionTimeIndex {
+
+    private final double retentionTimes[];
+    private final int scanNumbers[];
+
+    private RetentionTimeIndex(double retentionTimes[], int scanNumbers[]) {
+      this.retentionTimes = retentionTimes;
+      this.scanNumbers = scanNumbers;
+    }
+
+    /**
+     * @return Sorted scan numbers of scans within given retention time range
+     */
+    private int[] getScanNumbers(Range<Double> rtRange) {
+
+      int fromIndex = 0, toIndex = retentionTimes.length;
+      if (rtRange.hasLowerBound()) {
+        fromIndex = findFirstIndexAbove(rtRange.lowerEndpoint(),
+            rtRange.lowerBoundType() == BoundType.CLOSED);
+      }
+      if (rtRange.hasUpperBound()) {
+        toIndex = findFirstIndexAbove(rtRange.upperEndpoint(),
+            rtRange.upperBoundType() == BoundType.OPEN);
+      }
+
+      if (fromIndex >= toIndex)
+        return new int[0];
+
+      int numbersArray[] = Arrays.copyOfRange(scanNumbers, fromIndex, toIndex);
+      Arrays.sort(numbersArray);
+      return numbersArray;
+    }
+
+    /**
+     * Binary search for the first index whose retention time is above (or equal to, if inclusive
+     * is set) given value
+     */
+    private int findFirstIndexAbove(double rt, boolean inclusive) {
+      int low = 0, high = retentionTimes.length;
+      while (low < high) {
+        final int mid = (low + high) >>> 1;
+        if ((retentionTimes[mid] < rt) || (!inclusive && (retentionTimes[mid] == rt)))
+          low = mid + 1;
+        else
+          high = mid;
+      }
+      return low;
+    }
+
+  }
+
   public RawDataFileImpl(String dataFileName) throws IOException {
 
     this.dataFileName = dataFileName;
@@ -95,8 +266,11 @@ public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
     dataMaxBasePeakIntensity = new Hashtable<Integer, Double>();
     dataMaxTIC = new Hashtable<Integer, Double>();
     scans = new Hashtable<Integer, StorableScan>();
-    dataPointsOffsets = new TreeMap<Integer, Long>();
-    dataPointsLengths = new TreeMap<Integer, Integer>();
+    dataPointsOffsets = new ConcurrentSkipListMap<Integer, Long>();
+    dataPointsLengths = new ConcurrentSkipListMap<Integer, Integer>();
+    dataPointsEncodedLengths = new ConcurrentSkipListMap<Integer, Integer>();
+    referencedDataPoints = new ConcurrentSkipListMap<Integer, DataPointsReference>();
+    codec = CompressedDataPointsCodec.fromPreferences();
 
   }
 
@@ -117,13 +291,15 @@ public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
    * been added yet to this RawDataFileImpl instance
    */
   public RandomAccessFile getDataPointsFile() {
-    return dataPointsFile;
+    if (dataPointsFile == null)
+      return null;
+    return dataPointsFile.getRandomAccessFile();
   }
 
   /**
    * Opens the given file as a data points file for this RawDataFileImpl instance. If the file is
-   * not empty, the TreeMaps supplied as parameters have to describe the mapping of storage IDs to
-   * data points in the file.
+   * not empty, the maps returned by getDataPointsOffsets() and getDataPointsLengths() have to be
+   * filled to describe the mapping of storage IDs to data points in the file.
    */
   public synchronized void openDataPointsFile(File dataPointsFileName) throws IOException {
 
@@ -132,17 +308,7 @@ public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
     }
 
     this.dataPointsFileName = dataPointsFileName;
-    this.dataPointsFile = new RandomAccessFile(dataPointsFileName, "rw");
-
-    // Locks the temporary file so it is not removed when another instance
-    // of MZmine is starting. Lock will be automatically released when this
-    // instance of MZmine exits. Locking may fail on network-mounted filesystems.
-    try {
-      FileChannel fileChannel = dataPointsFile.getChannel();
-      fileChannel.lock();
-    } catch (IOException e) {
-      logger.log(Level.WARNING, "Failed to lock the file " + dataPointsFileName, e);
-    }
+    this.dataPointsFile = new MappedDataPointsStorage(dataPointsFileName);
 
     // Unfortunately, deleteOnExit() doesn't work on Windows, see JDK
     // bug #4171239. We will try to remove the temporary files in a
@@ -151,6 +317,55 @@ public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
 
   }
 
+  /**
+   * Opens a region of a project archive as the data points file for this RawDataFileImpl instance,
+   * without copying it. The region must contain the data points as big-endian float pairs. The
+   * archive is only read, new data points are written to a new temporary file. The maps returned by
+   * getDataPointsOffsets() and getDataPointsLengths() have to be filled as in
+   * openDataPointsFile(File), with offsets relative to the beginning of the region.
+   */
+  public synchronized void openDataPointsFile(File archiveFile, long offset, long length)
+      throws IOException {
+
+    if (this.dataPointsFile != null) {
+      throw new IOException("Cannot open another data points file, because one is already open");
+    }
+
+    final File newFile = RawDataFileImpl.createNewDataPointsFile();
+    this.dataPointsFileName = newFile;
+    this.dataPointsFile = new MappedDataPointsStorage(newFile, archiveFile, offset, length);
+    newFile.deleteOnExit();
+
+  }
+
+  /**
+   * If the data points file uses the given project archive in place, copies the data points to a
+   * temporary file, so the archive can be replaced. The mapped regions of the archive are released
+   * by the garbage collector.
+   */
+  public void releaseArchiveFile(File archiveFile) {
+    final List<RawDataFileImpl> files;
+    synchronized (this) {
+      files = new ArrayList<>(referencedFiles);
+    }
+    for (RawDataFileImpl file : files)
+      file.releaseArchiveFile(archiveFile);
+    synchronized (this) {
+      while (compacting) {
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          return;
+        }
+      }
+      if (closed || (dataPointsFile == null)
+          || (!archiveFile.equals(dataPointsFile.getArchiveFile())))
+        return;
+      compacting = true;
+    }
+    compactDataPointsFile();
+  }
+
   /**
    * @see net.sf.mzmine.datamodel.RawDataFile#getNumOfScans()
    */
@@ -188,20 +403,58 @@ public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
 
     assert rtRange != null;
 
-    ArrayList<Integer> eligibleScanNumbers = new ArrayList<Integer>();
+    RetentionTimeIndex index = getRetentionTimeIndex().get(msLevel);
+    if (index == null)
+      return new int[0];
 
-    Enumeration<StorableScan> scansEnum = scans.elements();
-    while (scansEnum.hasMoreElements()) {
-      Scan scan = scansEnum.nextElement();
+    return index.getScanNumbers(rtRange);
+  }
 
-      if ((scan.getMSLevel() == msLevel) && (rtRange.contains(scan.getRetentionTime())))
-        eligibleScanNumbers.add(scan.getScanNumber());
+  /**
+   * Returns the retention time index of all MS levels, building it if necessary
+   */
+  private Hashtable<Integer, RetentionTimeIndex> getRetentionTimeIndex() {
+    Hashtable<Integer, RetentionTimeIndex> currentIndex = rtIndex;
+    if (currentIndex == null)
+      currentIndex = buildRetentionTimeIndex();
+    return currentIndex;
+  }
+
+  private synchronized Hashtable<Integer, RetentionTimeIndex> buildRetentionTimeIndex() {
+
+    // Another thread may have built the index while we were waiting
+    if (rtIndex != null)
+      return rtIndex;
+
+    // Group the scans by MS level
+    Hashtable<Integer, List<Scan>> scansByMSLevel = new Hashtable<Integer, List<Scan>>();
+    for (Scan scan : scans.values()) {
+      List<Scan> levelScans = scansByMSLevel.get(scan.getMSLevel());
+      if (levelScans == null) {
+        levelScans = new ArrayList<Scan>();
+        scansByMSLevel.put(scan.getMSLevel(), levelScans);
+      }
+      levelScans.add(scan);
     }
 
-    int[] numbersArray = Ints.toArray(eligibleScanNumbers);
-    Arrays.sort(numbersArray);
+    Hashtable<Integer, RetentionTimeIndex> newIndex = new Hashtable<Integer, RetentionTimeIndex>();
+    for (Integer msLevel : scansByMSLevel.keySet()) {
+      List<Scan> levelScans = scansByMSLevel.get(msLevel);
+      levelScans.sort(Comparator.comparingDouble(Scan::getRetentionTime)
+          .thenComparingInt(Scan::getScanNumber));
+
+      final int numOfScans = levelScans.size();
+      double retentionTimes[] = new double[numOfScans];
+      int scanNumbers[] = new int[numOfScans];
+      for (int i = 0; i < numOfScans; i++) {
+        retentionTimes[i] = levelScans.get(i).getRetentionTime();
+        scanNumbers[i] = levelScans.get(i).getScanNumber();
+      }
+      newIndex.put(msLevel, new RetentionTimeIndex(retentionTimes, scanNumbers));
+    }
 
-    return numbersArray;
+    rtIndex = newIndex;
+    return newIndex;
   }
 
   /**
@@ -229,15 +482,7 @@ public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
   @Override
   public @Nonnull int[] getMSLevels() {
 
-    Set<Integer> msLevelsSet = new HashSet<Integer>();
-
-    Enumeration<StorableScan> scansEnum = scans.elements();
-    while (scansEnum.hasMoreElements()) {
-      Scan scan = scansEnum.nextElement();
-      msLevelsSet.add(scan.getMSLevel());
-    }
-
-    int[] msLevels = Ints.toArray(msLevelsSet);
+    int[] msLevels = Ints.toArray(getRetentionTimeIndex().keySet());
     Arrays.sort(msLevels);
     return msLevels;
 
@@ -326,16 +571,23 @@ public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
       openDataPointsFile(newFile);
     }
 
-    final long currentOffset = dataPointsFile.length();
-
-    final int currentID;
-    if (!dataPointsOffsets.isEmpty())
-      currentID = dataPointsOffsets.lastKey() + 1;
-    else
-      currentID = 1;
+    final int currentID = reserveStorageIDs(1);
 
     final int numOfDataPoints = dataPoints.length;
 
+    modificationCount.incrementAndGet();
+
+    if (codec != null) {
+      ByteBuffer block = codec.encode(dataPoints);
+      final int blockLength = block.remaining();
+      final long blockOffset = dataPointsFile.append(block);
+      MetricsRegistry.addBytesWritten(blockLength);
+      dataPointsEncodedLengths.put(currentID, blockLength);
+      dataPointsOffsets.put(currentID, blockOffset);
+      dataPointsLengths.put(currentID, numOfDataPoints);
+      return currentID;
+    }
+
     // Convert the dataPoints into a byte array. Each float takes 4 bytes,
     // so we get the current float offset by dividing the size of the file
     // by 4
@@ -354,9 +606,10 @@ public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
       floatBuffer.put((float) dp.getMZ());
       floatBuffer.put((float) dp.getIntensity());
     }
+    ((Buffer) buffer).limit(numOfBytes);
 
-    dataPointsFile.seek(currentOffset);
-    dataPointsFile.write(buffer.array(), 0, numOfBytes);
+    final long currentOffset = dataPointsFile.append(buffer);
+    MetricsRegistry.addBytesWritten(numOfBytes);
 
     dataPointsOffsets.put(currentID, currentOffset);
     dataPointsLengths.put(currentID, numOfDataPoints);
@@ -365,29 +618,109 @@ public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
 
   }
 
-  public synchronized DataPoint[] readDataPoints(int ID) throws IOException {
+  /**
+   * Stores several sets of data points using a single write to the temporary file
+   *
+   * @return storage IDs of the data points, in the same order
+   */
+  public synchronized int[] storeDataPoints(DataPoint dataPoints[][]) throws IOException {
 
-    final Long currentOffset = dataPointsOffsets.get(ID);
-    final Integer numOfDataPoints = dataPointsLengths.get(ID);
+    if (dataPointsFile == null) {
+      File newFile = RawDataFileImpl.createNewDataPointsFile();
+      openDataPointsFile(newFile);
+    }
 
-    if ((currentOffset == null) || (numOfDataPoints == null)) {
-      throw new IllegalArgumentException("Unknown storage ID " + ID);
+    final int firstID = reserveStorageIDs(dataPoints.length);
+
+    // Encode all data points into one buffer
+    int totalDataPoints = 0;
+    for (DataPoint points[] : dataPoints)
+      totalDataPoints += points.length;
+    ByteBuffer batch = ByteBuffer.allocate(totalDataPoints * 2 * 4);
+    final int storedBytes[] = new int[dataPoints.length];
+    for (int i = 0; i < dataPoints.length; i++) {
+      final int start = batch.position();
+      if (codec != null) {
+        ByteBuffer block = codec.encode(dataPoints[i]);
+        batch = ensureRemaining(batch, block.remaining());
+        batch.put(block);
+      } else {
+        batch = ensureRemaining(batch, dataPoints[i].length * 2 * 4);
+        for (DataPoint dp : dataPoints[i]) {
+          batch.putFloat((float) dp.getMZ());
+          batch.putFloat((float) dp.getIntensity());
+        }
+      }
+      storedBytes[i] = batch.position() - start;
+    }
+    ((Buffer) batch).flip();
+
+    modificationCount.incrementAndGet();
+
+    final int batchBytes = batch.remaining();
+    long offset = dataPointsFile.append(batch);
+    MetricsRegistry.addBytesWritten(batchBytes);
+
+    final int storageIDs[] = new int[dataPoints.length];
+    for (int i = 0; i < dataPoints.length; i++) {
+      final int ID = firstID + i;
+      if (codec != null)
+        dataPointsEncodedLengths.put(ID, storedBytes[i]);
+      dataPointsOffsets.put(ID, offset);
+      dataPointsLengths.put(ID, dataPoints[i].length);
+      offset += storedBytes[i];
+      storageIDs[i] = ID;
     }
 
-    final int numOfBytes = numOfDataPoints * 2 * 4;
+    return storageIDs;
 
-    if (buffer.capacity() < numOfBytes) {
-      buffer = ByteBuffer.allocate(numOfBytes * 2);
-    } else {
-      // JDK 9 breaks compatibility with JRE8: need to cast
-      // https://stackoverflow.com/questions/48693695/java-nio-buffer-not-loading-clear-method-on-runtime
-      ((Buffer) buffer).clear();
-    }
+  }
 
-    dataPointsFile.seek(currentOffset);
-    dataPointsFile.read(buffer.array(), 0, numOfBytes);
+  /**
+   * Reserves consecutive storage IDs. The IDs only increase, so the ID of removed data points is
+   * never reused while a DataPointsReference of another file or the DataPointsCache may still refer
+   * to it. IDs added to the maps by a project loader are skipped.
+   *
+   * @return first reserved ID
+   */
+  private synchronized int reserveStorageIDs(int count) {
+    if (!dataPointsLengths.isEmpty())
+      nextStorageID = Math.max(nextStorageID, dataPointsLengths.lastKey() + 1);
+    final int firstID = nextStorageID;
+    nextStorageID += count;
+    return firstID;
+  }
 
-    FloatBuffer floatBuffer = buffer.asFloatBuffer();
+  private static ByteBuffer ensureRemaining(ByteBuffer buffer, int numOfBytes) {
+    if (buffer.remaining() >= numOfBytes)
+      return buffer;
+    ByteBuffer newBuffer =
+        ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + numOfBytes));
+    ((Buffer) buffer).flip();
+    newBuffer.put(buffer);
+    return newBuffer;
+  }
+
+  /**
+   * Reads the data points stored under given storage ID. This method is not synchronized, it may be
+   * called by many threads at the same time. The decoded data points are kept in the
+   * DataPointsCache, the returned array is a copy which may be modified by the caller.
+   */
+  public DataPoint[] readDataPoints(int ID) throws IOException {
+    return DataPointsCache.get(this, ID).clone();
+  }
+
+  /**
+   * Decodes the data points stored under given storage ID, bypassing the DataPointsCache
+   */
+  DataPoint[] decodeDataPoints(int ID) throws IOException {
+
+    final DataPointsReference reference = referencedDataPoints.get(ID);
+    if (reference != null)
+      return reference.getDataPoints();
+
+    final FloatBuffer floatBuffer = readStoredFloats(ID);
+    final int numOfDataPoints = floatBuffer.remaining() / 2;
 
     DataPoint dataPoints[] = new DataPoint[numOfDataPoints];
 
@@ -401,18 +734,344 @@ public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
 
   }
 
+  /**
+   * Reads the m/z and intensity values stored under given storage ID into the given arrays, without
+   * creating any DataPoint instances. The arrays must be large enough to hold all stored data
+   * points (see getNumOfStoredDataPoints()). Either array may be null, in which case those values
+   * are skipped.
+   *
+   * @return Number of data points read
+   */
+  public int readDataPoints(int ID, @Nullable double mzValues[], @Nullable double intensityValues[])
+      throws IOException {
+
+    final DataPoint cached[] = DataPointsCache.getIfPresent(this, ID);
+    if (cached != null) {
+      for (int i = 0; i < cached.length; i++) {
+        if (mzValues != null)
+          mzValues[i] = cached[i].getMZ();
+        if (intensityValues != null)
+          intensityValues[i] = cached[i].getIntensity();
+      }
+      return cached.length;
+    }
+
+    final FloatBuffer floatBuffer = readStoredFloats(ID);
+    final int numOfDataPoints = floatBuffer.remaining() / 2;
+
+    for (int i = 0; i < numOfDataPoints; i++) {
+      if (mzValues != null)
+        mzValues[i] = floatBuffer.get(i * 2);
+      if (intensityValues != null)
+        intensityValues[i] = floatBuffer.get(i * 2 + 1);
+    }
+
+    return numOfDataPoints;
+
+  }
+
+  /**
+   * Reads only the data points within given m/z range. The stored data points are sorted by m/z, so
+   * the range is found by binary search and DataPoint instances are created only for the points
+   * inside the range.
+   */
+  public DataPoint[] readDataPoints(int ID, @Nonnull Range<Double> mzRange) throws IOException {
+
+    final DataPoint cached[] = DataPointsCache.getIfPresent(this, ID);
+    if (cached != null)
+      return readDataPoints(cached, mzRange);
+
+    final FloatBuffer floatBuffer = readStoredFloats(ID);
+    final int numOfDataPoints = floatBuffer.remaining() / 2;
+
+    // Find the first data point with m/z >= lower endpoint
+    final double lowerMz = mzRange.lowerEndpoint();
+    int low = 0, high = numOfDataPoints;
+    while (low < high) {
+      final int mid = (low + high) >>> 1;
+      if (floatBuffer.get(mid * 2) < lowerMz)
+        low = mid + 1;
+      else
+        high = mid;
+    }
+    final int startIndex = low;
+
+    int endIndex = startIndex;
+    while ((endIndex < numOfDataPoints)
+        && (floatBuffer.get(endIndex * 2) <= mzRange.upperEndpoint())) {
+      endIndex++;
+    }
+
+    DataPoint dataPoints[] = new DataPoint[endIndex - startIndex];
+    for (int i = startIndex; i < endIndex; i++) {
+      dataPoints[i - startIndex] =
+          new SimpleDataPoint(floatBuffer.get(i * 2), floatBuffer.get(i * 2 + 1));
+    }
+
+    return dataPoints;
+
+  }
+
+  /**
+   * Returns the cached data points within given m/z range, found by binary search
+   */
+  private static DataPoint[] readDataPoints(DataPoint cached[], Range<Double> mzRange) {
+    final int indexRange[] = findIndexRange(cached, mzRange);
+    return Arrays.copyOfRange(cached, indexRange[0], indexRange[1]);
+  }
+
+  /**
+   * @return first index and end index (exclusive) of the data points within given m/z range, found
+   *         by binary search
+   */
+  private static int[] findIndexRange(DataPoint dataPoints[], Range<Double> mzRange) {
+    final double lowerMz = mzRange.lowerEndpoint();
+    int low = 0, high = dataPoints.length;
+    while (low < high) {
+      final int mid = (low + high) >>> 1;
+      if (dataPoints[mid].getMZ() < lowerMz)
+        low = mid + 1;
+      else
+        high = mid;
+    }
+    int endIndex = low;
+    while ((endIndex < dataPoints.length)
+        && (dataPoints[endIndex].getMZ() <= mzRange.upperEndpoint()))
+      endIndex++;
+    return new int[] {low, endIndex};
+  }
+
+  /**
+   * @return Number of data points stored under given storage ID
+   */
+  public int getNumOfStoredDataPoints(int ID) {
+    final Integer numOfDataPoints = dataPointsLengths.get(ID);
+    if (numOfDataPoints == null) {
+      throw new IllegalArgumentException("Unknown storage ID " + ID);
+    }
+    return numOfDataPoints;
+  }
+
+  /**
+   * Returns the stored m/z and intensity pairs as a float buffer. The buffer may be backed by a
+   * thread-local array, so it must be consumed before the next read by the same thread.
+   */
+  private FloatBuffer readStoredFloats(int ID) throws IOException {
+    return readStoredBytes(ID).asFloatBuffer();
+  }
+
+  /**
+   * Returns the data points stored under given storage ID as big-endian float pairs (m/z,
+   * intensity), decompressing them if necessary. This is also the format of the data points in the
+   * project file. The buffer may be backed by a thread-local array, so it must be consumed before
+   * the next read by the same thread.
+   */
+  public ByteBuffer readStoredBytes(int ID) throws IOException {
+
+    final Integer numOfDataPoints = dataPointsLengths.get(ID);
+    if (numOfDataPoints == null) {
+      throw new IllegalArgumentException("Unknown storage ID " + ID);
+    }
+
+    final DataPointsReference reference = referencedDataPoints.get(ID);
+    if (reference != null)
+      return reference.readStoredBytes();
+
+    final int numOfBytes = numOfDataPoints * 2 * 4;
+    final Integer encodedLength = dataPointsEncodedLengths.get(ID);
+    final int storedBytes = (encodedLength == null) ? numOfBytes : encodedLength;
+
+    // The stored bytes never change, so they remain valid after a compaction replaced the file
+    ByteBuffer stored = null;
+    long stamp = storageLock.tryOptimisticRead();
+    if (stamp != 0) {
+      try {
+        stored = readStoredBlock(ID, storedBytes);
+      } catch (IOException | RuntimeException e) {
+        if (storageLock.validate(stamp))
+          throw e;
+      }
+      if (!storageLock.validate(stamp))
+        stored = null;
+    }
+    if (stored == null) {
+      stamp = storageLock.readLock();
+      try {
+        stored = readStoredBlock(ID, storedBytes);
+      } finally {
+        storageLock.unlockRead(stamp);
+      }
+    }
+    MetricsRegistry.addBytesRead(storedBytes);
+
+    if (encodedLength == null)
+      return stored;
+
+    ByteBuffer buffer = decodeBuffer.get();
+    if (buffer.capacity() < numOfBytes) {
+      buffer = ByteBuffer.allocate(numOfBytes * 2);
+      decodeBuffer.set(buffer);
+    }
+    ((Buffer) buffer).clear();
+    CompressedDataPointsCodec.decode(stored, buffer);
+    ((Buffer) buffer).limit(numOfBytes);
+    return buffer;
+
+  }
+
+  private ByteBuffer readStoredBlock(int ID, int storedBytes) throws IOException {
+    final Long currentOffset = dataPointsOffsets.get(ID);
+    if (currentOffset == null) {
+      throw new IllegalArgumentException("Unknown storage ID " + ID);
+    }
+    return dataPointsFile.read(currentOffset, storedBytes);
+  }
+
+  /**
+   * @return Number of bytes stored in the dataPointsFile under given storage ID
+   */
+  private int getStoredBytes(int ID) {
+    final Integer encodedLength = dataPointsEncodedLengths.get(ID);
+    if (encodedLength != null)
+      return encodedLength;
+    return dataPointsLengths.get(ID) * 2 * 4;
+  }
+
   public synchronized void removeStoredDataPoints(int ID) throws IOException {
+    if (dataPointsOffsets.containsKey(ID) && dataPointsLengths.containsKey(ID))
+      deadBytes += getStoredBytes(ID);
+
     dataPointsOffsets.remove(ID);
     dataPointsLengths.remove(ID);
+    dataPointsEncodedLengths.remove(ID);
+    referencedDataPoints.remove(ID);
+    DataPointsCache.invalidate(this, ID);
+    modificationCount.incrementAndGet();
+
+    if ((!compacting) && (!closed) && (dataPointsFile != null)
+        && (deadBytes >= COMPACTION_MIN_DEAD_BYTES)
+        && (deadBytes > dataPointsFile.length() * COMPACTION_DEAD_FRACTION)) {
+      compacting = true;
+      Thread compactionThread =
+          new Thread(this::compactDataPointsFile, "Compaction of " + dataPointsFileName);
+      compactionThread.setDaemon(true);
+      compactionThread.start();
+    }
+  }
+
+  /**
+   * Copies the data points that are still referenced to a new file, which then replaces the
+   * dataPointsFile. The data points are copied without blocking the readers and writers. At the
+   * end, the data points stored or removed in the meantime are processed under the lock of this
+   * instance, and the new file and offsets are published under the write lock of storageLock.
+   */
+  private void compactDataPointsFile() {
+
+    File newFileName = null;
+    MappedDataPointsStorage newFile = null;
+
+    try {
+
+      final MappedDataPointsStorage oldFile;
+      final Map<Integer, Long> oldOffsets;
+      final Map<Integer, Integer> oldStoredBytes = new HashMap<>();
+      synchronized (this) {
+        oldFile = dataPointsFile;
+        oldOffsets = new TreeMap<>(dataPointsOffsets);
+        for (Integer ID : oldOffsets.keySet())
+          oldStoredBytes.put(ID, getStoredBytes(ID));
+      }
+
+      final long oldLength = oldFile.length();
+      newFileName = RawDataFileImpl.createNewDataPointsFile();
+      newFileName.deleteOnExit();
+      newFile = new MappedDataPointsStorage(newFileName);
+
+      final Map<Integer, Long> newOffsets = new HashMap<>();
+      for (Map.Entry<Integer, Long> entry : oldOffsets.entrySet()) {
+        final Integer ID = entry.getKey();
+        newOffsets.put(ID, newFile.append(oldFile.read(entry.getValue(), oldStoredBytes.get(ID))));
+      }
+
+      synchronized (this) {
+
+        if (closed || (oldFile != dataPointsFile))
+          return;
+
+        // Data points removed during the copying are dead in the new file
+        long newDeadBytes = 0;
+        for (Map.Entry<Integer, Long> entry : oldOffsets.entrySet()) {
+          final Integer ID = entry.getKey();
+          if (!entry.getValue().equals(dataPointsOffsets.get(ID))) {
+            newOffsets.remove(ID);
+            newDeadBytes += oldStoredBytes.get(ID);
+          }
+        }
+
+        // Copy the data points stored during the copying
+        for (Map.Entry<Integer, Long> entry : dataPointsOffsets.entrySet()) {
+          final Integer ID = entry.getKey();
+          if (!newOffsets.containsKey(ID))
+            newOffsets.put(ID, newFile.append(oldFile.read(entry.getValue(), getStoredBytes(ID))));
+        }
+
+        final long stamp = storageLock.writeLock();
+        try {
+          dataPointsOffsets.putAll(newOffsets);
+          dataPointsFile = newFile;
+        } finally {
+          storageLock.unlockWrite(stamp);
+        }
+
+        final File oldFileName = dataPointsFileName;
+        dataPointsFileName = newFileName;
+        deadBytes = newDeadBytes;
+        newFile = null;
+
+        // Buffers returned by earlier reads remain valid, because the mapped segments do not depend
+        // on the file channel
+        oldFile.close();
+        oldFileName.delete();
+
+        logger.info("Compacted data points file of " + dataFileName + " from " + oldLength
+            + " to " + dataPointsFile.length() + " bytes");
+      }
+
+    } catch (IOException e) {
+      logger.warning("Could not compact file " + dataPointsFileName + ": " + e.toString());
+    } finally {
+      synchronized (this) {
+        compacting = false;
+        notifyAll();
+      }
+      if (newFile != null) {
+        try {
+          newFile.close();
+        } catch (IOException e) {
+          logger.warning("Could not close file " + newFileName + ": " + e.toString());
+        }
+        newFileName.delete();
+      }
+    }
   }
 
   @Override
   public synchronized void addScan(Scan newScan) throws IOException {
 
-    // When we are loading the project, scan data file is already prepare
-    // and we just need store the reference
+    modificationCount.incrementAndGet();
+
     if (newScan instanceof StorableScan) {
+
+      // Scan of another raw data file, reference its data points instead of copying them
+      if (newScan.getDataFile() != this) {
+        addScanReference((StorableScan) newScan, null);
+        return;
+      }
+
+      // When we are loading the project, scan data file is already prepare
+      // and we just need store the reference
       scans.put(newScan.getScanNumber(), (StorableScan) newScan);
+      rtIndex = null;
       return;
     }
 
@@ -422,7 +1081,102 @@ public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
     StorableScan storedScan = new StorableScan(newScan, this, dataPoints.length, storageID);
 
     scans.put(newScan.getScanNumber(), storedScan);
+    rtIndex = null;
+
+  }
+
+  /**
+   * Adds a scan with only the data points within given m/z range. If the scan belongs to another
+   * raw data file, its data points are referenced instead of copied.
+   */
+  public synchronized void addScan(@Nonnull Scan newScan, @Nonnull Range<Double> mzRange)
+      throws IOException {
+
+    if ((newScan instanceof StorableScan) && (newScan.getDataFile() != this)) {
+      modificationCount.incrementAndGet();
+      addScanReference((StorableScan) newScan, mzRange);
+      return;
+    }
+
+    SimpleScan croppedScan = new SimpleScan(newScan);
+    croppedScan.setDataPoints(newScan.getDataPointsByMass(mzRange));
+    addScan(croppedScan);
+
+  }
+
+  /**
+   * Adds a copy of a scan of another raw data file, which references the data points of that scan.
+   * References to referenced data points are resolved, so they always point to the file which
+   * stores the data points.
+   *
+   * @param mzRange m/z range of the referenced data points, or null for all data points
+   */
+  private void addScanReference(StorableScan scan, @Nullable Range<Double> mzRange)
+      throws IOException {
+
+    final RawDataFileImpl scanFile = (RawDataFileImpl) scan.getDataFile();
+    final int scanStorageID = scan.getStorageID();
+
+    int fromIndex = 0, toIndex = scanFile.getNumOfStoredDataPoints(scanStorageID);
+    if (mzRange != null) {
+      final int indexRange[] =
+          findIndexRange(DataPointsCache.get(scanFile, scanStorageID), mzRange);
+      fromIndex = indexRange[0];
+      toIndex = indexRange[1];
+    }
+
+    RawDataFileImpl targetFile = scanFile;
+    int targetID = scanStorageID;
+    final DataPointsReference scanReference = scanFile.referencedDataPoints.get(scanStorageID);
+    if (scanReference != null) {
+      targetFile = scanReference.dataFile;
+      targetID = scanReference.storageID;
+      fromIndex += scanReference.fromIndex;
+      toIndex += scanReference.fromIndex;
+    }
+
+    if ((targetFile != this) && (!referencedFiles.contains(targetFile))) {
+      if (!targetFile.addReferencingFile())
+        throw new IOException("Data points of " + targetFile + " are no longer available");
+      referencedFiles.add(targetFile);
+    }
+
+    final int storageID = reserveStorageIDs(1);
+    final int numOfDataPoints = toIndex - fromIndex;
+    referencedDataPoints.put(storageID,
+        new DataPointsReference(targetFile, targetID, fromIndex, toIndex));
+    dataPointsLengths.put(storageID, numOfDataPoints);
 
+    // The m/z range, base peak and TIC of the scan only change if the data points are cropped
+    StorableScan storedScan = new StorableScan(scan, this, numOfDataPoints, storageID);
+    if (mzRange != null)
+      storedScan.updateValues();
+
+    scans.put(scan.getScanNumber(), storedScan);
+    rtIndex = null;
+
+  }
+
+  /**
+   * Registers a raw data file which references data points of this file. The dataPointsFile is
+   * kept until all referencing files are closed.
+   *
+   * @return false if this file is already closed
+   */
+  private synchronized boolean addReferencingFile() {
+    if (closed)
+      return false;
+    numOfReferencingFiles++;
+    return true;
+  }
+
+  private void removeReferencingFile() {
+    synchronized (this) {
+      numOfReferencingFiles--;
+      if ((numOfReferencingFiles > 0) || (!closeRequested))
+        return;
+    }
+    closeStorage();
   }
 
   /**
@@ -431,8 +1185,12 @@ public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
   @Override
   public synchronized RawDataFile finishWriting() throws IOException {
     for (StorableScan scan : scans.values()) {
-      scan.updateValues();
+      // Scans referencing data points of other files were updated when they were added
+      if (!referencedDataPoints.containsKey(scan.getStorageID()))
+        scan.updateValues();
     }
+    rtIndex = null;
+    buildRetentionTimeIndex();
     logger.finest("Writing of scans to file " + dataPointsFileName + " finished");
     return this;
   }
@@ -524,24 +1282,53 @@ public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
     return getScanNumbers(msLevel).length;
   }
 
-  public synchronized TreeMap<Integer, Long> getDataPointsOffsets() {
+  public ConcurrentSkipListMap<Integer, Long> getDataPointsOffsets() {
     return dataPointsOffsets;
   }
 
-  public synchronized TreeMap<Integer, Integer> getDataPointsLengths() {
+  public ConcurrentSkipListMap<Integer, Integer> getDataPointsLengths() {
     return dataPointsLengths;
   }
 
+  /**
+   * Closes this raw data file and deletes its dataPointsFile. If other raw data files reference
+   * data points of this file, the dataPointsFile is deleted when the last of them is closed.
+   */
   @Override
-  public synchronized void close() {
-    try {
-      if (dataPointsFileName != null) {
-        dataPointsFile.close();
-        dataPointsFileName.delete();
+  public void close() {
+    synchronized (this) {
+      closeRequested = true;
+      if (numOfReferencingFiles > 0) {
+        logger.finest("Data points file of " + dataFileName + " is kept for "
+            + numOfReferencingFiles + " referencing files");
+        return;
       }
-    } catch (IOException e) {
-      logger.warning("Could not close file " + dataPointsFileName + ": " + e.toString());
     }
+    closeStorage();
+  }
+
+  private void closeStorage() {
+    final List<RawDataFileImpl> files;
+    synchronized (this) {
+      if (closed)
+        return;
+      closed = true;
+      DataPointsCache.invalidateAll(this);
+      try {
+        if (dataPointsFileName != null) {
+          dataPointsFile.close();
+          dataPointsFileName.delete();
+        }
+      } catch (IOException e) {
+        logger.warning("Could not close file " + dataPointsFileName + ": " + e.toString());
+      }
+      files = new ArrayList<>(referencedFiles);
+      referencedFiles.clear();
+    }
+
+    // Release the data points of the referenced files
+    for (RawDataFileImpl file : files)
+      file.removeReferencingFile();
   }
 
 
@@ -553,6 +1340,45 @@ public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
   @Override
   public void setName(@Nonnull String name) {
     this.dataFileName = name;
+    modificationCount.incrementAndGet();
+  }
+
+  /**
+   * @return number of changes of the name, scans and stored data points of this raw data file
+   */
+  public long getModificationCount() {
+    return modificationCount.get();
+  }
+
+  /**
+   * Counts a change which is not made through the methods of this class, e.g. a mass list added to
+   * a scan
+   */
+  void markModified() {
+    modificationCount.incrementAndGet();
+  }
+
+  /**
+   * Records that this raw data file is contained in the given project file under the given ID, in
+   * the state of the given modification count.
+   */
+  public synchronized void setSavedState(File projectFile, String projectID,
+      long modificationCount) {
+    this.savedProjectFile = projectFile;
+    this.savedProjectID = projectID;
+    this.savedModificationCount = modificationCount;
+  }
+
+  /**
+   * @return ID of this raw data file in the given project file, or null if the raw data file was
+   *         not saved to that file or it was modified since
+   */
+  public synchronized @Nullable String getSavedProjectID(File projectFile) {
+    if ((savedProjectFile == null) || (!savedProjectFile.equals(projectFile)))
+      return null;
+    if (savedModificationCount != modificationCount.get())
+      return null;
+    return savedProjectID;
   }
 
   @Override
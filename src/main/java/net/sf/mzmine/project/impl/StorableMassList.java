@@ -22,10 +22,12 @@ import java.io.IOException;
 import java.util.logging.Logger;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
 import net.sf.mzmine.datamodel.DataPoint;
 import net.sf.mzmine.datamodel.MassList;
 import net.sf.mzmine.datamodel.Scan;
+import net.sf.mzmine.taskcontrol.metrics.MetricsRegistry;
 
 /**
  * Implementation of the Scan interface which stores raw data points in a temporary file, accessed
@@ -64,6 +66,7 @@ public class StorableMassList implements MassList {
   @Override
   public @Nonnull DataPoint[] getDataPoints() {
     try {
+      MetricsRegistry.addMassListsRead(1);
       DataPoint result[] = rawDataFile.readDataPoints(storageID);
       return result;
 
@@ -73,6 +76,60 @@ public class StorableMassList implements MassList {
     }
   }
 
+  @Override
+  public int getNumberOfDataPoints() {
+    return rawDataFile.getNumOfStoredDataPoints(storageID);
+  }
+
+  /**
+   * Reads the m/z values directly from the temporary file, without creating DataPoint instances
+   */
+  @Override
+  public @Nonnull double[] getMzValues(@Nullable double mzValues[]) {
+    final int numOfDataPoints = getNumberOfDataPoints();
+    if ((mzValues == null) || (mzValues.length < numOfDataPoints))
+      mzValues = new double[numOfDataPoints];
+    try {
+      MetricsRegistry.addMassListsRead(1);
+      rawDataFile.readDataPoints(storageID, mzValues, null);
+    } catch (IOException e) {
+      logger.severe("Could not read data from temporary file " + e.toString());
+    }
+    return mzValues;
+  }
+
+  /**
+   * Reads the intensity values directly from the temporary file, without creating DataPoint
+   * instances
+   */
+  @Override
+  public @Nonnull double[] getIntensityValues(@Nullable double intensityValues[]) {
+    final int numOfDataPoints = getNumberOfDataPoints();
+    if ((intensityValues == null) || (intensityValues.length < numOfDataPoints))
+      intensityValues = new double[numOfDataPoints];
+    try {
+      MetricsRegistry.addMassListsRead(1);
+      rawDataFile.readDataPoints(storageID, null, intensityValues);
+    } catch (IOException e) {
+      logger.severe("Could not read data from temporary file " + e.toString());
+    }
+    return intensityValues;
+  }
+
+  /**
+   * Reads the m/z and intensity values directly from the temporary file in a single pass
+   */
+  @Override
+  public int getDataPoints(@Nonnull double mzValues[], @Nonnull double intensityValues[]) {
+    try {
+      MetricsRegistry.addMassListsRead(1);
+      return rawDataFile.readDataPoints(storageID, mzValues, intensityValues);
+    } catch (IOException e) {
+      logger.severe("Could not read data from temporary file " + e.toString());
+      return 0;
+    }
+  }
+
   public void removeStoredData() {
     try {
       rawDataFile.removeStoredDataPoints(storageID);
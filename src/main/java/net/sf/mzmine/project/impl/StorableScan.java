@@ -25,6 +25,7 @@ import java.util.Vector;
 import java.util.logging.Logger;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import javax.swing.SwingUtilities;
 
 import com.google.common.collect.Range;
@@ -35,8 +36,10 @@ import net.sf.mzmine.datamodel.MassSpectrumType;
 import net.sf.mzmine.datamodel.PolarityType;
 import net.sf.mzmine.datamodel.RawDataFile;
 import net.sf.mzmine.datamodel.Scan;
+import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
 import net.sf.mzmine.desktop.impl.projecttree.RawDataTreeModel;
 import net.sf.mzmine.main.MZmineCore;
+import net.sf.mzmine.taskcontrol.metrics.MetricsRegistry;
 import net.sf.mzmine.util.scans.ScanUtils;
 
 /**
@@ -118,6 +121,7 @@ public class StorableScan implements Scan {
   public @Nonnull DataPoint[] getDataPoints() {
 
     try {
+      MetricsRegistry.addScansRead(1);
       DataPoint result[] = rawDataFile.readDataPoints(storageID);
       return result;
     } catch (IOException e) {
@@ -132,48 +136,89 @@ public class StorableScan implements Scan {
    */
   public @Nonnull DataPoint[] getDataPointsByMass(@Nonnull Range<Double> mzRange) {
 
-    DataPoint dataPoints[] = getDataPoints();
-
-    int startIndex, endIndex;
-    for (startIndex = 0; startIndex < dataPoints.length; startIndex++) {
-      if (dataPoints[startIndex].getMZ() >= mzRange.lowerEndpoint()) {
-        break;
-      }
-    }
-
-    for (endIndex = startIndex; endIndex < dataPoints.length; endIndex++) {
-      if (dataPoints[endIndex].getMZ() > mzRange.upperEndpoint()) {
-        break;
-      }
+    try {
+      MetricsRegistry.addScansRead(1);
+      DataPoint result[] = rawDataFile.readDataPoints(storageID, mzRange);
+      return result;
+    } catch (IOException e) {
+      logger.severe("Could not read data from temporary file " + e.toString());
+      return new DataPoint[0];
     }
 
-    DataPoint pointsWithinRange[] = new DataPoint[endIndex - startIndex];
-
-    // Copy the relevant points
-    System.arraycopy(dataPoints, startIndex, pointsWithinRange, 0, endIndex - startIndex);
-
-    return pointsWithinRange;
   }
 
   /**
    * @return Returns scan datapoints over certain intensity
    */
   public @Nonnull DataPoint[] getDataPointsOverIntensity(double intensity) {
-    int index;
-    Vector<DataPoint> points = new Vector<DataPoint>();
-    DataPoint dataPoints[] = getDataPoints();
 
-    for (index = 0; index < dataPoints.length; index++) {
-      if (dataPoints[index].getIntensity() >= intensity) {
-        points.add(dataPoints[index]);
-      }
+    double mzValues[] = new double[numberOfDataPoints];
+    double intensityValues[] = new double[numberOfDataPoints];
+    getDataPoints(mzValues, intensityValues);
+
+    int numOfPoints = 0;
+    for (int i = 0; i < numberOfDataPoints; i++) {
+      if (intensityValues[i] >= intensity)
+        numOfPoints++;
     }
 
-    DataPoint pointsOverIntensity[] = points.toArray(new DataPoint[0]);
+    DataPoint pointsOverIntensity[] = new DataPoint[numOfPoints];
+    int index = 0;
+    for (int i = 0; i < numberOfDataPoints; i++) {
+      if (intensityValues[i] >= intensity)
+        pointsOverIntensity[index++] = new SimpleDataPoint(mzValues[i], intensityValues[i]);
+    }
 
     return pointsOverIntensity;
   }
 
+  /**
+   * Reads the m/z values directly from the temporary file, without creating DataPoint instances
+   */
+  @Override
+  public @Nonnull double[] getMzValues(@Nullable double mzValues[]) {
+    if ((mzValues == null) || (mzValues.length < numberOfDataPoints))
+      mzValues = new double[numberOfDataPoints];
+    try {
+      MetricsRegistry.addScansRead(1);
+      rawDataFile.readDataPoints(storageID, mzValues, null);
+    } catch (IOException e) {
+      logger.severe("Could not read data from temporary file " + e.toString());
+    }
+    return mzValues;
+  }
+
+  /**
+   * Reads the intensity values directly from the temporary file, without creating DataPoint
+   * instances
+   */
+  @Override
+  public @Nonnull double[] getIntensityValues(@Nullable double intensityValues[]) {
+    if ((intensityValues == null) || (intensityValues.length < numberOfDataPoints))
+      intensityValues = new double[numberOfDataPoints];
+    try {
+      MetricsRegistry.addScansRead(1);
+      rawDataFile.readDataPoints(storageID, null, intensityValues);
+    } catch (IOException e) {
+      logger.severe("Could not read data from temporary file " + e.toString());
+    }
+    return intensityValues;
+  }
+
+  /**
+   * Reads the m/z and intensity values directly from the temporary file in a single pass
+   */
+  @Override
+  public int getDataPoints(@Nonnull double mzValues[], @Nonnull double intensityValues[]) {
+    try {
+      MetricsRegistry.addScansRead(1);
+      return rawDataFile.readDataPoints(storageID, mzValues, intensityValues);
+    } catch (IOException e) {
+      logger.severe("Could not read data from temporary file " + e.toString());
+      return 0;
+    }
+  }
+
   public @Nonnull RawDataFile getDataFile() {
     return rawDataFile;
   }
@@ -225,26 +270,31 @@ public class StorableScan implements Scan {
   }
 
   void updateValues() {
-    DataPoint dataPoints[] = getDataPoints();
+    double mzValues[] = new double[numberOfDataPoints];
+    double intensityValues[] = new double[numberOfDataPoints];
+    getDataPoints(mzValues, intensityValues);
 
     // find m/z range and base peak
-    if (dataPoints.length > 0) {
+    if (numberOfDataPoints > 0) {
 
-      basePeak = dataPoints[0];
-      mzRange = Range.singleton(dataPoints[0].getMZ());
+      int basePeakIndex = 0;
+      double minMz = mzValues[0], maxMz = mzValues[0];
       double tic = 0;
 
-      for (DataPoint dp : dataPoints) {
+      for (int i = 0; i < numberOfDataPoints; i++) {
 
-        if (dp.getIntensity() > basePeak.getIntensity())
-          basePeak = dp;
+        if (intensityValues[i] > intensityValues[basePeakIndex])
+          basePeakIndex = i;
 
-        mzRange = mzRange.span(Range.singleton(dp.getMZ()));
+        minMz = Math.min(minMz, mzValues[i]);
+        maxMz = Math.max(maxMz, mzValues[i]);
 
-        tic += dp.getIntensity();
+        tic += intensityValues[i];
 
       }
 
+      basePeak = new SimpleDataPoint(mzValues[basePeakIndex], intensityValues[basePeakIndex]);
+      mzRange = Range.closed(minMz, maxMz);
       totalIonCurrent = new Double(tic);
 
     } else {
@@ -290,7 +340,10 @@ public class StorableScan implements Scan {
    */
   public MassSpectrumType getSpectrumType() {
     if (spectrumType == null) {
-      spectrumType = ScanUtils.detectSpectrumType(getDataPoints());
+      double mzValues[] = new double[numberOfDataPoints];
+      double intensityValues[] = new double[numberOfDataPoints];
+      getDataPoints(mzValues, intensityValues);
+      spectrumType = ScanUtils.detectSpectrumType(mzValues, intensityValues, numberOfDataPoints);
     }
     return spectrumType;
   }
@@ -332,6 +385,7 @@ public class StorableScan implements Scan {
 
     // Add the new mass list
     massLists.add(storedMassList);
+    rawDataFile.markModified();
 
     // Add the mass list to the tree model
     MZmineProjectImpl project =
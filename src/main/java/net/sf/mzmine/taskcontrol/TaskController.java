@@ -18,6 +18,10 @@
 
 package net.sf.mzmine.taskcontrol;
 
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+
 import net.sf.mzmine.taskcontrol.impl.TaskQueue;
 
 /**
@@ -37,6 +41,29 @@ public interface TaskController {
 
   public void addTaskControlListener(TaskControlListener listener);
 
+  /**
+   * Returns a future, which is completed with the final status of the task once the task has been
+   * processed (its run() method returned, or it was canceled before it started). If the task is not
+   * in the queue (it was already processed), the returned future is completed with the current
+   * status of the task.
+   */
+  public CompletableFuture<TaskStatus> getTaskCompletion(Task task);
+
+  /**
+   * Waits until all given tasks have been processed. This method is meant for tasks which add
+   * subtasks and wait for them. If it is called from a task processed by this task controller, the
+   * subtasks which did not start yet are processed by the calling thread, and the thread of the
+   * calling task is made available to other tasks while it is blocked.
+   */
+  public void waitForTasks(Collection<? extends Task> tasks) throws InterruptedException;
+
+  /**
+   * Returns a thread pool shared by all tasks for processing parts of a task in parallel, so that
+   * concurrent tasks do not create more threads than set in the preferences. Tasks must not shut
+   * the pool down.
+   */
+  public ForkJoinPool getParallelPool();
+
   public TaskQueue getTaskQueue();
 
 }
@@ -18,25 +18,44 @@
 
 package net.sf.mzmine.taskcontrol.impl;
 
+
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashSet;
-import java.util.Iterator;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Set;
-import java.util.Vector;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
 import java.util.logging.Logger;
 import net.sf.mzmine.desktop.preferences.MZminePreferences;
-import net.sf.mzmine.desktop.preferences.NumOfThreadsParameter;
 import net.sf.mzmine.main.GoogleAnalyticsTracker;
 import net.sf.mzmine.main.MZmineCore;
+import net.sf.mzmine.taskcontrol.AbstractTask;
 import net.sf.mzmine.taskcontrol.Task;
 import net.sf.mzmine.taskcontrol.TaskControlListener;
 import net.sf.mzmine.taskcontrol.TaskController;
 import net.sf.mzmine.taskcontrol.TaskPriority;
 import net.sf.mzmine.taskcontrol.TaskStatus;
+import net.sf.mzmine.taskcontrol.metrics.MetricsRegistry;
+import net.sf.mzmine.taskcontrol.metrics.TaskMetrics;
 
 /**
- * Task controller implementation
+ * Task controller implementation. Tasks of NORMAL priority are processed by a work-stealing thread
+ * pool, limited to the number of threads set in the preferences, in the order of their priority
+ * and submission. A waiting task is started as soon as another task finishes, and the completion
+ * of each task is signaled through its future (see getTaskCompletion()). Tasks of HIGH priority are
+ * started immediately in a separate thread pool. The parallel parts of the tasks share a third
+ * pool of the same size (see getParallelPool()). The queue wait time, wall time and CPU time of
+ * each task are recorded in the MetricsRegistry.
  */
 public class TaskControllerImpl implements TaskController, Runnable {
 
@@ -54,10 +73,38 @@ public class TaskControllerImpl implements TaskController, Runnable {
   private TaskQueue taskQueue;
 
   /**
-   * This vector contains references to all running threads of NORMAL priority. Maximum number of
-   * concurrent threads is specified in the preferences dialog.
+   * Tasks of NORMAL priority waiting for a thread, in the order of priority and submission
+   */
+  private final PriorityQueue<WrappedTask> waitingTasks =
+      new PriorityQueue<>(Comparator.comparing(WrappedTask::getPriority)
+          .thenComparingLong(WrappedTask::getSequenceNumber));
+
+  /**
+   * Tasks which were added and were not processed yet
+   */
+  private final Map<Task, WrappedTask> activeTasks =
+      Collections.synchronizedMap(new IdentityHashMap<>());
+
+  /**
+   * Number of NORMAL priority tasks occupying one of the threads. Maximum number of concurrent
+   * threads is specified in the preferences dialog.
+   */
+  private int runningTasks = 0;
+
+  private long nextSequenceNumber = 0;
+
+  private ForkJoinPool workerPool;
+
+  private ForkJoinPool parallelPool;
+
+  private ExecutorService highPriorityExecutor;
+
+  /**
+   * Task processed by the current thread, and whether the thread occupies one of the NORMAL
+   * priority threads
    */
-  private Vector<WorkerThread> runningThreads;
+  private final ThreadLocal<WrappedTask> currentTask = new ThreadLocal<>();
+  private final ThreadLocal<Boolean> holdsWorkerThread = ThreadLocal.withInitial(() -> false);
 
   /**
    * Initialize the task controller
@@ -66,10 +113,9 @@ public class TaskControllerImpl implements TaskController, Runnable {
 
     taskQueue = new TaskQueue();
 
-    runningThreads = new Vector<WorkerThread>();
+    highPriorityExecutor = Executors.newCachedThreadPool();
 
-    // Create a low-priority thread that will manage the queue and start
-    // worker threads for tasks
+    // Create a low-priority thread that will update the task progress window and the listeners
     taskControllerThread = new Thread(this, "Task controller thread");
     taskControllerThread.setPriority(Thread.MIN_PRIORITY);
     taskControllerThread.start();
@@ -113,14 +159,35 @@ public class TaskControllerImpl implements TaskController, Runnable {
 
     Set<String> uniqueTaskClasses = new HashSet<String>();
     String taskClassName;
-    for (int i = 0; i < tasks.length; i++) {
-      Task task = tasks[i];
-      TaskPriority priority = priorities[i];
-      taskClassName = task.getClass().getName();
-      taskClassName = taskClassName.substring(taskClassName.lastIndexOf(".") + 1);
-      uniqueTaskClasses.add(taskClassName);
-      WrappedTask newQueueEntry = new WrappedTask(task, priority);
-      taskQueue.addWrappedTask(newQueueEntry);
+    synchronized (this) {
+      for (int i = 0; i < tasks.length; i++) {
+        Task task = tasks[i];
+        TaskPriority priority = priorities[i];
+        taskClassName = task.getClass().getName();
+        taskClassName = taskClassName.substring(taskClassName.lastIndexOf(".") + 1);
+        uniqueTaskClasses.add(taskClassName);
+        WrappedTask newQueueEntry = new WrappedTask(task, priority, nextSequenceNumber++);
+        taskQueue.addWrappedTask(newQueueEntry);
+        activeTasks.put(task, newQueueEntry);
+
+        // A task canceled while waiting is completed right away
+        if (task instanceof AbstractTask) {
+          ((AbstractTask) task).addTaskStatusListener((t, newStatus, oldStatus) -> {
+            if (newStatus == TaskStatus.CANCELED)
+              removeCanceledTask(newQueueEntry);
+          });
+        }
+
+        if (priority == TaskPriority.HIGH)
+          startTask(newQueueEntry, false);
+        else
+          waitingTasks.add(newQueueEntry);
+      }
+
+      startWaitingTasks();
+
+      // Wake up the task controller thread
+      this.notifyAll();
     }
 
     // Track module usage
@@ -132,14 +199,216 @@ public class TaskControllerImpl implements TaskController, Runnable {
       gatThread.start();
     }
 
-    // Wake up the task controller thread
-    synchronized (this) {
-      this.notifyAll();
+  }
+
+  /**
+   * Starts waiting tasks while there are free threads. Must be called while holding the lock of
+   * this controller.
+   */
+  private void startWaitingTasks() {
+    final int maxRunningThreads = getMaxThreads();
+    while ((runningTasks < maxRunningThreads) && (!waitingTasks.isEmpty())) {
+      WrappedTask task = waitingTasks.poll();
+      if (skipCanceledTask(task))
+        continue;
+      runningTasks++;
+      startTask(task, true);
+    }
+  }
+
+  private void startTask(WrappedTask task, boolean holdsThread) {
+    final ExecutorService executor = holdsThread ? getWorkerPool() : highPriorityExecutor;
+    executor.execute(() -> {
+      holdsWorkerThread.set(holdsThread);
+      try {
+        processTask(task);
+      } finally {
+        holdsWorkerThread.remove();
+        if (holdsThread) {
+          synchronized (this) {
+            runningTasks--;
+            startWaitingTasks();
+          }
+        }
+      }
+    });
+  }
+
+  /**
+   * Processes the task in the current thread and completes its future
+   */
+  private void processTask(WrappedTask wrappedTask) {
+    final Task actualTask = wrappedTask.getActualTask();
+    final Thread thread = Thread.currentThread();
+    final String threadName = thread.getName();
+    final int threadPriority = thread.getPriority();
+    final WrappedTask callingTask = currentTask.get();
+
+    currentTask.set(wrappedTask);
+    thread.setName("Thread executing task " + wrappedTask);
+    wrappedTask.assignTo(thread);
+    final TaskMetrics metrics = wrappedTask.getMetrics();
+    final TaskMetrics callingMetrics = MetricsRegistry.taskStarted(metrics);
+    try {
+      new TaskRunner(wrappedTask).run();
+    } finally {
+      MetricsRegistry.taskFinished(metrics, callingMetrics, actualTask.getStatus());
+      thread.setName(threadName);
+      thread.setPriority(threadPriority);
+      currentTask.set(callingTask);
+      activeTasks.remove(actualTask);
+      wrappedTask.getCompletion().complete(actualTask.getStatus());
     }
   }
 
+  private synchronized void removeCanceledTask(WrappedTask wrappedTask) {
+    if (waitingTasks.remove(wrappedTask))
+      skipCanceledTask(wrappedTask);
+  }
+
   /**
-   * Task controller thread main method.
+   * Completes a task which was removed from the waiting tasks, if it was canceled before it started
+   * 
+   * @return true if the task was canceled
+   */
+  private boolean skipCanceledTask(WrappedTask wrappedTask) {
+    final Task actualTask = wrappedTask.getActualTask();
+    if (actualTask.getStatus() != TaskStatus.CANCELED)
+      return false;
+    activeTasks.remove(actualTask);
+    wrappedTask.getCompletion().complete(TaskStatus.CANCELED);
+    return true;
+  }
+
+  /**
+   * Returns the pool of NORMAL priority threads. The pool is replaced when the number of threads
+   * is changed in the preferences. Must be called while holding the lock of this controller.
+   */
+  private ForkJoinPool getWorkerPool() {
+    final int maxRunningThreads = getMaxThreads();
+    if ((workerPool == null) || (workerPool.getParallelism() != maxRunningThreads)) {
+      if (workerPool != null)
+        workerPool.shutdown();
+      workerPool = new ForkJoinPool(maxRunningThreads, pool -> {
+        ForkJoinWorkerThread thread =
+            ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+        thread.setName("Task worker thread " + thread.getPoolIndex());
+        return thread;
+      }, null, true);
+    }
+    return workerPool;
+  }
+
+  /**
+   * Returns the pool for the parallel parts of the tasks. The pool is replaced when the number of
+   * threads is changed in the preferences. The previous pool is not shut down, because running
+   * tasks may still submit work to it, its threads terminate once it is idle.
+   */
+  @Override
+  public synchronized ForkJoinPool getParallelPool() {
+    final int maxThreads = getMaxThreads();
+    if ((parallelPool == null) || (parallelPool.getParallelism() != maxThreads)) {
+      parallelPool = new ForkJoinPool(maxThreads, pool -> {
+        ForkJoinWorkerThread thread =
+            ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+        thread.setName("Parallel worker thread " + thread.getPoolIndex());
+        return thread;
+      }, null, false);
+    }
+    return parallelPool;
+  }
+
+  /**
+   * @return maximum number of concurrent threads set in the preferences
+   */
+  private int getMaxThreads() {
+    return Math.max(1, MZmineCore.getConfiguration().getPreferences()
+        .getParameter(MZminePreferences.numOfThreads).getNumberOfThreads());
+  }
+
+  @Override
+  public CompletableFuture<TaskStatus> getTaskCompletion(Task task) {
+    WrappedTask wrappedTask = activeTasks.get(task);
+    if (wrappedTask == null)
+      return CompletableFuture.completedFuture(task.getStatus());
+    return wrappedTask.getCompletion();
+  }
+
+  @Override
+  public void waitForTasks(Collection<? extends Task> tasks) throws InterruptedException {
+
+    ArrayList<WrappedTask> wrappedTasks = new ArrayList<>();
+    for (Task task : tasks) {
+      WrappedTask wrappedTask = activeTasks.get(task);
+      if (wrappedTask != null)
+        wrappedTasks.add(wrappedTask);
+    }
+
+    // Process the tasks which did not start yet in the thread of the calling task
+    if (currentTask.get() != null) {
+      for (WrappedTask wrappedTask : wrappedTasks) {
+        boolean waiting;
+        synchronized (this) {
+          waiting = waitingTasks.remove(wrappedTask);
+        }
+        if (waiting && !skipCanceledTask(wrappedTask))
+          processTask(wrappedTask);
+      }
+    }
+
+    for (WrappedTask wrappedTask : wrappedTasks)
+      awaitCompletion(wrappedTask.getCompletion());
+  }
+
+  /**
+   * Blocks until the future is completed. The thread of the calling task is given to other tasks
+   * while blocked.
+   */
+  private void awaitCompletion(CompletableFuture<TaskStatus> completion)
+      throws InterruptedException {
+
+    if (completion.isDone())
+      return;
+
+    final boolean releaseThread = holdsWorkerThread.get();
+    if (releaseThread) {
+      synchronized (this) {
+        runningTasks--;
+        startWaitingTasks();
+      }
+    }
+
+    try {
+      // Lets the worker pool add a spare thread while this one is blocked
+      ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+        @Override
+        public boolean block() throws InterruptedException {
+          try {
+            completion.get();
+          } catch (ExecutionException e) {
+            // The futures are never completed exceptionally
+          }
+          return true;
+        }
+
+        @Override
+        public boolean isReleasable() {
+          return completion.isDone();
+        }
+      });
+    } finally {
+      if (releaseThread) {
+        synchronized (this) {
+          runningTasks++;
+        }
+      }
+    }
+  }
+
+  /**
+   * Task controller thread main method, which periodically updates the task progress window and
+   * the listeners while there are tasks in the queue. The scheduling of tasks does not depend on
+   * this thread.
    * 
    * @see java.lang.Runnable#run()
    */
@@ -147,17 +416,17 @@ public class TaskControllerImpl implements TaskController, Runnable {
   public void run() {
 
     int previousQueueSize = -1;
-    int previousPercentDone = -1; 
+    int previousPercentDone = -1;
 
     while (true) {
 
-      final int waitingTasks = taskQueue.getNumOfWaitingTasks();
+      final int numOfWaitingTasks = taskQueue.getNumOfWaitingTasks();
       final int percentDone = taskQueue.getTotalPercentComplete();
-      if ((waitingTasks != previousQueueSize) || (percentDone != previousPercentDone)) {
-        previousQueueSize = waitingTasks;
+      if ((numOfWaitingTasks != previousQueueSize) || (percentDone != previousPercentDone)) {
+        previousQueueSize = numOfWaitingTasks;
         previousPercentDone = percentDone;
         for (TaskControlListener listener : listeners)
-          listener.numberOfWaitingTasksChanged(waitingTasks, percentDone);
+          listener.numberOfWaitingTasksChanged(numOfWaitingTasks, percentDone);
       }
 
       // If the queue is empty, we can sleep. When new task is added into
@@ -178,47 +447,6 @@ public class TaskControllerImpl implements TaskController, Runnable {
         continue;
       }
 
-      // Remove already finished threads from runningThreads
-      Iterator<WorkerThread> threadIterator = runningThreads.iterator();
-      while (threadIterator.hasNext()) {
-        WorkerThread thread = threadIterator.next();
-        if (thread.isFinished())
-          threadIterator.remove();
-      }
-
-      // Get a snapshot of the queue
-      WrappedTask[] queueSnapshot = taskQueue.getQueueSnapshot();
-
-      // Obtain the settings of max concurrent threads
-      NumOfThreadsParameter parameter = MZmineCore.getConfiguration().getPreferences()
-          .getParameter(MZminePreferences.numOfThreads);
-      int maxRunningThreads;
-      if (parameter.isAutomatic() || (parameter.getValue() == null))
-        maxRunningThreads = Runtime.getRuntime().availableProcessors();
-      else
-        maxRunningThreads = parameter.getValue();
-
-      // Check all tasks in the queue
-      for (WrappedTask task : queueSnapshot) {
-
-        // Skip assigned and canceled tasks
-        if (task.isAssigned() || (task.getActualTask().getStatus() == TaskStatus.CANCELED))
-          continue;
-
-        // Create a new thread if the task is high-priority or if we
-        // have less then maximum # of threads running
-        if ((task.getPriority() == TaskPriority.HIGH)
-            || (runningThreads.size() < maxRunningThreads)) {
-          WorkerThread newThread = new WorkerThread(task);
-
-          if (task.getPriority() == TaskPriority.NORMAL) {
-            runningThreads.add(newThread);
-          }
-
-          newThread.start();
-        }
-      }
-
       // Tell the queue to refresh the Task progress window
       taskQueue.refresh();
 
@@ -245,10 +473,21 @@ public class TaskControllerImpl implements TaskController, Runnable {
       if (wrappedTask.getActualTask() == task) {
         logger.finest(
             "Setting priority of task \"" + task.getTaskDescription() + "\" to " + priority);
-        wrappedTask.setPriority(priority);
 
-        // Call refresh to re-sort the queue according to new priority
-        // and update the Task progress window
+        // Re-sort the waiting task according to the new priority, or start it right away if it
+        // became high-priority
+        synchronized (this) {
+          boolean waiting = waitingTasks.remove(wrappedTask);
+          wrappedTask.setPriority(priority);
+          if (waiting) {
+            if (priority == TaskPriority.HIGH)
+              startTask(wrappedTask, false);
+            else
+              waitingTasks.add(wrappedTask);
+          }
+        }
+
+        // Update the Task progress window
         taskQueue.refresh();
       }
     }
@@ -27,19 +27,16 @@ import net.sf.mzmine.taskcontrol.TaskStatus;
 import net.sf.mzmine.util.ExceptionUtils;
 
 /**
- * Task controller worker thread, this thread will process one task and then finish
+ * Processes one task in the calling thread, and logs or displays its result
  */
-class WorkerThread extends Thread {
+class TaskRunner implements Runnable {
 
   private Logger logger = Logger.getLogger(this.getClass().getName());
 
   private WrappedTask wrappedTask;
-  private boolean finished = false;
 
-  WorkerThread(WrappedTask wrappedTask) {
-    super("Thread executing task " + wrappedTask);
+  TaskRunner(WrappedTask wrappedTask) {
     this.wrappedTask = wrappedTask;
-    wrappedTask.assignTo(this);
   }
 
   /**
@@ -100,15 +97,6 @@ class WorkerThread extends Thread {
 
     }
 
-    /*
-     * Mark this thread as finished
-     */
-    finished = true;
-
-  }
-
-  boolean isFinished() {
-    return finished;
   }
 
 }
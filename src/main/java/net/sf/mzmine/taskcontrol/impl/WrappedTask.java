@@ -18,8 +18,13 @@
 
 package net.sf.mzmine.taskcontrol.impl;
 
+import java.util.concurrent.CompletableFuture;
+
 import net.sf.mzmine.taskcontrol.Task;
 import net.sf.mzmine.taskcontrol.TaskPriority;
+import net.sf.mzmine.taskcontrol.TaskStatus;
+import net.sf.mzmine.taskcontrol.metrics.MetricsRegistry;
+import net.sf.mzmine.taskcontrol.metrics.TaskMetrics;
 
 /**
  * Wrapper class for Tasks that stores additional information
@@ -28,11 +33,21 @@ public class WrappedTask {
 
   private Task task;
   private TaskPriority priority;
-  private WorkerThread assignedTo;
+  private volatile Thread assignedTo;
+
+  // Order of submission, used to keep the tasks of the same priority in FIFO order
+  private final long sequenceNumber;
+
+  private final CompletableFuture<TaskStatus> completion = new CompletableFuture<>();
 
-  WrappedTask(Task task, TaskPriority priority) {
+  // Created on submission, which starts the queue wait time
+  private final TaskMetrics metrics;
+
+  WrappedTask(Task task, TaskPriority priority, long sequenceNumber) {
     this.task = task;
     this.priority = priority;
+    this.sequenceNumber = sequenceNumber;
+    this.metrics = MetricsRegistry.createTaskMetrics(task);
   }
 
   /**
@@ -66,10 +81,25 @@ public class WrappedTask {
     return assignedTo != null;
   }
 
-  void assignTo(WorkerThread thread) {
+  void assignTo(Thread thread) {
     assignedTo = thread;
   }
 
+  long getSequenceNumber() {
+    return sequenceNumber;
+  }
+
+  /**
+   * @return future completed with the final status of the task, once it has been processed
+   */
+  CompletableFuture<TaskStatus> getCompletion() {
+    return completion;
+  }
+
+  TaskMetrics getMetrics() {
+    return metrics;
+  }
+
   /**
    * @return Returns the task.
    */
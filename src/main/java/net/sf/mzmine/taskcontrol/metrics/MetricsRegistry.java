@@ -0,0 +1,364 @@
+/*
+ * Copyright 2006-2018 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with MZmine 2; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+
+package net.sf.mzmine.taskcontrol.metrics;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.logging.Logger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.json.Json;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonObjectBuilder;
+import javax.json.JsonWriter;
+import javax.json.stream.JsonGenerator;
+
+import net.sf.mzmine.taskcontrol.Task;
+import net.sf.mzmine.taskcontrol.TaskStatus;
+
+/**
+ * Performance counters of the processed tasks, aggregated per task, per module and in total. The
+ * task controller measures the queue wait time, wall time and CPU time of each task. The scans and
+ * mass lists read, bytes read and written and data points cache accesses are counted by the data
+ * model, the feature list rows written when a task adds a feature list to the project (lists read
+ * from a saved project are not counted). The counters are LongAdders of the task processed by the
+ * current thread.
+ *
+ * Work which a task hands over to the shared parallel pool is attributed to the task only if the
+ * pool threads run it through runAs() (as the scan processing pipeline, the mass detection and the
+ * raw data import do), otherwise it is only included in the totals.
+ */
+public class MetricsRegistry {
+
+  private static final Logger logger = Logger.getLogger(MetricsRegistry.class.getName());
+
+  /**
+   * Maximum number of exported task records, the module and total records include all tasks
+   */
+  private static final int MAX_TASK_RECORDS = 10000;
+
+  private static final ThreadLocal<TaskMetrics> currentTask = new ThreadLocal<>();
+
+  private static final Map<Task, String> moduleNames =
+      Collections.synchronizedMap(new WeakHashMap<>());
+
+  private static volatile TaskMetrics totals = new TaskMetrics("", "");
+
+  private static final ArrayDeque<TaskMetrics> finishedTasks = new ArrayDeque<>();
+  private static final Map<String, ModuleMetrics> modules = new LinkedHashMap<>();
+  private static long numOfFinishedTasks;
+
+  /**
+   * Sums of the finished tasks of one module
+   */
+  private static class ModuleMetrics {
+    private final TaskMetrics counters;
+    private long tasks, waitTime, wallTime, cpuTime;
+    private long firstStartTime = Long.MAX_VALUE, lastEndTime = Long.MIN_VALUE;
+
+    private ModuleMetrics(String moduleName) {
+      counters = new TaskMetrics(moduleName, "");
+    }
+
+    private void add(TaskMetrics task) {
+      tasks++;
+      waitTime += task.getWaitTime();
+      wallTime += task.getWallTime();
+      cpuTime += task.getCpuTime();
+      firstStartTime = Math.min(firstStartTime, task.getStartTime());
+      lastEndTime = Math.max(lastEndTime, task.getEndTime());
+      counters.scansRead.add(task.scansRead.sum());
+      counters.massListsRead.add(task.massListsRead.sum());
+      counters.rowsWritten.add(task.rowsWritten.sum());
+      counters.bytesRead.add(task.bytesRead.sum());
+      counters.bytesWritten.add(task.bytesWritten.sum());
+      counters.cacheAccesses.add(task.cacheAccesses.sum());
+      counters.cacheMisses.add(task.cacheMisses.sum());
+    }
+
+    private Map<String, Object> toRecord() {
+      return TaskMetrics.createRecord("module", counters.getModuleName(), "", "", tasks, waitTime,
+          wallTime, lastEndTime - firstStartTime, cpuTime, counters);
+    }
+  }
+
+  /**
+   * Discards all counters, e.g. at the start of a batch
+   */
+  public static synchronized void reset() {
+    totals = new TaskMetrics("", "");
+    finishedTasks.clear();
+    modules.clear();
+    numOfFinishedTasks = 0;
+  }
+
+  /**
+   * Sets the module name under which the task is reported. Tasks without a module name are
+   * reported under their class name.
+   */
+  public static void setModuleName(@Nonnull Task task, @Nonnull String moduleName) {
+    moduleNames.put(task, moduleName);
+  }
+
+  public static @Nullable String getModuleName(@Nonnull Task task) {
+    return moduleNames.get(task);
+  }
+
+  /**
+   * Creates the metrics of a task when it is submitted, starting its queue wait time
+   */
+  public static @Nonnull TaskMetrics createTaskMetrics(@Nonnull Task task) {
+    String moduleName = moduleNames.get(task);
+    if (moduleName == null)
+      moduleName = task.getClass().getSimpleName();
+    return new TaskMetrics(moduleName, task.getTaskDescription());
+  }
+
+  /**
+   * Starts a task in the current thread
+   *
+   * @return metrics of the task which was processed by the current thread before, which has to be
+   *         passed to taskFinished()
+   */
+  public static @Nullable TaskMetrics taskStarted(@Nonnull TaskMetrics metrics) {
+    final TaskMetrics callingTask = currentTask.get();
+    currentTask.set(metrics);
+    metrics.started();
+    return callingTask;
+  }
+
+  /**
+   * Finishes the task processed by the current thread and records its metrics
+   *
+   * @param callingTask the value returned by taskStarted()
+   */
+  public static void taskFinished(@Nonnull TaskMetrics metrics, @Nullable TaskMetrics callingTask,
+      TaskStatus status) {
+    final long threadCpuTime = metrics.finished(status);
+    if (callingTask != null)
+      callingTask.addInlineCpuTime(threadCpuTime);
+    currentTask.set(callingTask);
+
+    synchronized (MetricsRegistry.class) {
+      numOfFinishedTasks++;
+      finishedTasks.add(metrics);
+      if (finishedTasks.size() > MAX_TASK_RECORDS)
+        finishedTasks.poll();
+      modules.computeIfAbsent(metrics.getModuleName(), ModuleMetrics::new).add(metrics);
+    }
+  }
+
+  /**
+   * @return metrics of the task processed by the current thread, or null
+   */
+  public static @Nullable TaskMetrics getCurrentTask() {
+    return currentTask.get();
+  }
+
+  /**
+   * Runs a part of the work of a task in the current thread, which is a thread of a pool owned by
+   * the task. The counters and the CPU time of the work are attributed to the task.
+   */
+  public static void runAs(@Nullable TaskMetrics metrics, @Nonnull Runnable work) {
+    final TaskMetrics previous = currentTask.get();
+    if ((metrics == null) || (metrics == previous)) {
+      work.run();
+      return;
+    }
+    currentTask.set(metrics);
+    final long startCpuTime = TaskMetrics.getThreadCpuTime();
+    try {
+      work.run();
+    } finally {
+      metrics.cpuTime.add(TaskMetrics.getThreadCpuTime() - startCpuTime);
+      currentTask.set(previous);
+    }
+  }
+
+  /**
+   * Counts the scans whose data points were read from a raw data file
+   */
+  public static void addScansRead(int count) {
+    final TaskMetrics metrics = currentTask.get();
+    if (metrics != null)
+      metrics.scansRead.add(count);
+    totals.scansRead.add(count);
+  }
+
+  /**
+   * Counts the mass lists whose data points were read from a raw data file
+   */
+  public static void addMassListsRead(int count) {
+    final TaskMetrics metrics = currentTask.get();
+    if (metrics != null)
+      metrics.massListsRead.add(count);
+    totals.massListsRead.add(count);
+  }
+
+  /**
+   * Counts the rows of a feature list produced by a task, when it is added to the project
+   */
+  public static void addRowsWritten(int count) {
+    final TaskMetrics metrics = currentTask.get();
+    if (metrics != null)
+      metrics.rowsWritten.add(count);
+    totals.rowsWritten.add(count);
+  }
+
+  public static void addBytesRead(long count) {
+    final TaskMetrics metrics = currentTask.get();
+    if (metrics != null)
+      metrics.bytesRead.add(count);
+    totals.bytesRead.add(count);
+  }
+
+  public static void addBytesWritten(long count) {
+    final TaskMetrics metrics = currentTask.get();
+    if (metrics != null)
+      metrics.bytesWritten.add(count);
+    totals.bytesWritten.add(count);
+  }
+
+  /**
+   * Counts an access to the data points cache
+   */
+  public static void addCacheAccess() {
+    final TaskMetrics metrics = currentTask.get();
+    if (metrics != null)
+      metrics.cacheAccesses.increment();
+    totals.cacheAccesses.increment();
+  }
+
+  /**
+   * Counts a data points cache access which had to decode the data points
+   */
+  public static void addCacheMiss() {
+    final TaskMetrics metrics = currentTask.get();
+    if (metrics != null)
+      metrics.cacheMisses.increment();
+    totals.cacheMisses.increment();
+  }
+
+  /**
+   * @return records of the finished tasks, the modules in the order of their first finished task
+   *         and the total, in this order. The total also includes the work done outside of tasks.
+   */
+  public static synchronized @Nonnull List<Map<String, Object>> getRecords() {
+    List<Map<String, Object>> records = new ArrayList<>();
+    long waitTime = 0, wallTime = 0, cpuTime = 0;
+    for (TaskMetrics task : finishedTasks)
+      records.add(task.toRecord());
+    for (ModuleMetrics module : modules.values()) {
+      records.add(module.toRecord());
+      waitTime += module.waitTime;
+      wallTime += module.wallTime;
+      cpuTime += module.cpuTime;
+    }
+    final TaskMetrics currentTotals = totals;
+    records.add(TaskMetrics.createRecord("total", "", "", "", numOfFinishedTasks, waitTime,
+        wallTime, System.nanoTime() - currentTotals.getQueuedTime(), cpuTime, currentTotals));
+    return records;
+  }
+
+  /**
+   * Writes the metrics to a CSV file, if its name ends with .csv, or to a JSON file otherwise
+   */
+  public static void exportMetrics(@Nonnull File file) throws IOException {
+    final List<Map<String, Object>> records = getRecords();
+    try (Writer writer =
+        new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+      if (file.getName().toLowerCase().endsWith(".csv"))
+        writeCSV(records, writer);
+      else
+        writeJSON(records, writer);
+    }
+    logger.info("Exported the task metrics to " + file);
+  }
+
+  private static void writeCSV(List<Map<String, Object>> records, Writer writer)
+      throws IOException {
+    writer.write(String.join(",", records.get(0).keySet()));
+    writer.write("\n");
+    for (Map<String, Object> record : records) {
+      List<String> values = new ArrayList<>();
+      for (Object value : record.values()) {
+        String text = (value instanceof Double) ? String.format(Locale.US, "%.3f", value)
+            : value.toString();
+        if (text.contains(",") || text.contains("\"") || text.contains("\n"))
+          text = "\"" + text.replace("\"", "\"\"") + "\"";
+        values.add(text);
+      }
+      writer.write(String.join(",", values));
+      writer.write("\n");
+    }
+  }
+
+  private static void writeJSON(List<Map<String, Object>> records, Writer writer) {
+    JsonArrayBuilder tasks = Json.createArrayBuilder();
+    JsonArrayBuilder modules = Json.createArrayBuilder();
+    JsonObjectBuilder total = null;
+    for (Map<String, Object> record : records) {
+      JsonObjectBuilder json = Json.createObjectBuilder();
+      for (Map.Entry<String, Object> entry : record.entrySet()) {
+        if (entry.getKey().equals("level"))
+          continue;
+        Object value = entry.getValue();
+        if (value instanceof Long)
+          json.add(entry.getKey(), (Long) value);
+        else if (value instanceof Double)
+          json.add(entry.getKey(), (Double) value);
+        else
+          json.add(entry.getKey(), value.toString());
+      }
+      switch (record.get("level").toString()) {
+        case "task":
+          tasks.add(json);
+          break;
+        case "module":
+          modules.add(json);
+          break;
+        default:
+          total = json;
+      }
+    }
+    JsonObjectBuilder metrics = Json.createObjectBuilder();
+    metrics.add("tasks", tasks);
+    metrics.add("modules", modules);
+    metrics.add("total", total);
+    try (JsonWriter jsonWriter = Json
+        .createWriterFactory(Collections.singletonMap(JsonGenerator.PRETTY_PRINTING, true))
+        .createWriter(writer)) {
+      jsonWriter.writeObject(metrics.build());
+    }
+  }
+
+}
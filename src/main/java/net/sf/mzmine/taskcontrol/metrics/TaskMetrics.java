@@ -0,0 +1,201 @@
+/*
+ * Copyright 2006-2018 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with MZmine 2; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+
+package net.sf.mzmine.taskcontrol.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import net.sf.mzmine.taskcontrol.TaskStatus;
+
+/**
+ * Counters of one processed task, see MetricsRegistry. The counters are updated by the threads
+ * working for the task, the times are set by the task controller.
+ */
+public class TaskMetrics {
+
+  private static final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+  private static final boolean cpuTimeSupported = isCpuTimeSupported();
+
+  private final String moduleName;
+  private final String taskName;
+
+  private final long queuedTime;
+  private volatile long startTime, endTime;
+  private volatile TaskStatus status;
+
+  // CPU time of the processing thread when the task started, and CPU time of the subtasks which
+  // were processed inline by that thread
+  private long startCpuTime, inlineCpuTime;
+
+  final LongAdder cpuTime = new LongAdder();
+  final LongAdder scansRead = new LongAdder();
+  final LongAdder massListsRead = new LongAdder();
+  final LongAdder rowsWritten = new LongAdder();
+  final LongAdder bytesRead = new LongAdder();
+  final LongAdder bytesWritten = new LongAdder();
+  final LongAdder cacheAccesses = new LongAdder();
+  final LongAdder cacheMisses = new LongAdder();
+
+  TaskMetrics(String moduleName, String taskName) {
+    this.moduleName = moduleName;
+    this.taskName = taskName;
+    this.queuedTime = System.nanoTime();
+  }
+
+  public String getModuleName() {
+    return moduleName;
+  }
+
+  public String getTaskName() {
+    return taskName;
+  }
+
+  /**
+   * @return final status of the task, or null if it was not processed yet
+   */
+  public TaskStatus getStatus() {
+    return status;
+  }
+
+  /**
+   * @return time between the submission and the start of the task, in ns
+   */
+  public long getWaitTime() {
+    return startTime == 0 ? 0 : startTime - queuedTime;
+  }
+
+  /**
+   * @return time between the start and the end of the task, in ns
+   */
+  public long getWallTime() {
+    return endTime == 0 ? 0 : endTime - startTime;
+  }
+
+  /**
+   * @return CPU time of the task, in ns. Subtasks processed inline are not included.
+   */
+  public long getCpuTime() {
+    return cpuTime.sum();
+  }
+
+  long getQueuedTime() {
+    return queuedTime;
+  }
+
+  long getStartTime() {
+    return startTime;
+  }
+
+  long getEndTime() {
+    return endTime;
+  }
+
+  /**
+   * Called by the thread which processes the task, when it starts
+   */
+  void started() {
+    startCpuTime = getThreadCpuTime();
+    startTime = System.nanoTime();
+  }
+
+  /**
+   * Called by the thread which processed the task, when it finished
+   *
+   * @return CPU time of the thread including the inline subtasks, in ns
+   */
+  long finished(TaskStatus finalStatus) {
+    endTime = System.nanoTime();
+    final long threadCpuTime = getThreadCpuTime() - startCpuTime;
+    cpuTime.add(threadCpuTime - inlineCpuTime);
+    status = finalStatus;
+    return threadCpuTime;
+  }
+
+  /**
+   * Called by the thread which processes the task, after it processed a subtask inline
+   */
+  void addInlineCpuTime(long time) {
+    inlineCpuTime += time;
+  }
+
+  /**
+   * @return CPU time of the current thread in ns, or 0 if it cannot be measured
+   */
+  static long getThreadCpuTime() {
+    return cpuTimeSupported ? threadBean.getCurrentThreadCpuTime() : 0;
+  }
+
+  private static boolean isCpuTimeSupported() {
+    try {
+      if (!threadBean.isCurrentThreadCpuTimeSupported())
+        return false;
+      if (!threadBean.isThreadCpuTimeEnabled())
+        threadBean.setThreadCpuTimeEnabled(true);
+      return true;
+    } catch (UnsupportedOperationException | SecurityException e) {
+      return false;
+    }
+  }
+
+  /**
+   * @return the counters as one exported record
+   */
+  Map<String, Object> toRecord() {
+    return createRecord("task", moduleName, taskName, status == null ? "" : status.toString(), 1,
+        getWaitTime(), getWallTime(), getWallTime(), getCpuTime(), this);
+  }
+
+  /**
+   * Record of the counters, with the columns in the exported order
+   */
+  static Map<String, Object> createRecord(String level, String module, String task, String status,
+      long tasks, long waitTime, long wallTime, long elapsedTime, long cpuTime,
+      TaskMetrics counters) {
+    final long scans = counters.scansRead.sum();
+    final long rows = counters.rowsWritten.sum();
+    final long accesses = counters.cacheAccesses.sum();
+    final long hits = accesses - counters.cacheMisses.sum();
+    final double seconds = elapsedTime / 1e9;
+    Map<String, Object> record = new LinkedHashMap<>();
+    record.put("level", level);
+    record.put("module", module);
+    record.put("task", task);
+    record.put("status", status);
+    record.put("tasks", tasks);
+    record.put("wait_ms", waitTime / 1000000);
+    record.put("wall_ms", wallTime / 1000000);
+    record.put("elapsed_ms", elapsedTime / 1000000);
+    record.put("cpu_ms", cpuTime / 1000000);
+    record.put("scans_read", scans);
+    record.put("scans_per_s", seconds > 0 ? scans / seconds : 0.0);
+    record.put("mass_lists_read", counters.massListsRead.sum());
+    record.put("rows_written", rows);
+    record.put("rows_per_s", seconds > 0 ? rows / seconds : 0.0);
+    record.put("bytes_read", counters.bytesRead.sum());
+    record.put("bytes_written", counters.bytesWritten.sum());
+    record.put("cache_accesses", accesses);
+    record.put("cache_hits", hits);
+    record.put("cache_hit_ratio", accesses > 0 ? (double) hits / accesses : 0.0);
+    return record;
+  }
+
+}
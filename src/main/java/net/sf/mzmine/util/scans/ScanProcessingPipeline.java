@@ -0,0 +1,222 @@
+/*
+ * Copyright 2006-2018 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with MZmine 2; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+
+
+package net.sf.mzmine.util.scans;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.stream.IntStream;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.RawDataFile;
+import net.sf.mzmine.datamodel.RawDataFileWriter;
+import net.sf.mzmine.datamodel.Scan;
+import net.sf.mzmine.project.impl.DataPointsCache;
+import net.sf.mzmine.taskcontrol.AbstractTask;
+import net.sf.mzmine.taskcontrol.metrics.MetricsRegistry;
+import net.sf.mzmine.taskcontrol.metrics.TaskMetrics;
+
+/**
+ * Transforms the scans of a raw data file and writes the results to a new raw data file. The scans
+ * are processed in batches, in parallel if a thread pool is given. The next batch is processed
+ * while the scans of the current batch are written in their original order, so the new file does
+ * not depend on the number of threads. The data points of the scans are decoded once and kept in a
+ * sliding window, so processors that use the neighbouring scans (e.g. smoothing over time) do not
+ * read them again for each scan.
+ */
+public class ScanProcessingPipeline {
+
+  /**
+   * Number of scans processed at once
+   */
+  public static final int BATCH_SIZE = 256;
+
+  /**
+   * Processing of one scan. Implementations are called by multiple threads at the same time, if
+   * the pipeline runs on a thread pool.
+   */
+  @FunctionalInterface
+  public interface ScanProcessor {
+
+    /**
+     * @param window decoded scans of the raw data file
+     * @param index index of the scan to process
+     * @return processed scan, or null if no scan should be written
+     */
+    @Nullable
+    Scan processScan(@Nonnull ScanWindow window, int index);
+
+  }
+
+  /**
+   * Scans of the processed raw data file, by index. The data points of the scans around the
+   * currently processed batch are decoded only once.
+   */
+  public static class ScanWindow {
+
+    private final RawDataFile dataFile;
+    private final int scanNumbers[];
+    private final AtomicReferenceArray<DataPoint[]> dataPoints;
+
+    private ScanWindow(RawDataFile dataFile, int scanNumbers[]) {
+      this.dataFile = dataFile;
+      this.scanNumbers = scanNumbers;
+      this.dataPoints = new AtomicReferenceArray<>(scanNumbers.length);
+    }
+
+    public int getNumberOfScans() {
+      return scanNumbers.length;
+    }
+
+    public Scan getScan(int index) {
+      return dataFile.getScan(scanNumbers[index]);
+    }
+
+    /**
+     * @return data points of the scan. The returned array is shared and must not be modified.
+     */
+    public @Nonnull DataPoint[] getDataPoints(int index) {
+      DataPoint scanDataPoints[] = dataPoints.get(index);
+      if (scanDataPoints == null) {
+        scanDataPoints = DataPointsCache.getSharedDataPoints(getScan(index));
+        dataPoints.set(index, scanDataPoints);
+      }
+      return scanDataPoints;
+    }
+
+    /**
+     * Releases the decoded data points of the scans from fromIndex to toIndex - 1
+     */
+    private void release(int fromIndex, int toIndex) {
+      for (int i = fromIndex; i < toIndex; i++)
+        dataPoints.set(i, null);
+    }
+
+  }
+
+  private final ScanWindow window;
+  private volatile int processedScans = 0;
+
+  /**
+   * @param dataFile raw data file
+   * @param scanNumbers numbers of the scans to process, in the order they are written
+   */
+  public ScanProcessingPipeline(@Nonnull RawDataFile dataFile, @Nonnull int scanNumbers[]) {
+    this.window = new ScanWindow(dataFile, scanNumbers);
+  }
+
+  /**
+   * @return number of scans which were processed and written
+   */
+  public int getProcessedScans() {
+    return processedScans;
+  }
+
+  /**
+   * Processes all scans and writes them to the given writer, which is not finished.
+   *
+   * @param pool thread pool for processing the scans, or null to process them in the calling
+   *        thread. The pool is not shut down, it may be shared with other tasks.
+   * @param task task which runs the pipeline, processing stops when it is canceled
+   * @return false if the task was canceled
+   */
+  public boolean run(@Nonnull ScanProcessor processor, @Nullable ForkJoinPool pool,
+      @Nonnull RawDataFileWriter writer, @Nonnull AbstractTask task) throws IOException {
+
+    final int totalScans = window.getNumberOfScans();
+
+    Future<Scan[]> nextBatch = null;
+    if (pool != null)
+      nextBatch = processBatch(processor, pool, task, 0, Math.min(BATCH_SIZE, totalScans));
+
+    try {
+      for (int batchStart = 0; batchStart < totalScans; batchStart += BATCH_SIZE) {
+
+        final int batchEnd = Math.min(batchStart + BATCH_SIZE, totalScans);
+        final Scan batchScans[];
+        if (pool != null) {
+          batchScans = getBatch(nextBatch);
+          if (batchEnd < totalScans)
+            nextBatch = processBatch(processor, pool, task, batchEnd,
+                Math.min(batchEnd + BATCH_SIZE, totalScans));
+        } else {
+          batchScans = new Scan[batchEnd - batchStart];
+          for (int i = batchStart; (i < batchEnd) && (!task.isCanceled()); i++)
+            batchScans[i - batchStart] = processor.processScan(window, i);
+        }
+
+        if (task.isCanceled())
+          return false;
+
+        for (Scan scan : batchScans) {
+          if (scan != null)
+            writer.addScan(scan);
+          processedScans++;
+        }
+
+        // The scans of the previous batch are not needed any more, except by very wide windows
+        window.release(Math.max(0, batchStart - BATCH_SIZE), batchStart);
+      }
+
+      return true;
+    } finally {
+      // The pool may be shared with other tasks, so only the pending batch is stopped
+      if (nextBatch != null)
+        nextBatch.cancel(true);
+    }
+  }
+
+  private Future<Scan[]> processBatch(ScanProcessor processor, ForkJoinPool pool,
+      AbstractTask task, int first, int last) {
+    // The pool threads work for the task processed by the calling thread
+    final TaskMetrics metrics = MetricsRegistry.getCurrentTask();
+    return pool.submit(() -> {
+      Scan batchScans[] = new Scan[last - first];
+      IntStream.range(first, last).parallel().forEach(i -> {
+        if (!task.isCanceled())
+          MetricsRegistry.runAs(metrics,
+              () -> batchScans[i - first] = processor.processScan(window, i));
+      });
+      return batchScans;
+    });
+  }
+
+  private static Scan[] getBatch(Future<Scan[]> batch) throws IOException {
+    try {
+      return batch.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while processing scans", e);
+    } catch (ExecutionException e) {
+      // Rethrow the original exception of the processor
+      if (e.getCause() instanceof RuntimeException)
+        throw (RuntimeException) e.getCause();
+      if (e.getCause() instanceof Error)
+        throw (Error) e.getCause();
+      throw new IOException(e.getCause());
+    }
+  }
+
+}
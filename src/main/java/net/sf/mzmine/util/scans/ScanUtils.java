@@ -126,6 +126,40 @@ public class ScanUtils {
     return basePeak;
   }
 
+  /**
+   * Find a base peak in a given m/z range of a decoded spectrum, whose m/z values are sorted in
+   * ascending order. The m/z range is searched using binary search and treated as closed, in the
+   * same way as Scan.getDataPointsByMass().
+   * 
+   * @param mzValues sorted m/z values
+   * @param intensityValues intensity values
+   * @param numOfDataPoints number of valid elements in the arrays
+   * @param mzRange mz range to search in
+   * @return index of the base peak, or -1 if there is no data point in the range
+   */
+  public static int findBasePeakIndex(@Nonnull double mzValues[],
+      @Nonnull double intensityValues[], int numOfDataPoints, @Nonnull Range<Double> mzRange) {
+
+    // Find the first data point with m/z >= lower endpoint
+    final double lowerMz = mzRange.lowerEndpoint(), upperMz = mzRange.upperEndpoint();
+    int low = 0, high = numOfDataPoints;
+    while (low < high) {
+      final int mid = (low + high) >>> 1;
+      if (mzValues[mid] < lowerMz)
+        low = mid + 1;
+      else
+        high = mid;
+    }
+
+    int basePeak = -1;
+    for (int i = low; (i < numOfDataPoints) && (mzValues[i] <= upperMz); i++) {
+      if ((basePeak == -1) || (intensityValues[i] > intensityValues[basePeak]))
+        basePeak = i;
+    }
+
+    return basePeak;
+  }
+
   /**
    * Calculate the total ion count of a scan within a given mass range.
    * 
@@ -465,20 +499,32 @@ public class ScanUtils {
     double[] intensityValues = new double[dataPoints.length];
     double[] mzValues = new double[dataPoints.length];
 
+    for (int i = 0; i < dataPoints.length; i++) {
+      intensityValues[i] = dataPoints[i].getIntensity();
+      mzValues[i] = dataPoints[i].getMZ();
+    }
+
+    return detectSpectrumType(mzValues, intensityValues, dataPoints.length);
+
+  }
+
+  /**
+   * Same as detectSpectrumType(DataPoint[]), but works directly on m/z and intensity arrays. Only
+   * the first size elements of the arrays are used.
+   */
+  public static MassSpectrumType detectSpectrumType(@Nonnull double mzValues[],
+      @Nonnull double intensityValues[], int size) {
+
     // If the spectrum has less than 5 data points, it should be centroided.
-    if (dataPoints.length < 5)
+    if (size < 5)
       return MassSpectrumType.CENTROIDED;
 
     int basePeakIndex = 0;
     boolean hasZeroDataPoint = false;
 
     // Go through the data points and find the highest one
-    int size = dataPoints.length;
     for (int i = 0; i < size; i++) {
 
-      intensityValues[i] = dataPoints[i].getIntensity();
-      mzValues[i] = dataPoints[i].getMZ();
-
       // Update the maxDataPointIndex accordingly
       if (intensityValues[i] > intensityValues[basePeakIndex])
         basePeakIndex = i;
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2006-2018 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with MZmine 2; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+
+package net.sf.mzmine.util.scans;
+
+import javax.annotation.Nonnull;
+
+import net.sf.mzmine.datamodel.MassList;
+import net.sf.mzmine.datamodel.MassSpectrum;
+
+/**
+ * Reusable m/z and intensity arrays for reading spectra and mass lists without creating a DataPoint
+ * instance for each data point. The arrays grow as needed and are kept between loads, so a module
+ * that processes many scans allocates them only a few times. Only the first getNumberOfDataPoints()
+ * elements of the arrays are valid. A buffer must not be shared by multiple threads.
+ */
+public class SpectrumBuffer {
+
+  private double mzValues[] = new double[0];
+  private double intensityValues[] = new double[0];
+  private int numberOfDataPoints;
+
+  public @Nonnull SpectrumBuffer load(@Nonnull MassSpectrum spectrum) {
+    ensureCapacity(spectrum.getNumberOfDataPoints());
+    numberOfDataPoints = spectrum.getDataPoints(mzValues, intensityValues);
+    return this;
+  }
+
+  public @Nonnull SpectrumBuffer load(@Nonnull MassList massList) {
+    ensureCapacity(massList.getNumberOfDataPoints());
+    numberOfDataPoints = massList.getDataPoints(mzValues, intensityValues);
+    return this;
+  }
+
+  private void ensureCapacity(int size) {
+    if (mzValues.length < size) {
+      mzValues = new double[size];
+      intensityValues = new double[size];
+    }
+  }
+
+  public @Nonnull double[] getMzValues() {
+    return mzValues;
+  }
+
+  public @Nonnull double[] getIntensityValues() {
+    return intensityValues;
+  }
+
+  public int getNumberOfDataPoints() {
+    return numberOfDataPoints;
+  }
+
+}
@@ -0,0 +1,306 @@
+/*
+ * Copyright 2006-2018 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with MZmine 2; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+
+package net.sf.mzmine.util.spectraldb.index;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import com.google.common.collect.Range;
+
+import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
+import net.sf.mzmine.taskcontrol.AbstractTask;
+import net.sf.mzmine.util.spectraldb.entry.DBEntryField;
+import net.sf.mzmine.util.spectraldb.entry.SpectralDBEntry;
+import net.sf.mzmine.util.spectraldb.parser.UnsupportedFormatException;
+
+/**
+ * Compiled spectral library. The entries of a library file (any format supported by
+ * AutoLibraryParser) are stored in a binary index file next to the library, sorted by precursor
+ * m/z, with the peaks as primitive m/z and intensity arrays. The index file is built on the first
+ * use and reused by all further searches, until the library file changes. The entry data are
+ * memory-mapped and only decoded on access, so a search can go directly to the entries within the
+ * precursor m/z tolerance.
+ *
+ * Index file layout: a fixed header (see SpectralLibraryIndexBuilder), the entry records, and a
+ * table of the precursor m/z values (NaN for missing values, sorted last), record offsets and
+ * record lengths. An index can be read by many threads at the same time.
+ */
+public class SpectralLibraryIndex implements Closeable {
+
+  private static final Logger logger = Logger.getLogger(SpectralLibraryIndex.class.getName());
+
+  static final long MAGIC = 0x4d5a6d696e654c49L; // "MZmineLI"
+  static final int VERSION = 1;
+  static final int HEADER_SIZE = 48;
+  static final String FILE_SUFFIX = ".mzmineindex";
+
+  // Value types of the entry fields
+  static final byte TYPE_STRING = 0, TYPE_DOUBLE = 1, TYPE_INTEGER = 2, TYPE_FLOAT = 3;
+
+  // Size of one memory-mapped segment (1 GB)
+  private static final long SEGMENT_SIZE = 1L << 30;
+
+  private final File indexFile;
+  private final RandomAccessFile randomAccessFile;
+  private final FileChannel channel;
+  private final MappedByteBuffer segments[];
+
+  private final double precursorMZ[];
+  private final long offsets[];
+  private final int lengths[];
+
+  private SpectralLibraryIndex(File indexFile) throws IOException {
+    this.indexFile = indexFile;
+    this.randomAccessFile = new RandomAccessFile(indexFile, "r");
+    this.channel = randomAccessFile.getChannel();
+
+    final long fileLength = channel.size();
+    final ByteBuffer header = readFully(0, HEADER_SIZE);
+    ((Buffer) header).position(32);
+    final int numOfEntries = header.getInt();
+    final long tableOffset = header.getLong();
+
+    precursorMZ = new double[numOfEntries];
+    offsets = new long[numOfEntries];
+    lengths = new int[numOfEntries];
+    ByteBuffer table = channel.map(FileChannel.MapMode.READ_ONLY, tableOffset,
+        fileLength - tableOffset);
+    table.asDoubleBuffer().get(precursorMZ);
+    ((Buffer) table).position(numOfEntries * Double.BYTES);
+    table.asLongBuffer().get(offsets);
+    ((Buffer) table).position(numOfEntries * (Double.BYTES + Long.BYTES));
+    table.asIntBuffer().get(lengths);
+
+    final int numOfSegments = (int) ((tableOffset + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+    segments = new MappedByteBuffer[numOfSegments];
+    for (int i = 0; i < numOfSegments; i++) {
+      final long start = i * SEGMENT_SIZE;
+      segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start,
+          Math.min(SEGMENT_SIZE, tableOffset - start));
+    }
+  }
+
+  /**
+   * Opens the index of the given library file, building it first if it does not exist or if the
+   * library has changed since it was built.
+   *
+   * @param task task building the index (used to check for cancellation)
+   * @return the index or null if the task was canceled
+   */
+  public static SpectralLibraryIndex open(AbstractTask task, File libraryFile)
+      throws UnsupportedFormatException, IOException {
+    File indexFile = getIndexFile(libraryFile);
+    if (!isValid(indexFile, libraryFile)) {
+      logger.info("Building spectral library index " + indexFile);
+      if (!SpectralLibraryIndexBuilder.build(task, libraryFile, indexFile))
+        return null;
+    }
+    return new SpectralLibraryIndex(indexFile);
+  }
+
+  /**
+   * The index is stored next to the library file, or in the temporary directory if the directory
+   * of the library is not writable.
+   */
+  static File getIndexFile(File libraryFile) {
+    File directory = libraryFile.getAbsoluteFile().getParentFile();
+    if (directory != null && Files.isWritable(directory.toPath()))
+      return new File(directory, libraryFile.getName() + FILE_SUFFIX);
+    return new File(System.getProperty("java.io.tmpdir"), libraryFile.getName() + "-"
+        + Integer.toHexString(libraryFile.getAbsolutePath().hashCode()) + FILE_SUFFIX);
+  }
+
+  /**
+   * Checks the header of an existing index file against the library file
+   */
+  private static boolean isValid(File indexFile, File libraryFile) {
+    if (!indexFile.isFile() || indexFile.length() < HEADER_SIZE)
+      return false;
+    try (RandomAccessFile file = new RandomAccessFile(indexFile, "r")) {
+      return file.readLong() == MAGIC && file.readInt() == VERSION
+          && file.readInt() == getFieldsHash() && file.readLong() == libraryFile.length()
+          && file.readLong() == libraryFile.lastModified();
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Fields are stored by their ordinal, so the index must be rebuilt when DBEntryField changes
+   */
+  static int getFieldsHash() {
+    return Arrays.toString(DBEntryField.values()).hashCode();
+  }
+
+  public File getIndexFile() {
+    return indexFile;
+  }
+
+  /**
+   * @return number of entries
+   */
+  public int size() {
+    return precursorMZ.length;
+  }
+
+  /**
+   * @return precursor m/z of an entry or NaN if the entry has no precursor m/z
+   */
+  public double getPrecursorMZ(int index) {
+    return precursorMZ[index];
+  }
+
+  /**
+   * Finds all entries with a precursor m/z within the given range. Entries are sorted by precursor
+   * m/z, so these are the entries from the returned start index (inclusive) to the returned end
+   * index (exclusive).
+   *
+   * @return {start index, end index}
+   */
+  public int[] findPrecursorMZRange(Range<Double> mzRange) {
+    final int start = lowerBound(mzRange.lowerEndpoint());
+    int end = lowerBound(mzRange.upperEndpoint());
+    while (end < precursorMZ.length && precursorMZ[end] <= mzRange.upperEndpoint())
+      end++;
+    return new int[] {start, Math.max(start, end)};
+  }
+
+  /**
+   * @return index of the first entry with precursor m/z >= mz (NaN values are sorted last)
+   */
+  private int lowerBound(double mz) {
+    int low = 0, high = precursorMZ.length;
+    while (low < high) {
+      final int mid = (low + high) >>> 1;
+      if (precursorMZ[mid] < mz)
+        low = mid + 1;
+      else
+        high = mid;
+    }
+    return low;
+  }
+
+  /**
+   * Decodes all entries from start (inclusive) to end (exclusive)
+   */
+  public List<SpectralDBEntry> getEntries(int start, int end) throws IOException {
+    List<SpectralDBEntry> entries = new ArrayList<>(Math.max(0, end - start));
+    for (int i = start; i < end; i++)
+      entries.add(getEntry(i));
+    return entries;
+  }
+
+  /**
+   * Decodes one entry
+   */
+  public SpectralDBEntry getEntry(int index) throws IOException {
+    final ByteBuffer record = read(offsets[index], lengths[index]);
+
+    final int numOfFields = record.getInt();
+    final Map<DBEntryField, Object> fields = new EnumMap<>(DBEntryField.class);
+    final DBEntryField allFields[] = DBEntryField.values();
+    for (int i = 0; i < numOfFields; i++) {
+      final DBEntryField field = allFields[record.get()];
+      final byte type = record.get();
+      final Object value;
+      switch (type) {
+        case TYPE_DOUBLE:
+          value = record.getDouble();
+          break;
+        case TYPE_INTEGER:
+          value = record.getInt();
+          break;
+        case TYPE_FLOAT:
+          value = record.getFloat();
+          break;
+        default:
+          final byte bytes[] = new byte[record.getInt()];
+          record.get(bytes);
+          value = new String(bytes, StandardCharsets.UTF_8);
+      }
+      fields.put(field, value);
+    }
+
+    final int numOfDataPoints = record.getInt();
+    final double mzValues[] = new double[numOfDataPoints];
+    final double intensityValues[] = new double[numOfDataPoints];
+    record.asDoubleBuffer().get(mzValues);
+    ((Buffer) record).position(record.position() + numOfDataPoints * Double.BYTES);
+    record.asDoubleBuffer().get(intensityValues);
+
+    final DataPoint dataPoints[] = new DataPoint[numOfDataPoints];
+    for (int i = 0; i < numOfDataPoints; i++)
+      dataPoints[i] = new SimpleDataPoint(mzValues[i], intensityValues[i]);
+    return new SpectralDBEntry(fields, dataPoints);
+  }
+
+  /**
+   * Returns a buffer with the given bytes, which is a view of a mapped segment when possible
+   */
+  private ByteBuffer read(long offset, int numOfBytes) throws IOException {
+    final int segmentIndex = (int) (offset / SEGMENT_SIZE);
+    final long segmentStart = segmentIndex * SEGMENT_SIZE;
+    if (offset + numOfBytes <= segmentStart + segments[segmentIndex].capacity()) {
+      ByteBuffer view = segments[segmentIndex].duplicate();
+      final int start = (int) (offset - segmentStart);
+      // JDK 9 breaks compatibility with JRE8: need to cast
+      ((Buffer) view).limit(start + numOfBytes);
+      ((Buffer) view).position(start);
+      return view.slice();
+    }
+    // Record crossing a segment boundary
+    return readFully(offset, numOfBytes);
+  }
+
+  private ByteBuffer readFully(long offset, int numOfBytes) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(numOfBytes);
+    long position = offset;
+    while (buffer.hasRemaining()) {
+      final int read = channel.read(buffer, position);
+      if (read < 0)
+        throw new IOException("Unexpected end of file " + indexFile);
+      position += read;
+    }
+    ((Buffer) buffer).flip();
+    return buffer;
+  }
+
+  @Override
+  public void close() throws IOException {
+    // The mapped segments are released when they are garbage collected
+    channel.close();
+    randomAccessFile.close();
+  }
+
+}
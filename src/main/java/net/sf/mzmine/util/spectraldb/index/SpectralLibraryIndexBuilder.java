@@ -0,0 +1,207 @@
+/*
+ * Copyright 2006-2018 The MZmine 2 Development Team
+ *
+ * This file is part of MZmine 2.
+ *
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with MZmine 2; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+
+package net.sf.mzmine.util.spectraldb.index;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.logging.Logger;
+
+import it.unimi.dsi.fastutil.doubles.DoubleArrayList;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.taskcontrol.AbstractTask;
+import net.sf.mzmine.util.spectraldb.entry.DBEntryField;
+import net.sf.mzmine.util.spectraldb.entry.SpectralDBEntry;
+import net.sf.mzmine.util.spectraldb.parser.AutoLibraryParser;
+import net.sf.mzmine.util.spectraldb.parser.UnsupportedFormatException;
+
+/**
+ * Builds the index file of a spectral library. The library is parsed once and each entry is
+ * appended to the index file as soon as it is parsed, so only the precursor m/z values and record
+ * positions are kept in memory. The table sorted by precursor m/z is written after the records. The
+ * index is written to a temporary file, which replaces the index file only when it is complete.
+ *
+ * Header: magic (long), version (int), hash of DBEntryField (int), library file length (long),
+ * library file modification time (long), number of entries (int), table offset (long), padding.
+ */
+class SpectralLibraryIndexBuilder {
+
+  private static final Logger logger =
+      Logger.getLogger(SpectralLibraryIndexBuilder.class.getName());
+
+  private final OutputStream out;
+  private long position = SpectralLibraryIndex.HEADER_SIZE;
+
+  private final DoubleArrayList precursorMZ = new DoubleArrayList();
+  private final LongArrayList offsets = new LongArrayList();
+  private final IntArrayList lengths = new IntArrayList();
+
+  // Reused buffer for encoding one record
+  private final ByteArrayOutputStream recordBytes = new ByteArrayOutputStream();
+  private final DataOutputStream record = new DataOutputStream(recordBytes);
+
+  private SpectralLibraryIndexBuilder(OutputStream out) {
+    this.out = out;
+  }
+
+  /**
+   * Parses the library file and writes its index file.
+   *
+   * @return false if the task was canceled
+   */
+  static boolean build(AbstractTask task, File libraryFile, File indexFile)
+      throws UnsupportedFormatException, IOException {
+
+    // Read the library file attributes first, so a change during parsing invalidates the index
+    final long libraryLength = libraryFile.length();
+    final long libraryLastModified = libraryFile.lastModified();
+
+    File tmpFile = File.createTempFile(indexFile.getName(), ".tmp", indexFile.getParentFile());
+    try {
+      final SpectralLibraryIndexBuilder builder;
+      try (OutputStream out = new BufferedOutputStream(new FileOutputStream(tmpFile), 1 << 16)) {
+        out.write(new byte[SpectralLibraryIndex.HEADER_SIZE]);
+        builder = new SpectralLibraryIndexBuilder(out);
+
+        AutoLibraryParser parser = new AutoLibraryParser(1000, (list, alreadyProcessed) -> {
+          try {
+            for (SpectralDBEntry entry : list)
+              builder.addEntry(entry);
+          } catch (IOException e) {
+            throw new UncheckedIOException(e);
+          }
+        });
+        try {
+          if (!parser.parse(task, libraryFile) || task.isCanceled())
+            return false;
+        } catch (UncheckedIOException e) {
+          throw e.getCause();
+        }
+
+        builder.writeTable();
+      }
+
+      builder.writeHeader(tmpFile, libraryLength, libraryLastModified);
+      Files.move(tmpFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+      logger.info("Spectral library index " + indexFile + " contains " + builder.offsets.size()
+          + " entries");
+      return true;
+    } finally {
+      tmpFile.delete();
+    }
+  }
+
+  private void addEntry(SpectralDBEntry entry) throws IOException {
+    recordBytes.reset();
+
+    int numOfFields = 0;
+    for (DBEntryField field : DBEntryField.values()) {
+      if (entry.getField(field).isPresent())
+        numOfFields++;
+    }
+    record.writeInt(numOfFields);
+    for (DBEntryField field : DBEntryField.values()) {
+      Object value = entry.getField(field).orElse(null);
+      if (value == null)
+        continue;
+      record.writeByte(field.ordinal());
+      if (value instanceof Double) {
+        record.writeByte(SpectralLibraryIndex.TYPE_DOUBLE);
+        record.writeDouble((Double) value);
+      } else if (value instanceof Integer) {
+        record.writeByte(SpectralLibraryIndex.TYPE_INTEGER);
+        record.writeInt((Integer) value);
+      } else if (value instanceof Float) {
+        record.writeByte(SpectralLibraryIndex.TYPE_FLOAT);
+        record.writeFloat((Float) value);
+      } else {
+        final byte bytes[] = value.toString().getBytes(StandardCharsets.UTF_8);
+        record.writeByte(SpectralLibraryIndex.TYPE_STRING);
+        record.writeInt(bytes.length);
+        record.write(bytes);
+      }
+    }
+
+    final DataPoint dataPoints[] = entry.getDataPoints();
+    record.writeInt(dataPoints.length);
+    for (DataPoint dp : dataPoints)
+      record.writeDouble(dp.getMZ());
+    for (DataPoint dp : dataPoints)
+      record.writeDouble(dp.getIntensity());
+    record.flush();
+
+    final Double mz = entry.getPrecursorMZ();
+    precursorMZ.add(mz == null ? Double.NaN : mz);
+    offsets.add(position);
+    lengths.add(recordBytes.size());
+
+    recordBytes.writeTo(out);
+    position += recordBytes.size();
+  }
+
+  /**
+   * Writes the table of precursor m/z values, record offsets and lengths, sorted by precursor m/z
+   */
+  private void writeTable() throws IOException {
+    final int numOfEntries = offsets.size();
+    final Integer order[] = new Integer[numOfEntries];
+    for (int i = 0; i < numOfEntries; i++)
+      order[i] = i;
+    // Double.compare sorts NaN (no precursor m/z) last, the sort is stable for equal values
+    Arrays.sort(order,
+        (a, b) -> Double.compare(precursorMZ.getDouble(a), precursorMZ.getDouble(b)));
+
+    DataOutputStream table = new DataOutputStream(out);
+    for (int i : order)
+      table.writeDouble(precursorMZ.getDouble(i));
+    for (int i : order)
+      table.writeLong(offsets.getLong(i));
+    for (int i : order)
+      table.writeInt(lengths.getInt(i));
+    table.flush();
+  }
+
+  private void writeHeader(File file, long libraryLength, long libraryLastModified)
+      throws IOException {
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+      raf.writeLong(SpectralLibraryIndex.MAGIC);
+      raf.writeInt(SpectralLibraryIndex.VERSION);
+      raf.writeInt(SpectralLibraryIndex.getFieldsHash());
+      raf.writeLong(libraryLength);
+      raf.writeLong(libraryLastModified);
+      raf.writeInt(offsets.size());
+      // Table follows the records
+      raf.writeLong(position);
+    }
+  }
+
+}